@@ -378,6 +378,35 @@ public class GNSCommand extends CommandPacket {
     return fieldRead(targetGUID.getGuid(), field, targetGUID);
   }
 
+  /**
+   * Same as {@link #fieldRead(String, String, GuidEntry)} but only returns
+   * the value if {@code targetGUID}:{@code field} has changed since
+   * {@code version}. Otherwise the response code is
+   * {@link edu.umass.cs.gnscommon.ResponseCode#NOT_MODIFIED} and there is no
+   * value. When the value is returned the map also contains its current
+   * version under the key "_GNS_version", to pass to the next read.
+   * Pass an empty {@code version} for the first read.
+   *
+   * @param targetGUID
+   * The guid being queried.
+   * @param field
+   * The field key.
+   * @param version
+   * The version of the value the querier already has.
+   * @param querierGUID
+   * The guid issuing the query.
+   * @return CommandPacket
+   * @throws ClientException
+   */
+  public static final CommandPacket fieldReadIfVersionDiffers(String targetGUID,
+          String field, String version, GuidEntry querierGUID) throws ClientException {
+    return getCommand(querierGUID != null ? CommandType.Read
+            : CommandType.ReadUnsigned, querierGUID, GNSProtocol.GUID.toString(), targetGUID,
+            GNSProtocol.FIELD.toString(), field, GNSProtocol.READER.toString(),
+            querierGUID != null ? querierGUID.getGuid() : null,
+            GNSProtocol.IF_VERSION_DIFFERS.toString(), version);
+  }
+
   /**
    * Reads {@code targetGUID}:{@code field} for each field in {@code fields}.
    * {@code querierGUID} must be present in the read ACL of every field in
@@ -1637,6 +1666,129 @@ public class GNSCommand extends CommandPacket {
     );
   }
 
+  /**
+   * Selects a page of the guid records that match the {@code query}.
+   * Just like {@link #selectRecords(String, List)} except that at most
+   * {@code limit} records, ordered by the value of the {@code sortKey} field
+   * and then by guid, are returned.
+   *
+   * The result type of the execution result of this query
+   * is {@link CommandResultType#MAP}. The records are a JSON array under
+   * {@link GNSProtocol#RESULTS} and, if there are more, the token to pass as
+   * {@code continuation} to get the next page is under
+   * {@link GNSProtocol#CONTINUATION}.
+   * Requires all fields accessed to be world readable.
+   *
+   * @param query
+   * The select query being issued.
+   * @param fields A list of fields or null meaning all fields
+   * @param limit The maximum number of records to return
+   * @param sortKey The field to order the records by or null to order them by guid
+   * @param continuation The token returned with the previous page or null for the first page
+   * @return CommandPacket
+   * @throws ClientException
+   */
+  public static final CommandPacket selectRecords(String query, List<String> fields,
+          int limit, String sortKey, String continuation)
+          throws ClientException {
+    return getCommand(CommandType.SelectQuery,
+            GNSProtocol.QUERY.toString(), query,
+            GNSProtocol.FIELDS.toString(), fields == null ? GNSProtocol.ENTIRE_RECORD : fields,
+            GNSProtocol.LIMIT.toString(), limit,
+            GNSProtocol.SORT_KEY.toString(), sortKey,
+            GNSProtocol.CONTINUATION.toString(), continuation);
+  }
+
+  /**
+   * Selects a page of the guid records that match the {@code query}.
+   * Just like {@link #selectRecords(GuidEntry, String, List)} except that at most
+   * {@code limit} records, ordered by the value of the {@code sortKey} field
+   * and then by guid, are returned.
+   *
+   * The result type of the execution result of this query
+   * is {@link CommandResultType#MAP}. The records are a JSON array under
+   * {@link GNSProtocol#RESULTS} and, if there are more, the token to pass as
+   * {@code continuation} to get the next page is under
+   * {@link GNSProtocol#CONTINUATION}.
+   *
+   * @param reader
+   * @param query
+   * The select query being issued.
+   * @param fields A list of fields or null meaning all fields
+   * @param limit The maximum number of records to return
+   * @param sortKey The field to order the records by or null to order them by guid
+   * @param continuation The token returned with the previous page or null for the first page
+   * @return CommandPacket
+   * @throws ClientException
+   */
+  public static final CommandPacket selectRecords(GuidEntry reader, String query, List<String> fields,
+          int limit, String sortKey, String continuation)
+          throws ClientException {
+    return getCommand(CommandType.SelectQuery, reader,
+            GNSProtocol.GUID.toString(), reader.getGuid(),
+            GNSProtocol.QUERY.toString(), query,
+            GNSProtocol.FIELDS.toString(), fields == null ? GNSProtocol.ENTIRE_RECORD : fields,
+            GNSProtocol.LIMIT.toString(), limit,
+            GNSProtocol.SORT_KEY.toString(), sortKey,
+            GNSProtocol.CONTINUATION.toString(), continuation);
+  }
+
+  /**
+   * Counts the guid records that match the {@code query} or finds the min,
+   * max or sum of the values of {@code field} in them. The records are
+   * combined on the servers so only the result is returned.
+   *
+   * The result type of the execution result of this query
+   * is {@link CommandResultType#MAP}. The {@code aggregate} is mapped to its
+   * value or, if {@code groupBy} is given, to a JSON object with each value
+   * of the {@code groupBy} field mapped to the value for the records that
+   * have it.
+   * Requires all fields accessed to be world readable.
+   *
+   * @param query
+   * The select query being issued.
+   * @param aggregate One of count, min, max or sum
+   * @param field The field that is aggregated or null for count
+   * @param groupBy The field the records are grouped by or null
+   * @return CommandPacket
+   * @throws ClientException
+   */
+  public static final CommandPacket selectAggregate(String query, String aggregate,
+          String field, String groupBy)
+          throws ClientException {
+    return getCommand(CommandType.SelectAggregate,
+            GNSProtocol.QUERY.toString(), query,
+            GNSProtocol.AGGREGATE.toString(), aggregate,
+            GNSProtocol.FIELD.toString(), field,
+            GNSProtocol.GROUP_BY.toString(), groupBy);
+  }
+
+  /**
+   * Counts the guid records that match the {@code query} or finds the min,
+   * max or sum of the values of {@code field} in them.
+   * Just like {@link #selectAggregate(String, String, String, String)} except
+   * that the records are read as {@code reader}.
+   *
+   * @param reader
+   * @param query
+   * The select query being issued.
+   * @param aggregate One of count, min, max or sum
+   * @param field The field that is aggregated or null for count
+   * @param groupBy The field the records are grouped by or null
+   * @return CommandPacket
+   * @throws ClientException
+   */
+  public static final CommandPacket selectAggregate(GuidEntry reader, String query, String aggregate,
+          String field, String groupBy)
+          throws ClientException {
+    return getCommand(CommandType.SelectAggregate, reader,
+            GNSProtocol.GUID.toString(), reader.getGuid(),
+            GNSProtocol.QUERY.toString(), query,
+            GNSProtocol.AGGREGATE.toString(), aggregate,
+            GNSProtocol.FIELD.toString(), field,
+            GNSProtocol.GROUP_BY.toString(), groupBy);
+  }
+
   /**
    * Set up a context-aware group guid corresponding to the query. Requires
    * {@code accountGuid} and {@code publicKey} that are used to set up the new
@@ -268,7 +268,8 @@ public enum CommandType {
             GNSProtocol.FIELDS.toString(),
             GNSProtocol.READER.toString(),
             GNSProtocol.SIGNATURE.toString(),
-            GNSProtocol.SIGNATUREFULLMESSAGE.toString()}),
+            GNSProtocol.SIGNATUREFULLMESSAGE.toString(),
+            GNSProtocol.IF_VERSION_DIFFERS.toString()}),
   /**
    *
    */
@@ -295,7 +296,8 @@ public enum CommandType {
           + "field must be set to be readable by everyone. "
           + "Specify +ALL+ as the <field> to return all fields. ",
           new String[]{GNSProtocol.GUID.toString(),
-            GNSProtocol.FIELD.toString()}, new String[]{}),
+            GNSProtocol.FIELD.toString()},
+          new String[]{GNSProtocol.IF_VERSION_DIFFERS.toString()}),
   /**
    *
    */
@@ -333,7 +335,8 @@ public enum CommandType {
           // optional parameters
           new String[]{GNSProtocol.READER.toString(),
             GNSProtocol.SIGNATURE.toString(),
-            GNSProtocol.SIGNATUREFULLMESSAGE.toString()}),
+            GNSProtocol.SIGNATUREFULLMESSAGE.toString(),
+            GNSProtocol.IF_VERSION_DIFFERS.toString()}),
   /**
    *
    */
@@ -369,7 +372,8 @@ public enum CommandType {
           + "field must be set to be readable by everyone. Values are always returned as a JSON list. "
           + "Specify +ALL+ as the <field> to return all fields. ",
           new String[]{GNSProtocol.GUID.toString(),
-            GNSProtocol.FIELD.toString()}, new String[]{}),
+            GNSProtocol.FIELD.toString()},
+          new String[]{GNSProtocol.IF_VERSION_DIFFERS.toString()}),
   /**
    *
    */
@@ -553,7 +557,8 @@ public enum CommandType {
    */
   CreateIndex(230, CommandCategory.OTHER, "edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commands.data.CreateIndex",
           CommandResultType.NULL, true, false,
-          "Creates an index for field. The value is a string containing the index type.",
+          "Creates an index for field. The value is a string containing the index type. "
+          + "Use hash or sorted for an in-memory index on servers that use one.",
           new String[]{GNSProtocol.GUID.toString(),
             GNSProtocol.FIELD.toString(),
             GNSProtocol.VALUE.toString(),
@@ -726,11 +731,36 @@ public enum CommandType {
           CommandResultType.LIST, false, false,
           "Returns the guids of all records that satisfy the query. "
           + "For details see http://gns.name/wiki/index.php/Query_Syntax "
-          + "Values are returned as a JSON array of guids.",
+          + "Values are returned as a JSON array of guids. "
+          + "If a limit or continuation is given a page of at most limit values, ordered by the "
+          + "sortKey field and then by guid, is returned as a JSON object with the values under "
+          + "results and the token for the next page, if there is one, under continuation.",
           new String[]{GNSProtocol.QUERY.toString()},
           // optional parameters
           new String[]{GNSProtocol.GUID.toString(), // the reader
             GNSProtocol.FIELDS.toString(),
+            GNSProtocol.LIMIT.toString(),
+            GNSProtocol.SORT_KEY.toString(),
+            GNSProtocol.CONTINUATION.toString(),
+            GNSProtocol.SIGNATURE.toString(),
+            GNSProtocol.SIGNATUREFULLMESSAGE.toString()}),
+  /**
+   *
+   */
+  SelectAggregate(323, CommandCategory.SELECT, "edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commands.select.SelectAggregate",
+          CommandResultType.MAP, false, false,
+          "Returns the count of the records that satisfy the query or the min, max or sum of the values "
+          + "of field in them. Aggregate is one of count, min, max or sum. "
+          + "For details see http://gns.name/wiki/index.php/Query_Syntax "
+          + "The result is returned as a JSON object with the aggregate mapped to its value or, "
+          + "if a groupBy field is given, to a JSON object with each value of the groupBy field "
+          + "mapped to the value for the records that have it.",
+          new String[]{GNSProtocol.QUERY.toString(),
+            GNSProtocol.AGGREGATE.toString()},
+          // optional parameters
+          new String[]{GNSProtocol.GUID.toString(), // the reader
+            GNSProtocol.FIELD.toString(),
+            GNSProtocol.GROUP_BY.toString(),
             GNSProtocol.SIGNATURE.toString(),
             GNSProtocol.SIGNATUREFULLMESSAGE.toString()}),
   //
@@ -1850,6 +1880,7 @@ public enum CommandType {
     SelectNear.setChain();
     SelectWithin.setChain();
     SelectQuery.setChain();
+    SelectAggregate.setChain();
     //
     AddGuid.setChain(LookupGuid, ReplaceUserJSONUnsigned, ReadUnsigned); // what else?
     RemoveGuid.setChain(ReadUnsigned);
@@ -23,6 +23,12 @@ public enum GNSProtocol {
    * See {@link edu.umass.cs.gnscommon.ResponseCode#NO_ERROR}.
    */
   OK_RESPONSE("+OK+"),
+  /**
+   * Indicates that the field a conditional read asked for hasn't changed since
+   * the version the reader already has.
+   * See {@link edu.umass.cs.gnscommon.ResponseCode#NOT_MODIFIED}.
+   */
+  NOT_MODIFIED("+NOTMODIFIED+"),
   /**
    * A prefix used in the command return value to indicate an anomolous condition.
    * Always accompanied by an additional string value which indicates the
@@ -230,6 +236,11 @@ public enum GNSProtocol {
    * The fields being accessed in a command.
    */
   FIELDS("fields"),
+  /**
+   * The version of the field the reader already has. Makes a read conditional:
+   * the value is only returned if the field has changed since that version.
+   */
+  IF_VERSION_DIFFERS("ifVersionDiffers"),
   /**
    * The value being updated in a command.
    */
@@ -304,6 +315,32 @@ public enum GNSProtocol {
    * to determine refresh interval.
    */
   INTERVAL("interval"),
+  /**
+   * The maximum number of records a select returns in a page of its results.
+   */
+  LIMIT("limit"),
+  /**
+   * The field the records returned by a select are ordered by.
+   */
+  SORT_KEY("sortKey"),
+  /**
+   * The token returned with a page of the results of a select, used to
+   * get the next page.
+   */
+  CONTINUATION("continuation"),
+  /**
+   * The records or guids in a page of the results of a select.
+   */
+  RESULTS("results"),
+  /**
+   * The operation an aggregate select combines the records it matches with:
+   * count, min, max or sum.
+   */
+  AGGREGATE("aggregate"),
+  /**
+   * The field the records of an aggregate select are grouped by.
+   */
+  GROUP_BY("groupBy"),
   /**
    * Used in commands to represent the use of all fields.
    */
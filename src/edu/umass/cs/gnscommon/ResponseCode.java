@@ -45,6 +45,11 @@ public enum ResponseCode implements Serializable {
    * additional information to describe the error or exception.
    */
   NO_ERROR(200, GNSProtocol.OK_RESPONSE.toString(), ResponseCodeType.NORMAL),
+  /**
+   * A positive acknowledgment of a conditional read. The field hasn't changed
+   * since the version the reader gave so the return value doesn't contain it.
+   */
+  NOT_MODIFIED(304, GNSProtocol.NOT_MODIFIED.toString(), ResponseCodeType.NORMAL),
   /**
    * Unspecified error. This should be used replaced with more specific errors
    * in most cases and used sparingly, if at all because it doesn't convey
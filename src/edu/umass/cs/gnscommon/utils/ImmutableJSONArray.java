@@ -0,0 +1,105 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnscommon.utils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * A JSONArray that can't be modified. See {@link ImmutableJSONObject}.
+ *
+ * @author westy
+ */
+public class ImmutableJSONArray extends JSONArray {
+
+  private ImmutableJSONArray() {
+    super();
+  }
+
+  /**
+   * Returns an immutable version of the array. Returns the array itself if
+   * it is already immutable, otherwise copies it reusing any immutable
+   * subtrees.
+   *
+   * @param array
+   * @return an immutable json array
+   * @throws JSONException
+   */
+  public static ImmutableJSONArray of(JSONArray array) throws JSONException {
+    if (array instanceof ImmutableJSONArray) {
+      return (ImmutableJSONArray) array;
+    }
+    ImmutableJSONArray result = new ImmutableJSONArray();
+    for (int i = 0; i < array.length(); i++) {
+      result.add(ImmutableJSONObject.freeze(array.get(i)));
+    }
+    return result;
+  }
+
+  private void add(Object value) {
+    super.put(value);
+  }
+
+  /**
+   * Builds an immutable json array an element at a time.
+   */
+  public static class Builder {
+
+    private ImmutableJSONArray array = new ImmutableJSONArray();
+
+    /**
+     * Adds an element. The value is made immutable if it isn't already.
+     *
+     * @param value
+     * @return this builder
+     * @throws JSONException
+     */
+    public Builder put(Object value) throws JSONException {
+      array.add(ImmutableJSONObject.freeze(value));
+      return this;
+    }
+
+    /**
+     * Returns the array. The builder can't be used afterwards.
+     *
+     * @return the immutable json array
+     */
+    public ImmutableJSONArray build() {
+      ImmutableJSONArray result = array;
+      array = null;
+      return result;
+    }
+  }
+
+  @Override
+  public JSONArray put(Object value) {
+    throw new UnsupportedOperationException("Record is immutable");
+  }
+
+  @Override
+  public JSONArray put(int index, Object value) throws JSONException {
+    throw new UnsupportedOperationException("Record is immutable");
+  }
+
+  @Override
+  public Object remove(int index) {
+    throw new UnsupportedOperationException("Record is immutable");
+  }
+}
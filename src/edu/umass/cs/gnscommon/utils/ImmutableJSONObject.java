@@ -0,0 +1,176 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnscommon.utils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A JSONObject that can't be modified. Any nested objects and arrays
+ * are immutable as well, so one instance can be shared by any number of
+ * readers without copying.
+ *
+ * Writers make a shallow mutable copy with {@link #toMutable} of each
+ * level they change and freeze the result again, which shares all the
+ * unchanged subtrees with the previous version.
+ * {@link JSONDotNotation#putWithDotNotation} and
+ * {@link JSONDotNotation#removeWithDotNotation} do the copying for
+ * the levels below the one they are handed.
+ *
+ * @author westy
+ */
+public class ImmutableJSONObject extends JSONObject {
+
+  private ImmutableJSONObject() {
+    super();
+  }
+
+  /**
+   * Returns an immutable version of the json. Returns the json itself if it
+   * is already immutable, otherwise copies it reusing any immutable subtrees.
+   *
+   * @param json
+   * @return an immutable json object
+   * @throws JSONException
+   */
+  public static ImmutableJSONObject of(JSONObject json) throws JSONException {
+    if (json instanceof ImmutableJSONObject) {
+      return (ImmutableJSONObject) json;
+    }
+    ImmutableJSONObject result = new ImmutableJSONObject();
+    Iterator<?> keys = json.keys();
+    while (keys.hasNext()) {
+      String key = (String) keys.next();
+      result.set(key, freeze(json.get(key)));
+    }
+    return result;
+  }
+
+  /**
+   * Returns a json object that can be modified. Returns the json itself if
+   * it is mutable, otherwise a shallow copy. The values of the copy are
+   * still immutable.
+   *
+   * @param json
+   * @return a mutable json object
+   * @throws JSONException
+   */
+  public static JSONObject toMutable(JSONObject json) throws JSONException {
+    if (!(json instanceof ImmutableJSONObject)) {
+      return json;
+    }
+    JSONObject result = new JSONObject();
+    Iterator<?> keys = json.keys();
+    while (keys.hasNext()) {
+      String key = (String) keys.next();
+      result.put(key, json.get(key));
+    }
+    return result;
+  }
+
+  /**
+   * Converts a json value into its immutable form.
+   * Like the database copy code this also converts maps and collections.
+   *
+   * @param value
+   * @return the immutable value
+   * @throws JSONException
+   */
+  @SuppressWarnings("unchecked")
+  static Object freeze(Object value) throws JSONException {
+    if (value instanceof ImmutableJSONObject || value instanceof ImmutableJSONArray) {
+      return value;
+    } else if (value instanceof JSONObject) {
+      return of((JSONObject) value);
+    } else if (value instanceof JSONArray) {
+      return ImmutableJSONArray.of((JSONArray) value);
+    } else if (value instanceof Map) {
+      ImmutableJSONObject result = new ImmutableJSONObject();
+      for (Map.Entry<String, ?> entry : ((Map<String, ?>) value).entrySet()) {
+        if (entry.getValue() != null) {
+          result.set(entry.getKey(), freeze(entry.getValue()));
+        }
+      }
+      return result;
+    } else if (value instanceof Collection) {
+      return ImmutableJSONArray.of(new JSONArray((Collection<?>) value));
+    }
+    return value;
+  }
+
+  private void set(String key, Object value) throws JSONException {
+    super.put(key, value);
+  }
+
+  /**
+   * Builds an immutable json object a field at a time without first
+   * building a mutable one.
+   */
+  public static class Builder {
+
+    private ImmutableJSONObject object = new ImmutableJSONObject();
+
+    /**
+     * Adds a field. The value is made immutable if it isn't already.
+     *
+     * @param key
+     * @param value
+     * @return this builder
+     * @throws JSONException
+     */
+    public Builder put(String key, Object value) throws JSONException {
+      object.set(key, freeze(value));
+      return this;
+    }
+
+    /**
+     * Returns the object. The builder can't be used afterwards.
+     *
+     * @return the immutable json object
+     */
+    public ImmutableJSONObject build() {
+      ImmutableJSONObject result = object;
+      object = null;
+      return result;
+    }
+  }
+
+  @Override
+  public JSONObject put(String key, Object value) throws JSONException {
+    throw new UnsupportedOperationException("Record is immutable");
+  }
+
+  @Override
+  public Object remove(String key) {
+    throw new UnsupportedOperationException("Record is immutable");
+  }
+
+  @Override
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public Set keySet() {
+    return Collections.unmodifiableSet(super.keySet());
+  }
+}
@@ -17,7 +17,6 @@ package edu.umass.cs.gnscommon.utils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -38,6 +37,7 @@ public class JSONDotNotation {
   }
 
   /**
+   * See {@link JSONPath#put}.
    *
    * @param destination
    * @param key
@@ -46,29 +46,11 @@ public class JSONDotNotation {
    * @throws JSONException
    */
   public static boolean putWithDotNotation(JSONObject destination, String key, Object value) throws JSONException {
-    JSONDotNotation.getLogger().log(Level.FINE, "###fullkey={0} dest={1}", 
-            new Object[]{key, destination});
-    if (key.contains(".")) {
-      int indexOfDot = key.indexOf(".");
-      String subKey = key.substring(0, indexOfDot);
-      JSONDotNotation.getLogger().log(Level.FINE, "###subkey={0}", subKey);
-      Object subDestination = destination.opt(subKey);
-      if (subDestination == null) {
-        destination.put(subKey, new JSONObject());
-        subDestination = destination.get(subKey);
-        // FIXME: could also allow JSONArray here if the subkey is in integer
-      } else if (!(subDestination instanceof JSONObject)) {
-        return false;
-      }
-      return putWithDotNotation((JSONObject) subDestination, key.substring(indexOfDot + 1), value);
-    } else {
-      destination.put(key, value);
-      JSONDotNotation.getLogger().log(Level.FINE, "###write={0}->{1}", new Object[]{key, value});
-      return true;
-    }
+    return JSONPath.of(key).put(destination, value);
   }
 
   /**
+   * See {@link JSONPath#get}.
    *
    * @param key
    * @param json
@@ -76,67 +58,30 @@ public class JSONDotNotation {
    * @throws JSONException
    */
   public static Object getWithDotNotation(String key, Object json) throws JSONException {
-    JSONDotNotation.getLogger().log(Level.FINE, "CLASS IS " + json.getClass());
-    JSONDotNotation.getLogger().log(Level.FINE, "###fullkey={0} json={1}", new Object[]{key, json});
-    if (key.contains(".")) {
-      int indexOfDot = key.indexOf(".");
-      String subKey = key.substring(0, indexOfDot);
-      JSONDotNotation.getLogger().log(Level.FINE, "###subkey={0}", subKey);
-
-      Object subJSON = ((JSONObject) json).get(subKey);
-      if (subJSON == null) {
-        JSONDotNotation.getLogger().log(Level.FINE, "### {0} is null", subKey);
-        throw new JSONException(subKey + " is null");
-      }
-      try {
-        return getWithDotNotation(key.substring(indexOfDot + 1), subJSON);
-      } catch (JSONException e) {
-        throw new JSONException(subKey + "." + e.getMessage());
-      }
-    } else {
-      Object result = ((JSONObject) json).get(key);
-      JSONDotNotation.getLogger().log(Level.FINE, "###result={0}", result);
-      return result;
-    }
+    return JSONPath.of(key).get(json);
   }
-  
-  public static Object removeWithDotNotation(String key, Object json) throws JSONException {
-    JSONDotNotation.getLogger().log(Level.FINE, "CLASS IS " + json.getClass());
-    JSONDotNotation.getLogger().log(Level.FINE, "###fullkey={0} json={1}", new Object[]{key, json});
-    if (key.contains(".")) {
-      int indexOfDot = key.indexOf(".");
-      String subKey = key.substring(0, indexOfDot);
-      JSONDotNotation.getLogger().log(Level.FINE, "###subkey={0}", subKey);
 
-      Object subJSON = ((JSONObject) json).get(subKey);
-      if (subJSON == null) {
-        JSONDotNotation.getLogger().log(Level.FINE, "### {0} is null", subKey);
-        throw new JSONException(subKey + " is null");
-      }
-      try {
-        return removeWithDotNotation(key.substring(indexOfDot + 1), subJSON);
-      } catch (JSONException e) {
-        throw new JSONException(subKey + "." + e.getMessage());
-      }
-    } else {
-      Object result = ((JSONObject) json).remove(key);
-      JSONDotNotation.getLogger().log(Level.FINE, "###result={0}", result);
-      return result;
-    }
+  /**
+   * See {@link JSONPath#remove}.
+   *
+   * @param key
+   * @param json
+   * @return the value removed
+   * @throws JSONException
+   */
+  public static Object removeWithDotNotation(String key, Object json) throws JSONException {
+    return JSONPath.of(key).remove((JSONObject) json);
   }
 
   /**
+   * See {@link JSONPath#has}.
    *
    * @param key
    * @param json
    * @return true if the value is found
    */
   public static boolean containsFieldDotNotation(String key, Object json) {
-    try {
-      return getWithDotNotation(key, json) != null;
-    } catch (JSONException e) {
-      return false; // normal negative result when the key isn't present
-    }
+    return JSONPath.of(key).has(json);
   }
 
   // Test Code
@@ -0,0 +1,246 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnscommon.utils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dotted field name like "flapjack.sally.right" split into its parts once.
+ *
+ * The methods of {@link JSONDotNotation} used to split the key again on
+ * every call and on every level. Paths are cached by key, so getting the
+ * path of a key that was used recently is a hash lookup, and resolving it
+ * walks the levels without making any substrings or, for {@link #opt},
+ * throwing an exception when the field isn't there.
+ *
+ * Paths resolve through JSONObjects and through Maps, which is what the
+ * mongo driver returns for nested documents.
+ *
+ * @author westy
+ */
+public final class JSONPath {
+
+  // enough for all the field names in use at any one time; anything more
+  // and we start over rather than keep track of which ones are used
+  private static final int MAX_CACHED = 8192;
+  private static final ConcurrentHashMap<String, JSONPath> CACHE = new ConcurrentHashMap<>();
+
+  private final String key;
+  private final String[] parts;
+  private volatile JSONPath parent = null;
+
+  private JSONPath(String key) {
+    this.key = key;
+    this.parts = key.split("\\.", -1);
+  }
+
+  /**
+   * Returns the path of the dotted key.
+   *
+   * @param key
+   * @return the path
+   */
+  public static JSONPath of(String key) {
+    JSONPath path = CACHE.get(key);
+    if (path == null) {
+      if (CACHE.size() >= MAX_CACHED) {
+        CACHE.clear();
+      }
+      path = new JSONPath(key);
+      JSONPath previous = CACHE.putIfAbsent(key, path);
+      if (previous != null) {
+        path = previous;
+      }
+    }
+    return path;
+  }
+
+  /**
+   * Returns the dotted key.
+   *
+   * @return the key
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Returns the number of parts of the path.
+   *
+   * @return the number of parts
+   */
+  public int depth() {
+    return parts.length;
+  }
+
+  /**
+   * Returns the part of the path at the index.
+   *
+   * @param index
+   * @return the part
+   */
+  public String part(int index) {
+    return parts[index];
+  }
+
+  /**
+   * Returns the path without its last part or null if it only has one.
+   *
+   * @return the parent path
+   */
+  public JSONPath parent() {
+    if (parts.length == 1) {
+      return null;
+    }
+    JSONPath result = parent;
+    if (result == null) {
+      parent = result = of(key.substring(0, key.lastIndexOf('.')));
+    }
+    return result;
+  }
+
+  // The child of a JSONObject or Map or null if there isn't one.
+  private static Object child(Object json, String part) {
+    if (json instanceof JSONObject) {
+      return ((JSONObject) json).opt(part);
+    } else if (json instanceof Map) {
+      return ((Map<?, ?>) json).get(part);
+    }
+    return null;
+  }
+
+  /**
+   * Returns the value at the path or null if there isn't one.
+   *
+   * @param json - a JSONObject or Map
+   * @return the value or null
+   */
+  public Object opt(Object json) {
+    Object current = json;
+    for (int i = 0; i < parts.length && current != null; i++) {
+      current = child(current, parts[i]);
+    }
+    return current;
+  }
+
+  /**
+   * Returns true if there is a value at the path.
+   *
+   * @param json - a JSONObject or Map
+   * @return true if there is a value
+   */
+  public boolean has(Object json) {
+    return opt(json) != null;
+  }
+
+  /**
+   * Returns the value at the path.
+   *
+   * @param json - a JSONObject or Map
+   * @return the value
+   * @throws JSONException if there isn't one
+   */
+  public Object get(Object json) throws JSONException {
+    Object current = json;
+    for (int i = 0; i < parts.length; i++) {
+      Object next = child(current, parts[i]);
+      if (next == null) {
+        throw new JSONException(prefix(i) + "JSONObject[" + JSONObject.quote(parts[i]) + "] not found.");
+      }
+      current = next;
+    }
+    return current;
+  }
+
+  /**
+   * Puts the value at the path, adding objects for any missing levels.
+   * Immutable levels are copied on the way down (see
+   * {@link ImmutableJSONObject}).
+   *
+   * @param destination
+   * @param value
+   * @return false if a level of the path isn't an object
+   * @throws JSONException
+   */
+  public boolean put(JSONObject destination, Object value) throws JSONException {
+    JSONObject current = destination;
+    for (int i = 0; i < parts.length - 1; i++) {
+      Object next = current.opt(parts[i]);
+      if (next == null) {
+        // FIXME: could also allow JSONArray here if the part is an integer
+        next = new JSONObject();
+        current.put(parts[i], next);
+      } else if (!(next instanceof JSONObject)) {
+        return false;
+      } else if (next instanceof ImmutableJSONObject) {
+        // copy on write
+        next = ImmutableJSONObject.toMutable((JSONObject) next);
+        current.put(parts[i], next);
+      }
+      current = (JSONObject) next;
+    }
+    current.put(parts[parts.length - 1], value);
+    return true;
+  }
+
+  /**
+   * Removes the value at the path. Immutable levels are copied on the way
+   * down.
+   *
+   * @param json
+   * @return the value removed or null if there wasn't one
+   * @throws JSONException if a level above the value is missing
+   */
+  public Object remove(JSONObject json) throws JSONException {
+    JSONObject current = json;
+    for (int i = 0; i < parts.length - 1; i++) {
+      Object next = current.opt(parts[i]);
+      if (next == null) {
+        throw new JSONException(prefix(i) + "JSONObject[" + JSONObject.quote(parts[i]) + "] not found.");
+      } else if (!(next instanceof JSONObject)) {
+        throw new JSONException(prefix(i) + "JSONObject[" + JSONObject.quote(parts[i]) + "] is not a JSONObject.");
+      } else if (next instanceof ImmutableJSONObject) {
+        // copy on write
+        next = ImmutableJSONObject.toMutable((JSONObject) next);
+        current.put(parts[i], next);
+      }
+      current = (JSONObject) next;
+    }
+    return current.remove(parts[parts.length - 1]);
+  }
+
+  // The parts before the index followed by a dot, for error messages.
+  private String prefix(int index) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < index; i++) {
+      builder.append(parts[i]).append('.');
+    }
+    return builder.toString();
+  }
+
+  @Override
+  public String toString() {
+    return key;
+  }
+}
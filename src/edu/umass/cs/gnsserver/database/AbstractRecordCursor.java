@@ -22,6 +22,9 @@ package edu.umass.cs.gnsserver.database;
 import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A cursor that can be used to iterate through a collection of GNS served records as JSONObjects.
  * 
@@ -33,5 +36,18 @@ public abstract class AbstractRecordCursor implements RecordCursorInterface {
   public JSONObject nextJSONObject() throws FailedDBOperationException {
     throw new UnsupportedOperationException("Not supported yet.");
   }
+
+  @Override
+  public List<JSONObject> nextBatch(int maxRecords) throws FailedDBOperationException {
+    List<JSONObject> batch = new ArrayList<>();
+    while (batch.size() < maxRecords && hasNext()) {
+      batch.add(nextJSONObject());
+    }
+    return batch;
+  }
+
+  @Override
+  public void close() {
+  }
   
 }
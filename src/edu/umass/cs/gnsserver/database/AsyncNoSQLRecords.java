@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import edu.umass.cs.gnsserver.utils.ValuesMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.json.JSONObject;
+
+/**
+ * The operations of {@link NoSQLRecords} returning CompletableFutures
+ * instead of blocking the calling thread. See {@link AsyncRecords}
+ * for the implementations.
+ *
+ * The futures complete exceptionally with the exceptions the blocking
+ * methods throw, such as FailedDBOperationException and
+ * RecordNotFoundException. Operations on the same record are only
+ * ordered if the caller waits for the earlier future before starting
+ * the later operation.
+ *
+ * @author westy
+ */
+public interface AsyncNoSQLRecords {
+
+  /**
+   * See {@link NoSQLRecords#insert}.
+   *
+   * @param collection
+   * @param name
+   * @param value
+   * @return a future that completes when the record is inserted
+   */
+  public CompletableFuture<Void> insert(String collection, String name, JSONObject value);
+
+  /**
+   * See {@link NoSQLRecords#lookupEntireRecord}.
+   *
+   * @param collection
+   * @param name
+   * @return a future for the record
+   */
+  public CompletableFuture<JSONObject> lookupEntireRecord(String collection, String name);
+
+  /**
+   * See {@link NoSQLRecords#lookupSomeFields}.
+   *
+   * @param collectionName
+   * @param name
+   * @param nameField
+   * @param valuesMapField
+   * @param valuesMapKeys
+   * @return a future for the fields
+   */
+  public CompletableFuture<HashMap<ColumnField, Object>> lookupSomeFields(String collectionName,
+          String name, ColumnField nameField, ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys);
+
+  /**
+   * See {@link NoSQLRecords#contains}.
+   *
+   * @param collection
+   * @param name
+   * @return a future that is true if the record exists
+   */
+  public CompletableFuture<Boolean> contains(String collection, String name);
+
+  /**
+   * See {@link NoSQLRecords#removeEntireRecord}.
+   *
+   * @param collection
+   * @param name
+   * @return a future that completes when the record is removed
+   */
+  public CompletableFuture<Void> removeEntireRecord(String collection, String name);
+
+  /**
+   * See {@link NoSQLRecords#updateEntireRecord}.
+   *
+   * @param collection
+   * @param name
+   * @param valuesMap
+   * @return a future that completes when the record is updated
+   */
+  public CompletableFuture<Void> updateEntireRecord(String collection, String name, ValuesMap valuesMap);
+
+  /**
+   * See {@link NoSQLRecords#updateIndividualFields}.
+   *
+   * @param collectionName
+   * @param name
+   * @param valuesMapField
+   * @param valuesMapKeys
+   * @param valuesMapValues
+   * @return a future that completes when the fields are updated
+   */
+  public CompletableFuture<Void> updateIndividualFields(String collectionName, String name,
+          ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys, ArrayList<Object> valuesMapValues);
+
+  /**
+   * See {@link NoSQLRecords#bulkUpdateIndividualFields}.
+   *
+   * @param collectionName
+   * @param valuesMapField
+   * @param updates
+   * @return a future that completes when the fields are updated
+   */
+  public CompletableFuture<Void> bulkUpdateIndividualFields(String collectionName,
+          ColumnField valuesMapField, List<FieldUpdate> updates);
+
+  /**
+   * See {@link NoSQLRecords#removeMapKeys}.
+   *
+   * @param collectionName
+   * @param name
+   * @param mapField
+   * @param mapKeys
+   * @return a future that completes when the keys are removed
+   */
+  public CompletableFuture<Void> removeMapKeys(String collectionName, String name,
+          ColumnField mapField, ArrayList<ColumnField> mapKeys);
+
+  /**
+   * See {@link NoSQLRecords#getAllRowsIterator}.
+   *
+   * @param collection
+   * @return a future for the cursor
+   */
+  public CompletableFuture<AbstractRecordCursor> getAllRowsIterator(String collection);
+
+  /**
+   * See {@link NoSQLRecords#selectRecords}.
+   *
+   * @param collectionName
+   * @param valuesMapField
+   * @param key
+   * @param value
+   * @return a future for the cursor
+   */
+  public CompletableFuture<AbstractRecordCursor> selectRecords(String collectionName,
+          ColumnField valuesMapField, String key, Object value);
+
+  /**
+   * See {@link NoSQLRecords#selectRecordsWithin}.
+   *
+   * @param collectionName
+   * @param valuesMapField
+   * @param key
+   * @param value
+   * @return a future for the cursor
+   */
+  public CompletableFuture<AbstractRecordCursor> selectRecordsWithin(String collectionName,
+          ColumnField valuesMapField, String key, String value);
+
+  /**
+   * See {@link NoSQLRecords#selectRecordsNear}.
+   *
+   * @param collectionName
+   * @param valuesMapField
+   * @param key
+   * @param value
+   * @param maxDistance
+   * @return a future for the cursor
+   */
+  public CompletableFuture<AbstractRecordCursor> selectRecordsNear(String collectionName,
+          ColumnField valuesMapField, String key, String value, Double maxDistance);
+
+  /**
+   * See {@link NoSQLRecords#selectRecordsQuery}.
+   *
+   * @param collection
+   * @param valuesMapField
+   * @param query
+   * @param projection
+   * @return a future for the cursor
+   */
+  public CompletableFuture<AbstractRecordCursor> selectRecordsQuery(String collection,
+          ColumnField valuesMapField, String query, List<String> projection);
+
+  /**
+   * Stops any threads used for the operations. The underlying records
+   * are left open.
+   */
+  public void close();
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import edu.umass.cs.gnsserver.main.GNSConfig;
+import edu.umass.cs.gnsserver.utils.ValuesMap;
+import edu.umass.cs.utils.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.json.JSONObject;
+
+/**
+ * Implementations of {@link AsyncNoSQLRecords} on top of a
+ * {@link NoSQLRecords}.
+ *
+ * The stores that keep their records in this JVM get an implementation
+ * that does the operation right away and returns a completed future.
+ * Their operations are memory accesses so handing them to another thread
+ * would cost more than doing them. The other stores get an implementation
+ * that runs the operations on a bounded pool of threads. When the pool's
+ * queue is full the caller runs the operation itself, which slows callers
+ * down to what the database can take.
+ *
+ * @author westy
+ */
+public abstract class AsyncRecords implements AsyncNoSQLRecords {
+
+  /**
+   * A blocking operation.
+   *
+   * @param <T>
+   */
+  protected interface Operation<T> {
+
+    /**
+     * Does the operation.
+     *
+     * @return the result
+     * @throws Exception
+     */
+    T run() throws Exception;
+  }
+
+  /**
+   * The records the operations are done on.
+   */
+  protected final NoSQLRecords records;
+
+  /**
+   * Creates the async operations for the records.
+   *
+   * @param records
+   */
+  protected AsyncRecords(NoSQLRecords records) {
+    this.records = records;
+  }
+
+  /**
+   * Returns the async operations for the records. Uses
+   * ASYNC_DB_THREADS and ASYNC_DB_QUEUE_SIZE for the stores that
+   * need a pool.
+   *
+   * @param records
+   * @return the async operations
+   */
+  public static AsyncNoSQLRecords forRecords(NoSQLRecords records) {
+    if (isInMemory(records)) {
+      return new Inline(records);
+    }
+    return new Pooled(records, Config.getGlobalInt(GNSConfig.GNSC.ASYNC_DB_THREADS),
+            Config.getGlobalInt(GNSConfig.GNSC.ASYNC_DB_QUEUE_SIZE));
+  }
+
+  /**
+   * Returns async operations that run on a pool of threads.
+   *
+   * @param records
+   * @param threads
+   * @param queueSize
+   * @return the async operations
+   */
+  public static AsyncNoSQLRecords pooled(NoSQLRecords records, int threads, int queueSize) {
+    return new Pooled(records, threads, queueSize);
+  }
+
+  // DiskMapRecords reads records it has paged out back from mongo
+  // unless there is no mongo.
+  private static boolean isInMemory(NoSQLRecords records) {
+    return records instanceof LogStructuredRecords
+            || (records instanceof DiskMapRecords
+            && Config.getGlobalBoolean(GNSConfig.GNSC.IN_MEMORY_DB));
+  }
+
+  /**
+   * Does the operation and returns a future for its result.
+   *
+   * @param <T>
+   * @param operation
+   * @return the future
+   */
+  protected abstract <T> CompletableFuture<T> submit(Operation<T> operation);
+
+  @Override
+  public CompletableFuture<Void> insert(final String collection, final String name, final JSONObject value) {
+    return submit(new Operation<Void>() {
+      @Override
+      public Void run() throws Exception {
+        records.insert(collection, name, value);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<JSONObject> lookupEntireRecord(final String collection, final String name) {
+    return submit(new Operation<JSONObject>() {
+      @Override
+      public JSONObject run() throws Exception {
+        return records.lookupEntireRecord(collection, name);
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<HashMap<ColumnField, Object>> lookupSomeFields(final String collectionName,
+          final String name, final ColumnField nameField, final ColumnField valuesMapField,
+          final ArrayList<ColumnField> valuesMapKeys) {
+    return submit(new Operation<HashMap<ColumnField, Object>>() {
+      @Override
+      public HashMap<ColumnField, Object> run() throws Exception {
+        return records.lookupSomeFields(collectionName, name, nameField, valuesMapField, valuesMapKeys);
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<Boolean> contains(final String collection, final String name) {
+    return submit(new Operation<Boolean>() {
+      @Override
+      public Boolean run() throws Exception {
+        return records.contains(collection, name);
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<Void> removeEntireRecord(final String collection, final String name) {
+    return submit(new Operation<Void>() {
+      @Override
+      public Void run() throws Exception {
+        records.removeEntireRecord(collection, name);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<Void> updateEntireRecord(final String collection, final String name,
+          final ValuesMap valuesMap) {
+    return submit(new Operation<Void>() {
+      @Override
+      public Void run() throws Exception {
+        records.updateEntireRecord(collection, name, valuesMap);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<Void> updateIndividualFields(final String collectionName, final String name,
+          final ColumnField valuesMapField, final ArrayList<ColumnField> valuesMapKeys,
+          final ArrayList<Object> valuesMapValues) {
+    return submit(new Operation<Void>() {
+      @Override
+      public Void run() throws Exception {
+        records.updateIndividualFields(collectionName, name, valuesMapField, valuesMapKeys, valuesMapValues);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<Void> bulkUpdateIndividualFields(final String collectionName,
+          final ColumnField valuesMapField, final List<FieldUpdate> updates) {
+    return submit(new Operation<Void>() {
+      @Override
+      public Void run() throws Exception {
+        records.bulkUpdateIndividualFields(collectionName, valuesMapField, updates);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<Void> removeMapKeys(final String collectionName, final String name,
+          final ColumnField mapField, final ArrayList<ColumnField> mapKeys) {
+    return submit(new Operation<Void>() {
+      @Override
+      public Void run() throws Exception {
+        records.removeMapKeys(collectionName, name, mapField, mapKeys);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<AbstractRecordCursor> getAllRowsIterator(final String collection) {
+    return submit(new Operation<AbstractRecordCursor>() {
+      @Override
+      public AbstractRecordCursor run() throws Exception {
+        return records.getAllRowsIterator(collection);
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<AbstractRecordCursor> selectRecords(final String collectionName,
+          final ColumnField valuesMapField, final String key, final Object value) {
+    return submit(new Operation<AbstractRecordCursor>() {
+      @Override
+      public AbstractRecordCursor run() throws Exception {
+        return records.selectRecords(collectionName, valuesMapField, key, value);
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<AbstractRecordCursor> selectRecordsWithin(final String collectionName,
+          final ColumnField valuesMapField, final String key, final String value) {
+    return submit(new Operation<AbstractRecordCursor>() {
+      @Override
+      public AbstractRecordCursor run() throws Exception {
+        return records.selectRecordsWithin(collectionName, valuesMapField, key, value);
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<AbstractRecordCursor> selectRecordsNear(final String collectionName,
+          final ColumnField valuesMapField, final String key, final String value, final Double maxDistance) {
+    return submit(new Operation<AbstractRecordCursor>() {
+      @Override
+      public AbstractRecordCursor run() throws Exception {
+        return records.selectRecordsNear(collectionName, valuesMapField, key, value, maxDistance);
+      }
+    });
+  }
+
+  @Override
+  public CompletableFuture<AbstractRecordCursor> selectRecordsQuery(final String collection,
+          final ColumnField valuesMapField, final String query, final List<String> projection) {
+    return submit(new Operation<AbstractRecordCursor>() {
+      @Override
+      public AbstractRecordCursor run() throws Exception {
+        return records.selectRecordsQuery(collection, valuesMapField, query, projection);
+      }
+    });
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "{" + records + "}";
+  }
+
+  /**
+   * Does the operations on the calling thread.
+   */
+  static class Inline extends AsyncRecords {
+
+    Inline(NoSQLRecords records) {
+      super(records);
+    }
+
+    @Override
+    protected <T> CompletableFuture<T> submit(Operation<T> operation) {
+      CompletableFuture<T> future = new CompletableFuture<>();
+      try {
+        future.complete(operation.run());
+      } catch (Exception e) {
+        future.completeExceptionally(e);
+      }
+      return future;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Does the operations on a bounded pool of threads.
+   */
+  static class Pooled extends AsyncRecords {
+
+    private final ThreadPoolExecutor executor;
+
+    Pooled(NoSQLRecords records, int threads, int queueSize) {
+      super(records);
+      final AtomicInteger count = new AtomicInteger();
+      this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+              new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+              new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "AsyncRecords-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      }, new ThreadPoolExecutor.CallerRunsPolicy());
+      executor.allowCoreThreadTimeOut(true);
+      DatabaseConfig.getLogger().log(Level.FINE, "{0} running on {1} threads",
+              new Object[]{records, threads});
+    }
+
+    @Override
+    protected <T> CompletableFuture<T> submit(final Operation<T> operation) {
+      final CompletableFuture<T> future = new CompletableFuture<>();
+      if (executor.isShutdown()) {
+        // the caller runs policy would drop it
+        future.completeExceptionally(new RejectedExecutionException(this + " is closed"));
+        return future;
+      }
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            future.complete(operation.run());
+          } catch (Exception e) {
+            future.completeExceptionally(e);
+          }
+        }
+      });
+      return future;
+    }
+
+    @Override
+    public void close() {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Keeps packed records in memory up to a budget of bytes and writes them
+ * back to, and reads them back from, a slower store such as mongo.
+ *
+ * Like a DiskMap, subclasses say how to {@link #commit} records and how to
+ * {@link #restore} them. Writes and removes stay in memory until the record
+ * is evicted, at which point they are committed. The budget counts the
+ * packed size of each record so a few huge records can't fill the heap the
+ * way they could when the map was sized by number of records.
+ *
+ * Which records stay is decided the way W-TinyLFU does it. New and restored
+ * records go into a small window of recently used records. The least
+ * recently used record of the window then competes with the least recently
+ * used record of the rest of the map, and whichever has been used more often
+ * lately stays. A small sketch of the frequencies of recently used names
+ * estimates how often. A scan through lots of cold records therefore passes
+ * through the window without pushing the hot records out.
+ *
+ * Evicted writes are committed in batches of about a sixteenth of the budget
+ * by the thread whose write or read filled the batch, so callers slow down
+ * when the store can't keep up. They can still be read until then.
+ *
+ * @author westy
+ */
+public abstract class BudgetedRecordMap {
+
+  // the map entry, the key and the record object
+  private static final int ENTRY_OVERHEAD = 96;
+  private static final int MAX_COMMIT = 1024;
+
+  private final String name;
+  private final boolean persistent;
+  private final long windowBudget;
+  private final long mainBudget;
+  private final long commitBudget;
+  // in least recently used order; everything below is guarded by this
+  private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<String, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+  // evicted writes waiting to be committed
+  private final HashMap<String, Entry> evicted = new HashMap<>();
+  private final FrequencySketch sketch;
+  private long windowBytes = 0;
+  private long mainBytes = 0;
+  private long evictedBytes = 0;
+  // changes whenever a record leaves memory so stale restores aren't kept
+  private long generation = 0;
+  private boolean committing = false;
+  private long hits = 0;
+  private long misses = 0;
+  private long restores = 0;
+  private long rejected = 0;
+  private long evictions = 0;
+  private long commits = 0;
+
+  /**
+   * Creates a map that keeps up to budget bytes of records in memory.
+   * A map that isn't persistent never evicts or restores anything.
+   *
+   * @param name - used in log messages
+   * @param budget - in bytes
+   * @param persistent
+   */
+  public BudgetedRecordMap(String name, long budget, boolean persistent) {
+    this.name = name;
+    this.persistent = persistent;
+    if (persistent) {
+      this.windowBudget = Math.max(budget / 100, 1);
+      this.commitBudget = budget / 16;
+      this.mainBudget = Math.max(budget - windowBudget - commitBudget, 1);
+    } else {
+      this.windowBudget = Long.MAX_VALUE;
+      this.commitBudget = 0;
+      this.mainBudget = 0;
+    }
+    // roughly a counter per record the budget holds
+    long width = persistent ? budget / 1024 : 0;
+    this.sketch = new FrequencySketch((int) Math.max(1 << 10, Math.min(1 << 20, width)));
+  }
+
+  /**
+   * Writes the records to the store. A null value means that the record
+   * was removed.
+   *
+   * @param toCommit
+   * @return the names of the records that were committed
+   * @throws IOException
+   */
+  public abstract Set<String> commit(Map<String, PackedRecord> toCommit) throws IOException;
+
+  /**
+   * Reads a record from the store.
+   *
+   * @param key
+   * @return the record or null if the store doesn't have it
+   * @throws IOException
+   */
+  public abstract PackedRecord restore(String key) throws IOException;
+
+  /**
+   * Returns the record, restoring it from the store if it isn't in memory.
+   *
+   * @param key
+   * @return the record or null if there isn't one
+   */
+  public PackedRecord get(String key) {
+    long seen;
+    synchronized (this) {
+      sketch.increment(key);
+      Entry entry = find(key);
+      if (entry != null) {
+        hits++;
+        return entry.value;
+      }
+      misses++;
+      if (!persistent) {
+        return null;
+      }
+      seen = generation;
+    }
+    PackedRecord value;
+    try {
+      value = restore(key);
+    } catch (IOException e) {
+      DatabaseConfig.getLogger().log(Level.SEVERE, "{0} unable to restore {1}: {2}",
+              new Object[]{name, key, e.getMessage()});
+      return null;
+    }
+    if (value != null) {
+      synchronized (this) {
+        restores++;
+        // a write or an eviction since we looked means the store may be stale
+        if (generation == seen && find(key) == null) {
+          insert(new Entry(key, value, false));
+        }
+      }
+      commitIfNeeded();
+    }
+    return value;
+  }
+
+  /**
+   * Returns true if there is a record with that name.
+   *
+   * @param key
+   * @return true if there is a record
+   */
+  public boolean containsKey(String key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Writes the record. It is committed to the store when it is evicted.
+   *
+   * @param key
+   * @param value
+   */
+  public void put(String key, PackedRecord value) {
+    synchronized (this) {
+      sketch.increment(key);
+      insert(new Entry(key, value, true));
+    }
+    commitIfNeeded();
+  }
+
+  /**
+   * Removes the record. The removal is committed to the store when it is
+   * evicted.
+   *
+   * @param key
+   */
+  public void remove(String key) {
+    synchronized (this) {
+      if (persistent) {
+        insert(new Entry(key, null, true));
+      } else {
+        discard(key);
+      }
+    }
+    commitIfNeeded();
+  }
+
+  private Entry find(String key) {
+    Entry entry = window.get(key);
+    if (entry == null) {
+      entry = main.get(key);
+    }
+    if (entry == null) {
+      entry = evicted.get(key);
+    }
+    return entry;
+  }
+
+  // Drops the record from the window and the main map.
+  private void discard(String key) {
+    Entry old = window.remove(key);
+    if (old != null) {
+      windowBytes -= old.weight;
+    }
+    old = main.remove(key);
+    if (old != null) {
+      mainBytes -= old.weight;
+    }
+  }
+
+  private void insert(Entry entry) {
+    discard(entry.key);
+    window.put(entry.key, entry);
+    windowBytes += entry.weight;
+    while (windowBytes > windowBudget && window.size() > 1) {
+      Iterator<Entry> iterator = window.values().iterator();
+      Entry candidate = iterator.next();
+      iterator.remove();
+      windowBytes -= candidate.weight;
+      admit(candidate);
+    }
+  }
+
+  // Moves the candidate from the window into the main map if there is room
+  // or it is used more often than what it would push out.
+  private void admit(Entry candidate) {
+    while (mainBytes + candidate.weight > mainBudget && !main.isEmpty()) {
+      Iterator<Entry> iterator = main.values().iterator();
+      Entry victim = iterator.next();
+      if (candidate.weight > mainBudget / 2
+              || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+        evict(candidate);
+        rejected++;
+        return;
+      }
+      iterator.remove();
+      mainBytes -= victim.weight;
+      evict(victim);
+    }
+    main.put(candidate.key, candidate);
+    mainBytes += candidate.weight;
+  }
+
+  private void evict(Entry entry) {
+    evictions++;
+    generation++;
+    if (entry.dirty) {
+      Entry old = evicted.put(entry.key, entry);
+      evictedBytes += entry.weight - (old != null ? old.weight : 0);
+    }
+  }
+
+  // Commits the evicted writes once there are enough of them.
+  private void commitIfNeeded() {
+    Map<String, Entry> batch;
+    synchronized (this) {
+      if (committing || (evictedBytes < commitBudget && evicted.size() < MAX_COMMIT)
+              || evicted.isEmpty()) {
+        return;
+      }
+      committing = true;
+      batch = new HashMap<>(evicted);
+    }
+    Map<String, PackedRecord> toCommit = new HashMap<>();
+    for (Entry entry : batch.values()) {
+      toCommit.put(entry.key, entry.value);
+    }
+    Set<String> committed = Collections.emptySet();
+    try {
+      committed = commit(toCommit);
+    } catch (IOException e) {
+      DatabaseConfig.getLogger().log(Level.SEVERE, "{0} unable to commit {1} records: {2}",
+              new Object[]{name, toCommit.size(), e.getMessage()});
+    } finally {
+      synchronized (this) {
+        for (String key : committed) {
+          Entry entry = batch.get(key);
+          // a newer eviction of the record goes in the next batch
+          if (entry != null && evicted.remove(key, entry)) {
+            evictedBytes -= entry.weight;
+            commits++;
+          }
+        }
+        committing = false;
+      }
+    }
+    DatabaseConfig.getLogger().log(Level.FINE, "{0}", this);
+  }
+
+  /**
+   * Returns the number of records in memory, including removals and
+   * evicted writes that haven't been committed.
+   *
+   * @return the number of records
+   */
+  public synchronized int size() {
+    return window.size() + main.size() + evicted.size();
+  }
+
+  /**
+   * Returns the bytes used by the records in memory.
+   *
+   * @return the bytes
+   */
+  public synchronized long getBytes() {
+    return windowBytes + mainBytes + evictedBytes;
+  }
+
+  /**
+   * Returns the fraction of reads that found the record in memory.
+   *
+   * @return the hit ratio
+   */
+  public synchronized double getHitRatio() {
+    return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+  }
+
+  /**
+   * Returns the number of reads that found the record in memory.
+   *
+   * @return the hits
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of reads that didn't find the record in memory.
+   *
+   * @return the misses
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Returns the number of records read back from the store.
+   *
+   * @return the restores
+   */
+  public synchronized long getRestores() {
+    return restores;
+  }
+
+  /**
+   * Returns the number of records that were evicted from memory.
+   *
+   * @return the evictions
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Returns the number of writes and removes committed to the store.
+   *
+   * @return the commits
+   */
+  public synchronized long getCommits() {
+    return commits;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "BudgetedRecordMap{" + name + ", records=" + size() + ", bytes=" + getBytes()
+            + (persistent ? ", budget=" + (windowBudget + mainBudget + commitBudget) : "")
+            + ", hitRatio=" + String.format("%.3f", getHitRatio()) + ", restores=" + restores
+            + ", rejected=" + rejected + ", evictions=" + evictions + ", commits=" + commits + '}';
+  }
+
+  private static class Entry {
+
+    private final String key;
+    private final PackedRecord value;
+    private final boolean dirty;
+    private final int weight;
+
+    Entry(String key, PackedRecord value, boolean dirty) {
+      this.key = key;
+      this.value = value;
+      this.dirty = dirty;
+      this.weight = ENTRY_OVERHEAD + 2 * key.length() + (value != null ? value.size() : 0);
+    }
+  }
+
+  /**
+   * A count-min sketch of how often names were used lately. The 4-bit
+   * counters are halved once there have been ten increments per counter
+   * so that names that used to be popular fade.
+   */
+  private static class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x97cb3127, 0xc3a5c85c, 0x7a6b25b3, 0x42e5c7e1};
+    private static final int MAX_COUNT = 15;
+
+    private final byte[] counts;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    FrequencySketch(int width) {
+      int size = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+      this.counts = new byte[DEPTH * size];
+      this.mask = size - 1;
+      this.sampleSize = 10 * size;
+    }
+
+    private int index(int hash, int row) {
+      int h = (hash + SEEDS[row]) * 0x9e3779b9;
+      h ^= h >>> 16;
+      return row * (mask + 1) + (h & mask);
+    }
+
+    void increment(String key) {
+      int hash = key.hashCode();
+      boolean added = false;
+      for (int row = 0; row < DEPTH; row++) {
+        int i = index(hash, row);
+        if (counts[i] < MAX_COUNT) {
+          counts[i]++;
+          added = true;
+        }
+      }
+      if (added && ++additions >= sampleSize) {
+        for (int i = 0; i < counts.length; i++) {
+          counts[i] >>= 1;
+        }
+        additions /= 2;
+      }
+    }
+
+    int frequency(String key) {
+      int hash = key.hashCode();
+      int frequency = MAX_COUNT;
+      for (int row = 0; row < DEPTH; row++) {
+        frequency = Math.min(frequency, counts[index(hash, row)]);
+      }
+      return frequency;
+    }
+  }
+}
@@ -320,6 +320,16 @@ public class CassandraRecords implements NoSQLRecords {
     throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
   }
 
+  @Override
+  public void bulkUpdateIndividualFields(String collectionName, ColumnField valuesMapField, List<FieldUpdate> updates) throws FailedDBOperationException {
+    throw new UnsupportedOperationException("Not supported yet.");
+  }
+
+  @Override
+  public void bulkUpsert(String collectionName, Map<String, JSONObject> records) throws FailedDBOperationException {
+    throw new UnsupportedOperationException("Not supported yet.");
+  }
+
   @Override
   public void removeMapKeys(String collectionName, String name, ColumnField mapField, ArrayList<ColumnField> mapKeys) {
     //To change body of implemented methods use File | Settings | File Templates.
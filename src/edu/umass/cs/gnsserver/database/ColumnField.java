@@ -17,6 +17,8 @@
  */
 package edu.umass.cs.gnsserver.database;
 
+import edu.umass.cs.gnscommon.utils.JSONPath;
+
 /**
  * Encapsulates the name and type of a column in the database.
  *
@@ -26,6 +28,7 @@ public class ColumnField {
 
   private final String name;
   private final ColumnFieldType type;
+  private JSONPath path = null;
 
   /** 
    * Create a column field instance.
@@ -47,6 +50,20 @@ public class ColumnField {
     return name;
   }
 
+  /**
+   * Return the name of a column as a path for dotted names.
+   *
+   * @return the path of the name
+   */
+  public JSONPath getPath() {
+    // racing threads just both look it up
+    JSONPath result = path;
+    if (result == null) {
+      path = result = JSONPath.of(name);
+    }
+    return result;
+  }
+
   /**
    * Return the type of a column.
    * 
@@ -10,16 +10,20 @@ package edu.umass.cs.gnsserver.database;
 import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
 import edu.umass.cs.gnscommon.exceptions.server.RecordExistsException;
 import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
+import edu.umass.cs.gnscommon.utils.ImmutableJSONObject;
 import edu.umass.cs.gnsserver.main.GNSConfig;
 import static edu.umass.cs.gnsserver.database.MongoRecords.DBNAMERECORD;
 import edu.umass.cs.utils.Config;
-import edu.umass.cs.utils.DiskMap;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
@@ -30,12 +34,30 @@ import org.json.JSONObject;
  * A collection is basically a named separate namespace for documents.
  * A document is a JSONObject.
  *
+ * The map holds the records as {@link PackedRecord}s, which take a fraction
+ * of the memory of the JSONObjects. They are converted back to (immutable,
+ * shareable) JSONObjects when they are read. A write replaces the whole
+ * record.
+ *
+ * The map keeps as many records in memory as fit in DISKMAP_MEMORY_BUDGET
+ * megabytes (see {@link BudgetedRecordMap}) and commits the rest to mongo.
+ *
  * @author westy
  */
 public class DiskMapCollection {
 
-  private DiskMap<String, JSONObject> map;
+  private BudgetedRecordMap map;
   private MongoRecords mongoRecords;
+  // Writes that haven't made it to mongo yet. Selects merge these with the
+  // mongo results instead of forcing a commit of the whole map.
+  private final ConcurrentHashMap<String, PackedRecord> uncommitted = new ConcurrentHashMap<>();
+  private final boolean inMemory = Config.getGlobalBoolean(GNSConfig.GNSC.IN_MEMORY_DB);
+  private final RecordIndexes indexes = new RecordIndexes();
+
+  /**
+   * Marks a removed record in the uncommitted writes.
+   */
+  static final PackedRecord REMOVED = PackedRecord.marker();
 
   /**
    * Create a DiskMapCollection name collection on a given nodeID.
@@ -60,22 +82,31 @@ public class DiskMapCollection {
   public DiskMapCollection(String nodeID, int port, String collectionName) {
     this.mongoRecords = new MongoRecords(nodeID + "-"
             + collectionName + new Random().nextInt(), port);
-    this.map = new DiskMap<String, JSONObject>(!Config.getGlobalBoolean(GNSConfig.GNSC.IN_MEMORY_DB) ? 128*1024 :
-    	Long.MAX_VALUE) {
+    this.map = new BudgetedRecordMap(nodeID + "-" + collectionName, memoryBudget(), !inMemory) {
       @Override
-      public Set<String> commit(Map<String, JSONObject> toCommit) throws IOException {
+      public Set<String> commit(Map<String, PackedRecord> toCommit) throws IOException {
         try {
-        	mongoRecords.bulkUpdate(DBNAMERECORD, toCommit);
-        } catch (FailedDBOperationException | RecordExistsException e) {
+          Map<String, JSONObject> records = new HashMap<>();
+          for (Map.Entry<String, PackedRecord> entry : toCommit.entrySet()) {
+            records.put(entry.getKey(), entry.getValue() != null ? entry.getValue().toJSONObject() : null);
+          }
+        	mongoRecords.bulkUpdate(DBNAMERECORD, records);
+        } catch (FailedDBOperationException | RecordExistsException | JSONException e) {
           throw new IOException(e);
         }
+        // Only forget the writes that were committed; newer ones stay uncommitted.
+        for (Map.Entry<String, PackedRecord> entry : toCommit.entrySet()) {
+          uncommitted.remove(entry.getKey(), entry.getValue() != null ? entry.getValue() : REMOVED);
+        }
         return toCommit.keySet();
       }
 
       @Override
-      public JSONObject restore(String key) throws IOException {
+      public PackedRecord restore(String key) throws IOException {
         try {
-        	return mongoRecords.lookupEntireRecord(DBNAMERECORD, key);
+        	return PackedRecord.pack(mongoRecords.lookupEntireRecord(DBNAMERECORD, key));
+        } catch (JSONException e) {
+          throw new IOException(e);
         } catch (FailedDBOperationException e) {
         	GNSConfig.getLogger().severe(e.getMessage());
         	e.printStackTrace();
@@ -88,14 +119,107 @@ public class DiskMapCollection {
     };
   }
 
+  // DISKMAP_MEMORY_BUDGET in bytes; 0 means a quarter of the heap
+  private static long memoryBudget() {
+    long megabytes = Config.getGlobalInt(GNSConfig.GNSC.DISKMAP_MEMORY_BUDGET);
+    long budget = megabytes > 0 ? megabytes * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 4;
+    GNSConfig.getLogger().log(Level.INFO, "DiskMap memory budget is {0} bytes", budget);
+    return budget;
+  }
+
   /**
-   * 
-   * @return the diskmap
+   * Writes the record.
+   *
+   * @param name
+   * @param value
+   * @throws JSONException
+   */
+  public void put(String name, JSONObject value) throws JSONException {
+    PackedRecord packed = PackedRecord.pack(value);
+    // record it first so a commit that races with us can only clear it, not leave it stale
+    uncommitted.put(name, packed);
+    map.put(name, packed);
+    indexes.update(name, value);
+  }
+
+  /**
+   * Returns the record.
+   *
+   * @param name
+   * @return the record or null if there is no record with that name
+   * @throws JSONException
+   */
+  public ImmutableJSONObject get(String name) throws JSONException {
+    PackedRecord packed = map.get(name);
+    return packed != null ? packed.toJSONObject() : null;
+  }
+
+  /**
+   * Returns only some fields of the record without decoding the rest.
+   *
+   * @param name
+   * @param projection
+   * @return the partial record or null if there is no record with that name
+   * @throws JSONException
+   */
+  public JSONObject get(String name, JSONProjection projection) throws JSONException {
+    PackedRecord packed = map.get(name);
+    return packed != null ? packed.get(projection) : null;
+  }
+
+  /**
+   * Removes the record.
+   *
+   * @param name
+   */
+  public void remove(String name) {
+    if (inMemory) {
+      // nothing is ever committed so there is nothing to mask
+      uncommitted.remove(name);
+    } else {
+      uncommitted.put(name, REMOVED);
+    }
+    map.remove(name);
+    indexes.remove(name);
+  }
+
+  /**
+   * Returns a snapshot of the writes that haven't been committed to mongo.
+   * Removed records map to {@link #REMOVED}.
+   *
+   * @return a map of names to records
    */
-  public DiskMap<String, JSONObject> getMap() {
+  public Map<String, PackedRecord> getUncommitted() {
+    return new HashMap<>(uncommitted);
+  }
+
+  /**
+   * Returns the map, which also reports its hit ratio, evictions and restores.
+   *
+   * @return the map
+   */
+  public BudgetedRecordMap getMap() {
     return map;
   }
 
+  /**
+   * Returns the in-memory indexes of the collection.
+   *
+   * @return the indexes
+   */
+  public RecordIndexes getIndexes() {
+    return indexes;
+  }
+
+  /**
+   * Returns true if there is no mongo behind the map.
+   *
+   * @return true if the collection only lives in memory
+   */
+  public boolean isInMemory() {
+    return inMemory;
+  }
+
   /**
    * 
    * @return the mongo records
@@ -10,8 +10,10 @@ package edu.umass.cs.gnsserver.database;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -20,16 +22,17 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.mongodb.MongoException;
 import com.mongodb.util.JSON;
 
 import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
 import edu.umass.cs.gnscommon.exceptions.server.RecordExistsException;
 import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
-import edu.umass.cs.gnscommon.utils.JSONDotNotation;
+import edu.umass.cs.gnscommon.utils.ImmutableJSONObject;
+import edu.umass.cs.gnscommon.utils.JSONPath;
 import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
 import edu.umass.cs.gnsserver.utils.JSONUtils;
 import edu.umass.cs.gnsserver.utils.ValuesMap;
-import edu.umass.cs.utils.DiskMap;
 
 /**
  * Uses a diskmap as the primary database with mongo as the
@@ -59,9 +62,9 @@ public class DiskMapRecords implements NoSQLRecords {
   /**
    *
    * @param name
-   * @return a disk map
+   * @return the map of the collection
    */
-  public DiskMap<String, JSONObject> getMap(String name) {
+  public BudgetedRecordMap getMap(String name) {
     return getCollection(name).getMap();
   }
 
@@ -96,23 +99,44 @@ public class DiskMapRecords implements NoSQLRecords {
   @Override
   public void insert(String collection, String name, JSONObject value)
           throws FailedDBOperationException, RecordExistsException {
-    getMap(collection).put(name, value);
+    put(collection, name, value);
   }
 
+  private void put(String collection, String name, JSONObject record) throws FailedDBOperationException {
+    try {
+      getCollection(collection).put(name, record);
+    } catch (JSONException e) {
+      DatabaseConfig.getLogger().log(Level.FINE, "put failed: {0}", e.getMessage());
+      throw new FailedDBOperationException(collection, name, "Unable to parse json record");
+    }
+  }
+
+  /**
+   * Returns the record decoded from its packed form. Recently read records
+   * are shared without decoding them again. The record is an
+   * {@link ImmutableJSONObject} so callers that want to change it have
+   * to copy it first (see {@link ImmutableJSONObject#toMutable}).
+   *
+   * @param collection
+   * @param name
+   * @return the record
+   * @throws FailedDBOperationException
+   * @throws RecordNotFoundException
+   */
   @Override
   public JSONObject lookupEntireRecord(String collection, String name)
           throws FailedDBOperationException, RecordNotFoundException {
     JSONObject record;
-    if ((record = getMap(collection).get(name)) == null) {
-      throw new RecordNotFoundException(name);
-    }
     try {
-      // Make a new object to make sure there aren't any DBObjects lurking in here
-      return recursiveCopyJSONObject(record); //copyJsonObject(record);
+      record = getCollection(collection).get(name);
     } catch (JSONException e) {
       DatabaseConfig.getLogger().log(Level.FINE, "lookupEntireRecord failed: {0}", e.getMessage());
       throw new FailedDBOperationException(collection, name, "Unable to parse json record");
     }
+    if (record == null) {
+      throw new RecordNotFoundException(name);
+    }
+    return record;
   }
 
   /**
@@ -164,8 +188,9 @@ public class DiskMapRecords implements NoSQLRecords {
     return copy;
   }
 
+  // Used in MongoRecords
   @SuppressWarnings({"unchecked", "rawtypes"})
-  private static Object recursiveCopyObject(Object value)
+  static Object recursiveCopyObject(Object value)
           throws JSONException {
     if (value instanceof JSONObject) {
       value = recursiveCopyJSONObject((JSONObject) value);
@@ -199,8 +224,44 @@ public class DiskMapRecords implements NoSQLRecords {
   public HashMap<ColumnField, Object> lookupSomeFields(String collection, String name,
           ColumnField nameField, ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys)
           throws RecordNotFoundException, FailedDBOperationException {
+    List<String> paths = new ArrayList<>();
+    if (valuesMapField != null && valuesMapKeys != null) {
+      for (ColumnField key : valuesMapKeys) {
+        paths.add(valuesMapField.getName() + "." + key.getName());
+      }
+      if (valuesMapKeys.isEmpty()) {
+        // callers still expect an (empty) values map
+        paths.add(valuesMapField.getName());
+      }
+    }
+    JSONObject record;
+    try {
+      // only decode the fields we were asked for
+      record = getCollection(collection).get(name, new JSONProjection(paths));
+    } catch (JSONException e) {
+      DatabaseConfig.getLogger().log(Level.FINE, "lookupSomeFields failed: {0}", e.getMessage());
+      throw new FailedDBOperationException(collection, name, "Unable to parse json record");
+    }
+    if (record == null) {
+      throw new RecordNotFoundException(name);
+    }
+    return extractSomeFields(name, record, nameField, valuesMapField, valuesMapKeys);
+  }
 
-    JSONObject record = lookupEntireRecord(collection, name);
+  /**
+   * Pulls the requested fields out of a full record.
+   * Used by the other stores that keep records as JSONObjects and by
+   * the record cache.
+   *
+   * @param name
+   * @param record
+   * @param nameField
+   * @param valuesMapField
+   * @param valuesMapKeys
+   * @return a hashmap of the name and values map fields
+   */
+  public static HashMap<ColumnField, Object> extractSomeFields(String name, JSONObject record,
+          ColumnField nameField, ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys) {
 //    LOGGER.log(Level.FINE, "Full record " + record.toString());
     HashMap<ColumnField, Object> hashMap = new HashMap<>();
     hashMap.put(nameField, name);
@@ -211,23 +272,23 @@ public class DiskMapRecords implements NoSQLRecords {
         ValuesMap valuesMapOut = new ValuesMap();
         for (int i = 0; i < valuesMapKeys.size(); i++) {
           String userKey = valuesMapKeys.get(i).getName();
-          if (JSONDotNotation.containsFieldDotNotation(userKey, readValuesMap) == false) {
+          // resolve the path once and only walk the objects along it
+          Object value = valuesMapKeys.get(i).getPath().opt(readValuesMap);
+          if (value == null) {
 //            LOGGER.fine("valuesMap doesn't contain " + userKey);
             continue;
           }
           try {
             switch (valuesMapKeys.get(i).type()) {
               case USER_JSON:
-                Object value = JSONDotNotation.getWithDotNotation(userKey, readValuesMap);
                 LOGGER.log(Level.FINE,
-                        "Object is {0}", new Object[]{value.toString()});
+                        "Object is {0}", new Object[]{value});
                 valuesMapOut.put(userKey, value);
                 break;
               case LIST_STRING:
                 valuesMapOut.putAsArray(userKey,
-                        JSONUtils.JSONArrayToResultValue(
-                                new JSONArray(JSONDotNotation.getWithDotNotation(userKey,
-                                        readValuesMap).toString())));
+                        JSONUtils.JSONArrayToResultValue(value instanceof JSONArray
+                                ? (JSONArray) value : new JSONArray(value.toString())));
                 break;
               default:
                 LOGGER.log(Level.SEVERE,
@@ -255,7 +316,7 @@ public class DiskMapRecords implements NoSQLRecords {
   @Override
   public void removeEntireRecord(String collection, String name) throws FailedDBOperationException {
     LOGGER.log(Level.FINE, "Remove: {0}", name);
-    getMap(collection).remove(name);
+    getCollection(collection).remove(name);
   }
 
   @Override
@@ -265,7 +326,7 @@ public class DiskMapRecords implements NoSQLRecords {
     try {
       json.put(NameRecord.NAME.getName(), name);
       json.put(NameRecord.VALUES_MAP.getName(), valuesMap);
-      getMap(collection).put(name, json);
+      put(collection, name, json);
     } catch (JSONException e) {
 
     }
@@ -278,26 +339,88 @@ public class DiskMapRecords implements NoSQLRecords {
     LOGGER.log(Level.FINE, "Update fields {0}/{1}", new Object[]{name, valuesMapKeys});
     JSONObject record;
     try {
-      record = lookupEntireRecord(collection, name);
+      record = ImmutableJSONObject.toMutable(lookupEntireRecord(collection, name));
     } catch (RecordNotFoundException e) {
       DatabaseConfig.getLogger().log(Level.FINE, "updateIndividualFields failed: {0}", e.getMessage());
       throw new FailedDBOperationException(collection, name, "Record not found.");
+    } catch (JSONException e) {
+      throw new FailedDBOperationException(collection, name, "Unable to parse json record");
     }
     LOGGER.log(Level.FINE, "Record before:{0}", record);
     if (record == null) {
       throw new FailedDBOperationException(collection, name, "Record is null.");
     }
+    applyFieldUpdates(collection, name, record, valuesMapField, valuesMapKeys, valuesMapValues);
+    put(collection, name, record);
+  }
+
+  @Override
+  public void bulkUpdateIndividualFields(String collection, ColumnField valuesMapField,
+          List<FieldUpdate> updates) throws FailedDBOperationException {
+    // apply all the updates of a record before writing it once
+    Map<String, JSONObject> records = new LinkedHashMap<>();
+    for (FieldUpdate update : updates) {
+      String name = update.getName();
+      JSONObject record = records.get(name);
+      if (record == null) {
+        try {
+          record = ImmutableJSONObject.toMutable(lookupEntireRecord(collection, name));
+        } catch (RecordNotFoundException e) {
+          LOGGER.log(Level.FINE, "Ignoring update of missing record {0}", name);
+          continue;
+        } catch (JSONException e) {
+          throw new FailedDBOperationException(collection, name, "Unable to parse json record");
+        }
+        records.put(name, record);
+      }
+      applyFieldUpdates(collection, name, record, valuesMapField,
+              update.getValuesMapKeys(), update.getValuesMapValues());
+    }
+    for (Map.Entry<String, JSONObject> entry : records.entrySet()) {
+      put(collection, entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public void bulkUpsert(String collection, Map<String, JSONObject> records)
+          throws FailedDBOperationException {
+    // the map commits what it pages out to mongo in batches already
+    for (Map.Entry<String, JSONObject> entry : records.entrySet()) {
+      if (entry.getValue() != null) {
+        put(collection, entry.getKey(), entry.getValue());
+      } else {
+        getCollection(collection).remove(entry.getKey());
+      }
+    }
+    LOGGER.log(Level.FINE, "Upserted {0} records", records.size());
+  }
+
+  /**
+   * Writes the values into the values map of the record.
+   * Used by the other stores that keep records as JSONObjects.
+   *
+   * @param collection
+   * @param name
+   * @param record
+   * @param valuesMapField
+   * @param valuesMapKeys
+   * @param valuesMapValues
+   * @throws FailedDBOperationException
+   */
+  static void applyFieldUpdates(String collection, String name, JSONObject record,
+          ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys,
+          ArrayList<Object> valuesMapValues) throws FailedDBOperationException {
     if (valuesMapField != null && valuesMapKeys != null) {
       try {
-        JSONObject json = record.getJSONObject(valuesMapField.getName());
+        JSONObject json = ImmutableJSONObject.toMutable(record.getJSONObject(valuesMapField.getName()));
         for (int i = 0; i < valuesMapKeys.size(); i++) {
-          String fieldName = valuesMapKeys.get(i).getName();
+          JSONPath path = valuesMapKeys.get(i).getPath();
           switch (valuesMapKeys.get(i).type()) {
             case LIST_STRING:
-              JSONDotNotation.putWithDotNotation(json, fieldName, valuesMapValues.get(i));
+              path.put(json, valuesMapValues.get(i));
               break;
             case USER_JSON:
-              JSONDotNotation.putWithDotNotation(json, fieldName, JSONParse(valuesMapValues.get(i)));
+              path.put(json, JSONParse(valuesMapValues.get(i)));
               break;
             default:
               LOGGER.log(Level.WARNING,
@@ -313,11 +436,10 @@ public class DiskMapRecords implements NoSQLRecords {
         throw new FailedDBOperationException(collection, name, "Unable to parse json " + e.getMessage());
       }
     }
-    getMap(collection).put(name, record);
   }
   // not sure why the JSON.parse doesn't handle things this way but it doesn't
 
-  private Object JSONParse(Object object) {
+  private static Object JSONParse(Object object) {
     if (object instanceof String || object instanceof Number) {
       return object;
     } else {
@@ -331,22 +453,38 @@ public class DiskMapRecords implements NoSQLRecords {
           throws FailedDBOperationException {
     JSONObject record = null;
     try {
-      record = lookupEntireRecord(collection, name);
-    } catch (RecordNotFoundException e) {
+      record = ImmutableJSONObject.toMutable(lookupEntireRecord(collection, name));
+    } catch (RecordNotFoundException | JSONException e) {
     }
     LOGGER.log(Level.FINE, "Record before:{0}", record);
     if (record == null) {
       DatabaseConfig.getLogger().log(Level.FINE, "removeMapKeys failed. record is null");
       throw new FailedDBOperationException(collection, name, "Record not found.");
     }
+    applyKeyRemovals(record, mapField, mapKeys);
+    put(collection, name, record);
+  }
+
+  /**
+   * Removes the keys from the values map of the record.
+   * Used by the other stores that keep records as JSONObjects.
+   *
+   * @param record
+   * @param mapField
+   * @param mapKeys
+   */
+  static void applyKeyRemovals(JSONObject record, ColumnField mapField, ArrayList<ColumnField> mapKeys) {
     if (mapField != null && mapKeys != null) {
       try {
-        JSONObject json = record.getJSONObject(mapField.getName());
+        JSONObject json = ImmutableJSONObject.toMutable(record.getJSONObject(mapField.getName()));
         LOGGER.log(Level.FINE, "Json before:{0}", json);
         for (int i = 0; i < mapKeys.size(); i++) {
-          String fieldName = mapKeys.get(i).getName();
-          LOGGER.log(Level.FINE, "Removing: {0}", fieldName);
-          JSONDotNotation.removeWithDotNotation(fieldName, json);
+          LOGGER.log(Level.FINE, "Removing: {0}", mapKeys.get(i));
+          JSONPath path = mapKeys.get(i).getPath();
+          // like mongo's $unset removing a key under a missing object does nothing
+          if (path.parent() == null || path.parent().opt(json) instanceof JSONObject) {
+            path.remove(json);
+          }
         }
         LOGGER.log(Level.FINE, "Json after:{0}", json);
         record.put(mapField.getName(), json);
@@ -356,50 +494,234 @@ public class DiskMapRecords implements NoSQLRecords {
                 "Problem updating json: {0}", e.getMessage());
       }
     }
-    getMap(collection).put(name, record);
   }
 
   @Override
   public AbstractRecordCursor getAllRowsIterator(String collection) throws FailedDBOperationException {
-    getMap(collection).commit();
-    return getMongoRecords(collection).getAllRowsIterator(MongoRecords.DBNAMERECORD);
+    return mergedSelect(collection, null, null, new PersistedSelect() {
+      @Override
+      AbstractRecordCursor select(MongoRecords mongoRecords) throws FailedDBOperationException {
+        return mongoRecords.getAllRowsIterator(MongoRecords.DBNAMERECORD);
+      }
+    });
   }
 
   @Override
-  public AbstractRecordCursor selectRecords(String collection, ColumnField valuesMapField, String key, Object value) throws FailedDBOperationException {
-    getMap(collection).commit();
-    return getMongoRecords(collection).selectRecords(MongoRecords.DBNAMERECORD, valuesMapField, key, value);
+  public AbstractRecordCursor selectRecords(String collection, final ColumnField valuesMapField,
+          final String key, final Object value) throws FailedDBOperationException {
+    RecordFilter filter = new RecordFilter() {
+      @Override
+      boolean accept(JSONObject record) {
+        return QueryMatcher.matchesEquals(record, valuesMapField, key, value);
+      }
+    };
+    Set<String> candidates = getCollection(collection).getIndexes()
+            .candidatesForEquals(valuesMapField, key, value);
+    if (candidates != null) {
+      return indexedSelect(collection, candidates, filter, null);
+    }
+    return mergedSelect(collection, filter, null, new PersistedSelect() {
+      @Override
+      AbstractRecordCursor select(MongoRecords mongoRecords) throws FailedDBOperationException {
+        return mongoRecords.selectRecords(MongoRecords.DBNAMERECORD, valuesMapField, key, value);
+      }
+    });
   }
 
   @Override
-  public AbstractRecordCursor selectRecordsWithin(String collection, ColumnField valuesMapField, String key, String value) throws FailedDBOperationException {
-    getMap(collection).commit();
-    return getMongoRecords(collection).selectRecordsWithin(MongoRecords.DBNAMERECORD, valuesMapField, key, value);
+  public AbstractRecordCursor selectRecordsWithin(String collection, final ColumnField valuesMapField,
+          final String key, final String value) throws FailedDBOperationException {
+    final double[][] box;
+    try {
+      box = QueryMatcher.parseBox(value);
+    } catch (JSONException e) {
+      throw new FailedDBOperationException(collection, key, "Unable to parse box: " + e.getMessage());
+    }
+    RecordFilter filter = new RecordFilter() {
+      @Override
+      boolean accept(JSONObject record) {
+        return QueryMatcher.matchesWithin(record, valuesMapField, key, box);
+      }
+    };
+    Set<String> candidates = getCollection(collection).getIndexes()
+            .candidatesForWithin(valuesMapField, key, box);
+    if (candidates != null) {
+      return indexedSelect(collection, candidates, filter, null);
+    }
+    return mergedSelect(collection, filter, null, new PersistedSelect() {
+      @Override
+      AbstractRecordCursor select(MongoRecords mongoRecords) throws FailedDBOperationException {
+        return mongoRecords.selectRecordsWithin(MongoRecords.DBNAMERECORD, valuesMapField, key, value);
+      }
+    });
   }
 
   @Override
-  public AbstractRecordCursor selectRecordsNear(String collection, ColumnField valuesMapField, String key, String value, Double maxDistance) throws FailedDBOperationException {
-    getMap(collection).commit();
-    return getMongoRecords(collection).selectRecordsNear(MongoRecords.DBNAMERECORD, valuesMapField, key, value, maxDistance);
+  public AbstractRecordCursor selectRecordsNear(String collection, final ColumnField valuesMapField,
+          final String key, final String value, final Double maxDistance) throws FailedDBOperationException {
+    final double[] point;
+    try {
+      point = QueryMatcher.parsePoint(value);
+    } catch (JSONException e) {
+      throw new FailedDBOperationException(collection, key, "Unable to parse point: " + e.getMessage());
+    }
+    RecordFilter filter = new RecordFilter() {
+      @Override
+      boolean accept(JSONObject record) {
+        return QueryMatcher.matchesNear(record, valuesMapField, key, point, maxDistance);
+      }
+    };
+    // nearest first like mongo
+    List<String> candidates = getCollection(collection).getIndexes()
+            .candidatesForNear(valuesMapField, key, point, maxDistance);
+    if (candidates != null) {
+      return indexedSelect(collection, candidates, filter, null);
+    }
+    return mergedSelect(collection, filter, null, new PersistedSelect() {
+      @Override
+      AbstractRecordCursor select(MongoRecords mongoRecords) throws FailedDBOperationException {
+        return mongoRecords.selectRecordsNear(MongoRecords.DBNAMERECORD, valuesMapField, key, value, maxDistance);
+      }
+    });
   }
 
   @Override
-  public AbstractRecordCursor selectRecordsQuery(String collection, ColumnField valuesMapField,
-          String query, List<String> projection) throws FailedDBOperationException {
-    getMap(collection).commit();
-    return getMongoRecords(collection).selectRecordsQuery(MongoRecords.DBNAMERECORD, valuesMapField,
-            query, projection);
+  public AbstractRecordCursor selectRecordsQuery(String collection, final ColumnField valuesMapField,
+          final String query, final List<String> projection) throws FailedDBOperationException {
+    final JSONObject parsedQuery;
+    try {
+      parsedQuery = QueryMatcher.parseQuery(query, valuesMapField);
+    } catch (JSONException e) {
+      DatabaseConfig.getLogger().log(Level.FINE, "selectRecordsQuery failed: {0}", e.getMessage());
+      throw new FailedDBOperationException(collection, query, "Unable to parse query: " + e.getMessage());
+    }
+    RecordFilter filter = new RecordFilter() {
+      @Override
+      boolean accept(JSONObject record) throws JSONException {
+        return QueryMatcher.matches(parsedQuery, record);
+      }
+    };
+    Set<String> candidates;
+    try {
+      candidates = getCollection(collection).getIndexes().candidatesForQuery(parsedQuery, valuesMapField);
+    } catch (JSONException e) {
+      throw new FailedDBOperationException(collection, query, "Unable to parse query: " + e.getMessage());
+    }
+    if (candidates != null) {
+      return indexedSelect(collection, candidates, filter, projection);
+    }
+    return mergedSelect(collection, filter, projection, new PersistedSelect() {
+      @Override
+      AbstractRecordCursor select(MongoRecords mongoRecords) throws FailedDBOperationException {
+        return mongoRecords.selectRecordsQuery(MongoRecords.DBNAMERECORD, valuesMapField,
+                query, projection);
+      }
+    });
   }
 
+  private static abstract class PersistedSelect {
+
+    abstract AbstractRecordCursor select(MongoRecords mongoRecords) throws FailedDBOperationException;
+  }
+
+  /**
+   * Runs a select without committing the map first. The select is evaluated
+   * against the writes that haven't been committed yet and against mongo for
+   * everything else. For any record written since the last commit the
+   * in-memory version wins, so the cost of a select doesn't depend on
+   * the number of pending writes.
+   */
+  private AbstractRecordCursor mergedSelect(String collection, RecordFilter filter,
+          List<String> projection, PersistedSelect persistedSelect) throws FailedDBOperationException {
+    DiskMapCollection diskMapCollection = getCollection(collection);
+    Map<String, PackedRecord> uncommitted = diskMapCollection.getUncommitted();
+    List<JSONObject> matches = new ArrayList<>();
+    for (Map.Entry<String, PackedRecord> entry : uncommitted.entrySet()) {
+      if (entry.getValue() == DiskMapCollection.REMOVED) {
+        continue;
+      }
+      try {
+        JSONObject record = entry.getValue().toJSONObject();
+        if (filter == null || filter.accept(record)) {
+          matches.add(QueryMatcher.project(record, projection));
+        }
+      } catch (JSONException e) {
+        LOGGER.log(Level.FINE, "Problem matching {0}: {1}", new Object[]{entry.getKey(), e.getMessage()});
+        throw new FailedDBOperationException(collection, entry.getKey(),
+                "Unable to evaluate select: " + e.getMessage());
+      }
+    }
+    // an in-memory database has nothing behind the map
+    AbstractRecordCursor persisted = diskMapCollection.isInMemory() ? null
+            : persistedSelect.select(diskMapCollection.getMongoRecords());
+    return new MergedRecordCursor(matches, uncommitted.keySet(), persisted);
+  }
+
+  /**
+   * Answers a select by looking up the records an index returned.
+   * The index is maintained on every write so it already covers both the
+   * uncommitted and the committed records.
+   */
+  private AbstractRecordCursor indexedSelect(final String collection, Collection<String> candidates,
+          RecordFilter filter, List<String> projection) {
+    return new LookupRecordCursor(collection, candidates.iterator(), new LookupRecordCursor.RecordSource() {
+      @Override
+      public JSONObject lookup(String name) throws FailedDBOperationException {
+        try {
+          return lookupEntireRecord(collection, name);
+        } catch (RecordNotFoundException e) {
+          return null;
+        }
+      }
+    }, filter, projection);
+  }
+
+  /**
+   * Creates the index in mongo and, for the hash and sorted index types
+   * (see {@link FieldIndex.Type}) and the 2d and 2dsphere geo index types
+   * (see {@link GeoIndex}), an in-memory index that selects use
+   * instead of querying mongo.
+   *
+   * @param collection
+   * @param field
+   * @param index
+   */
   @Override
   public void createIndex(String collection, String field, String index) {
-    getMap(collection).commit();
-    getMongoRecords(collection).createIndex(MongoRecords.DBNAMERECORD, field, index);
+    DiskMapCollection diskMapCollection = getCollection(collection);
+    if (!diskMapCollection.isInMemory()) {
+      try {
+        getMongoRecords(collection).createIndex(MongoRecords.DBNAMERECORD, field, index);
+      } catch (MongoException e) {
+        LOGGER.log(Level.FINE, "Mongo didn't create index {0} on {1}: {2}",
+                new Object[]{index, field, e.getMessage()});
+      }
+    }
+    // writes go to the index while it is populated but selects scan until it is ready
+    RecordIndex recordIndex = diskMapCollection.getIndexes().buildIndex(field, index);
+    if (recordIndex != null) {
+      try {
+        AbstractRecordCursor cursor = getAllRowsIterator(collection);
+        while (cursor.hasNext()) {
+          JSONObject record = cursor.nextJSONObject();
+          recordIndex.add(record.getString(NameRecord.NAME.getName()),
+                  record.optJSONObject(NameRecord.VALUES_MAP.getName()));
+        }
+        diskMapCollection.getIndexes().ready(recordIndex);
+        LOGGER.log(Level.INFO, "Created {0}", recordIndex);
+      } catch (FailedDBOperationException | JSONException e) {
+        // left unready so selects keep scanning rather than miss records
+        LOGGER.log(Level.SEVERE, "Problem populating index on {0}: {1}",
+                new Object[]{field, e.getMessage()});
+      }
+    }
   }
 
   @Override
   public void printAllEntries(String collection) throws FailedDBOperationException {
-    getMap(collection).commit();
-    getMongoRecords(collection).printAllEntries(MongoRecords.DBNAMERECORD);
+    AbstractRecordCursor cursor = getAllRowsIterator(collection);
+    while (cursor.hasNext()) {
+      System.out.println(cursor.nextJSONObject());
+    }
   }
 }
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An in-memory secondary index on one user field that maps field values
+ * to the names of the records holding them.
+ *
+ * A HASH index answers equality and $in lookups. A SORTED index also answers
+ * $gt, $gte, $lt and $lte ranges. Like mongo's multikey indexes every
+ * element of an array value is indexed. Only numbers, strings and booleans
+ * are indexed; numbers compare by value regardless of their java type and
+ * sort before strings which sort before booleans.
+ *
+ * The index is maintained incrementally from the record writes. Lookups
+ * may return names whose records no longer match so callers are expected
+ * to check the records they read.
+ *
+ * @author westy
+ */
+public class FieldIndex implements RecordIndex {
+
+  /**
+   * The kinds of indexes.
+   */
+  public enum Type {
+    /**
+     * Equality lookups only.
+     */
+    HASH,
+    /**
+     * Equality and range lookups.
+     */
+    SORTED;
+
+    /**
+     * Maps the index argument of createIndex to an index type.
+     * Accepts the mongo style "hashed", "1" and "-1" as well
+     * as "hash" and "sorted".
+     *
+     * @param index
+     * @return the type or null if this isn't a field index
+     */
+    public static Type fromString(String index) {
+      if (index == null) {
+        return null;
+      }
+      switch (index.trim().toLowerCase()) {
+        case "hash":
+        case "hashed":
+          return HASH;
+        case "sorted":
+        case "1":
+        case "-1":
+          return SORTED;
+        default:
+          return null;
+      }
+    }
+  }
+
+  private final String field;
+  private final Type type;
+  private final Map<IndexKey, Set<String>> index;
+  private final ConcurrentHashMap<String, List<IndexKey>> keysByName = new ConcurrentHashMap<>();
+  // Set once any record has more than one key. Then a range with two bounds
+  // can be satisfied by different elements of an array.
+  private volatile boolean multikey = false;
+
+  /**
+   * Creates an empty index on the user field.
+   *
+   * @param field - may use dot notation
+   * @param type
+   */
+  public FieldIndex(String field, Type type) {
+    this.field = field;
+    this.type = type;
+    this.index = type == Type.SORTED
+            ? new ConcurrentSkipListMap<IndexKey, Set<String>>()
+            : new ConcurrentHashMap<IndexKey, Set<String>>();
+  }
+
+  @Override
+  public String getField() {
+    return field;
+  }
+
+  @Override
+  public String getIndexType() {
+    return type.toString().toLowerCase();
+  }
+
+  /**
+   * @return the type
+   */
+  public Type getType() {
+    return type;
+  }
+
+  @Override
+  public int size() {
+    return keysByName.size();
+  }
+
+  @Override
+  public synchronized void update(String name, JSONObject valuesMap) {
+    removeKeys(name, keysByName.remove(name));
+    List<IndexKey> keys = keysFor(valuesMap);
+    if (!keys.isEmpty()) {
+      if (keys.size() > 1) {
+        multikey = true;
+      }
+      for (IndexKey key : keys) {
+        Set<String> names = index.get(key);
+        if (names == null) {
+          names = ConcurrentHashMap.newKeySet();
+          index.put(key, names);
+        }
+        names.add(name);
+      }
+      keysByName.put(name, keys);
+    }
+  }
+
+  @Override
+  public synchronized void add(String name, JSONObject valuesMap) {
+    if (!keysByName.containsKey(name)) {
+      update(name, valuesMap);
+    }
+  }
+
+  @Override
+  public synchronized void remove(String name) {
+    removeKeys(name, keysByName.remove(name));
+  }
+
+  private void removeKeys(String name, List<IndexKey> keys) {
+    if (keys != null) {
+      for (IndexKey key : keys) {
+        Set<String> names = index.get(key);
+        if (names != null) {
+          names.remove(name);
+          if (names.isEmpty()) {
+            index.remove(key);
+          }
+        }
+      }
+    }
+  }
+
+  private List<IndexKey> keysFor(JSONObject valuesMap) {
+    if (valuesMap == null) {
+      return Collections.emptyList();
+    }
+    List<IndexKey> keys = new ArrayList<>();
+    for (Object value : QueryMatcher.resolvePath(valuesMap, field)) {
+      if (value instanceof JSONArray) {
+        JSONArray array = (JSONArray) value;
+        for (int i = 0; i < array.length(); i++) {
+          IndexKey key = IndexKey.of(array.opt(i));
+          if (key != null && !keys.contains(key)) {
+            keys.add(key);
+          }
+        }
+      } else {
+        IndexKey key = IndexKey.of(value);
+        if (key != null && !keys.contains(key)) {
+          keys.add(key);
+        }
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Returns the names of the records whose field equals the value or
+   * is an array containing it.
+   *
+   * @param value
+   * @return the names or null if the value can't be looked up in the index
+   */
+  public Set<String> lookup(Object value) {
+    IndexKey key = IndexKey.of(value);
+    if (key == null) {
+      return null;
+    }
+    Set<String> names = index.get(key);
+    return names != null ? new HashSet<>(names) : new HashSet<String>();
+  }
+
+  /**
+   * Returns the names of the records whose field is in the range.
+   * Either bound may be null. Like mongo the bounds only match values
+   * of the same type.
+   *
+   * @param lower
+   * @param lowerInclusive
+   * @param upper
+   * @param upperInclusive
+   * @return the names or null if this index can't answer range lookups
+   */
+  public Set<String> lookupRange(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+    if (type != Type.SORTED || (lower == null && upper == null)) {
+      return null;
+    }
+    IndexKey lowerKey = lower != null ? IndexKey.of(lower) : null;
+    IndexKey upperKey = upper != null ? IndexKey.of(upper) : null;
+    if ((lower != null && lowerKey == null) || (upper != null && upperKey == null)) {
+      return null;
+    }
+    Set<String> result = new HashSet<>();
+    if (lowerKey != null && upperKey != null && lowerKey.rank != upperKey.rank) {
+      return result;
+    }
+    int rank = lowerKey != null ? lowerKey.rank : upperKey.rank;
+    NavigableMap<IndexKey, Set<String>> sorted = (NavigableMap<IndexKey, Set<String>>) index;
+    NavigableMap<IndexKey, Set<String>> range = lowerKey != null
+            ? sorted.tailMap(lowerKey, lowerInclusive)
+            : sorted.tailMap(IndexKey.lowest(rank), true);
+    range = upperKey != null
+            ? range.headMap(upperKey, upperInclusive)
+            : range.headMap(IndexKey.lowest(rank + 1), false);
+    for (Set<String> names : range.values()) {
+      result.addAll(names);
+    }
+    return result;
+  }
+
+  /**
+   * Handles a value or the operators $eq, $in, $gt, $gte, $lt and $lte.
+   *
+   * @param condition
+   * @return the names or null if the index can't narrow the condition
+   * @throws JSONException
+   */
+  @Override
+  public Set<String> lookupCondition(Object condition) throws JSONException {
+    if (!(condition instanceof JSONObject)) {
+      return lookup(condition);
+    }
+    JSONObject operators = (JSONObject) condition;
+    Set<String> result = null;
+    Object lower = null, upper = null;
+    boolean lowerInclusive = false, upperInclusive = false;
+    Iterator<?> keys = operators.keys();
+    while (keys.hasNext()) {
+      String operator = (String) keys.next();
+      Object argument = operators.get(operator);
+      switch (operator) {
+        case "$eq":
+          result = smaller(result, lookup(argument));
+          break;
+        case "$in":
+          if (argument instanceof JSONArray) {
+            result = smaller(result, lookupAll((JSONArray) argument));
+          }
+          break;
+        case "$gt":
+        case "$gte":
+          lower = argument;
+          lowerInclusive = "$gte".equals(operator);
+          break;
+        case "$lt":
+        case "$lte":
+          upper = argument;
+          upperInclusive = "$lte".equals(operator);
+          break;
+        default:
+          if (!operator.startsWith("$")) {
+            // an embedded document, not something we index
+            return null;
+          }
+          // the rest of the operators are checked against the records
+          break;
+      }
+    }
+    if (lower != null && upper != null && multikey) {
+      result = smaller(result, smaller(lookupRange(lower, lowerInclusive, null, false),
+              lookupRange(null, false, upper, upperInclusive)));
+    } else if (lower != null || upper != null) {
+      result = smaller(result, lookupRange(lower, lowerInclusive, upper, upperInclusive));
+    }
+    return result;
+  }
+
+  private Set<String> lookupAll(JSONArray values) {
+    Set<String> result = new HashSet<>();
+    for (int i = 0; i < values.length(); i++) {
+      Set<String> names = lookup(values.opt(i));
+      if (names == null) {
+        return null;
+      }
+      result.addAll(names);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the smaller of two candidate sets treating null as everything.
+   *
+   * @param a
+   * @param b
+   * @return the smaller set
+   */
+  static Set<String> smaller(Set<String> a, Set<String> b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    return a.size() <= b.size() ? a : b;
+  }
+
+  @Override
+  public String toString() {
+    return "FieldIndex{" + field + ", " + type + ", records=" + keysByName.size() + "}";
+  }
+
+  /**
+   * An indexed value. Ranks keep values of different types apart.
+   */
+  private static class IndexKey implements Comparable<IndexKey> {
+
+    private final int rank;
+    private final Comparable<Object> value; // null is lower than every value of the rank
+
+    @SuppressWarnings("unchecked")
+    private IndexKey(int rank, Object value) {
+      this.rank = rank;
+      this.value = (Comparable<Object>) value;
+    }
+
+    private static IndexKey of(Object value) {
+      if (value instanceof Number) {
+        // adding 0.0 folds -0.0 into 0.0
+        return new IndexKey(0, ((Number) value).doubleValue() + 0.0);
+      } else if (value instanceof String) {
+        return new IndexKey(1, value);
+      } else if (value instanceof Boolean) {
+        return new IndexKey(2, value);
+      }
+      return null;
+    }
+
+    private static IndexKey lowest(int rank) {
+      return new IndexKey(rank, null);
+    }
+
+    @Override
+    public int compareTo(IndexKey other) {
+      if (rank != other.rank) {
+        return Integer.compare(rank, other.rank);
+      }
+      if (value == null || other.value == null) {
+        return value == other.value ? 0 : (value == null ? -1 : 1);
+      }
+      return value.compareTo(other.value);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof IndexKey)) {
+        return false;
+      }
+      IndexKey other = (IndexKey) object;
+      return rank == other.rank && (value == null ? other.value == null : value.equals(other.value));
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * rank + (value != null ? value.hashCode() : 0);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import java.util.ArrayList;
+
+/**
+ * The arguments of one updateIndividualFields call for use with
+ * {@link NoSQLRecords#bulkUpdateIndividualFields}.
+ *
+ * @author westy
+ */
+public class FieldUpdate {
+
+  private final String name;
+  private final ArrayList<ColumnField> valuesMapKeys;
+  private final ArrayList<Object> valuesMapValues;
+
+  /**
+   * Creates a field update for the record with the given name.
+   *
+   * @param name
+   * @param valuesMapKeys
+   * @param valuesMapValues
+   */
+  public FieldUpdate(String name, ArrayList<ColumnField> valuesMapKeys, ArrayList<Object> valuesMapValues) {
+    this.name = name;
+    this.valuesMapKeys = valuesMapKeys;
+    this.valuesMapValues = valuesMapValues;
+  }
+
+  /**
+   * Returns the name of the record.
+   *
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the user fields to update.
+   *
+   * @return the keys
+   */
+  public ArrayList<ColumnField> getValuesMapKeys() {
+    return valuesMapKeys;
+  }
+
+  /**
+   * Returns the values to set the user fields to.
+   *
+   * @return the values
+   */
+  public ArrayList<Object> getValuesMapValues() {
+    return valuesMapValues;
+  }
+
+  @Override
+  public String toString() {
+    return "FieldUpdate{" + name + ", " + valuesMapKeys + "}";
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An in-memory spatial index on a location field. Locations are [LONG, LAT]
+ * tuples (or GeoJSON points) as stored by setLocation.
+ *
+ * The index is a grid of fixed size cells kept in a sorted map ordered by
+ * row then column, so a bounding box turns into one range scan per row of
+ * cells it covers. Boxes for near queries use the same flat distance in
+ * degrees as the mongo 2d index. Like the other in-memory indexes the
+ * candidates it returns are checked against the records by the caller.
+ *
+ * @author westy
+ */
+public class GeoIndex implements RecordIndex {
+
+  /**
+   * The size of a grid cell in degrees, roughly a kilometer at the equator.
+   */
+  public static final double DEFAULT_CELL_SIZE = 0.01;
+
+  private final String field;
+  private final String indexType;
+  private final double cellSize;
+  private final int columns;
+  private final ConcurrentSkipListMap<Long, Set<String>> cells = new ConcurrentSkipListMap<>();
+  // the size of cells, which the skip list can only count by walking it
+  private final AtomicInteger cellCount = new AtomicInteger();
+  private final ConcurrentHashMap<String, List<double[]>> pointsByName = new ConcurrentHashMap<>();
+
+  /**
+   * Returns true if the index argument of createIndex is a geo index.
+   *
+   * @param index
+   * @return true for 2d and 2dsphere
+   */
+  public static boolean isGeoIndex(String index) {
+    return "2d".equals(index) || "2dsphere".equals(index);
+  }
+
+  /**
+   * Creates an empty index on the location field.
+   *
+   * @param field
+   * @param indexType - 2d or 2dsphere
+   */
+  public GeoIndex(String field, String indexType) {
+    this(field, indexType, DEFAULT_CELL_SIZE);
+  }
+
+  /**
+   * Creates an empty index on the location field.
+   *
+   * @param field
+   * @param indexType - 2d or 2dsphere
+   * @param cellSize - in degrees
+   */
+  public GeoIndex(String field, String indexType, double cellSize) {
+    this.field = field;
+    this.indexType = indexType;
+    this.cellSize = cellSize;
+    this.columns = (int) Math.ceil(360 / cellSize) + 1;
+  }
+
+  @Override
+  public String getField() {
+    return field;
+  }
+
+  @Override
+  public String getIndexType() {
+    return indexType;
+  }
+
+  @Override
+  public int size() {
+    return pointsByName.size();
+  }
+
+  private int column(double longitude) {
+    return (int) Math.floor((clamp(longitude, -180, 180) + 180) / cellSize);
+  }
+
+  private int row(double latitude) {
+    return (int) Math.floor((clamp(latitude, -90, 90) + 90) / cellSize);
+  }
+
+  private static double clamp(double value, double min, double max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  private long cell(int row, int column) {
+    return (long) row * columns + column;
+  }
+
+  private long cell(double[] point) {
+    return cell(row(point[1]), column(point[0]));
+  }
+
+  @Override
+  public synchronized void update(String name, JSONObject valuesMap) {
+    removePoints(name, pointsByName.remove(name));
+    List<double[]> points = pointsFor(valuesMap);
+    if (!points.isEmpty()) {
+      for (double[] point : points) {
+        long cell = cell(point);
+        Set<String> names = cells.get(cell);
+        if (names == null) {
+          names = ConcurrentHashMap.newKeySet();
+          cells.put(cell, names);
+          cellCount.incrementAndGet();
+        }
+        names.add(name);
+      }
+      pointsByName.put(name, points);
+    }
+  }
+
+  @Override
+  public synchronized void add(String name, JSONObject valuesMap) {
+    if (!pointsByName.containsKey(name)) {
+      update(name, valuesMap);
+    }
+  }
+
+  @Override
+  public synchronized void remove(String name) {
+    removePoints(name, pointsByName.remove(name));
+  }
+
+  private void removePoints(String name, List<double[]> points) {
+    if (points != null) {
+      for (double[] point : points) {
+        long cell = cell(point);
+        Set<String> names = cells.get(cell);
+        if (names != null) {
+          names.remove(name);
+          if (names.isEmpty() && cells.remove(cell) != null) {
+            cellCount.decrementAndGet();
+          }
+        }
+      }
+    }
+  }
+
+  private List<double[]> pointsFor(JSONObject valuesMap) {
+    if (valuesMap == null) {
+      return Collections.emptyList();
+    }
+    List<double[]> points = new ArrayList<>();
+    for (Object value : QueryMatcher.resolvePath(valuesMap, field)) {
+      double[] point = QueryMatcher.toPoint(value);
+      if (point != null) {
+        points.add(point);
+      } else if (value instanceof JSONArray || value instanceof List) {
+        // an array of locations
+        JSONArray array = value instanceof JSONArray ? (JSONArray) value : new JSONArray((List<?>) value);
+        for (int i = 0; i < array.length(); i++) {
+          if ((point = QueryMatcher.toPoint(array.opt(i))) != null) {
+            points.add(point);
+          }
+        }
+      }
+    }
+    return points;
+  }
+
+  /**
+   * Returns the names of the records with a location in the box.
+   *
+   * @param box - two corners in any order
+   * @return the names
+   */
+  public Set<String> lookupWithin(double[][] box) {
+    double minX = Math.min(box[0][0], box[1][0]);
+    double maxX = Math.max(box[0][0], box[1][0]);
+    double minY = Math.min(box[0][1], box[1][1]);
+    double maxY = Math.max(box[0][1], box[1][1]);
+    Set<String> result = new HashSet<>();
+    int firstColumn = column(minX);
+    int lastColumn = column(maxX);
+    int firstRow = row(minY);
+    int lastRow = row(maxY);
+    if (lastRow - firstRow + 1 > cellCount.get()) {
+      // tall box over a sparse grid: one scan over the rows is cheaper
+      for (Map.Entry<Long, Set<String>> entry
+              : cells.subMap(cell(firstRow, 0), true, cell(lastRow, columns - 1), true).entrySet()) {
+        long column = entry.getKey() % columns;
+        if (column >= firstColumn && column <= lastColumn) {
+          result.addAll(entry.getValue());
+        }
+      }
+    } else {
+      for (int row = firstRow; row <= lastRow; row++) {
+        for (Set<String> names : cells.subMap(cell(row, firstColumn), true, cell(row, lastColumn), true).values()) {
+          result.addAll(names);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the names of the records with a location within maxDistance
+   * meters of the point, nearest first. Uses the same flat distance
+   * calculation as the mongo 2d index.
+   *
+   * @param point
+   * @param maxDistance - in meters
+   * @return the names
+   */
+  public List<String> lookupNear(final double[] point, double maxDistance) {
+    final double degrees = QueryMatcher.metersToDegrees(maxDistance);
+    Set<String> candidates = lookupWithin(new double[][]{
+      {point[0] - degrees, point[1] - degrees}, {point[0] + degrees, point[1] + degrees}});
+    final Map<String, Double> distances = new HashMap<>();
+    for (String name : candidates) {
+      List<double[]> points = pointsByName.get(name);
+      if (points != null) {
+        double distance = Double.MAX_VALUE;
+        for (double[] location : points) {
+          distance = Math.min(distance, QueryMatcher.planarDistance(location, point));
+        }
+        if (distance <= degrees) {
+          distances.put(name, distance);
+        }
+      }
+    }
+    List<String> result = new ArrayList<>(distances.keySet());
+    Collections.sort(result, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return Double.compare(distances.get(a), distances.get(b));
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Handles $geoWithin (or $within) with a $box or $center shape and legacy
+   * $near with a $maxDistance. Everything else, including $nearSphere, is
+   * left to the caller's scan.
+   *
+   * @param condition
+   * @return the names or null if the index can't narrow the condition
+   * @throws JSONException
+   */
+  @Override
+  public Set<String> lookupCondition(Object condition) throws JSONException {
+    if (!(condition instanceof JSONObject)) {
+      return null;
+    }
+    JSONObject operators = (JSONObject) condition;
+    JSONObject shape = operators.optJSONObject("$geoWithin");
+    if (shape == null) {
+      shape = operators.optJSONObject("$within");
+    }
+    if (shape != null) {
+      if (shape.has("$box")) {
+        JSONArray box = shape.getJSONArray("$box");
+        double[] a = QueryMatcher.toPoint(box.get(0));
+        double[] b = QueryMatcher.toPoint(box.get(1));
+        return a != null && b != null ? lookupWithin(new double[][]{a, b}) : null;
+      } else if (shape.has("$center")) {
+        JSONArray center = shape.getJSONArray("$center");
+        double[] point = QueryMatcher.toPoint(center.get(0));
+        double radius = center.getDouble(1);
+        return point != null ? lookupWithin(new double[][]{
+          {point[0] - radius, point[1] - radius}, {point[0] + radius, point[1] + radius}}) : null;
+      }
+      return null;
+    }
+    Object near = operators.opt("$near");
+    if (near instanceof JSONArray && operators.has("$maxDistance")) {
+      double[] point = QueryMatcher.toPoint(near);
+      double radius = operators.getDouble("$maxDistance");
+      return point != null ? lookupWithin(new double[][]{
+        {point[0] - radius, point[1] - radius}, {point[0] + radius, point[1] + radius}}) : null;
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return "GeoIndex{" + field + ", " + indexType + ", records=" + pointsByName.size() + "}";
+  }
+}
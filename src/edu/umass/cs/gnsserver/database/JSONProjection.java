@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import edu.umass.cs.gnscommon.utils.JSONPath;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Parses only some fields out of a serialized JSON object.
+ *
+ * The fields are given as dot notation paths from the top of the object.
+ * Only the values at the end of the paths are parsed; everything else,
+ * including the siblings along the way, is skipped over without being
+ * materialized. The objects along a path are always included, even if
+ * the rest of the path isn't there, so a caller asking for
+ * nr_valuesMap.someField always gets a nr_valuesMap back.
+ *
+ * The input is UTF-8, which we can scan a byte at a time because the
+ * bytes of a multibyte character are never ASCII.
+ *
+ * @author westy
+ */
+public class JSONProjection {
+
+  private final Node paths = new Node();
+
+  // The paths as a tree. A node that is whole wants the entire value.
+  static class Node {
+
+    boolean whole = false;
+    final Map<String, Node> children = new HashMap<>();
+  }
+
+  /**
+   * Creates a projection for the dot notation paths.
+   *
+   * @param paths
+   */
+  public JSONProjection(Collection<String> paths) {
+    for (String path : paths) {
+      Node node = this.paths;
+      JSONPath parts = JSONPath.of(path);
+      for (int i = 0; i < parts.depth(); i++) {
+        String part = parts.part(i);
+        if (node.whole) {
+          break;
+        }
+        Node child = node.children.get(part);
+        if (child == null) {
+          node.children.put(part, child = new Node());
+        }
+        node = child;
+      }
+      node.whole = true;
+      node.children.clear();
+    }
+  }
+
+  // The root of the paths tree. Also used by PackedRecord.
+  Node getPaths() {
+    return paths;
+  }
+
+  /**
+   * Parses the fields out of a JSON object string.
+   *
+   * @param json
+   * @return a new JSONObject holding only the fields
+   * @throws JSONException
+   */
+  public JSONObject parse(String json) throws JSONException {
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+    return parse(ByteBuffer.wrap(bytes), 0, bytes.length);
+  }
+
+  /**
+   * Parses the fields out of the UTF-8 JSON object that lies between
+   * start and end in the buffer. Doesn't change the position of the buffer.
+   *
+   * @param buffer
+   * @param start
+   * @param end
+   * @return a new JSONObject holding only the fields
+   * @throws JSONException
+   */
+  public JSONObject parse(ByteBuffer buffer, int start, int end) throws JSONException {
+    Scanner scanner = new Scanner(buffer, start, end);
+    JSONObject result = scanner.object(paths);
+    if (result == null) {
+      throw new JSONException("A JSONObject text must begin with '{'");
+    }
+    return result;
+  }
+
+  private static class Scanner {
+
+    private final ByteBuffer buffer;
+    private final int end;
+    private int position;
+
+    private Scanner(ByteBuffer buffer, int start, int end) {
+      this.buffer = buffer;
+      this.position = start;
+      this.end = end;
+    }
+
+    private byte peek() throws JSONException {
+      skipWhitespace();
+      if (position >= end) {
+        throw new JSONException("Unterminated JSON at " + position);
+      }
+      return buffer.get(position);
+    }
+
+    private void expect(char c) throws JSONException {
+      if (peek() != c) {
+        throw new JSONException("Expected '" + c + "' at " + position);
+      }
+      position++;
+    }
+
+    private static boolean isWhitespace(byte b) {
+      return b >= 0 && b <= ' ';
+    }
+
+    private void skipWhitespace() {
+      while (position < end && isWhitespace(buffer.get(position))) {
+        position++;
+      }
+    }
+
+    // Returns the object with just the fields in the node or null if the
+    // value isn't an object.
+    private JSONObject object(Node node) throws JSONException {
+      if (peek() != '{') {
+        skipValue();
+        return null;
+      }
+      position++;
+      JSONObject result = new JSONObject();
+      if (peek() == '}') {
+        position++;
+        return result;
+      }
+      while (true) {
+        String key = string();
+        expect(':');
+        Node child = node.children.get(key);
+        if (child == null) {
+          skipValue();
+        } else if (child.whole) {
+          int start = position;
+          skipValue();
+          result.put(key, value(start, position));
+        } else {
+          JSONObject value = object(child);
+          if (value != null) {
+            result.put(key, value);
+          }
+        }
+        byte next = peek();
+        position++;
+        if (next == '}') {
+          return result;
+        } else if (next != ',') {
+          throw new JSONException("Expected ',' or '}' at " + (position - 1));
+        }
+      }
+    }
+
+    private Object value(int start, int end) throws JSONException {
+      byte[] bytes = new byte[end - start];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = buffer.get(start + i);
+      }
+      return new JSONTokener(new String(bytes, StandardCharsets.UTF_8)).nextValue();
+    }
+
+    private String string() throws JSONException {
+      if (peek() != '"') {
+        throw new JSONException("Expected a key at " + position);
+      }
+      int start = ++position;
+      boolean escaped = false;
+      while (position < end) {
+        byte b = buffer.get(position);
+        if (b == '\\') {
+          escaped = true;
+          position += 2;
+        } else if (b == '"') {
+          position++;
+          if (escaped) {
+            // rare enough to let the tokener deal with the escapes
+            return (String) value(start - 1, position);
+          }
+          byte[] bytes = new byte[position - 1 - start];
+          for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+          }
+          return new String(bytes, StandardCharsets.UTF_8);
+        } else {
+          position++;
+        }
+      }
+      throw new JSONException("Unterminated string at " + start);
+    }
+
+    private void skipValue() throws JSONException {
+      byte first = peek();
+      if (first == '"') {
+        skipString();
+      } else if (first == '{' || first == '[') {
+        int depth = 0;
+        while (position < end) {
+          byte b = buffer.get(position);
+          if (b == '"') {
+            skipString();
+            continue;
+          } else if (b == '{' || b == '[') {
+            depth++;
+          } else if (b == '}' || b == ']') {
+            if (--depth == 0) {
+              position++;
+              return;
+            }
+          }
+          position++;
+        }
+        throw new JSONException("Unterminated JSON at " + position);
+      } else {
+        // numbers, true, false and null
+        while (position < end) {
+          byte b = buffer.get(position);
+          if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+            return;
+          }
+          position++;
+        }
+      }
+    }
+
+    private void skipString() throws JSONException {
+      int start = position++;
+      while (position < end) {
+        byte b = buffer.get(position);
+        if (b == '\\') {
+          position += 2;
+        } else {
+          position++;
+          if (b == '"') {
+            return;
+          }
+        }
+      }
+      throw new JSONException("Unterminated string at " + start);
+    }
+  }
+}
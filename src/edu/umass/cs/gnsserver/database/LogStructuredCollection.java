@@ -0,0 +1,609 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A "collection" (in the sense of mongo) of JSON records stored in an
+ * append only log of memory mapped segment files.
+ *
+ * Every write appends an entry to the active segment and updates an in-memory
+ * index from the record name to the location of the latest entry. Entries look
+ * like this: [int payload length][int crc32 of payload][payload] where the
+ * payload is [byte type][int name length][name][json value]. A zero length
+ * marks the unused tail of a segment.
+ *
+ * On startup the segments are replayed in order to rebuild the index. A torn
+ * or corrupted entry at the tail of the log is discarded. Sealed segments
+ * that are more than half garbage are compacted by copying their live entries
+ * to the end of the log and deleting the segment.
+ *
+ * The tombstone a removal writes is live, and copied by compactions, only
+ * while a segment older than it still holds a PUT of the name, since that
+ * PUT would bring the record back when the log is replayed. Each segment
+ * keeps the names it holds PUTs of so this can be checked.
+ *
+ * Reads are lock free, writes are serialized.
+ *
+ * @author westy
+ */
+public class LogStructuredCollection {
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final int HEADER_SIZE = 8;
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final Pattern SEGMENT_PATTERN = Pattern.compile("segment-(\\d+)\\.log");
+
+  private final File directory;
+  private final int segmentSize;
+  private final boolean syncWrites;
+  private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+  private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+  // the live tombstone of each removed name that an older segment has a PUT of
+  private final Map<String, Location> tombstones = new HashMap<>();
+  private Segment active;
+  // segments to check once the compaction running now is done
+  private final Set<Segment> toCompact = new LinkedHashSet<>();
+  private boolean compacting = false;
+
+  private static class Segment {
+
+    private final int id;
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int writePosition = 0;
+    private int liveBytes = 0;
+    // the names of the PUTs in the segment, live or not
+    private final Set<String> putNames = new HashSet<>();
+
+    private Segment(int id, File file, int size) throws IOException {
+      this.id = id;
+      this.file = file;
+      this.channel = new RandomAccessFile(file, "rw").getChannel();
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+    }
+
+    private int capacity() {
+      return buffer.capacity();
+    }
+  }
+
+  private static class Location {
+
+    private final Segment segment;
+    private final int offset;
+    private final int length; // header plus payload
+
+    private Location(Segment segment, int offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  // A decoded entry.
+  private static class Entry {
+
+    private final byte type;
+    private final String name;
+    private final int length;
+
+    private Entry(byte type, String name, int length) {
+      this.type = type;
+      this.name = name;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Opens or creates a collection in the directory.
+   *
+   * @param directory
+   * @param segmentSize
+   * @param syncWrites - force each write to disk before returning
+   * @throws IOException
+   */
+  public LogStructuredCollection(File directory, int segmentSize, boolean syncWrites) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.syncWrites = syncWrites;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    recover();
+  }
+
+  /**
+   * Returns the record or null if there is no record with that name.
+   * The returned record is a new object owned by the caller.
+   *
+   * @param name
+   * @return the record or null
+   * @throws JSONException
+   */
+  public JSONObject get(String name) throws JSONException {
+    Location location = index.get(name);
+    if (location == null) {
+      return null;
+    }
+    return new JSONObject(readValue(location));
+  }
+
+  /**
+   * Returns only some fields of the record or null if there is no record
+   * with that name. The other fields are skipped without being parsed.
+   *
+   * @param name
+   * @param projection
+   * @return the partial record or null
+   * @throws JSONException
+   */
+  public JSONObject get(String name, JSONProjection projection) throws JSONException {
+    Location location = index.get(name);
+    if (location == null) {
+      return null;
+    }
+    ByteBuffer view = location.segment.buffer.duplicate();
+    int start = valueOffset(view, location);
+    return projection.parse(view, start, location.offset + location.length);
+  }
+
+  /**
+   * Returns true if the collection contains a record with the name.
+   *
+   * @param name
+   * @return true if the record exists
+   */
+  public boolean containsKey(String name) {
+    return index.containsKey(name);
+  }
+
+  /**
+   * Returns the number of records.
+   *
+   * @return the number of records
+   */
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * Returns a weakly consistent iterator over the names of the records.
+   *
+   * @return an iterator over the names
+   */
+  public Iterator<String> names() {
+    return Collections.unmodifiableSet(index.keySet()).iterator();
+  }
+
+  /**
+   * Writes the record replacing any previous value.
+   *
+   * @param name
+   * @param value
+   * @throws IOException
+   */
+  public synchronized void put(String name, JSONObject value) throws IOException {
+    appendPut(name, value, syncWrites);
+  }
+
+  /**
+   * Writes several records replacing any previous values, forcing them to
+   * disk once at the end rather than after each one. A null value removes
+   * the record.
+   *
+   * @param records - the records by name
+   * @throws IOException
+   */
+  public synchronized void putAll(Map<String, JSONObject> records) throws IOException {
+    for (Map.Entry<String, JSONObject> entry : records.entrySet()) {
+      String name = entry.getKey();
+      if (entry.getValue() != null) {
+        appendPut(name, entry.getValue(), false);
+      } else {
+        Location previous = index.remove(name);
+        if (previous != null) {
+          appendTombstone(name, false);
+          release(previous);
+        }
+      }
+    }
+    if (syncWrites && active != null) {
+      // segments we rolled past were forced when we rolled
+      active.buffer.force();
+    }
+  }
+
+  /**
+   * Writes the record only if there isn't already a record with the name.
+   *
+   * @param name
+   * @param value
+   * @return true if the record was written
+   * @throws IOException
+   */
+  public synchronized boolean putIfAbsent(String name, JSONObject value) throws IOException {
+    if (index.containsKey(name)) {
+      return false;
+    }
+    put(name, value);
+    return true;
+  }
+
+  /**
+   * Removes the record.
+   *
+   * @param name
+   * @return true if there was a record to remove
+   * @throws IOException
+   */
+  public synchronized boolean remove(String name) throws IOException {
+    Location previous = index.remove(name);
+    if (previous == null) {
+      return false;
+    }
+    appendTombstone(name, syncWrites);
+    release(previous);
+    return true;
+  }
+
+  /**
+   * Forces all segments to disk.
+   */
+  public synchronized void sync() {
+    for (Segment segment : segments.values()) {
+      segment.buffer.force();
+    }
+  }
+
+  /**
+   * Flushes and closes the segment files.
+   */
+  public synchronized void close() {
+    for (Segment segment : segments.values()) {
+      segment.buffer.force();
+      try {
+        segment.channel.close();
+      } catch (IOException e) {
+        DatabaseConfig.getLogger().log(Level.WARNING, "Problem closing {0}: {1}",
+                new Object[]{segment.file, e.getMessage()});
+      }
+    }
+  }
+
+  // The number of segments, for tests.
+  synchronized int segmentCount() {
+    return segments.size();
+  }
+
+  // The number of bytes written to the segments, for tests.
+  synchronized long logBytes() {
+    long result = 0;
+    for (Segment segment : segments.values()) {
+      result += segment.writePosition;
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "LogStructuredCollection{" + directory + ", records=" + index.size()
+            + ", segments=" + segments.size() + "}";
+  }
+
+  private String readValue(Location location) {
+    ByteBuffer view = location.segment.buffer.duplicate();
+    view.position(valueOffset(view, location));
+    byte[] bytes = new byte[location.offset + location.length - view.position()];
+    view.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // where the json of the entry starts
+  private static int valueOffset(ByteBuffer view, Location location) {
+    int nameOffset = location.offset + HEADER_SIZE + 1;
+    return nameOffset + 4 + view.getInt(nameOffset);
+  }
+
+  private static byte[] encode(byte type, String name, String value) {
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    ByteBuffer payload = ByteBuffer.allocate(1 + 4 + nameBytes.length + valueBytes.length);
+    payload.put(type);
+    payload.putInt(nameBytes.length);
+    payload.put(nameBytes);
+    payload.put(valueBytes);
+    return payload.array();
+  }
+
+  private void appendPut(String name, JSONObject value, boolean force) throws IOException {
+    Location location = append(encode(PUT, name, value.toString()), force);
+    location.segment.liveBytes += location.length;
+    location.segment.putNames.add(name);
+    release(index.put(name, location));
+    // the new PUT hides the older ones
+    release(tombstones.remove(name));
+  }
+
+  // A PUT of the name in the same segment is dropped when the segment is
+  // compacted along with the tombstone, so only older ones keep it live.
+  private void appendTombstone(String name, boolean force) throws IOException {
+    Location location = append(encode(DELETE, name, null), force);
+    if (olderPutExists(name, location.segment.id)) {
+      location.segment.liveBytes += location.length;
+      release(tombstones.put(name, location));
+    } else {
+      release(tombstones.remove(name));
+    }
+  }
+
+  // Returns true if a segment older than the one with the given id has a PUT of the name.
+  private boolean olderPutExists(String name, int id) {
+    for (Segment segment : segments.headMap(id).values()) {
+      if (segment.putNames.contains(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Location append(byte[] payload, boolean force) throws IOException {
+    int length = HEADER_SIZE + payload.length;
+    if (active == null || active.writePosition + length > active.capacity()) {
+      roll(length);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    int offset = active.writePosition;
+    ByteBuffer view = active.buffer.duplicate();
+    view.position(offset + HEADER_SIZE);
+    view.put(payload);
+    view.putInt(offset + 4, (int) crc.getValue());
+    // the length goes last so a reader of the log never sees a partial entry
+    view.putInt(offset, payload.length);
+    active.writePosition += length;
+    if (force) {
+      active.buffer.force();
+    }
+    return new Location(active, offset, length);
+  }
+
+  // Starts a new segment big enough to hold at least the given number of bytes.
+  private void roll(int length) throws IOException {
+    Segment previous = active;
+    int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+    active = new Segment(id, new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX),
+            Math.max(segmentSize, length));
+    segments.put(id, active);
+    if (previous != null) {
+      previous.buffer.force();
+      maybeCompact(previous);
+    }
+  }
+
+  private void release(Location location) throws IOException {
+    if (location != null) {
+      location.segment.liveBytes -= location.length;
+      maybeCompact(location.segment);
+    }
+  }
+
+  // Compactions append to the log, which can roll it and release entries, so
+  // the segments that become candidates then are only checked once the
+  // running compaction is done.
+  private void maybeCompact(Segment segment) throws IOException {
+    toCompact.add(segment);
+    if (compacting) {
+      return;
+    }
+    compacting = true;
+    try {
+      while (!toCompact.isEmpty()) {
+        Iterator<Segment> iterator = toCompact.iterator();
+        Segment next = iterator.next();
+        iterator.remove();
+        if (next != active && segments.containsKey(next.id)
+                && next.liveBytes * 2 < next.writePosition) {
+          compact(next);
+        }
+      }
+    } finally {
+      compacting = false;
+      toCompact.clear();
+    }
+  }
+
+  // Copies the live entries of a sealed segment to the end of the log and deletes it.
+  private void compact(Segment segment) throws IOException {
+    DatabaseConfig.getLogger().log(Level.FINE, "Compacting {0}: {1} of {2} bytes live",
+            new Object[]{segment.file, segment.liveBytes, segment.writePosition});
+    // take it out first so that releasing its entries doesn't trigger another compaction
+    segments.remove(segment.id);
+    ByteBuffer view = segment.buffer.duplicate();
+    int position = 0;
+    Entry entry;
+    while (position < segment.writePosition && (entry = readEntry(view, position)) != null) {
+      byte[] payload = new byte[entry.length - HEADER_SIZE];
+      view.position(position + HEADER_SIZE);
+      view.get(payload);
+      if (entry.type == PUT) {
+        Location location = index.get(entry.name);
+        if (location != null && location.segment == segment && location.offset == position) {
+          Location copy = append(payload, syncWrites);
+          copy.segment.liveBytes += copy.length;
+          copy.segment.putNames.add(entry.name);
+          index.put(entry.name, copy);
+        }
+      } else {
+        Location location = tombstones.get(entry.name);
+        if (location != null && location.segment == segment && location.offset == position) {
+          if (olderPutExists(entry.name, segment.id)) {
+            Location copy = append(payload, syncWrites);
+            copy.segment.liveBytes += copy.length;
+            tombstones.put(entry.name, copy);
+          } else {
+            tombstones.remove(entry.name);
+          }
+        }
+      }
+      position += entry.length;
+    }
+    // the tombstones of the PUTs that were in the segment may not be needed anymore
+    for (String name : segment.putNames) {
+      Location location = tombstones.get(name);
+      if (location != null && !olderPutExists(name, location.segment.id)) {
+        release(tombstones.remove(name));
+      }
+    }
+    active.buffer.force();
+    segment.channel.close();
+    if (!segment.file.delete()) {
+      DatabaseConfig.getLogger().log(Level.WARNING, "Unable to delete {0}", segment.file);
+    }
+  }
+
+  // Returns the entry at position or null if there isn't a valid one.
+  private static Entry readEntry(ByteBuffer view, int position) {
+    if (position + HEADER_SIZE > view.capacity()) {
+      return null;
+    }
+    int payloadLength = view.getInt(position);
+    if (payloadLength < 5 || position + HEADER_SIZE + payloadLength > view.capacity()) {
+      return null;
+    }
+    byte[] payload = new byte[payloadLength];
+    view.position(position + HEADER_SIZE);
+    view.get(payload);
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    if ((int) crc.getValue() != view.getInt(position + 4)) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(payload);
+    byte type = buffer.get();
+    int nameLength = buffer.getInt();
+    if (nameLength < 0 || nameLength > payloadLength - 5) {
+      return null;
+    }
+    String name = new String(payload, 5, nameLength, StandardCharsets.UTF_8);
+    return new Entry(type, name, HEADER_SIZE + payloadLength);
+  }
+
+  // Returns true if anything was written after the last valid entry. Entries
+  // aren't aligned so a full segment can end with fewer bytes than an int.
+  private static boolean hasTornTail(ByteBuffer view, int position) {
+    if (position + 4 <= view.capacity()) {
+      return view.getInt(position) != 0;
+    }
+    for (int i = position; i < view.capacity(); i++) {
+      if (view.get(i) != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void recover() throws IOException {
+    File[] files = directory.listFiles();
+    List<Integer> ids = new ArrayList<>();
+    if (files != null) {
+      for (File file : files) {
+        Matcher matcher = SEGMENT_PATTERN.matcher(file.getName());
+        if (matcher.matches()) {
+          ids.add(Integer.parseInt(matcher.group(1)));
+        }
+      }
+    }
+    Collections.sort(ids);
+    for (int id : ids) {
+      File file = new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+      Segment segment = new Segment(id, file, 0);
+      segments.put(id, segment);
+      ByteBuffer view = segment.buffer.duplicate();
+      int position = 0;
+      Entry entry;
+      while ((entry = readEntry(view, position)) != null) {
+        Location location = new Location(segment, position, entry.length);
+        if (entry.type == PUT) {
+          segment.liveBytes += entry.length;
+          segment.putNames.add(entry.name);
+          Location previous = index.put(entry.name, location);
+          if (previous != null) {
+            previous.segment.liveBytes -= previous.length;
+          }
+          previous = tombstones.remove(entry.name);
+          if (previous != null) {
+            previous.segment.liveBytes -= previous.length;
+          }
+        } else {
+          segment.liveBytes += entry.length;
+          Location previous = index.remove(entry.name);
+          if (previous != null) {
+            previous.segment.liveBytes -= previous.length;
+          }
+          previous = tombstones.put(entry.name, location);
+          if (previous != null) {
+            previous.segment.liveBytes -= previous.length;
+          }
+        }
+        position += entry.length;
+      }
+      segment.writePosition = position;
+      if (hasTornTail(view, position)) {
+        DatabaseConfig.getLogger().log(Level.WARNING, "Discarding torn tail of {0} at {1}",
+                new Object[]{file, position});
+        // Clear the tail so a shorter entry written here later can't run into the old bytes.
+        for (int i = position; i < segment.capacity(); i++) {
+          segment.buffer.put(i, (byte) 0);
+        }
+      }
+      active = segment;
+    }
+    for (Iterator<Map.Entry<String, Location>> iterator = tombstones.entrySet().iterator(); iterator.hasNext();) {
+      Map.Entry<String, Location> entry = iterator.next();
+      Location location = entry.getValue();
+      if (!olderPutExists(entry.getKey(), location.segment.id)) {
+        location.segment.liveBytes -= location.length;
+        iterator.remove();
+      }
+    }
+    DatabaseConfig.getLogger().log(Level.INFO, "Recovered {0} records from {1} segments in {2}",
+            new Object[]{index.size(), segments.size(), directory});
+    for (Map.Entry<Integer, Segment> entry : new ArrayList<>(segments.entrySet())) {
+      maybeCompact(entry.getValue());
+    }
+  }
+}
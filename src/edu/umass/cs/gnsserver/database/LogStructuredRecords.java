@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordExistsException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+import edu.umass.cs.gnsserver.main.GNSConfig;
+import edu.umass.cs.gnsserver.utils.ValuesMap;
+import edu.umass.cs.utils.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An embedded implementation of NoSQLRecords that doesn't need mongo
+ * or any other external database.
+ *
+ * Each collection is a LogStructuredCollection: records are appended to
+ * memory mapped segment files and found through an in-memory index. Selects
+ * are answered by evaluating the query with QueryMatcher, either over the
+ * whole collection or over the candidates of an in-memory index.
+ *
+ * Use it by setting NOSQL_RECORDS_CLASS to
+ * edu.umass.cs.gnsserver.database.LogStructuredRecords.
+ *
+ * @author westy
+ */
+public class LogStructuredRecords implements NoSQLRecords {
+
+  private final File directory;
+  private final int segmentSize;
+  private final boolean syncWrites;
+  private final ConcurrentHashMap<String, LogStructuredCollection> collections = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, RecordIndexes> indexes = new ConcurrentHashMap<>();
+  private static final String INDEX_DEFINITIONS_FILE = "indexes.json";
+
+  /**
+   * Creates the database for nodeID in the configured directory.
+   *
+   * @param nodeID
+   */
+  public LogStructuredRecords(String nodeID) {
+    this(nodeID, -1);
+  }
+
+  /**
+   * Creates the database for nodeID in the configured directory.
+   * The port is ignored and is only here so that this class can be
+   * created the same way as the other NoSQLRecords.
+   *
+   * @param nodeID
+   * @param port
+   */
+  public LogStructuredRecords(String nodeID, int port) {
+    this(new File(Config.getGlobalString(GNSConfig.GNSC.LOG_STRUCTURED_DB_DIR), sanitizeName(nodeID)),
+            Config.getGlobalInt(GNSConfig.GNSC.LOG_STRUCTURED_SEGMENT_SIZE),
+            Config.getGlobalBoolean(GNSConfig.GNSC.LOG_STRUCTURED_SYNC_WRITES));
+  }
+
+  /**
+   * Creates the database in the given directory.
+   *
+   * @param directory
+   * @param segmentSize
+   * @param syncWrites
+   */
+  public LogStructuredRecords(File directory, int segmentSize, boolean syncWrites) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.syncWrites = syncWrites;
+  }
+
+  private static String sanitizeName(String name) {
+    return name.replaceAll("[^A-Za-z0-9_\\-]", "_");
+  }
+
+  private LogStructuredCollection getCollection(String collection) throws FailedDBOperationException {
+    LogStructuredCollection result = collections.get(collection);
+    if (result != null) {
+      return result;
+    }
+    synchronized (collections) {
+      if ((result = collections.get(collection)) == null) {
+        try {
+          result = new LogStructuredCollection(new File(directory, sanitizeName(collection)),
+                  segmentSize, syncWrites);
+        } catch (IOException e) {
+          DatabaseConfig.getLogger().log(Level.SEVERE, "Unable to open {0}: {1}",
+                  new Object[]{collection, e.getMessage()});
+          throw new FailedDBOperationException(collection, directory.toString(),
+                  "Unable to open collection: " + e.getMessage());
+        }
+        // build the indexes before anyone else can see the collection
+        RecordIndexes recordIndexes = new RecordIndexes();
+        loadIndexDefinitions(collection, recordIndexes);
+        populate(result, recordIndexes.getIndexes());
+        indexes.put(collection, recordIndexes);
+        collections.put(collection, result);
+      }
+      return result;
+    }
+  }
+
+  @Override
+  public void insert(String collection, String name, JSONObject value)
+          throws FailedDBOperationException, RecordExistsException {
+    try {
+      if (!getCollection(collection).putIfAbsent(name, value)) {
+        throw new RecordExistsException(collection, name);
+      }
+      indexes.get(collection).update(name, value);
+    } catch (IOException e) {
+      throw new FailedDBOperationException(collection, name, "Unable to write record: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public JSONObject lookupEntireRecord(String collection, String name)
+          throws FailedDBOperationException, RecordNotFoundException {
+    JSONObject record;
+    try {
+      record = getCollection(collection).get(name);
+    } catch (JSONException e) {
+      DatabaseConfig.getLogger().log(Level.FINE, "lookupEntireRecord failed: {0}", e.getMessage());
+      throw new FailedDBOperationException(collection, name, "Unable to parse json record");
+    }
+    if (record == null) {
+      throw new RecordNotFoundException(name);
+    }
+    return record;
+  }
+
+  @Override
+  public HashMap<ColumnField, Object> lookupSomeFields(String collection, String name,
+          ColumnField nameField, ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys)
+          throws RecordNotFoundException, FailedDBOperationException {
+    List<String> paths = new ArrayList<>();
+    if (valuesMapField != null && valuesMapKeys != null) {
+      for (ColumnField key : valuesMapKeys) {
+        paths.add(valuesMapField.getName() + "." + key.getName());
+      }
+      if (valuesMapKeys.isEmpty()) {
+        // callers still expect an (empty) values map
+        paths.add(valuesMapField.getName());
+      }
+    }
+    JSONObject record;
+    try {
+      // only parse the fields we were asked for
+      record = getCollection(collection).get(name, new JSONProjection(paths));
+    } catch (JSONException e) {
+      DatabaseConfig.getLogger().log(Level.FINE, "lookupSomeFields failed: {0}", e.getMessage());
+      throw new FailedDBOperationException(collection, name, "Unable to parse json record");
+    }
+    if (record == null) {
+      throw new RecordNotFoundException(name);
+    }
+    return DiskMapRecords.extractSomeFields(name, record, nameField, valuesMapField, valuesMapKeys);
+  }
+
+  @Override
+  public boolean contains(String collection, String name) throws FailedDBOperationException {
+    return getCollection(collection).containsKey(name);
+  }
+
+  @Override
+  public void removeEntireRecord(String collection, String name) throws FailedDBOperationException {
+    try {
+      getCollection(collection).remove(name);
+      indexes.get(collection).remove(name);
+    } catch (IOException e) {
+      throw new FailedDBOperationException(collection, name, "Unable to remove record: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public void updateEntireRecord(String collection, String name, ValuesMap valuesMap)
+          throws FailedDBOperationException {
+    JSONObject record = new JSONObject();
+    try {
+      record.put(NameRecord.NAME.getName(), name);
+      record.put(NameRecord.VALUES_MAP.getName(), valuesMap);
+    } catch (JSONException e) {
+      throw new FailedDBOperationException(collection, name, "Unable to update record: " + e.getMessage());
+    }
+    write(collection, name, record);
+  }
+
+  @Override
+  public void updateIndividualFields(String collection, String name,
+          ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys,
+          ArrayList<Object> valuesMapValues) throws FailedDBOperationException {
+    JSONObject record;
+    try {
+      record = lookupEntireRecord(collection, name);
+    } catch (RecordNotFoundException e) {
+      DatabaseConfig.getLogger().log(Level.FINE, "updateIndividualFields failed: {0}", e.getMessage());
+      throw new FailedDBOperationException(collection, name, "Record not found.");
+    }
+    DiskMapRecords.applyFieldUpdates(collection, name, record, valuesMapField, valuesMapKeys, valuesMapValues);
+    write(collection, name, record);
+  }
+
+  @Override
+  public void bulkUpdateIndividualFields(String collection, ColumnField valuesMapField,
+          List<FieldUpdate> updates) throws FailedDBOperationException {
+    // apply all the updates of a record before appending it once
+    Map<String, JSONObject> records = new LinkedHashMap<>();
+    for (FieldUpdate update : updates) {
+      String name = update.getName();
+      JSONObject record = records.get(name);
+      if (record == null) {
+        try {
+          record = lookupEntireRecord(collection, name);
+        } catch (RecordNotFoundException e) {
+          DatabaseConfig.getLogger().log(Level.FINE, "Ignoring update of missing record {0}", name);
+          continue;
+        }
+        records.put(name, record);
+      }
+      DiskMapRecords.applyFieldUpdates(collection, name, record, valuesMapField,
+              update.getValuesMapKeys(), update.getValuesMapValues());
+    }
+    for (Map.Entry<String, JSONObject> entry : records.entrySet()) {
+      write(collection, entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public void bulkUpsert(String collection, Map<String, JSONObject> records)
+          throws FailedDBOperationException {
+    try {
+      getCollection(collection).putAll(records);
+    } catch (IOException e) {
+      throw new FailedDBOperationException(collection, "bulkUpsert", "Unable to write records: " + e.getMessage());
+    }
+    RecordIndexes recordIndexes = indexes.get(collection);
+    for (Map.Entry<String, JSONObject> entry : records.entrySet()) {
+      if (entry.getValue() != null) {
+        recordIndexes.update(entry.getKey(), entry.getValue());
+      } else {
+        recordIndexes.remove(entry.getKey());
+      }
+    }
+  }
+
+  @Override
+  public void removeMapKeys(String collection, String name,
+          ColumnField mapField, ArrayList<ColumnField> mapKeys)
+          throws FailedDBOperationException {
+    JSONObject record;
+    try {
+      record = lookupEntireRecord(collection, name);
+    } catch (RecordNotFoundException e) {
+      DatabaseConfig.getLogger().log(Level.FINE, "removeMapKeys failed: {0}", e.getMessage());
+      throw new FailedDBOperationException(collection, name, "Record not found.");
+    }
+    DiskMapRecords.applyKeyRemovals(record, mapField, mapKeys);
+    write(collection, name, record);
+  }
+
+  private void write(String collection, String name, JSONObject record) throws FailedDBOperationException {
+    try {
+      getCollection(collection).put(name, record);
+      indexes.get(collection).update(name, record);
+    } catch (IOException e) {
+      throw new FailedDBOperationException(collection, name, "Unable to write record: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public AbstractRecordCursor getAllRowsIterator(String collection) throws FailedDBOperationException {
+    return scan(collection, null, null);
+  }
+
+  @Override
+  public AbstractRecordCursor selectRecords(String collection, final ColumnField valuesMapField,
+          final String key, final Object value) throws FailedDBOperationException {
+    RecordFilter filter = new RecordFilter() {
+      @Override
+      boolean accept(JSONObject record) {
+        return QueryMatcher.matchesEquals(record, valuesMapField, key, value);
+      }
+    };
+    Set<String> candidates = getIndexes(collection).candidatesForEquals(valuesMapField, key, value);
+    return candidates != null
+            ? lookup(collection, candidates.iterator(), filter, null)
+            : scan(collection, filter, null);
+  }
+
+  @Override
+  public AbstractRecordCursor selectRecordsWithin(String collection, final ColumnField valuesMapField,
+          final String key, String value) throws FailedDBOperationException {
+    final double[][] box;
+    try {
+      box = QueryMatcher.parseBox(value);
+    } catch (JSONException e) {
+      throw new FailedDBOperationException(collection, key, "Unable to parse box: " + e.getMessage());
+    }
+    RecordFilter filter = new RecordFilter() {
+      @Override
+      boolean accept(JSONObject record) {
+        return QueryMatcher.matchesWithin(record, valuesMapField, key, box);
+      }
+    };
+    Set<String> candidates = getIndexes(collection).candidatesForWithin(valuesMapField, key, box);
+    return candidates != null
+            ? lookup(collection, candidates.iterator(), filter, null)
+            : scan(collection, filter, null);
+  }
+
+  @Override
+  public AbstractRecordCursor selectRecordsNear(String collection, final ColumnField valuesMapField,
+          final String key, String value, final Double maxDistance) throws FailedDBOperationException {
+    final double[] point;
+    try {
+      point = QueryMatcher.parsePoint(value);
+    } catch (JSONException e) {
+      throw new FailedDBOperationException(collection, key, "Unable to parse point: " + e.getMessage());
+    }
+    RecordFilter filter = new RecordFilter() {
+      @Override
+      boolean accept(JSONObject record) {
+        return QueryMatcher.matchesNear(record, valuesMapField, key, point, maxDistance);
+      }
+    };
+    // nearest first like mongo
+    List<String> candidates = getIndexes(collection).candidatesForNear(valuesMapField, key, point, maxDistance);
+    return candidates != null
+            ? lookup(collection, candidates.iterator(), filter, null)
+            : scan(collection, filter, null);
+  }
+
+  @Override
+  public AbstractRecordCursor selectRecordsQuery(String collection, ColumnField valuesMapField,
+          String query, List<String> projection) throws FailedDBOperationException {
+    final JSONObject parsedQuery;
+    try {
+      parsedQuery = QueryMatcher.parseQuery(query, valuesMapField);
+    } catch (JSONException e) {
+      DatabaseConfig.getLogger().log(Level.FINE, "selectRecordsQuery failed: {0}", e.getMessage());
+      throw new FailedDBOperationException(collection, query, "Unable to parse query: " + e.getMessage());
+    }
+    RecordFilter filter = new RecordFilter() {
+      @Override
+      boolean accept(JSONObject record) throws JSONException {
+        return QueryMatcher.matches(parsedQuery, record);
+      }
+    };
+    Set<String> candidates;
+    try {
+      candidates = getIndexes(collection).candidatesForQuery(parsedQuery, valuesMapField);
+    } catch (JSONException e) {
+      throw new FailedDBOperationException(collection, query, "Unable to parse query: " + e.getMessage());
+    }
+    return candidates != null
+            ? lookup(collection, candidates.iterator(), filter, projection)
+            : scan(collection, filter, projection);
+  }
+
+  /**
+   * Creates an in-memory index for the hash and sorted index types
+   * (see {@link FieldIndex.Type}) and the 2d and 2dsphere geo index types
+   * (see {@link GeoIndex}). Other index types are ignored and
+   * selects on those fields scan the collection.
+   * The index definitions are saved with the collection and the
+   * indexes are rebuilt when the collection is reopened.
+   *
+   * @param collection
+   * @param field
+   * @param index
+   */
+  @Override
+  public void createIndex(String collection, String field, String index) {
+    try {
+      RecordIndexes recordIndexes = getIndexes(collection);
+      // writes go to the index while it is populated but selects scan until it is ready
+      RecordIndex recordIndex = recordIndexes.buildIndex(field, index);
+      if (recordIndex == null) {
+        DatabaseConfig.getLogger().log(Level.FINE, "Ignoring index {0} on {1}/{2}",
+                new Object[]{index, collection, field});
+        return;
+      }
+      populate(getCollection(collection), Collections.singletonList(recordIndex));
+      recordIndexes.ready(recordIndex);
+      saveIndexDefinitions(collection, recordIndexes);
+    } catch (FailedDBOperationException e) {
+      DatabaseConfig.getLogger().log(Level.SEVERE, "Problem creating index on {0}/{1}: {2}",
+              new Object[]{collection, field, e.getMessage()});
+    }
+  }
+
+  private RecordIndexes getIndexes(String collection) throws FailedDBOperationException {
+    getCollection(collection);
+    return indexes.get(collection);
+  }
+
+  private void populate(LogStructuredCollection records, Collection<RecordIndex> recordIndexes) {
+    Iterator<String> names = records.names();
+    while (names.hasNext()) {
+      String name = names.next();
+      try {
+        JSONObject record = records.get(name);
+        if (record != null) {
+          JSONObject valuesMap = record.optJSONObject(NameRecord.VALUES_MAP.getName());
+          for (RecordIndex recordIndex : recordIndexes) {
+            recordIndex.add(name, valuesMap);
+          }
+        }
+      } catch (JSONException e) {
+        DatabaseConfig.getLogger().log(Level.WARNING, "Not indexing {0}: {1}",
+                new Object[]{name, e.getMessage()});
+      }
+    }
+    DatabaseConfig.getLogger().log(Level.INFO, "Populated {0}", recordIndexes);
+  }
+
+  private File getIndexDefinitionsFile(String collection) {
+    return new File(new File(directory, sanitizeName(collection)), INDEX_DEFINITIONS_FILE);
+  }
+
+  private void saveIndexDefinitions(String collection, RecordIndexes recordIndexes) {
+    try {
+      Files.write(getIndexDefinitionsFile(collection).toPath(),
+              new JSONObject(recordIndexes.getDefinitions()).toString().getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      DatabaseConfig.getLogger().log(Level.WARNING, "Unable to save index definitions for {0}: {1}",
+              new Object[]{collection, e.getMessage()});
+    }
+  }
+
+  private void loadIndexDefinitions(String collection, RecordIndexes recordIndexes) {
+    File file = getIndexDefinitionsFile(collection);
+    if (!file.exists()) {
+      return;
+    }
+    try {
+      JSONObject definitions = new JSONObject(new String(Files.readAllBytes(file.toPath()),
+              StandardCharsets.UTF_8));
+      Iterator<?> fields = definitions.keys();
+      while (fields.hasNext()) {
+        String field = (String) fields.next();
+        recordIndexes.addIndex(field, definitions.getString(field));
+      }
+    } catch (IOException | JSONException e) {
+      DatabaseConfig.getLogger().log(Level.WARNING, "Unable to load index definitions for {0}: {1}",
+              new Object[]{collection, e.getMessage()});
+    }
+  }
+
+  @Override
+  public void printAllEntries(String collection) throws FailedDBOperationException {
+    AbstractRecordCursor cursor = getAllRowsIterator(collection);
+    while (cursor.hasNext()) {
+      System.out.println(cursor.nextJSONObject());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LogStructuredRecords{" + directory + "}";
+  }
+
+  /**
+   * Flushes and closes all the collections.
+   */
+  public void close() {
+    for (LogStructuredCollection collection : collections.values()) {
+      collection.close();
+    }
+    collections.clear();
+    indexes.clear();
+  }
+
+  // Lazily reads and filters the records with the given names.
+  private AbstractRecordCursor lookup(final String collection, Iterator<String> names,
+          RecordFilter filter, List<String> projection) throws FailedDBOperationException {
+    final LogStructuredCollection records = getCollection(collection);
+    return new LookupRecordCursor(collection, names, new LookupRecordCursor.RecordSource() {
+      @Override
+      public JSONObject lookup(String name) throws FailedDBOperationException {
+        try {
+          return records.get(name);
+        } catch (JSONException e) {
+          throw new FailedDBOperationException(collection, name, "Unable to parse json record");
+        }
+      }
+    }, filter, projection);
+  }
+
+  private AbstractRecordCursor scan(String collection, RecordFilter filter,
+          List<String> projection) throws FailedDBOperationException {
+    return lookup(collection, getCollection(collection).names(), filter, projection);
+  }
+}
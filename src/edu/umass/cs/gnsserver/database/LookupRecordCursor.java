@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A cursor that looks up each of a series of names and returns the records
+ * that pass the filter. Used for scans of in-memory stores and for the
+ * candidates returned by an index.
+ *
+ * @author westy
+ */
+public class LookupRecordCursor extends AbstractRecordCursor {
+
+  /**
+   * Where the records come from.
+   */
+  public static abstract class RecordSource {
+
+    /**
+     * Returns the record or null if there isn't one anymore. The cursor
+     * hands the record to its caller so it should be a copy.
+     *
+     * @param name
+     * @return the record or null
+     * @throws FailedDBOperationException
+     */
+    public abstract JSONObject lookup(String name) throws FailedDBOperationException;
+  }
+
+  private final String collection;
+  private final Iterator<String> names;
+  private final RecordSource source;
+  private final RecordFilter filter;
+  private final List<String> projection;
+  private JSONObject next = null;
+
+  /**
+   * Creates the cursor.
+   *
+   * @param collection
+   * @param names
+   * @param source
+   * @param filter - null returns every record
+   * @param projection - null returns entire records
+   */
+  LookupRecordCursor(String collection, Iterator<String> names, RecordSource source,
+          RecordFilter filter, List<String> projection) {
+    this.collection = collection;
+    this.names = names;
+    this.source = source;
+    this.filter = filter;
+    this.projection = projection;
+  }
+
+  @Override
+  public boolean hasNext() throws FailedDBOperationException {
+    while (next == null && names.hasNext()) {
+      String name = names.next();
+      JSONObject record = source.lookup(name);
+      try {
+        // removed since we started iterating or no longer matches what the index said
+        if (record != null && (filter == null || filter.accept(record))) {
+          next = QueryMatcher.project(record, projection);
+        }
+      } catch (JSONException e) {
+        throw new FailedDBOperationException(collection, name, "Unable to evaluate select: " + e.getMessage());
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public JSONObject nextJSONObject() throws FailedDBOperationException {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    JSONObject result = next;
+    next = null;
+    return result;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+/**
+ * A cursor that returns some records held in memory followed by the records
+ * of a persisted cursor, skipping any persisted record whose name is shadowed
+ * by the in-memory version.
+ *
+ * @author westy
+ */
+public class MergedRecordCursor extends AbstractRecordCursor {
+
+  private final Iterator<JSONObject> inMemory;
+  private final Set<String> shadowed;
+  private final AbstractRecordCursor persisted;
+  private JSONObject next = null;
+
+  /**
+   * Creates a merged cursor.
+   *
+   * @param inMemory - the matching in-memory records
+   * @param shadowed - names whose persisted records are stale
+   * @param persisted - may be null
+   */
+  public MergedRecordCursor(List<JSONObject> inMemory, Set<String> shadowed, AbstractRecordCursor persisted) {
+    this.inMemory = inMemory.iterator();
+    this.shadowed = shadowed;
+    this.persisted = persisted;
+  }
+
+  @Override
+  public boolean hasNext() throws FailedDBOperationException {
+    if (next != null) {
+      return true;
+    }
+    if (inMemory.hasNext()) {
+      next = inMemory.next();
+      return true;
+    }
+    while (persisted != null && persisted.hasNext()) {
+      JSONObject record = persisted.nextJSONObject();
+      if (!shadowed.contains(record.optString(NameRecord.NAME.getName(), null))) {
+        next = record;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public JSONObject nextJSONObject() throws FailedDBOperationException {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    JSONObject result = next;
+    next = null;
+    return result;
+  }
+
+  @Override
+  public void close() {
+    if (persisted != null) {
+      persisted.close();
+    }
+  }
+}
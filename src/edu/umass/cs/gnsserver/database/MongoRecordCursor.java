@@ -29,6 +29,9 @@ import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
 import edu.umass.cs.gnscommon.exceptions.server.ServerRuntimeException;
 import org.json.JSONException;
 import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -82,14 +85,7 @@ public class MongoRecordCursor extends AbstractRecordCursor {
   private JSONObject nextAllFieldsJSON() throws FailedDBOperationException {
     try {
       if (cursor.hasNext()) {
-        DBObject dbObject = cursor.next();
-        try {
-          return new JSONObject(dbObject.toString());
-        } catch (JSONException e) {
-          // Since next can't throw anything which isn't a runtime exception.
-          // replace these with not a runtime exception?
-          throw new ServerRuntimeException("Error parsing JSON object.");
-        }
+        return toJSONObject(cursor.next());
       } else {
         // replace these with not a runtime exception?
         throw new NoSuchElementException();
@@ -100,6 +96,20 @@ public class MongoRecordCursor extends AbstractRecordCursor {
     }
   }
 
+  // Copies the document directly instead of printing and parsing it.
+  @SuppressWarnings("unchecked")
+  private static JSONObject toJSONObject(DBObject dbObject) {
+    try {
+      return dbObject instanceof Map
+              ? DiskMapRecords.recursiveCopyMap((Map<String, ?>) dbObject)
+              : new JSONObject(dbObject.toString());
+    } catch (JSONException e) {
+      // Since next can't throw anything which isn't a runtime exception.
+      // replace these with not a runtime exception?
+      throw new ServerRuntimeException("Error parsing JSON object.");
+    }
+  }
+
   /**
    * Returns the next row as a JSONObject.
    *
@@ -111,6 +121,29 @@ public class MongoRecordCursor extends AbstractRecordCursor {
     return nextAllFieldsJSON();
   }
 
+  /**
+   * Returns up to maxRecords of the next rows. Asks mongo for that many
+   * documents at a time from then on.
+   *
+   * @param maxRecords
+   * @return the next rows as JSONObjects
+   * @throws edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException
+   */
+  @Override
+  public List<JSONObject> nextBatch(int maxRecords) throws FailedDBOperationException {
+    List<JSONObject> batch = new ArrayList<>(maxRecords);
+    try {
+      cursor.batchSize(maxRecords);
+      while (batch.size() < maxRecords && cursor.hasNext()) {
+        batch.add(toJSONObject(cursor.next()));
+      }
+    } catch (MongoException e) {
+      throw new FailedDBOperationException(cursor.getCollection().getName(), cursor.toString(),
+              "Original mongo exception:" + e.getMessage());
+    }
+    return batch;
+  }
+
   /**
    * Returns the value of the field named name in the next row.
    *
@@ -147,4 +180,12 @@ public class MongoRecordCursor extends AbstractRecordCursor {
               "Original mongo exception:" + e.getMessage());
     }
   }
+
+  /**
+   * Closes the mongo cursor.
+   */
+  @Override
+  public void close() {
+    cursor.close();
+  }
 }
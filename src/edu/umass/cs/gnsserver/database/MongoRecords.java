@@ -31,6 +31,7 @@ import com.mongodb.DBObject;
 import com.mongodb.DuplicateKeyException;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
 import com.mongodb.util.JSON;
 
 import edu.umass.cs.gnscommon.GNSProtocol;
@@ -77,6 +78,28 @@ public class MongoRecords implements NoSQLRecords {
 
   private MongoClient mongoClient;
   private MongoCollectionSpecs mongoCollectionSpecs;
+  // not null when writes are behind
+  private MongoWriteBehind writeBehind = null;
+
+  /**
+   * How durable a field update is when updateIndividualFields returns.
+   */
+  public enum Durability {
+    /**
+     * Updates are kept in memory and group committed in the background.
+     * Updates since the last commit are lost if the server crashes, which
+     * is fine when the updates can be replayed from the paxos log.
+     */
+    WRITE_BEHIND,
+    /**
+     * Updates have been acknowledged by mongo. This is the default.
+     */
+    ACKNOWLEDGED,
+    /**
+     * Updates have been written to the mongo journal.
+     */
+    JOURNALED
+  }
 
   /**
    * Creates database tables for nodeID, by connecting to mongoDB on default port.
@@ -127,6 +150,7 @@ public class MongoRecords implements NoSQLRecords {
       db = mongoClient.getDB(dbName);
 
       initializeIndexes();
+      initializeDurability();
     } catch (UnknownHostException e) {
       fatalException = true;
       DatabaseConfig.getLogger().log(Level.SEVERE, "{0} Unable to open Mongo DB: {1}",
@@ -143,6 +167,51 @@ public class MongoRecords implements NoSQLRecords {
     }
   }
 
+  private void initializeDurability() {
+    Durability durability;
+    try {
+      durability = Durability.valueOf(Config.getGlobalString(GNSConfig.GNSC.MONGO_DURABILITY).toUpperCase());
+    } catch (IllegalArgumentException e) {
+      DatabaseConfig.getLogger().log(Level.WARNING, "{0} Unknown durability {1}; using {2}",
+              new Object[]{dbName, Config.getGlobalString(GNSConfig.GNSC.MONGO_DURABILITY),
+                Durability.ACKNOWLEDGED});
+      durability = Durability.ACKNOWLEDGED;
+    }
+    switch (durability) {
+      case WRITE_BEHIND:
+        writeBehind = new MongoWriteBehind(db, mongoCollectionSpecs, dbName,
+                Config.getGlobalInt(GNSConfig.GNSC.MONGO_WRITE_BEHIND_INTERVAL),
+                Config.getGlobalInt(GNSConfig.GNSC.MONGO_WRITE_BEHIND_MAX_UPDATES));
+        break;
+      case JOURNALED:
+        db.setWriteConcern(WriteConcern.JOURNALED);
+        break;
+      default:
+        break;
+    }
+    DatabaseConfig.getLogger().log(Level.INFO, "{0} Durability is {1}", new Object[]{dbName, durability});
+  }
+
+  // Commits the updates that are behind for the record before it is read
+  // or written some other way.
+  private void flushWrites(String collectionName, String guid) throws FailedDBOperationException {
+    if (writeBehind != null) {
+      writeBehind.flush(collectionName, guid);
+    }
+  }
+
+  /**
+   * Commits all the updates that are behind. Does nothing unless the
+   * durability is WRITE_BEHIND.
+   *
+   * @throws FailedDBOperationException
+   */
+  public void flush() throws FailedDBOperationException {
+    if (writeBehind != null) {
+      writeBehind.commit();
+    }
+  }
+
   private void initializeIndexes() {
     for (MongoCollectionSpec spec : mongoCollectionSpecs.allCollectionSpecs()) {
       initializeIndex(spec.getName());
@@ -168,6 +237,7 @@ public class MongoRecords implements NoSQLRecords {
 
   @Override
   public void insert(String collectionName, String guid, JSONObject value) throws FailedDBOperationException, RecordExistsException {
+    flushWrites(collectionName, guid);
     db.requestStart();
     try {
       db.requestEnsureConnection();
@@ -201,6 +271,7 @@ public class MongoRecords implements NoSQLRecords {
   }
 
   private JSONObject lookupEntireRecord(String collectionName, String guid, boolean explain) throws RecordNotFoundException, FailedDBOperationException {
+    flushWrites(collectionName, guid);
     long startTime = System.currentTimeMillis();
     db.requestStart();
     try {
@@ -252,6 +323,7 @@ public class MongoRecords implements NoSQLRecords {
       DatabaseConfig.getLogger().log(Level.FINE, "{0} GUID is null: {1}", new Object[]{dbName, guid});
       throw new RecordNotFoundException(guid);
     }
+    flushWrites(collectionName, guid);
     db.requestStart();
     try {
       String primaryKey = mongoCollectionSpecs.getCollectionSpec(collectionName).getPrimaryKey().getName();
@@ -259,11 +331,11 @@ public class MongoRecords implements NoSQLRecords {
 
       DBCollection collection = db.getCollection(collectionName);
       BasicDBObject query = new BasicDBObject(primaryKey, guid);
-      BasicDBObject projection = new BasicDBObject().append("_id", 0);
-
+      // Only fetch the fields we need. Without any fields mongo would return
+      // the whole document so ask for just the key.
+      BasicDBObject projection = new BasicDBObject().append("_id", 0).append(primaryKey, 1);
       if (valuesMapField != null && valuesMapKeys != null) {
-        for (int i = 0; i < valuesMapKeys.size(); i++) {
-          String fieldName = valuesMapField.getName() + "." + valuesMapKeys.get(i).getName();
+        for (String fieldName : projectionPaths(valuesMapField, valuesMapKeys)) {
           projection.append(fieldName, 1);
         }
       }
@@ -283,7 +355,9 @@ public class MongoRecords implements NoSQLRecords {
         ValuesMap valuesMap = new ValuesMap();
         for (int i = 0; i < valuesMapKeys.size(); i++) {
           String userKey = valuesMapKeys.get(i).getName();
-          if (containsFieldDotNotation(userKey, bson) == false) {
+          // nested bson documents are maps so the path walks them like json
+          Object found = valuesMapKeys.get(i).getPath().opt(bson);
+          if (found == null) {
             DatabaseConfig.getLogger().log(Level.FINE,
                     "{0} DBObject doesn't contain {1}", new Object[]{dbName, userKey});
 
@@ -292,14 +366,17 @@ public class MongoRecords implements NoSQLRecords {
           try {
             switch (valuesMapKeys.get(i).type()) {
               case USER_JSON:
-                Object value = getWithDotNotation(userKey, bson);
+                // convert the bson straight into json instead of going through a string
+                Object value = DiskMapRecords.recursiveCopyObject(found);
                 DatabaseConfig.getLogger().log(Level.FINE,
-                        "{0} Object is {1}", new Object[]{dbName, value.toString()});
+                        "{0} Object is {1}", new Object[]{dbName, value});
                 valuesMap.put(userKey, value);
                 break;
               case LIST_STRING:
+                Object list = DiskMapRecords.recursiveCopyObject(found);
                 valuesMap.putAsArray(userKey,
-                        JSONUtils.JSONArrayToResultValue(new JSONArray(getWithDotNotation(userKey, bson).toString())));
+                        JSONUtils.JSONArrayToResultValue(list instanceof JSONArray
+                                ? (JSONArray) list : new JSONArray(list.toString())));
                 break;
               default:
                 DatabaseConfig.getLogger().log(Level.SEVERE,
@@ -324,35 +401,29 @@ public class MongoRecords implements NoSQLRecords {
     }
   }
 
-  private Object getWithDotNotation(String key, BasicDBObject bson) throws JSONException {
-    if (key.contains(".")) {
-      int indexOfDot = key.indexOf(".");
-      String subKey = key.substring(0, indexOfDot);
-      BasicDBObject subBson = (BasicDBObject) bson.get(subKey);
-      if (subBson == null) {
-        throw new JSONException(subKey + " is null");
+  // The mongo paths of the fields. Leaves out any field inside another
+  // one we are already fetching since mongo doesn't allow overlapping paths.
+  private static List<String> projectionPaths(ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys) {
+    List<String> result = new ArrayList<>();
+    for (ColumnField key : valuesMapKeys) {
+      String fieldName = valuesMapField.getName() + "." + key.getName();
+      boolean covered = false;
+      for (ColumnField other : valuesMapKeys) {
+        if (fieldName.startsWith(valuesMapField.getName() + "." + other.getName() + ".")) {
+          covered = true;
+          break;
+        }
       }
-      try {
-        return getWithDotNotation(key.substring(indexOfDot + 1), subBson);
-      } catch (JSONException e) {
-        throw new JSONException(subKey + "." + e.getMessage());
+      if (!covered && !result.contains(fieldName)) {
+        result.add(fieldName);
       }
-    } else {
-      Object result = bson.get(key);
-      return result;
-    }
-  }
-
-  private boolean containsFieldDotNotation(String key, BasicDBObject bson) {
-    try {
-      return getWithDotNotation(key, bson) != null;
-    } catch (JSONException e) {
-      return false;
     }
+    return result;
   }
 
   @Override
   public boolean contains(String collectionName, String guid) throws FailedDBOperationException {
+    flushWrites(collectionName, guid);
     db.requestStart();
     try {
       String primaryKey = mongoCollectionSpecs.getCollectionSpec(collectionName).getPrimaryKey().getName();
@@ -372,6 +443,7 @@ public class MongoRecords implements NoSQLRecords {
 
   @Override
   public void removeEntireRecord(String collectionName, String guid) throws FailedDBOperationException {
+    flushWrites(collectionName, guid);
     String primaryKey = mongoCollectionSpecs.getCollectionSpec(collectionName).getPrimaryKey().getName();
     try {
       DBCollection collection = db.getCollection(collectionName);
@@ -394,7 +466,7 @@ public class MongoRecords implements NoSQLRecords {
       throw new FailedDBOperationException(collectionName, guid,
               "Unable to parse json" + e.getMessage());
     }
-    doUpdate(collectionName, guid, updates);
+    setFields(collectionName, guid, updates);
   }
 
   /**
@@ -406,35 +478,70 @@ public class MongoRecords implements NoSQLRecords {
    */
   public void bulkUpdate(String collectionName, Map<String, JSONObject> values)
           throws FailedDBOperationException, RecordExistsException {
-    //String primaryKey = mongoCollectionSpecs.getCollectionSpec(collectionName).getPrimaryKey().getName();
+    bulkUpsert(collectionName, values);
+  }
+
+  @Override
+  public void bulkUpsert(String collectionName, Map<String, JSONObject> records)
+          throws FailedDBOperationException {
+    if (records.isEmpty()) {
+      // mongo refuses to execute an empty bulk operation
+      return;
+    }
+    flush();
     DBCollection collection = db.getCollection(collectionName);
     String primaryKey = mongoCollectionSpecs.getCollectionSpec(collectionName).getPrimaryKey().getName();
-    db.requestEnsureConnection();
-    BulkWriteOperation unordered = collection.initializeUnorderedBulkOperation();
-    for (Map.Entry<String, JSONObject> entry : values.entrySet()) {
-      BasicDBObject query = new BasicDBObject(primaryKey, entry.getKey());
-      JSONObject value = entry.getValue();
-      if (value != null) {
-        DBObject document;
-        try {
-          document = (DBObject) JSON.parse(value.toString());
-        } catch (Exception e) {
-          throw new FailedDBOperationException(collectionName, "bulkUpdate",
-                  "Unable to parse json" + e.getMessage());
+    db.requestStart();
+    try {
+      db.requestEnsureConnection();
+      BulkWriteOperation unordered = collection.initializeUnorderedBulkOperation();
+      for (Map.Entry<String, JSONObject> entry : records.entrySet()) {
+        BasicDBObject query = new BasicDBObject(primaryKey, entry.getKey());
+        JSONObject value = entry.getValue();
+        if (value != null) {
+          DBObject document;
+          try {
+            document = (DBObject) JSON.parse(value.toString());
+          } catch (Exception e) {
+            throw new FailedDBOperationException(collectionName, entry.getKey(),
+                    "Unable to parse json" + e.getMessage());
+          }
+          unordered.find(query).upsert().replaceOne(document);
+        } else {
+          unordered.find(query).removeOne();
         }
-        unordered.find(query).upsert().replaceOne(document);
-      } else {
-        unordered.find(query).removeOne();
       }
+      BulkWriteResult result = unordered.execute();
+      DatabaseConfig.getLogger().log(Level.FINE, "{0} upserted {1} records: {2}",
+              new Object[]{dbName, records.size(), result});
+    } catch (MongoException e) {
+      DatabaseConfig.getLogger().log(Level.FINE, "{0} bulkUpsert failed: {1}",
+              new Object[]{dbName, e.getMessage()});
+      throw new FailedDBOperationException(collectionName, "bulkUpsert",
+              "Original mongo exception:" + e.getMessage());
+    } finally {
+      db.requestDone();
     }
-    // Maybe check the result?
-    BulkWriteResult result = unordered.execute();
   }
 
   @Override
   public void updateIndividualFields(String collectionName, String guid,
           ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys,
           ArrayList<Object> valuesMapValues) throws FailedDBOperationException {
+    setFields(collectionName, guid, fieldUpdates(valuesMapField, valuesMapKeys, valuesMapValues));
+  }
+
+  private void setFields(String collectionName, String guid, BasicDBObject updates)
+          throws FailedDBOperationException {
+    if (writeBehind == null) {
+      doUpdate(collectionName, guid, updates);
+    } else if (updates.keySet().size() > 0) {
+      writeBehind.update(collectionName, guid, updates);
+    }
+  }
+
+  private BasicDBObject fieldUpdates(ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys,
+          ArrayList<Object> valuesMapValues) {
     BasicDBObject updates = new BasicDBObject();
     if (valuesMapField != null && valuesMapKeys != null) {
       for (int i = 0; i < valuesMapKeys.size(); i++) {
@@ -456,7 +563,48 @@ public class MongoRecords implements NoSQLRecords {
         }
       }
     }
-    doUpdate(collectionName, guid, updates);
+    return updates;
+  }
+
+  @Override
+  public void bulkUpdateIndividualFields(String collectionName, ColumnField valuesMapField,
+          List<FieldUpdate> updates) throws FailedDBOperationException {
+    if (writeBehind != null) {
+      for (FieldUpdate update : updates) {
+        setFields(collectionName, update.getName(), fieldUpdates(valuesMapField,
+                update.getValuesMapKeys(), update.getValuesMapValues()));
+      }
+      return;
+    }
+    String primaryKey = mongoCollectionSpecs.getCollectionSpec(collectionName).getPrimaryKey().getName();
+    DBCollection collection = db.getCollection(collectionName);
+    // ordered so that updates of the same record are applied in order
+    BulkWriteOperation ordered = collection.initializeOrderedBulkOperation();
+    int count = 0;
+    for (FieldUpdate update : updates) {
+      BasicDBObject fields = fieldUpdates(valuesMapField, update.getValuesMapKeys(),
+              update.getValuesMapValues());
+      if (fields.keySet().size() > 0) {
+        ordered.find(new BasicDBObject(primaryKey, update.getName()))
+                .update(new BasicDBObject("$set", fields));
+        count++;
+      }
+    }
+    if (count == 0) {
+      return;
+    }
+    long startTime = System.currentTimeMillis();
+    try {
+      ordered.execute();
+    } catch (MongoException e) {
+      DatabaseConfig.getLogger().log(Level.SEVERE, "{0} bulkUpdateIndividualFields failed: {1}",
+              new Object[]{dbName, e.getMessage()});
+      throw new FailedDBOperationException(collectionName, updates.toString(),
+              "Original mongo exception:" + e.getMessage());
+    }
+    DelayProfiler.updateDelay("mongoBulkSetUpdate", startTime);
+    DatabaseConfig.getLogger().log(Level.FINE, "{0} bulk updated {1} records in {2}ms",
+            new Object[]{dbName, count, System.currentTimeMillis() - startTime});
   }
 
   private void doUpdate(String collectionName, String guid, BasicDBObject updates)
@@ -495,6 +643,7 @@ public class MongoRecords implements NoSQLRecords {
   @Override
   public void removeMapKeys(String collectionName, String name, ColumnField mapField, ArrayList<ColumnField> mapKeys)
           throws FailedDBOperationException {
+    flushWrites(collectionName, name);
     String primaryKey = mongoCollectionSpecs.getCollectionSpec(collectionName).getPrimaryKey().getName();
     DBCollection collection = db.getCollection(collectionName);
     BasicDBObject query = new BasicDBObject(primaryKey, name);
@@ -541,6 +690,7 @@ public class MongoRecords implements NoSQLRecords {
 
   private MongoRecordCursor selectRecords(String collectionName, ColumnField valuesMapField, String key, Object value,
           boolean explain) throws FailedDBOperationException {
+    flush();
     db.requestEnsureConnection();
     DBCollection collection = db.getCollection(collectionName);
     // note that if the value of the key in the database is a list (which it is) this
@@ -579,6 +729,7 @@ public class MongoRecords implements NoSQLRecords {
 
   private MongoRecordCursor selectRecordsWithin(String collectionName, ColumnField valuesMapField, String key, String value, boolean explain)
           throws FailedDBOperationException {
+    flush();
     db.requestEnsureConnection();
     DBCollection collection = db.getCollection(collectionName);
 
@@ -632,6 +783,7 @@ public class MongoRecords implements NoSQLRecords {
 
   private MongoRecordCursor selectRecordsNear(String collectionName, ColumnField valuesMapField, String key, String value,
           Double maxDistance, boolean explain) throws FailedDBOperationException {
+    flush();
     db.requestEnsureConnection();
     DBCollection collection = db.getCollection(collectionName);
 
@@ -671,6 +823,7 @@ public class MongoRecords implements NoSQLRecords {
 
   private MongoRecordCursor selectRecordsQuery(String collectionName, ColumnField valuesMapField,
           String query, List<String> projection, boolean explain) throws FailedDBOperationException {
+    flush();
     db.requestEnsureConnection();
     DBCollection collection = db.getCollection(collectionName);
     DBCursor cursor = null;
@@ -749,6 +902,7 @@ public class MongoRecords implements NoSQLRecords {
 
   @Override
   public MongoRecordCursor getAllRowsIterator(String collectionName) throws FailedDBOperationException {
+    flush();
     return new MongoRecordCursor(db, collectionName, mongoCollectionSpecs.getCollectionSpec(collectionName).getPrimaryKey());
   }
 
@@ -772,6 +926,14 @@ public class MongoRecords implements NoSQLRecords {
    * "to dispose of an instance, make sure you call MongoClient.close() to clean up resources."
    */
   public void close() {
+    if (writeBehind != null) {
+      try {
+        writeBehind.close();
+      } catch (FailedDBOperationException e) {
+        DatabaseConfig.getLogger().log(Level.SEVERE, "{0} Unable to commit the updates that are behind: {1}",
+                new Object[]{dbName, e.getMessage()});
+      }
+    }
     mongoClient.close();
   }
 
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.MongoException;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.utils.DelayProfiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Holds the $set updates of MongoRecords in memory and group commits them
+ * in the background with one ordered bulk write per collection.
+ *
+ * Updates of the same record are kept in order and merged into one $set
+ * when mongo allows it, so a field that is written over and over is only
+ * sent once per commit. Callers that want to see the updates of a record,
+ * or to write it some other way, call {@link #flush(String, String)}
+ * first, which waits for the updates of the record to be committed.
+ *
+ * If a commit fails its updates are put back in front of the newer ones
+ * and committed again later. They are all $set updates so committing
+ * some of them twice is harmless. Only callers of {@link #commit} and
+ * {@link #flush(String, String)} hear about a failed commit; an update
+ * that is buffered stays buffered.
+ *
+ * @author westy
+ */
+class MongoWriteBehind {
+
+  private final DB db;
+  private final MongoCollectionSpecs mongoCollectionSpecs;
+  private final String dbName;
+  private final int maxUpdates;
+  private final ScheduledExecutorService committer;
+  // one commit at a time so that the commits of a record stay in order
+  private final Object commitLock = new Object();
+  // collection to name to the $set updates of the record in order; guarded by this
+  private Map<String, LinkedHashMap<String, List<BasicDBObject>>> pending = new HashMap<>();
+  private Map<String, LinkedHashMap<String, List<BasicDBObject>>> committing = new HashMap<>();
+  private int pendingCount = 0;
+
+  /**
+   * Creates a write-behind buffer that commits every interval milliseconds
+   * or sooner once maxUpdates are waiting.
+   *
+   * @param db
+   * @param mongoCollectionSpecs
+   * @param dbName
+   * @param interval
+   * @param maxUpdates
+   */
+  MongoWriteBehind(DB db, MongoCollectionSpecs mongoCollectionSpecs, String dbName,
+          long interval, int maxUpdates) {
+    this.db = db;
+    this.mongoCollectionSpecs = mongoCollectionSpecs;
+    this.dbName = dbName;
+    this.maxUpdates = Math.max(1, maxUpdates);
+    this.committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "MongoWriteBehind-" + dbName);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    committer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          commit();
+        } catch (FailedDBOperationException e) {
+          // the updates are kept for the next commit
+        } catch (RuntimeException e) {
+          DatabaseConfig.getLogger().log(Level.SEVERE, "{0} write-behind commit failed: {1}",
+                  new Object[]{dbName, e});
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Adds the $set updates of a record. Waits for a commit if too many
+   * updates are waiting already. Once added the updates are the write
+   * behind's to commit, so a failed commit is logged and they are kept
+   * for the next one rather than reported as a failed update.
+   *
+   * @param collectionName
+   * @param guid
+   * @param updates - must not be changed by the caller afterwards
+   */
+  void update(String collectionName, String guid, BasicDBObject updates) {
+    boolean full;
+    synchronized (this) {
+      LinkedHashMap<String, List<BasicDBObject>> records = pending.get(collectionName);
+      if (records == null) {
+        pending.put(collectionName, records = new LinkedHashMap<>());
+      }
+      List<BasicDBObject> sets = records.get(guid);
+      if (sets == null) {
+        records.put(guid, sets = new ArrayList<>());
+      }
+      if (sets.isEmpty() || !merge(sets.get(sets.size() - 1), updates)) {
+        sets.add(updates);
+        pendingCount++;
+      }
+      full = pendingCount >= maxUpdates;
+    }
+    if (full) {
+      try {
+        commit();
+      } catch (FailedDBOperationException e) {
+        // write logged the failure and the update was put back for the next commit
+        DatabaseConfig.getLogger().log(Level.WARNING, "{0} keeping {1} updates of {2} for the next commit",
+                new Object[]{dbName, pendingCount(), guid});
+      }
+    }
+  }
+
+  private synchronized int pendingCount() {
+    return pendingCount;
+  }
+
+  // Merges the later $set into the earlier one. A later path replaces the
+  // earlier paths below it, but a later path below an earlier one can't be
+  // merged into the same $set.
+  private static boolean merge(BasicDBObject earlier, BasicDBObject later) {
+    List<String> replaced = new ArrayList<>();
+    for (String key : later.keySet()) {
+      for (String other : earlier.keySet()) {
+        if (key.startsWith(other + ".")) {
+          return false;
+        } else if (other.startsWith(key + ".")) {
+          replaced.add(other);
+        }
+      }
+    }
+    for (String other : replaced) {
+      earlier.remove(other);
+    }
+    earlier.putAll((Map<?, ?>) later);
+    return true;
+  }
+
+  /**
+   * Commits the updates of the record if there are any.
+   *
+   * @param collectionName
+   * @param guid
+   * @throws FailedDBOperationException
+   */
+  void flush(String collectionName, String guid) throws FailedDBOperationException {
+    if (isPending(collectionName, guid)) {
+      commit();
+    }
+  }
+
+  private synchronized boolean isPending(String collectionName, String guid) {
+    LinkedHashMap<String, List<BasicDBObject>> records = pending.get(collectionName);
+    if (records != null && records.containsKey(guid)) {
+      return true;
+    }
+    records = committing.get(collectionName);
+    return records != null && records.containsKey(guid);
+  }
+
+  /**
+   * Commits all the waiting updates.
+   *
+   * @throws FailedDBOperationException
+   */
+  void commit() throws FailedDBOperationException {
+    synchronized (commitLock) {
+      Map<String, LinkedHashMap<String, List<BasicDBObject>>> batch;
+      int count;
+      synchronized (this) {
+        if (pendingCount == 0) {
+          return;
+        }
+        batch = pending;
+        count = pendingCount;
+        committing = batch;
+        pending = new HashMap<>();
+        pendingCount = 0;
+      }
+      boolean committed = false;
+      try {
+        write(batch, count);
+        committed = true;
+      } finally {
+        synchronized (this) {
+          committing = new HashMap<>();
+          if (!committed) {
+            requeue(batch);
+          }
+        }
+      }
+    }
+  }
+
+  // Puts the updates of a failed commit back in front of the newer ones.
+  private void requeue(Map<String, LinkedHashMap<String, List<BasicDBObject>>> batch) {
+    for (Map.Entry<String, LinkedHashMap<String, List<BasicDBObject>>> newer : pending.entrySet()) {
+      LinkedHashMap<String, List<BasicDBObject>> records = batch.get(newer.getKey());
+      if (records == null) {
+        batch.put(newer.getKey(), newer.getValue());
+        continue;
+      }
+      for (Map.Entry<String, List<BasicDBObject>> entry : newer.getValue().entrySet()) {
+        List<BasicDBObject> sets = records.get(entry.getKey());
+        if (sets == null) {
+          records.put(entry.getKey(), entry.getValue());
+        } else {
+          sets.addAll(entry.getValue());
+        }
+      }
+    }
+    pending = batch;
+    pendingCount = 0;
+    for (LinkedHashMap<String, List<BasicDBObject>> records : pending.values()) {
+      for (List<BasicDBObject> sets : records.values()) {
+        pendingCount += sets.size();
+      }
+    }
+  }
+
+  private void write(Map<String, LinkedHashMap<String, List<BasicDBObject>>> batch, int count)
+          throws FailedDBOperationException {
+    long startTime = System.currentTimeMillis();
+    for (Map.Entry<String, LinkedHashMap<String, List<BasicDBObject>>> entry : batch.entrySet()) {
+      String collectionName = entry.getKey();
+      String primaryKey = mongoCollectionSpecs.getCollectionSpec(collectionName).getPrimaryKey().getName();
+      BulkWriteOperation ordered = db.getCollection(collectionName).initializeOrderedBulkOperation();
+      for (Map.Entry<String, List<BasicDBObject>> record : entry.getValue().entrySet()) {
+        BasicDBObject query = new BasicDBObject(primaryKey, record.getKey());
+        for (BasicDBObject updates : record.getValue()) {
+          ordered.find(query).update(new BasicDBObject("$set", updates));
+        }
+      }
+      try {
+        ordered.execute();
+      } catch (MongoException e) {
+        DatabaseConfig.getLogger().log(Level.SEVERE, "{0} write-behind commit of {1} updates failed: {2}",
+                new Object[]{dbName, count, e.getMessage()});
+        throw new FailedDBOperationException(collectionName, entry.getValue().keySet().toString(),
+                "Original mongo exception:" + e.getMessage());
+      }
+    }
+    DelayProfiler.updateDelay("mongoGroupCommit", startTime);
+    DatabaseConfig.getLogger().log(Level.FINE, "{0} committed {1} updates in {2}ms",
+            new Object[]{dbName, count, System.currentTimeMillis() - startTime});
+  }
+
+  /**
+   * Commits the waiting updates and stops committing in the background.
+   *
+   * @throws FailedDBOperationException
+   */
+  void close() throws FailedDBOperationException {
+    committer.shutdown();
+    commit();
+  }
+}
@@ -27,6 +27,7 @@ import org.json.JSONObject;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Provides an interface for insert, update, remove and lookup 
@@ -134,6 +135,32 @@ public interface NoSQLRecords {
           ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys,
           ArrayList<Object> valuesMapValues) throws FailedDBOperationException;
 
+  /**
+   * Does the updateIndividualFields of several records in one operation.
+   * Updates are applied in order so later updates of the same field win.
+   * Like mongo's update, updates of records that don't exist are ignored.
+   *
+   * @param collectionName
+   * @param valuesMapField
+   * @param updates
+   * @throws FailedDBOperationException
+   */
+  public void bulkUpdateIndividualFields(String collectionName, ColumnField valuesMapField,
+          List<FieldUpdate> updates) throws FailedDBOperationException;
+
+  /**
+   * Writes several whole records in one operation. Each record replaces
+   * any record with the same name or is added if there isn't one, so no
+   * existence check is needed. A null record removes the record with that
+   * name if there is one.
+   *
+   * @param collectionName
+   * @param records - the records by name
+   * @throws FailedDBOperationException
+   */
+  public void bulkUpsert(String collectionName, Map<String, JSONObject> records)
+          throws FailedDBOperationException;
+
   /**
    * For record with name, removes (unset) keys in list <code>mapKeys</code> from the map <code>mapField</code>.
    *
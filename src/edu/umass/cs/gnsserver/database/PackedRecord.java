@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import edu.umass.cs.gnscommon.utils.ImmutableJSONArray;
+import edu.umass.cs.gnscommon.utils.ImmutableJSONObject;
+
+import java.lang.ref.SoftReference;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A record packed into a byte array for keeping lots of records in memory.
+ *
+ * Field names are interned into a dictionary shared by all records and
+ * stored as small integers. Numbers and booleans are packed instead of
+ * boxed and strings are UTF-8. Objects and arrays carry their length so
+ * a reader can skip them, which lets {@link #get(JSONProjection)} decode
+ * just the fields it was asked for.
+ *
+ * The fully decoded record is kept through a soft reference so records
+ * that are read often aren't decoded on every read. The garbage collector
+ * drops the decoded records that haven't been used recently, leaving just
+ * the packed bytes.
+ *
+ * @author westy
+ */
+public final class PackedRecord {
+
+  private static final byte NULL = 0;
+  private static final byte FALSE = 1;
+  private static final byte TRUE = 2;
+  private static final byte INT = 3;
+  private static final byte LONG = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte STRING = 6;
+  private static final byte OBJECT = 7;
+  private static final byte ARRAY = 8;
+  private static final byte NUMBER = 9; // any other number as a string
+
+  // Field names are user defined, so past this many the rest are written
+  // out in each record instead of growing the dictionary forever.
+  private static final int MAX_NAMES = 1 << 16;
+  private static final ConcurrentHashMap<String, Integer> nameIds = new ConcurrentHashMap<>();
+  private static volatile String[] names = new String[256];
+  private static int nameCount = 0;
+
+  private final byte[] data;
+  private volatile SoftReference<ImmutableJSONObject> decoded = null;
+
+  private PackedRecord(byte[] data) {
+    this.data = data;
+  }
+
+  /**
+   * Packs a record.
+   *
+   * @param record
+   * @return the packed record
+   * @throws JSONException
+   */
+  public static PackedRecord pack(JSONObject record) throws JSONException {
+    Output output = new Output();
+    output.value(record);
+    return new PackedRecord(Arrays.copyOf(output.bytes, output.length));
+  }
+
+  /**
+   * Returns a record with no contents for use as a marker.
+   *
+   * @return an empty packed record
+   */
+  static PackedRecord marker() {
+    return new PackedRecord(new byte[0]);
+  }
+
+  /**
+   * Returns the size of the packed record in bytes.
+   *
+   * @return the size
+   */
+  public int size() {
+    return data.length;
+  }
+
+  /**
+   * Returns the whole record. The record is immutable and may be shared
+   * with other readers (see {@link ImmutableJSONObject}).
+   *
+   * @return the record
+   * @throws JSONException
+   */
+  public ImmutableJSONObject toJSONObject() throws JSONException {
+    SoftReference<ImmutableJSONObject> reference = decoded;
+    ImmutableJSONObject result = reference != null ? reference.get() : null;
+    if (result == null) {
+      result = (ImmutableJSONObject) new Input(data).value();
+      decoded = new SoftReference<>(result);
+    }
+    return result;
+  }
+
+  /**
+   * Returns only some fields of the record. Like {@link JSONProjection} the
+   * objects along the paths are always included and everything else is
+   * skipped without being decoded.
+   *
+   * @param projection
+   * @return a new JSONObject holding only the fields
+   * @throws JSONException
+   */
+  public JSONObject get(JSONProjection projection) throws JSONException {
+    Input input = new Input(data);
+    if (input.data[input.position++] != OBJECT) {
+      throw new JSONException("A packed record must be an object");
+    }
+    return input.object(projection.getPaths());
+  }
+
+  @Override
+  public String toString() {
+    try {
+      return toJSONObject().toString();
+    } catch (JSONException e) {
+      return "PackedRecord{" + data.length + " bytes}";
+    }
+  }
+
+  private static int nameId(String name) {
+    Integer id = nameIds.get(name);
+    if (id != null) {
+      return id;
+    }
+    synchronized (nameIds) {
+      if ((id = nameIds.get(name)) != null) {
+        return id;
+      }
+      if (nameCount >= MAX_NAMES) {
+        return -1;
+      }
+      String[] current = names;
+      if (nameCount == current.length) {
+        current = Arrays.copyOf(current, current.length * 2);
+      }
+      current[nameCount] = name;
+      // publish the array before the id so readers always find the name
+      names = current;
+      nameIds.put(name, nameCount);
+      return nameCount++;
+    }
+  }
+
+  private static class Output {
+
+    private byte[] bytes = new byte[256];
+    private int length = 0;
+
+    private void ensure(int extra) {
+      if (length + extra > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+      }
+    }
+
+    private void write(int b) {
+      ensure(1);
+      bytes[length++] = (byte) b;
+    }
+
+    private void varint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    private void zigzag(long value) {
+      varint((value << 1) ^ (value >> 63));
+    }
+
+    private void string(String value) {
+      byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+      varint(utf8.length);
+      ensure(utf8.length);
+      System.arraycopy(utf8, 0, bytes, length, utf8.length);
+      length += utf8.length;
+    }
+
+    private void name(String name) {
+      int id = nameId(name);
+      // 0 means the name follows inline
+      varint(id + 1);
+      if (id < 0) {
+        string(name);
+      }
+    }
+
+    // Writes the body length in front of a body that has already been
+    // written after a one byte placeholder.
+    private void finish(int placeholder) {
+      int bodyLength = length - placeholder - 1;
+      int extra = varintSize(bodyLength) - 1;
+      if (extra > 0) {
+        ensure(extra);
+        System.arraycopy(bytes, placeholder + 1, bytes, placeholder + 1 + extra, bodyLength);
+        length += extra;
+      }
+      int end = length;
+      length = placeholder;
+      varint(bodyLength);
+      length = end;
+    }
+
+    private static int varintSize(long value) {
+      int size = 1;
+      while ((value & ~0x7FL) != 0) {
+        value >>>= 7;
+        size++;
+      }
+      return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void value(Object value) throws JSONException {
+      if (value == null || value == JSONObject.NULL) {
+        write(NULL);
+      } else if (value instanceof Boolean) {
+        write((Boolean) value ? TRUE : FALSE);
+      } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+        write(INT);
+        zigzag(((Number) value).longValue());
+      } else if (value instanceof Long) {
+        write(LONG);
+        zigzag((Long) value);
+      } else if (value instanceof Double || value instanceof Float) {
+        write(DOUBLE);
+        long bits = Double.doubleToRawLongBits(((Number) value).doubleValue());
+        for (int i = 0; i < 8; i++) {
+          write((int) (bits >>> (8 * i)));
+        }
+      } else if (value instanceof Number) {
+        write(NUMBER);
+        string(value.toString());
+      } else if (value instanceof JSONObject) {
+        JSONObject json = (JSONObject) value;
+        write(OBJECT);
+        int placeholder = length;
+        write(0);
+        varint(json.length());
+        Iterator<?> keys = json.keys();
+        while (keys.hasNext()) {
+          String key = (String) keys.next();
+          name(key);
+          value(json.get(key));
+        }
+        finish(placeholder);
+      } else if (value instanceof Map) {
+        value(new JSONObject((Map<String, ?>) value));
+      } else if (value instanceof JSONArray) {
+        JSONArray array = (JSONArray) value;
+        write(ARRAY);
+        int placeholder = length;
+        write(0);
+        varint(array.length());
+        for (int i = 0; i < array.length(); i++) {
+          value(array.opt(i));
+        }
+        finish(placeholder);
+      } else if (value instanceof Collection) {
+        value(new JSONArray((Collection<?>) value));
+      } else {
+        write(STRING);
+        string(value.toString());
+      }
+    }
+  }
+
+  private static class Input {
+
+    private final byte[] data;
+    private int position = 0;
+
+    private Input(byte[] data) {
+      this.data = data;
+    }
+
+    private long varint() {
+      long result = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = data[position++];
+        result |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return result;
+    }
+
+    private long zigzag() {
+      long value = varint();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    private String string() {
+      int length = (int) varint();
+      String result = new String(data, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return result;
+    }
+
+    private String name() {
+      int id = (int) varint() - 1;
+      return id >= 0 ? names[id] : string();
+    }
+
+    private Object value() throws JSONException {
+      byte tag = data[position++];
+      switch (tag) {
+        case NULL:
+          return JSONObject.NULL;
+        case FALSE:
+          return Boolean.FALSE;
+        case TRUE:
+          return Boolean.TRUE;
+        case INT:
+          return (int) zigzag();
+        case LONG:
+          return zigzag();
+        case DOUBLE:
+          long bits = 0;
+          for (int i = 0; i < 8; i++) {
+            bits |= (long) (data[position++] & 0xFF) << (8 * i);
+          }
+          return Double.longBitsToDouble(bits);
+        case NUMBER: {
+          String number = string();
+          try {
+            return number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0
+                    ? new BigInteger(number) : new BigDecimal(number);
+          } catch (NumberFormatException e) {
+            return JSONObject.stringToValue(number);
+          }
+        }
+        case STRING:
+          return string();
+        case OBJECT: {
+          varint(); // the length is only needed for skipping
+          int count = (int) varint();
+          ImmutableJSONObject.Builder builder = new ImmutableJSONObject.Builder();
+          for (int i = 0; i < count; i++) {
+            String key = name();
+            builder.put(key, value());
+          }
+          return builder.build();
+        }
+        case ARRAY: {
+          varint();
+          int count = (int) varint();
+          ImmutableJSONArray.Builder builder = new ImmutableJSONArray.Builder();
+          for (int i = 0; i < count; i++) {
+            builder.put(value());
+          }
+          return builder.build();
+        }
+        default:
+          throw new JSONException("Bad packed record tag " + tag + " at " + (position - 1));
+      }
+    }
+
+    private void skip() {
+      byte tag = data[position++];
+      switch (tag) {
+        case INT:
+        case LONG:
+          varint();
+          break;
+        case DOUBLE:
+          position += 8;
+          break;
+        case NUMBER:
+        case STRING:
+        case OBJECT:
+        case ARRAY:
+          int length = (int) varint();
+          position += length;
+          break;
+        default:
+          // null and the booleans are just the tag
+          break;
+      }
+    }
+
+    // Called after the OBJECT tag.
+    private JSONObject object(JSONProjection.Node node) throws JSONException {
+      varint();
+      int count = (int) varint();
+      JSONObject result = new JSONObject();
+      for (int i = 0; i < count; i++) {
+        String key = name();
+        JSONProjection.Node child = node.children.get(key);
+        if (child == null) {
+          skip();
+        } else if (child.whole) {
+          result.put(key, value());
+        } else if (data[position] == OBJECT) {
+          position++;
+          result.put(key, object(child));
+        } else {
+          skip();
+        }
+      }
+      return result;
+    }
+  }
+}
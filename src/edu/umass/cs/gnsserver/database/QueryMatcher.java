@@ -0,0 +1,853 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import edu.umass.cs.gnscommon.GNSProtocol;
+import edu.umass.cs.gnscommon.utils.JSONPath;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.AccountAccess;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Evaluates select queries directly against JSONObject records.
+ *
+ * This lets record stores that live inside the JVM answer the select
+ * family of calls without handing the query to mongo. It understands
+ * the subset of the mongo query language that the GNS generates or
+ * documents for SelectQuery: the logical operators ($and, $or, $nor, $not),
+ * the comparison operators ($eq, $ne, $gt, $gte, $lt, $lte, $in, $nin),
+ * $exists, $regex, $size, $all, $elemMatch and the 2d geospatial
+ * operators ($geoWithin, $geoIntersects, $near and $nearSphere)
+ * for points stored as [LONG, LAT] tuples or GeoJSON points.
+ *
+ * Array values follow mongo semantics: a condition matches a field
+ * that holds an array if it matches any element of the array.
+ *
+ * @author westy
+ */
+public class QueryMatcher {
+
+  /**
+   * Same conversion MongoRecords uses for the legacy 2d indexes.
+   */
+  private final static double METERS_PER_DEGREE = 111.12 * 1000; // at the equator
+
+  private final static double EARTH_RADIUS_IN_METERS = 6378.1 * 1000;
+
+  /**
+   * Converts a select query string in the user format into a JSONObject query.
+   * This is the same transformation as MongoRecords performs: something like
+   * this: ~fred : ($gt: 0) becomes {nr_valuesMap.fred : {$gt: 0}} and non guid
+   * (HRN) records are filtered out.
+   *
+   * @param query
+   * @param valuesMapField
+   * @return the query as a JSONObject
+   * @throws JSONException
+   */
+  public static JSONObject parseQuery(String query, ColumnField valuesMapField) throws JSONException {
+    String edittedQuery = query;
+    edittedQuery = "{" + edittedQuery + "}";
+    edittedQuery = edittedQuery.replace("(", "{");
+    edittedQuery = edittedQuery.replace(")", "}");
+    edittedQuery = edittedQuery.replace("~", valuesMapField.getName() + ".");
+    // Filter out HRN records
+    String guidFilter = "{" + NameRecord.VALUES_MAP.getName()
+            + "." + AccountAccess.GUID_INFO + ": { $exists: true}}";
+    return new JSONObject(MongoRecords.buildAndQuery(guidFilter, edittedQuery));
+  }
+
+  /**
+   * Returns true if the record satisfies the query.
+   *
+   * @param query
+   * @param record
+   * @return true if the record satisfies the query
+   * @throws JSONException if the query contains something we can't evaluate
+   */
+  public static boolean matches(JSONObject query, JSONObject record) throws JSONException {
+    Iterator<?> keys = query.keys();
+    while (keys.hasNext()) {
+      String key = (String) keys.next();
+      Object condition = query.get(key);
+      switch (key) {
+        case "$and":
+          for (JSONObject clause : clauses(key, condition)) {
+            if (!matches(clause, record)) {
+              return false;
+            }
+          }
+          break;
+        case "$or": {
+          boolean any = false;
+          for (JSONObject clause : clauses(key, condition)) {
+            if (matches(clause, record)) {
+              any = true;
+              break;
+            }
+          }
+          if (!any) {
+            return false;
+          }
+          break;
+        }
+        case "$nor":
+          for (JSONObject clause : clauses(key, condition)) {
+            if (matches(clause, record)) {
+              return false;
+            }
+          }
+          break;
+        case "$comment":
+          break;
+        default:
+          if (key.startsWith("$")) {
+            throw new JSONException("Unsupported query operator " + key);
+          }
+          if (!matchesField(resolvePath(record, key), condition)) {
+            return false;
+          }
+          break;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the user field key of the record has the given value or
+   * is an array that contains the given value. Same semantics as the mongo
+   * query used by MongoRecords.selectRecords.
+   *
+   * @param record
+   * @param valuesMapField
+   * @param key
+   * @param value
+   * @return true if the record matches
+   */
+  public static boolean matchesEquals(JSONObject record, ColumnField valuesMapField, String key, Object value) {
+    for (Object candidate : resolvePath(record, valuesMapField.getName() + "." + key)) {
+      if (equalsOrContains(candidate, value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the user field key of the record is a location inside
+   * the bounding box value which looks like [[LONG_UL, LAT_UL],[LONG_BR, LAT_BR]].
+   *
+   * @param record
+   * @param valuesMapField
+   * @param key
+   * @param box
+   * @return true if the location is within the box
+   */
+  public static boolean matchesWithin(JSONObject record, ColumnField valuesMapField, String key, double[][] box) {
+    for (Object candidate : resolvePath(record, valuesMapField.getName() + "." + key)) {
+      double[] point = toPoint(candidate);
+      if (point != null && inBox(point, box)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the user field key of the record is a location within
+   * maxDistance meters of the point using the same flat 2d distance
+   * calculation as the mongo 2d index.
+   *
+   * @param record
+   * @param valuesMapField
+   * @param key
+   * @param point
+   * @param maxDistance - in meters
+   * @return true if the location is near the point
+   */
+  public static boolean matchesNear(JSONObject record, ColumnField valuesMapField, String key,
+          double[] point, double maxDistance) {
+    double maxDistanceInDegrees = maxDistance / METERS_PER_DEGREE;
+    for (Object candidate : resolvePath(record, valuesMapField.getName() + "." + key)) {
+      double[] location = toPoint(candidate);
+      if (location != null && planarDistance(location, point) <= maxDistanceInDegrees) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses a bounding box string: [[LONG_UL, LAT_UL],[LONG_BR, LAT_BR]].
+   *
+   * @param value
+   * @return the two corners of the box
+   * @throws JSONException
+   */
+  public static double[][] parseBox(String value) throws JSONException {
+    JSONArray json = new JSONArray(value);
+    return new double[][]{
+      {json.getJSONArray(0).getDouble(0), json.getJSONArray(0).getDouble(1)},
+      {json.getJSONArray(1).getDouble(0), json.getJSONArray(1).getDouble(1)}};
+  }
+
+  /**
+   * Parses a point string: [LONG, LAT].
+   *
+   * @param value
+   * @return the point
+   * @throws JSONException
+   */
+  public static double[] parsePoint(String value) throws JSONException {
+    JSONArray json = new JSONArray(value);
+    return new double[]{json.getDouble(0), json.getDouble(1)};
+  }
+
+  /**
+   * Converts a METERS distance into the degrees used by the 2d geo code.
+   *
+   * @param meters
+   * @return the distance in degrees
+   */
+  public static double metersToDegrees(double meters) {
+    return meters / METERS_PER_DEGREE;
+  }
+
+  /**
+   * Returns a copy of the record containing only the name, the guid info
+   * (so the upstream receiver knows it is a GUID record) and the fields in
+   * the projection. A null projection or one that asks for the entire
+   * record returns the record itself. Same semantics as the projection
+   * MongoRecords generates.
+   *
+   * @param record
+   * @param projection
+   * @return the projected record
+   * @throws JSONException
+   */
+  public static JSONObject project(JSONObject record, List<String> projection) throws JSONException {
+    if (projection == null
+            || (!projection.isEmpty()
+            && projection.get(0).equals(GNSProtocol.ENTIRE_RECORD.toString()))) {
+      return record;
+    }
+    JSONObject result = new JSONObject();
+    result.put(NameRecord.NAME.getName(), record.get(NameRecord.NAME.getName()));
+    JSONObject valuesMap = record.optJSONObject(NameRecord.VALUES_MAP.getName());
+    JSONObject projectedValuesMap = new JSONObject();
+    if (valuesMap != null) {
+      projectField(valuesMap, AccountAccess.GUID_INFO, projectedValuesMap);
+      for (String field : projection) {
+        projectField(valuesMap, field, projectedValuesMap);
+      }
+    }
+    result.put(NameRecord.VALUES_MAP.getName(), projectedValuesMap);
+    return result;
+  }
+
+  private static void projectField(JSONObject source, String field, JSONObject destination) throws JSONException {
+    JSONPath path = JSONPath.of(field);
+    Object value = path.opt(source);
+    if (value != null) {
+      path.put(destination, value);
+    }
+  }
+
+  /**
+   * Returns all the values at the dotted path in the document. If a part of
+   * the path traverses an array each element of the array is visited, which
+   * is how mongo resolves paths.
+   *
+   * @param document
+   * @param path
+   * @return a list of values, empty if the path is not present
+   */
+  public static List<Object> resolvePath(Object document, String path) {
+    List<Object> result = new ArrayList<>();
+    resolvePath(document, JSONPath.of(path), 0, result);
+    return result;
+  }
+
+  private static void resolvePath(Object document, JSONPath path, int index, List<Object> result) {
+    if (index == path.depth()) {
+      result.add(document);
+      return;
+    }
+    String part = path.part(index);
+    if (document instanceof JSONObject) {
+      JSONObject json = (JSONObject) document;
+      if (json.has(part)) {
+        resolvePath(json.opt(part), path, index + 1, result);
+      }
+    } else if (document instanceof JSONArray) {
+      JSONArray array = (JSONArray) document;
+      Integer position = asIndex(part);
+      if (position != null && position < array.length()) {
+        resolvePath(array.opt(position), path, index + 1, result);
+      }
+      for (int i = 0; i < array.length(); i++) {
+        if (array.opt(i) instanceof JSONObject) {
+          resolvePath(array.opt(i), path, index, result);
+        }
+      }
+    }
+  }
+
+  private static Integer asIndex(String part) {
+    if (part.isEmpty() || part.length() > 9) {
+      return null;
+    }
+    for (int i = 0; i < part.length(); i++) {
+      if (!Character.isDigit(part.charAt(i))) {
+        return null;
+      }
+    }
+    return Integer.valueOf(part);
+  }
+
+  private static List<JSONObject> clauses(String operator, Object condition) throws JSONException {
+    if (!(condition instanceof JSONArray)) {
+      throw new JSONException(operator + " requires an array");
+    }
+    JSONArray array = (JSONArray) condition;
+    List<JSONObject> result = new ArrayList<>();
+    for (int i = 0; i < array.length(); i++) {
+      result.add(array.getJSONObject(i));
+    }
+    return result;
+  }
+
+  private static boolean isOperatorObject(Object condition) {
+    if (!(condition instanceof JSONObject)) {
+      return false;
+    }
+    String[] names = JSONObject.getNames((JSONObject) condition);
+    if (names == null) {
+      return false;
+    }
+    for (String name : names) {
+      if (!name.startsWith("$")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matchesField(List<Object> values, Object condition) throws JSONException {
+    if (!isOperatorObject(condition)) {
+      return anyEqualsOrContains(values, condition);
+    }
+    JSONObject operators = (JSONObject) condition;
+    Iterator<?> keys = operators.keys();
+    while (keys.hasNext()) {
+      String operator = (String) keys.next();
+      if (!matchesOperator(values, operator, operators.get(operator), operators)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matchesOperator(List<Object> values, String operator, Object argument,
+          JSONObject operators) throws JSONException {
+    switch (operator) {
+      case "$eq":
+        return anyEqualsOrContains(values, argument);
+      case "$ne":
+        return !anyEqualsOrContains(values, argument);
+      case "$gt":
+      case "$gte":
+      case "$lt":
+      case "$lte":
+        for (Object value : values) {
+          if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            for (int i = 0; i < array.length(); i++) {
+              if (compares(array.opt(i), operator, argument)) {
+                return true;
+              }
+            }
+          } else if (compares(value, operator, argument)) {
+            return true;
+          }
+        }
+        return false;
+      case "$in":
+        return anyIn(values, argument);
+      case "$nin":
+        return !anyIn(values, argument);
+      case "$exists":
+        return (!values.isEmpty()) == truthy(argument);
+      case "$regex":
+        return anyMatchesRegex(values, argument, operators.optString("$options", ""));
+      case "$options":
+        // handled by $regex
+        return true;
+      case "$not":
+        if (argument instanceof JSONObject) {
+          return !matchesField(values, argument);
+        } else {
+          return !anyMatchesRegex(values, argument, "");
+        }
+      case "$size":
+        for (Object value : values) {
+          if (value instanceof JSONArray && ((JSONArray) value).length() == asDouble(argument)) {
+            return true;
+          }
+        }
+        return false;
+      case "$all": {
+        if (!(argument instanceof JSONArray)) {
+          throw new JSONException("$all requires an array");
+        }
+        JSONArray required = (JSONArray) argument;
+        for (int i = 0; i < required.length(); i++) {
+          if (!anyEqualsOrContains(values, required.get(i))) {
+            return false;
+          }
+        }
+        return true;
+      }
+      case "$elemMatch":
+        for (Object value : values) {
+          if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            for (int i = 0; i < array.length(); i++) {
+              Object element = array.opt(i);
+              if (isOperatorObject(argument)
+                      ? matchesField(singleton(element), argument)
+                      : element instanceof JSONObject && matches((JSONObject) argument, (JSONObject) element)) {
+                return true;
+              }
+            }
+          }
+        }
+        return false;
+      case "$geoWithin":
+      case "$within":
+      case "$geoIntersects":
+        return anyPointInShape(values, asJSONObject(operator, argument));
+      case "$near":
+      case "$nearSphere":
+        return anyPointNear(values, operator, argument, operators);
+      case "$maxDistance":
+      case "$minDistance":
+        // handled by $near
+        return true;
+      default:
+        throw new JSONException("Unsupported query operator " + operator);
+    }
+  }
+
+  private static List<Object> singleton(Object value) {
+    List<Object> result = new ArrayList<>(1);
+    result.add(value);
+    return result;
+  }
+
+  private static boolean anyEqualsOrContains(List<Object> values, Object target) {
+    if (values.isEmpty()) {
+      // {field: null} matches records that don't have the field
+      return target == null || JSONObject.NULL.equals(target);
+    }
+    for (Object value : values) {
+      if (equalsOrContains(value, target)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean equalsOrContains(Object value, Object target) {
+    if (valueEquals(value, target)) {
+      return true;
+    }
+    if (value instanceof JSONArray && !(target instanceof JSONArray)) {
+      JSONArray array = (JSONArray) value;
+      for (int i = 0; i < array.length(); i++) {
+        if (valueEquals(array.opt(i), target)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compares two JSON values for equality the way mongo does, that is
+   * numbers compare by value regardless of their java type.
+   *
+   * @param a
+   * @param b
+   * @return true if the values are equal
+   */
+  public static boolean valueEquals(Object a, Object b) {
+    if (a == null || JSONObject.NULL.equals(a)) {
+      return b == null || JSONObject.NULL.equals(b);
+    }
+    if (a instanceof Number && b instanceof Number) {
+      return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+    }
+    if (a instanceof JSONArray && b instanceof JSONArray) {
+      JSONArray x = (JSONArray) a;
+      JSONArray y = (JSONArray) b;
+      if (x.length() != y.length()) {
+        return false;
+      }
+      for (int i = 0; i < x.length(); i++) {
+        if (!valueEquals(x.opt(i), y.opt(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (a instanceof JSONObject && b instanceof JSONObject) {
+      JSONObject x = (JSONObject) a;
+      JSONObject y = (JSONObject) b;
+      if (x.length() != y.length()) {
+        return false;
+      }
+      Iterator<?> keys = x.keys();
+      while (keys.hasNext()) {
+        String key = (String) keys.next();
+        if (!y.has(key) || !valueEquals(x.opt(key), y.opt(key))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return a.equals(b);
+  }
+
+  /**
+   * Orders two JSON values of the same kind (numbers or strings).
+   *
+   * @param a
+   * @param b
+   * @return negative, zero or positive or null if the values are not comparable
+   */
+  public static Integer compareValues(Object a, Object b) {
+    if (a instanceof Number && b instanceof Number) {
+      return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+    }
+    if (a instanceof String && b instanceof String) {
+      return ((String) a).compareTo((String) b);
+    }
+    return null;
+  }
+
+  private static boolean compares(Object value, String operator, Object argument) {
+    Integer comparison = compareValues(value, argument);
+    if (comparison == null) {
+      return false;
+    }
+    switch (operator) {
+      case "$gt":
+        return comparison > 0;
+      case "$gte":
+        return comparison >= 0;
+      case "$lt":
+        return comparison < 0;
+      default: // $lte
+        return comparison <= 0;
+    }
+  }
+
+  private static boolean anyIn(List<Object> values, Object argument) throws JSONException {
+    if (!(argument instanceof JSONArray)) {
+      throw new JSONException("$in and $nin require an array");
+    }
+    JSONArray candidates = (JSONArray) argument;
+    for (int i = 0; i < candidates.length(); i++) {
+      if (anyEqualsOrContains(values, candidates.opt(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean anyMatchesRegex(List<Object> values, Object argument, String options) throws JSONException {
+    Pattern pattern = compileRegex(argument.toString(), options);
+    for (Object value : values) {
+      if (value instanceof String && pattern.matcher((String) value).find()) {
+        return true;
+      }
+      if (value instanceof JSONArray) {
+        JSONArray array = (JSONArray) value;
+        for (int i = 0; i < array.length(); i++) {
+          if (array.opt(i) instanceof String && pattern.matcher((String) array.opt(i)).find()) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static Pattern compileRegex(String regex, String options) throws JSONException {
+    // accept the /pattern/flags form as well as a bare pattern
+    if (regex.length() > 1 && regex.startsWith("/") && regex.lastIndexOf('/') > 0) {
+      int end = regex.lastIndexOf('/');
+      options = options + regex.substring(end + 1);
+      regex = regex.substring(1, end);
+    }
+    int flags = 0;
+    if (options.contains("i")) {
+      flags |= Pattern.CASE_INSENSITIVE;
+    }
+    if (options.contains("m")) {
+      flags |= Pattern.MULTILINE;
+    }
+    if (options.contains("s")) {
+      flags |= Pattern.DOTALL;
+    }
+    if (options.contains("x")) {
+      flags |= Pattern.COMMENTS;
+    }
+    try {
+      return Pattern.compile(regex, flags);
+    } catch (PatternSyntaxException e) {
+      throw new JSONException("Bad regular expression " + regex);
+    }
+  }
+
+  private static boolean truthy(Object argument) {
+    if (argument instanceof Boolean) {
+      return (Boolean) argument;
+    }
+    if (argument instanceof Number) {
+      return ((Number) argument).doubleValue() != 0;
+    }
+    return !"false".equals(argument.toString());
+  }
+
+  private static double asDouble(Object value) throws JSONException {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    try {
+      return Double.parseDouble(value.toString());
+    } catch (NumberFormatException e) {
+      throw new JSONException("Expected a number: " + value);
+    }
+  }
+
+  private static JSONObject asJSONObject(String operator, Object argument) throws JSONException {
+    if (!(argument instanceof JSONObject)) {
+      throw new JSONException(operator + " requires a shape");
+    }
+    return (JSONObject) argument;
+  }
+
+  /**
+   * Converts a stored location into a point. Handles [LONG, LAT] tuples
+   * (with numbers or numeric strings) and GeoJSON points. Tuples can also be
+   * lists, which is how field updates parse them until the record is read back.
+   *
+   * @param value
+   * @return the point or null if the value is not a location
+   */
+  public static double[] toPoint(Object value) {
+    if (value instanceof List) {
+      return toPoint(new JSONArray((List<?>) value));
+    }
+    if (value instanceof JSONObject) {
+      JSONObject json = (JSONObject) value;
+      if (json.has("coordinates")) {
+        return toPoint(json.opt("coordinates"));
+      }
+      return null;
+    }
+    if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      if (array.length() == 2) {
+        try {
+          return new double[]{asDouble(array.get(0)), asDouble(array.get(1))};
+        } catch (JSONException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static boolean anyPointInShape(List<Object> values, JSONObject shape) throws JSONException {
+    for (Object value : values) {
+      double[] point = toPoint(value);
+      if (point != null && inShape(point, shape)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean inShape(double[] point, JSONObject shape) throws JSONException {
+    if (shape.has("$box")) {
+      JSONArray box = shape.getJSONArray("$box");
+      return inBox(point, new double[][]{pointOf(box.get(0)), pointOf(box.get(1))});
+    } else if (shape.has("$polygon")) {
+      return inRing(point, shape.getJSONArray("$polygon"));
+    } else if (shape.has("$center")) {
+      JSONArray center = shape.getJSONArray("$center");
+      return planarDistance(point, pointOf(center.get(0))) <= asDouble(center.get(1));
+    } else if (shape.has("$centerSphere")) {
+      JSONArray center = shape.getJSONArray("$centerSphere");
+      return sphericalDistance(point, pointOf(center.get(0)))
+              <= asDouble(center.get(1)) * EARTH_RADIUS_IN_METERS;
+    } else if (shape.has("$geometry")) {
+      JSONObject geometry = shape.getJSONObject("$geometry");
+      String type = geometry.getString("type");
+      JSONArray coordinates = geometry.getJSONArray("coordinates");
+      switch (type) {
+        case "Polygon":
+          return inPolygon(point, coordinates);
+        case "MultiPolygon":
+          for (int i = 0; i < coordinates.length(); i++) {
+            if (inPolygon(point, coordinates.getJSONArray(i))) {
+              return true;
+            }
+          }
+          return false;
+        case "Point":
+          return valueEquals(point[0], coordinates.getDouble(0)) && valueEquals(point[1], coordinates.getDouble(1));
+        default:
+          throw new JSONException("Unsupported geometry " + type);
+      }
+    }
+    throw new JSONException("Unsupported shape " + shape);
+  }
+
+  private static double[] pointOf(Object value) throws JSONException {
+    double[] point = toPoint(value);
+    if (point == null) {
+      throw new JSONException("Expected a point: " + value);
+    }
+    return point;
+  }
+
+  /**
+   * Returns true if the point is inside the box given as two corners
+   * in any order.
+   *
+   * @param point
+   * @param box
+   * @return true if the point is inside the box
+   */
+  public static boolean inBox(double[] point, double[][] box) {
+    double minX = Math.min(box[0][0], box[1][0]);
+    double maxX = Math.max(box[0][0], box[1][0]);
+    double minY = Math.min(box[0][1], box[1][1]);
+    double maxY = Math.max(box[0][1], box[1][1]);
+    return point[0] >= minX && point[0] <= maxX && point[1] >= minY && point[1] <= maxY;
+  }
+
+  // A GeoJSON polygon is an outer ring followed by holes.
+  private static boolean inPolygon(double[] point, JSONArray rings) throws JSONException {
+    if (rings.length() == 0 || !inRing(point, rings.getJSONArray(0))) {
+      return false;
+    }
+    for (int i = 1; i < rings.length(); i++) {
+      if (inRing(point, rings.getJSONArray(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Standard even-odd ray casting test.
+  private static boolean inRing(double[] point, JSONArray ring) throws JSONException {
+    boolean inside = false;
+    int count = ring.length();
+    for (int i = 0, j = count - 1; i < count; j = i++) {
+      double[] a = pointOf(ring.get(i));
+      double[] b = pointOf(ring.get(j));
+      if ((a[1] > point[1]) != (b[1] > point[1])
+              && point[0] < (b[0] - a[0]) * (point[1] - a[1]) / (b[1] - a[1]) + a[0]) {
+        inside = !inside;
+      }
+    }
+    return inside;
+  }
+
+  private static boolean anyPointNear(List<Object> values, String operator, Object argument,
+          JSONObject operators) throws JSONException {
+    double[] center;
+    boolean spherical;
+    double maxDistance = operators.has("$maxDistance") ? asDouble(operators.get("$maxDistance")) : Double.MAX_VALUE;
+    double minDistance = operators.has("$minDistance") ? asDouble(operators.get("$minDistance")) : 0;
+    if (argument instanceof JSONObject && ((JSONObject) argument).has("$geometry")) {
+      // GeoJSON form: distances are in meters
+      JSONObject near = (JSONObject) argument;
+      center = pointOf(near.getJSONObject("$geometry"));
+      if (near.has("$maxDistance")) {
+        maxDistance = asDouble(near.get("$maxDistance"));
+      }
+      if (near.has("$minDistance")) {
+        minDistance = asDouble(near.get("$minDistance"));
+      }
+      spherical = true;
+    } else {
+      // legacy form: distances are in the units of the coordinates, radians for $nearSphere
+      center = pointOf(argument);
+      spherical = "$nearSphere".equals(operator);
+      if (spherical) {
+        maxDistance = maxDistance * EARTH_RADIUS_IN_METERS;
+        minDistance = minDistance * EARTH_RADIUS_IN_METERS;
+      }
+    }
+    for (Object value : values) {
+      double[] point = toPoint(value);
+      if (point != null) {
+        double distance = spherical ? sphericalDistance(point, center) : planarDistance(point, center);
+        if (distance <= maxDistance && distance >= minDistance) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The flat distance between two points in coordinate units.
+   *
+   * @param a
+   * @param b
+   * @return the distance
+   */
+  public static double planarDistance(double[] a, double[] b) {
+    double dx = a[0] - b[0];
+    double dy = a[1] - b[1];
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * The great circle distance in meters between two [LONG, LAT] points.
+   *
+   * @param a
+   * @param b
+   * @return the distance in meters
+   */
+  public static double sphericalDistance(double[] a, double[] b) {
+    double lat1 = Math.toRadians(a[1]);
+    double lat2 = Math.toRadians(b[1]);
+    double dLat = lat2 - lat1;
+    double dLong = Math.toRadians(b[0] - a[0]);
+    double h = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+            + Math.cos(lat1) * Math.cos(lat2) * Math.sin(dLong / 2) * Math.sin(dLong / 2);
+    return 2 * EARTH_RADIUS_IN_METERS * Math.asin(Math.min(1, Math.sqrt(h)));
+  }
+}
@@ -22,6 +22,8 @@ package edu.umass.cs.gnsserver.database;
 import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
 import org.json.JSONObject;
 
+import java.util.List;
+
 /**
  * A cursor that can be used to iterate through a collection of GNS served records as 
  * JSONObjects or HashMaps.
@@ -44,5 +46,21 @@ public interface RecordCursorInterface {
    * @throws edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException
    */
   public boolean hasNext() throws FailedDBOperationException;
+
+  /**
+   * Returns up to maxRecords of the next rows. Returns an empty list
+   * once there are no more records.
+   *
+   * @param maxRecords
+   * @return the next rows as JSONObjects
+   * @throws edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException
+   */
+  public List<JSONObject> nextBatch(int maxRecords) throws FailedDBOperationException;
+
+  /**
+   * Releases anything the cursor holds in the database. Cursors that are
+   * read to the end don't need to be closed.
+   */
+  public void close();
   
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Decides which records a select returns when the select is evaluated
+ * against records held in the JVM.
+ *
+ * @author westy
+ */
+abstract class RecordFilter {
+
+  /**
+   * Returns true if the record should be returned.
+   *
+   * @param record
+   * @return true if the record matches
+   * @throws JSONException
+   */
+  abstract boolean accept(JSONObject record) throws JSONException;
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An in-memory index on one user field of the records in a collection.
+ *
+ * @author westy
+ */
+public interface RecordIndex {
+
+  /**
+   * Returns the indexed field.
+   *
+   * @return the field
+   */
+  public String getField();
+
+  /**
+   * Returns the index type in the form createIndex accepts.
+   *
+   * @return the index type
+   */
+  public String getIndexType();
+
+  /**
+   * Returns the number of records in the index.
+   *
+   * @return the number of records
+   */
+  public int size();
+
+  /**
+   * Replaces the entries for the record with the values in the values map.
+   *
+   * @param name
+   * @param valuesMap - the user fields of the record
+   */
+  public void update(String name, JSONObject valuesMap);
+
+  /**
+   * Adds the record unless a write has already indexed it.
+   * Used when populating a new index while writes are happening.
+   *
+   * @param name
+   * @param valuesMap
+   */
+  public void add(String name, JSONObject valuesMap);
+
+  /**
+   * Removes the entries for the record.
+   *
+   * @param name
+   */
+  public void remove(String name);
+
+  /**
+   * Returns the names of the records that could satisfy the condition
+   * for this field in a query. The result may contain names that don't
+   * match; callers check the records.
+   *
+   * @param condition - a value or an object of query operators
+   * @return the names or null if the index can't narrow the condition
+   * @throws JSONException
+   */
+  public Set<String> lookupCondition(Object condition) throws JSONException;
+}
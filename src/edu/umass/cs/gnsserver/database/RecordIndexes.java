@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import edu.umass.cs.gnscommon.GNSProtocol;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The in-memory indexes of one collection.
+ *
+ * The record stores that live in the JVM call {@link #update} and
+ * {@link #remove} for every write and use the candidates methods to turn
+ * selects into index probes. Like the mongo collection spec the location
+ * fields get geo indexes and the IP address field a sorted index from the
+ * start.
+ *
+ * @author westy
+ */
+public class RecordIndexes {
+
+  private final ConcurrentHashMap<String, RecordIndex> indexes = new ConcurrentHashMap<>();
+  // the indexes being populated: writes update them but selects don't use them
+  private final Set<RecordIndex> building = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Creates the indexes of a collection with the default indexes.
+   */
+  public RecordIndexes() {
+    addIndex(GNSProtocol.LOCATION_FIELD_NAME.toString(), "2d");
+    addIndex(GNSProtocol.LOCATION_FIELD_NAME_2D_SPHERE.toString(), "2dsphere");
+    addIndex(GNSProtocol.IPADDRESS_FIELD_NAME.toString(), "sorted");
+  }
+
+  /**
+   * Adds an empty index on the field that selects use right away. Only for
+   * collections no one else can see yet; the caller is responsible for
+   * populating it with {@link RecordIndex#add} before publishing them.
+   *
+   * @param field
+   * @param index - the index argument of createIndex: one of the
+   * {@link FieldIndex.Type}s or 2d or 2dsphere
+   * @return the new index or null if the index type isn't one we handle
+   * or the field is already indexed
+   */
+  public RecordIndex addIndex(String field, String index) {
+    RecordIndex recordIndex = newIndex(field, index);
+    return recordIndex != null && indexes.putIfAbsent(field, recordIndex) == null ? recordIndex : null;
+  }
+
+  /**
+   * Adds an empty index on the field to a collection that is in use.
+   * Writes update the index right away so nothing is missed while the
+   * caller populates it with {@link RecordIndex#add}, but selects don't
+   * use it, and scan instead, until the caller calls {@link #ready}.
+   *
+   * @param field
+   * @param index - the index argument of createIndex
+   * @return the new index or null if the index type isn't one we handle
+   * or the field is already indexed
+   */
+  public RecordIndex buildIndex(String field, String index) {
+    RecordIndex recordIndex = newIndex(field, index);
+    if (recordIndex == null) {
+      return null;
+    }
+    // marked before it is visible so no select can see it half built
+    building.add(recordIndex);
+    if (indexes.putIfAbsent(field, recordIndex) != null) {
+      building.remove(recordIndex);
+      return null;
+    }
+    return recordIndex;
+  }
+
+  /**
+   * Lets selects use an index added with {@link #buildIndex} once it is
+   * populated.
+   *
+   * @param recordIndex
+   */
+  public void ready(RecordIndex recordIndex) {
+    building.remove(recordIndex);
+  }
+
+  private RecordIndex newIndex(String field, String index) {
+    RecordIndex recordIndex;
+    if (GeoIndex.isGeoIndex(index)) {
+      recordIndex = new GeoIndex(field, index);
+    } else {
+      FieldIndex.Type type = FieldIndex.Type.fromString(index);
+      if (type == null) {
+        return null;
+      }
+      recordIndex = new FieldIndex(field, type);
+    }
+    return recordIndex;
+  }
+
+  /**
+   * Returns the index on the field if selects can use it.
+   *
+   * @param field
+   * @return the index or null if there isn't one or it is still being built
+   */
+  public RecordIndex getIndex(String field) {
+    RecordIndex recordIndex = indexes.get(field);
+    return recordIndex == null || building.contains(recordIndex) ? null : recordIndex;
+  }
+
+  /**
+   * Returns all the indexes.
+   *
+   * @return the indexes
+   */
+  public Collection<RecordIndex> getIndexes() {
+    return indexes.values();
+  }
+
+  /**
+   * Returns the indexed fields and their index types.
+   *
+   * @return a map of field to index type
+   */
+  public Map<String, String> getDefinitions() {
+    Map<String, String> result = new HashMap<>();
+    for (RecordIndex recordIndex : indexes.values()) {
+      result.put(recordIndex.getField(), recordIndex.getIndexType());
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if there are no indexes.
+   *
+   * @return true if there are no indexes
+   */
+  public boolean isEmpty() {
+    return indexes.isEmpty();
+  }
+
+  /**
+   * Updates the indexes with the new version of the record.
+   *
+   * @param name
+   * @param record
+   */
+  public void update(String name, JSONObject record) {
+    JSONObject valuesMap = record.optJSONObject(NameRecord.VALUES_MAP.getName());
+    for (RecordIndex recordIndex : indexes.values()) {
+      recordIndex.update(name, valuesMap);
+    }
+  }
+
+  /**
+   * Removes the record from the indexes.
+   *
+   * @param name
+   */
+  public void remove(String name) {
+    for (RecordIndex recordIndex : indexes.values()) {
+      recordIndex.remove(name);
+    }
+  }
+
+  /**
+   * Returns the names of the records whose field could equal the value.
+   *
+   * @param valuesMapField
+   * @param field
+   * @param value
+   * @return the names or null if there is no index that can answer this
+   */
+  public Set<String> candidatesForEquals(ColumnField valuesMapField, String field, Object value) {
+    if (!isIndexedMap(valuesMapField)) {
+      return null;
+    }
+    RecordIndex recordIndex = getIndex(field);
+    return recordIndex instanceof FieldIndex ? ((FieldIndex) recordIndex).lookup(value) : null;
+  }
+
+  /**
+   * Returns the names of the records whose location field could be in the box.
+   *
+   * @param valuesMapField
+   * @param field
+   * @param box
+   * @return the names or null if there is no geo index on the field
+   */
+  public Set<String> candidatesForWithin(ColumnField valuesMapField, String field, double[][] box) {
+    if (!isIndexedMap(valuesMapField)) {
+      return null;
+    }
+    RecordIndex recordIndex = getIndex(field);
+    return recordIndex instanceof GeoIndex ? ((GeoIndex) recordIndex).lookupWithin(box) : null;
+  }
+
+  /**
+   * Returns the names of the records whose location field is near the
+   * point, nearest first.
+   *
+   * @param valuesMapField
+   * @param field
+   * @param point
+   * @param maxDistance - in meters
+   * @return the names or null if there is no geo index on the field
+   */
+  public List<String> candidatesForNear(ColumnField valuesMapField, String field, double[] point,
+          double maxDistance) {
+    if (!isIndexedMap(valuesMapField)) {
+      return null;
+    }
+    RecordIndex recordIndex = getIndex(field);
+    return recordIndex instanceof GeoIndex ? ((GeoIndex) recordIndex).lookupNear(point, maxDistance) : null;
+  }
+
+  /**
+   * Returns the names of the records that could satisfy the query.
+   * The query is in the form produced by QueryMatcher.parseQuery.
+   * Conjunctions use the most selective index, a disjunction is only
+   * answered if every branch can be.
+   *
+   * @param query
+   * @param valuesMapField
+   * @return the names or null if the indexes can't narrow the query
+   * @throws JSONException
+   */
+  public Set<String> candidatesForQuery(JSONObject query, ColumnField valuesMapField) throws JSONException {
+    if (!isIndexedMap(valuesMapField)) {
+      return null;
+    }
+    String prefix = valuesMapField.getName() + ".";
+    Set<String> result = null;
+    Iterator<?> keys = query.keys();
+    while (keys.hasNext()) {
+      String key = (String) keys.next();
+      Object condition = query.get(key);
+      if ("$and".equals(key) && condition instanceof JSONArray) {
+        JSONArray clauses = (JSONArray) condition;
+        for (int i = 0; i < clauses.length(); i++) {
+          result = FieldIndex.smaller(result, candidatesForQuery(clauses.getJSONObject(i), valuesMapField));
+        }
+      } else if ("$or".equals(key) && condition instanceof JSONArray) {
+        result = FieldIndex.smaller(result, candidatesForAny((JSONArray) condition, valuesMapField));
+      } else if (key.startsWith(prefix)) {
+        RecordIndex recordIndex = getIndex(key.substring(prefix.length()));
+        if (recordIndex != null) {
+          result = FieldIndex.smaller(result, recordIndex.lookupCondition(condition));
+        }
+      }
+    }
+    return result;
+  }
+
+  // The indexes only cover the user fields in the values map.
+  private boolean isIndexedMap(ColumnField valuesMapField) {
+    return !indexes.isEmpty() && valuesMapField != null
+            && NameRecord.VALUES_MAP.getName().equals(valuesMapField.getName());
+  }
+
+  private Set<String> candidatesForAny(JSONArray clauses, ColumnField valuesMapField) throws JSONException {
+    Set<String> result = new HashSet<>();
+    for (int i = 0; i < clauses.length(); i++) {
+      Set<String> names = candidatesForQuery(clauses.getJSONObject(i), valuesMapField);
+      if (names == null) {
+        return null;
+      }
+      result.addAll(names);
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "RecordIndexes" + indexes.values();
+  }
+}
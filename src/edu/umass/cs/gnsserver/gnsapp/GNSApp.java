@@ -28,9 +28,7 @@ import edu.umass.cs.gnsserver.activecode.ActiveCodeHandler;
 import edu.umass.cs.gnsserver.database.ColumnField;
 import edu.umass.cs.gnsserver.database.MongoRecords;
 import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
-import edu.umass.cs.gnscommon.exceptions.server.FieldNotFoundException;
 import edu.umass.cs.gnscommon.exceptions.server.InternalRequestException;
-import edu.umass.cs.gnscommon.exceptions.server.RecordExistsException;
 import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
 import edu.umass.cs.gnscommon.packets.AdminCommandPacket;
 import edu.umass.cs.gnscommon.packets.CommandPacket;
@@ -61,13 +59,14 @@ import edu.umass.cs.gnsserver.gnsapp.packet.SelectResponsePacket;
 import edu.umass.cs.gnsserver.gnsapp.packet.Packet.PacketType;
 import edu.umass.cs.gnsserver.gnsapp.packet.PacketInterface;
 import edu.umass.cs.gnsserver.gnsapp.recordmap.BasicRecordMap;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.BatchedRecordMap;
 import edu.umass.cs.gnsserver.gnsapp.recordmap.GNSRecordMap;
 import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.RecordCheckpoints;
 import edu.umass.cs.gnsserver.httpserver.GNSHttpServer;
 import edu.umass.cs.gnsserver.httpserver.GNSHttpsServer;
 import edu.umass.cs.gnsserver.localnameserver.LocalNameServer;
 import edu.umass.cs.gnsserver.utils.Shutdownable;
-import edu.umass.cs.gnsserver.utils.ValuesMap;
 import edu.umass.cs.nio.JSONMessenger;
 import edu.umass.cs.nio.interfaces.IntegerPacketType;
 import edu.umass.cs.nio.interfaces.NodeConfig;
@@ -110,6 +109,7 @@ public class GNSApp extends AbstractReconfigurablePaxosApp<String> implements
    * Object provides interface to the database table storing name records
    */
   private BasicRecordMap nameRecordDB;
+  private RecordCheckpoints checkpoints;
   /**
    * The Nio server
    */
@@ -265,6 +265,8 @@ public class GNSApp extends AbstractReconfigurablePaxosApp<String> implements
     if (executeNoop(request)) {
       return true;
     }
+    // the replica the request was sent to sends the group changes it makes
+    boolean sendsChanges = GroupPredicates.setSendsChanges(!doNotReplyToClient);
     try {
       Packet.PacketType packetType = request.getRequestType() instanceof Packet.PacketType ? (Packet.PacketType) request
               .getRequestType() : null;
@@ -334,6 +336,8 @@ public class GNSApp extends AbstractReconfigurablePaxosApp<String> implements
       GNSConfig.getLogger().log(Level.SEVERE,
               "Error handling request: {0}", request.toString());
       e.printStackTrace();
+    } finally {
+      GroupPredicates.setSendsChanges(sendsChanges);
     }
     return executed;
   }
@@ -364,6 +368,14 @@ public class GNSApp extends AbstractReconfigurablePaxosApp<String> implements
     if (this.requestHandler.getInternalClient() != null) {
       this.requestHandler.getInternalClient().close();
     }
+    if (nameRecordDB instanceof BatchedRecordMap) {
+      try {
+        ((BatchedRecordMap<?>) nameRecordDB).shutdown();
+      } catch (FailedDBOperationException e) {
+        GNSConfig.getLogger().log(Level.SEVERE,
+                "Unable to write out held updates: {0}", e.getMessage());
+      }
+    }
   }
 
   /**
@@ -391,7 +403,18 @@ public class GNSApp extends AbstractReconfigurablePaxosApp<String> implements
       GNSConfig.getLogger().log(Level.WARNING, "Problem creating noSqlRecords from config:{0}", e.getMessage());
       noSqlRecords = new MongoRecords(nodeID, Config.getGlobalInt(GNSConfig.GNSC.MONGO_PORT));
     }
-    this.nameRecordDB = new GNSRecordMap<>(noSqlRecords, MongoRecords.DBNAMERECORD);
+    GNSRecordMap<String> recordMap;
+    if (Config.getGlobalBoolean(GNSConfig.GNSC.BATCH_DB_UPDATES)) {
+      recordMap = new BatchedRecordMap<>(noSqlRecords, MongoRecords.DBNAMERECORD,
+              Config.getGlobalInt(GNSConfig.GNSC.BATCH_DB_UPDATES_MAX_SIZE),
+              Config.getGlobalInt(GNSConfig.GNSC.BATCH_DB_RESTORES_MAX_SIZE),
+              Config.getGlobalInt(GNSConfig.GNSC.BATCH_DB_UPDATES_MAX_DELAY),
+              Config.getGlobalInt(GNSConfig.GNSC.BATCH_DB_UPDATES_MAX_ATTEMPTS));
+    } else {
+      recordMap = new GNSRecordMap<>(noSqlRecords, MongoRecords.DBNAMERECORD);
+    }
+    this.nameRecordDB = recordMap;
+    this.checkpoints = recordMap.checkpoints();
     GNSConfig.getLogger().log(Level.FINE, "App {0} created {1}",
             new Object[]{nodeID, nameRecordDB});
     this.messenger = messenger;
@@ -544,19 +567,17 @@ public class GNSApp extends AbstractReconfigurablePaxosApp<String> implements
   @Override
   public String checkpoint(String name) {
     try {
-      NameRecord nameRecord = NameRecord
-              .getNameRecord(nameRecordDB, name);
+      String state = checkpoints.checkpoint(name);
       GNSConfig.getLogger().log(
               Level.FINE,
               "{0} getting state for {1} : {2} ",
-              new Object[]{this, name,
-                nameRecord.getValuesMap().getSummary()});
-      return nameRecord.getValuesMap().toString();
+              new Object[]{this, name, Util.truncate(state, 32, 32)});
+      return state;
     } catch (RecordNotFoundException e) {
       // the above RecordNotFoundException is a normal result
-    } catch (FieldNotFoundException e) {
+    } catch (JSONException e) {
       GNSConfig.getLogger().log(Level.SEVERE,
-              "Field not found exception: {0}", e.getMessage());
+              "Problem reading state: {0}", e.getMessage());
       e.printStackTrace();
     } catch (FailedDBOperationException e) {
       GNSConfig.getLogger().log(Level.SEVERE,
@@ -578,42 +599,23 @@ public class GNSApp extends AbstractReconfigurablePaxosApp<String> implements
     GNSConfig.getLogger().log(Level.FINE,
             "{0} updating {1} with state [{2}]",
             new Object[]{this, name, Util.truncate(state, 32, 32)});
+    // the group changes were sent when the record was first written
+    boolean sendsChanges = GroupPredicates.setSendsChanges(false);
     try {
-      if (state == null) {
-        // If state is null the only thing it means is that we need to
-        // delete
-        // the record. If the record does not exists this is just a
-        // noop.
-        NameRecord.removeNameRecord(nameRecordDB, name);
-      } else // state does not equal null so we either create a new record
-      // or update the existing one
-       if (!NameRecord.containsRecord(nameRecordDB, name)) {
-          // create a new record
-          try {
-            ValuesMap valuesMap = new ValuesMap(new JSONObject(state));
-            NameRecord nameRecord = new NameRecord(nameRecordDB, name,
-                    valuesMap);
-            NameRecord.addNameRecord(nameRecordDB, nameRecord);
-          } catch (RecordExistsException | JSONException e) {
-            GNSConfig.getLogger().log(Level.SEVERE,
-                    "Problem updating state: {0}", e.getMessage());
-          }
-        } else { // update the existing record
-          try {
-            NameRecord nameRecord = NameRecord.getNameRecord(
-                    nameRecordDB, name);
-            nameRecord
-                    .updateState(new ValuesMap(new JSONObject(state)));
-          } catch (JSONException | FieldNotFoundException | RecordNotFoundException | FailedDBOperationException e) {
-            GNSConfig.getLogger().log(Level.SEVERE,
-                    "Problem updating state: {0}", e.getMessage());
-          }
-        }
+      // If state is null the record is removed, otherwise it is created
+      // or updated. See RecordCheckpoints for the formats of the state.
+      checkpoints.restore(name, state);
+      return true;
+    } catch (JSONException e) {
+      GNSConfig.getLogger().log(Level.SEVERE,
+              "Problem updating state: {0}", e.getMessage());
       return true;
     } catch (FailedDBOperationException e) {
       GNSConfig.getLogger().log(Level.SEVERE,
               "Failed update exception: {0}", e.getMessage());
       e.printStackTrace();
+    } finally {
+      GroupPredicates.setSendsChanges(sendsChanges);
     }
     return false;
   }
@@ -0,0 +1,423 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsserver.gnsapp;
+
+import edu.umass.cs.gnscommon.exceptions.client.ClientException;
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.exceptions.server.InternalRequestException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
+import edu.umass.cs.gnscommon.utils.JSONPath;
+import edu.umass.cs.gnsserver.database.ColumnField;
+import edu.umass.cs.gnsserver.database.QueryMatcher;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.GroupAccess;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.InternalField;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.MetaDataTypeName;
+import edu.umass.cs.gnsserver.gnsapp.clientSupport.NSBatchAclCheck;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectGroupBehavior;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectOperation;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectRequestPacket;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.BasicRecordMap;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.GNSRecordMap;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+import edu.umass.cs.gnsserver.interfaces.InternalRequestHeader;
+import edu.umass.cs.gnsserver.main.GNSConfig;
+import edu.umass.cs.gnsserver.utils.ResultValue;
+import edu.umass.cs.utils.Config;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The queries of the context aware groups a server has records for, kept as
+ * standing predicates that are checked against every write so the members
+ * of the groups are kept up to date without running the query again.
+ *
+ * A server registers the query of a group when it runs the select that sets
+ * up or refreshes the group, and remembers which of its records matched.
+ * After that, every write made through the record map to a field the query
+ * uses, or to a whole record, has the record checked against the query
+ * again. If the record started or stopped matching, the server adds it to
+ * or removes it from the group guid. The checks and the updates are done by
+ * one thread so writes aren't slowed down by them.
+ *
+ * Every replica of a name sees every write of it, so between them the
+ * servers see all the changes to the members and a GROUP_LOOKUP can just
+ * read the members of the group guid. Every replica keeps its members up to
+ * date but only the one the write was sent to sends the change, and nothing
+ * is sent for the writes made while a replica recovers (see
+ * {@link #setSendsChanges}). The registrations are only kept in
+ * memory, so the collecting server still runs the whole query every
+ * GROUP_RESYNC_INTERVAL to register the query with servers that restarted
+ * and to fix up anything the updates missed.
+ *
+ * Queries that {@link QueryMatcher} can't evaluate aren't maintained, so
+ * their groups only change when the whole query is run again.
+ *
+ * @author westy
+ */
+public class GroupPredicates implements GNSRecordMap.WriteListener {
+
+  private static final Logger LOGGER = Logger.getLogger(GroupPredicates.class.getName());
+
+  private static final Map<BasicRecordMap, GroupPredicates> PREDICATES
+          = Collections.synchronizedMap(new WeakHashMap<BasicRecordMap, GroupPredicates>());
+
+  private static final Random RANDOM_ID = new Random();
+
+  // false while the thread executes a request another replica was sent
+  private static final ThreadLocal<Boolean> SENDS_CHANGES = new ThreadLocal<Boolean>() {
+    @Override
+    protected Boolean initialValue() {
+      return true;
+    }
+  };
+
+  private final GNSApplicationInterface<String> app;
+  // keyed by group guid
+  private final ConcurrentHashMap<String, Predicate> predicates = new ConcurrentHashMap<>();
+  // the top level fields used by any of the queries
+  private volatile Set<String> fields = Collections.emptySet();
+  // the names written that haven't been checked yet and whether to send
+  // the changes found
+  private final Map<String, Boolean> pending = new LinkedHashMap<>();
+  private boolean checking = false;
+  private final ExecutorService checker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, GroupPredicates.class.getSimpleName());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * The query of a group and the names on this server that match it.
+   */
+  private static class Predicate {
+
+    private final SelectRequestPacket request;
+    private final JSONObject query;
+    private final Set<String> fields;
+    private final Set<String> members;
+
+    private Predicate(SelectRequestPacket request, JSONObject query, Set<String> fields,
+            Set<String> members) {
+      this.request = request;
+      this.query = query;
+      this.fields = fields;
+      this.members = members;
+    }
+  }
+
+  private GroupPredicates(GNSApplicationInterface<String> app) {
+    this.app = app;
+  }
+
+  /**
+   * Sets whether the group changes caused by the writes this thread makes
+   * are sent to the group guids. The app turns this off while it executes a
+   * request that was sent to another replica, which sends the changes
+   * instead, and while it recovers, since the changes were sent when the
+   * writes were first made.
+   *
+   * @param sends
+   * @return the previous setting
+   */
+  public static boolean setSendsChanges(boolean sends) {
+    boolean previous = SENDS_CHANGES.get();
+    SENDS_CHANGES.set(sends);
+    return previous;
+  }
+
+  /**
+   * Returns true if the members of groups are kept up to date as records are
+   * written.
+   *
+   * @return true if GROUP_INCREMENTAL is set
+   */
+  public static boolean isEnabled() {
+    return Config.getGlobalBoolean(GNSConfig.GNSC.GROUP_INCREMENTAL);
+  }
+
+  /**
+   * Returns the predicates of the record map of the app or null if groups
+   * aren't maintained this way or the record map can't tell them about
+   * writes.
+   *
+   * @param app
+   * @return the predicates or null
+   */
+  public static GroupPredicates forApp(GNSApplicationInterface<String> app) {
+    BasicRecordMap recordMap = app.getDB();
+    if (!isEnabled() || !(recordMap instanceof GNSRecordMap)) {
+      return null;
+    }
+    synchronized (PREDICATES) {
+      GroupPredicates result = PREDICATES.get(recordMap);
+      if (result == null) {
+        result = new GroupPredicates(app);
+        ((GNSRecordMap<?>) recordMap).addWriteListener(result);
+        PREDICATES.put(recordMap, result);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Registers the query of the group select, replacing the one the group had,
+   * along with the names that matched it on this server.
+   *
+   * @param request - a GROUP_SETUP or GROUP_LOOKUP select
+   * @param names
+   */
+  public void register(SelectRequestPacket request, Collection<String> names) {
+    if (SelectGroupBehavior.NONE.equals(request.getGroupBehavior())
+            || !SelectOperation.QUERY.equals(request.getSelectOperation())
+            || request.getGuid() == null || request.getQuery() == null) {
+      return;
+    }
+    JSONObject query;
+    try {
+      query = QueryMatcher.parseQuery(request.getQuery(), NameRecord.VALUES_MAP);
+    } catch (JSONException e) {
+      LOGGER.log(Level.WARNING, "Unable to maintain group {0}: {1}",
+              new Object[]{request.getGuid(), e.getMessage()});
+      unregister(request.getGuid());
+      return;
+    }
+    Set<String> queryFields = new HashSet<>();
+    for (String field : Select.getFieldsForQueryType(request)) {
+      queryFields.add(JSONPath.of(field).part(0));
+    }
+    Set<String> members = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    members.addAll(names);
+    predicates.put(request.getGuid(), new Predicate(request, query, queryFields, members));
+    updateFields();
+    LOGGER.log(Level.FINE, "NS {0} maintaining group {1} with {2} local member(s)",
+            new Object[]{app.getNodeID(), request.getGuid(), members.size()});
+  }
+
+  /**
+   * Stops maintaining the group.
+   *
+   * @param groupGuid
+   */
+  public void unregister(String groupGuid) {
+    if (predicates.remove(groupGuid) != null) {
+      updateFields();
+    }
+  }
+
+  private synchronized void updateFields() {
+    Set<String> result = new HashSet<>();
+    for (Predicate predicate : predicates.values()) {
+      result.addAll(predicate.fields);
+    }
+    fields = result;
+  }
+
+  /**
+   * Queues the record to be checked against the queries if the write could
+   * change whether it matches.
+   *
+   * @param name
+   * @param keys
+   */
+  @Override
+  public void written(String name, List<ColumnField> keys) {
+    if (predicates.isEmpty()) {
+      return;
+    }
+    if (keys != null) {
+      Set<String> used = fields;
+      boolean relevant = false;
+      for (ColumnField key : keys) {
+        String field = key.getName();
+        // the group fields themselves are internal
+        if (!InternalField.isInternalField(field) && used.contains(JSONPath.of(field).part(0))) {
+          relevant = true;
+          break;
+        }
+      }
+      if (!relevant) {
+        return;
+      }
+    }
+    boolean send = SENDS_CHANGES.get();
+    synchronized (pending) {
+      Boolean queued = pending.get(name);
+      if (queued == null || (send && !queued)) {
+        pending.put(name, send);
+      }
+      if (queued != null || checking) {
+        // already queued or the checker will get to it
+        return;
+      }
+      checking = true;
+    }
+    checker.execute(new Runnable() {
+      @Override
+      public void run() {
+        checkPending();
+      }
+    });
+  }
+
+  private void checkPending() {
+    while (true) {
+      String name;
+      boolean send;
+      synchronized (pending) {
+        if (pending.isEmpty()) {
+          checking = false;
+          return;
+        }
+        Map.Entry<String, Boolean> next = pending.entrySet().iterator().next();
+        name = next.getKey();
+        send = next.getValue();
+        // a write made while it is checked queues it again
+        pending.remove(name);
+      }
+      try {
+        check(name, send);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Problem checking {0} against group queries: {1}",
+                new Object[]{name, e});
+      }
+    }
+  }
+
+  // Checks the record against every query and sends the changes in membership
+  // if send is true.
+  private void check(String name, boolean send) {
+    JSONObject record;
+    try {
+      record = app.getDB().lookupEntireRecord(name);
+    } catch (RecordNotFoundException e) {
+      // deleting a guid removes it from its groups
+      record = null;
+    } catch (FailedDBOperationException e) {
+      LOGGER.log(Level.WARNING, "Unable to read {0} to check group queries: {1}",
+              new Object[]{name, e.getMessage()});
+      return;
+    }
+    for (Map.Entry<String, Predicate> entry : predicates.entrySet()) {
+      String groupGuid = entry.getKey();
+      Predicate predicate = entry.getValue();
+      boolean matches;
+      try {
+        matches = record != null && QueryMatcher.matches(predicate.query, record)
+                && new NSBatchAclCheck(predicate.request.getReader(), MetaDataTypeName.READ_WHITELIST, app)
+                .canAccess(record, Select.getFieldsForQueryType(predicate.request));
+      } catch (FailedDBOperationException e) {
+        LOGGER.log(Level.WARNING, "Unable to check the ACLs of {0}: {1}",
+                new Object[]{name, e.getMessage()});
+        continue;
+      } catch (JSONException e) {
+        LOGGER.log(Level.WARNING, "Unable to maintain group {0}: {1}",
+                new Object[]{groupGuid, e.getMessage()});
+        predicates.remove(groupGuid, predicate);
+        updateFields();
+        continue;
+      }
+      if (matches && predicate.members.add(name)) {
+        if (send) {
+          sendChange(groupGuid, name, true);
+        }
+      } else if (!matches && predicate.members.remove(name) && record != null && send) {
+        sendChange(groupGuid, name, false);
+      }
+    }
+  }
+
+  private void sendChange(final String groupGuid, String member, boolean add) {
+    LOGGER.log(Level.FINE, "NS {0} {1} {2} {3} group {4}",
+            new Object[]{app.getNodeID(), add ? "adding" : "removing", member,
+              add ? "to" : "from", groupGuid});
+    final long requestID = RANDOM_ID.nextLong();
+    // the updates are charged to the group
+    InternalRequestHeader header = new InternalRequestHeader() {
+      @Override
+      public long getOriginatingRequestID() {
+        return requestID;
+      }
+
+      @Override
+      public String getOriginatingGUID() {
+        return groupGuid;
+      }
+
+      @Override
+      public int getTTL() {
+        return InternalRequestHeader.DEFAULT_TTL;
+      }
+
+      @Override
+      public boolean hasBeenCoordinatedOnce() {
+        return false;
+      }
+    };
+    try {
+      if (add) {
+        GroupAccess.addToGroup(header, groupGuid, new ResultValue(Arrays.asList(member)),
+                null, null, null, null, app.getRequestHandler());
+      } else {
+        GroupAccess.removeFromGroup(header, null, groupGuid, member,
+                null, null, null, null, app.getRequestHandler());
+      }
+    } catch (ClientException | IOException | JSONException | InternalRequestException e) {
+      // the next resync of the group fixes it
+      LOGGER.log(Level.WARNING, "Unable to update the members of group {0}: {1}",
+              new Object[]{groupGuid, e});
+    }
+  }
+
+  /**
+   * Returns the number of groups maintained.
+   *
+   * @return the number of groups
+   */
+  public int size() {
+    return predicates.size();
+  }
+
+  @Override
+  public String toString() {
+    return "GroupPredicates{" + "groups=" + size() + ", fields=" + fields + '}';
+  }
+}
@@ -21,6 +21,7 @@ package edu.umass.cs.gnsserver.gnsapp;
 
 import edu.umass.cs.gnsserver.gnsapp.packet.SelectGroupBehavior;
 import edu.umass.cs.gnsserver.gnsapp.packet.SelectOperation;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectResponsePacket;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
@@ -29,8 +30,11 @@ import org.json.JSONObject;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * This class represents a data structure to store information
@@ -49,6 +53,12 @@ public class NSSelectInfo {
   // Null means return GUIDS instead of whole records (old style select).
   private final List<String> projection;
   private final int minRefreshInterval; // in seconds
+  private final SelectPage page; // the page of the results to return or null for all of them
+  private final SelectAggregate aggregate; // what the records are combined into or null to return them
+  // the partial results of an aggregate select sent back by the servers
+  private final Queue<JSONObject> aggregates = new ConcurrentLinkedQueue<>();
+  // completed with the response when all the servers have responded
+  private final CompletableFuture<SelectResponsePacket> result = new CompletableFuture<>();
 
   /**
    *
@@ -60,10 +70,13 @@ public class NSSelectInfo {
    * @param projection
    * @param minRefreshInterval
    * @param guid
+   * @param page
+   * @param aggregate
    */
   public NSSelectInfo(int id, Set<InetSocketAddress> serverIds,
           SelectOperation selectOperation, SelectGroupBehavior groupBehavior,
-          String query, List<String> projection, int minRefreshInterval, String guid) {
+          String query, List<String> projection, int minRefreshInterval, String guid,
+          SelectPage page, SelectAggregate aggregate) {
     this.queryId = id;
     this.serversToBeProcessed = Collections.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
     this.serversToBeProcessed.addAll(serverIds);
@@ -74,6 +87,8 @@ public class NSSelectInfo {
     this.projection = projection;
     this.guid = guid;
     this.minRefreshInterval = minRefreshInterval;
+    this.page = page;
+    this.aggregate = aggregate;
   }
 
   /**
@@ -84,6 +99,16 @@ public class NSSelectInfo {
     return queryId;
   }
 
+  /**
+   * Returns the future response to the select. It is completed by whichever
+   * thread handles the last response from the servers.
+   *
+   * @return the future response
+   */
+  public CompletableFuture<SelectResponsePacket> getResult() {
+    return result;
+  }
+
   /**
    * Removes the server if from the list of servers that have yet to be processed.
    *
@@ -110,6 +135,16 @@ public class NSSelectInfo {
     return serversToBeProcessed.isEmpty();
   }
 
+  /**
+   * Returns true if the result of a query for a particular guid has been seen.
+   *
+   * @param name
+   * @return true if the response was seen
+   */
+  public boolean hasResponse(String name) {
+    return responses.containsKey(name);
+  }
+
   /**
    * Adds the result of a query for a particular guid if the guid has not been seen yet.
    *
@@ -200,4 +235,40 @@ public class NSSelectInfo {
     return minRefreshInterval;
   }
 
+  /**
+   * Return the page of the results to return.
+   *
+   * @return the page or null for all of the results
+   */
+  public SelectPage getPage() {
+    return page;
+  }
+
+  /**
+   * Return what the records are combined into.
+   *
+   * @return the aggregate or null if the records are returned
+   */
+  public SelectAggregate getAggregate() {
+    return aggregate;
+  }
+
+  /**
+   * Adds the partial result of an aggregate select sent back by a server.
+   *
+   * @param partial
+   */
+  public void addAggregate(JSONObject partial) {
+    aggregates.add(partial);
+  }
+
+  /**
+   * Returns the partial results of an aggregate select sent back so far.
+   *
+   * @return the partial results
+   */
+  public List<JSONObject> getAggregates() {
+    return new ArrayList<>(aggregates);
+  }
+
 }
@@ -25,18 +25,19 @@ package edu.umass.cs.gnsserver.gnsapp;
  * All Rights Reserved
  */
 import edu.umass.cs.gigapaxos.PaxosConfig;
-import edu.umass.cs.gnscommon.ResponseCode;
+import edu.umass.cs.gnscommon.GNSProtocol;
 import edu.umass.cs.gnscommon.exceptions.client.ClientException;
 import edu.umass.cs.gnsserver.database.AbstractRecordCursor;
 import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
 import edu.umass.cs.gnscommon.exceptions.server.InternalRequestException;
 import edu.umass.cs.gnscommon.packets.PacketUtils;
+import edu.umass.cs.gnscommon.utils.JSONPath;
 
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.AccountAccess;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.GroupAccess;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.InternalField;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.MetaDataTypeName;
-import edu.umass.cs.gnsserver.gnsapp.clientSupport.NSAuthentication;
+import edu.umass.cs.gnsserver.gnsapp.clientSupport.NSBatchAclCheck;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -46,12 +47,21 @@ import java.net.UnknownHostException;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 
 import edu.umass.cs.gnsserver.gnsapp.clientSupport.NSGroupAccess;
 import edu.umass.cs.gnsserver.gnsapp.packet.SelectGroupBehavior;
 import edu.umass.cs.gnsserver.gnsapp.packet.SelectOperation;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectRecordBatch;
 import edu.umass.cs.gnsserver.gnsapp.packet.SelectRequestPacket;
 import edu.umass.cs.gnsserver.gnsapp.packet.SelectResponsePacket;
 import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
@@ -61,17 +71,15 @@ import edu.umass.cs.gnsserver.utils.ResultValue;
 import edu.umass.cs.reconfiguration.ReconfigurationConfig;
 import edu.umass.cs.utils.Config;
 
-import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SignatureException;
-import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -111,6 +119,18 @@ import java.util.regex.Pattern;
  * from all the results removing duplicates and then sends back JUST THE GUIDs, not the full
  * records.
  *
+ * A name is usually replicated on several servers so each of them would send
+ * back its record. If SELECT_PARTITIONED and REPLICATE_ALL are set the collecting
+ * NS sends the list of servers along with the query and each server only sends
+ * back the records of the names it is the responder for (see {@link #getResponder}).
+ * Nobody else sends those records, so if that server sends back an error its
+ * records are missing from the result, and if it doesn't respond in time the
+ * whole select times out.
+ *
+ * If SELECT_CACHE_MAX_AGE is set the collecting NS answers a select it made
+ * recently from its {@link SelectCache} until a write changes the fields the
+ * select uses.
+ *
  * Here's the special handling the NS does for guid GROUPs:
  *
  * On the request side when we receive a GROUP_SETUP request we do the regular broadcast thing.
@@ -129,6 +149,12 @@ import java.util.regex.Pattern;
  * (in the other case the response is sent back on request side of things).
  * We handle this exactly the same as we do GROUP_SETUP (set group, return results, time bookkeeping).
  *
+ * If GROUP_INCREMENTAL is set the servers that run a group query also keep it
+ * (see {@link GroupPredicates}) and add records to or remove them from the group
+ * as they are written, so a GROUP_LOOKUP only runs the query again once
+ * GROUP_RESYNC_INTERVAL has passed. That run also removes the members that
+ * no longer match.
+ *
  * @author westy
  */
 public class Select {
@@ -138,8 +164,21 @@ public class Select {
   private static final Random RANDOM_ID = new Random();
   private static final ConcurrentMap<Integer, NSSelectInfo> QUERIES_IN_PROGRESS
           = new ConcurrentHashMap<>(10, 0.75f, 3);
-  private static final ConcurrentMap<Integer, SelectResponsePacket> QUERY_RESULT
-          = new ConcurrentHashMap<>(10, 0.75f, 3);
+  // times out the selects whose servers don't all respond
+  private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1,
+          new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, Select.class.getSimpleName() + "-timeouts");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  static {
+    // most selects complete well before their timeout
+    TIMEOUTS.setRemoveOnCancelPolicy(true);
+  }
 
   /**
    * Handles a select request that was received from a client.
@@ -166,27 +205,68 @@ public class Select {
   /**
    * Handle a select request from a client.
    * This node is the broadcaster and selector.
+   * Waits for all the servers to respond, otherwise you are violating
+   * Replicable.execute(.)'s semantics.
    *
    * @param header
    * @param packet
    * @param app
-   * @return a select response packet
+   * @return a select response packet or null if the select failed or timed out
    * @throws JSONException
    * @throws UnknownHostException
    * @throws FailedDBOperationException
    * @throws InternalRequestException
    */
-  @SuppressWarnings("unchecked")
   public static SelectResponsePacket handleSelectRequestFromClient(InternalRequestHeader header,
           SelectRequestPacket packet,
           GNSApplicationInterface<String> app) throws JSONException, UnknownHostException,
           FailedDBOperationException, InternalRequestException {
+    try {
+      return handleSelectRequestFromClientAsync(header, packet, app).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.log(Level.WARNING, "Interrupted while waiting for select {0}", packet.getSummary());
+    } catch (ExecutionException e) {
+      LOGGER.log(Level.WARNING, "Select {0} failed: {1}",
+              new Object[]{packet.getSummary(), e.getCause()});
+    }
+    return null;
+  }
+
+  /**
+   * Handle a select request from a client without waiting for the servers
+   * to respond. This node is the broadcaster and selector.
+   *
+   * The returned future is completed with the response when the last server
+   * responds, or completed exceptionally with a {@link TimeoutException} if
+   * they haven't all responded within SELECT_REQUEST_TIMEOUT or with the
+   * exception that stopped the request from being sent.
+   *
+   * @param header
+   * @param packet
+   * @param app
+   * @return the future select response packet
+   * @throws JSONException
+   * @throws UnknownHostException
+   * @throws FailedDBOperationException
+   * @throws InternalRequestException
+   */
+  @SuppressWarnings("unchecked")
+  public static CompletableFuture<SelectResponsePacket> handleSelectRequestFromClientAsync(
+          InternalRequestHeader header, SelectRequestPacket packet,
+          GNSApplicationInterface<String> app) throws JSONException, UnknownHostException,
+          FailedDBOperationException, InternalRequestException {
     // special case handling of the GROUP_LOOK operation
     // If sufficient time hasn't passed we just send the current value back
     if (packet.getGroupBehavior().equals(SelectGroupBehavior.GROUP_LOOKUP)) {
       // grab the timing parameters that we squirreled away from the SETUP
       Date lastUpdate = NSGroupAccess.getLastUpdate(header, packet.getGuid(), app.getRequestHandler());
       int minRefreshInterval = NSGroupAccess.getMinRefresh(header, packet.getGuid(), app.getRequestHandler());
+      if (GroupPredicates.isEnabled()) {
+        // the servers keep the members up to date between resyncs
+        minRefreshInterval = Math.max(minRefreshInterval,
+                Config.getGlobalInt(GNSConfig.GNSC.GROUP_RESYNC_INTERVAL));
+      }
       if (lastUpdate != null) {
         LOGGER.log(Level.FINE,
                 "GROUP_LOOKUP Request: {0} - {1} <= {2}",
@@ -198,13 +278,25 @@ public class Select {
                   "GROUP_LOOKUP Request: Time has not elapsed. Returning current group value for {0}",
                   packet.getGuid());
           ResultValue result = NSGroupAccess.lookupMembers(header, packet.getGuid(), true, app.getRequestHandler());
-          return SelectResponsePacket.makeSuccessPacketForGuidsOnly(packet.getId(), null, -1, null,
-                  new JSONArray(result.toStringSet()));
+          return CompletableFuture.completedFuture(
+                  SelectResponsePacket.makeSuccessPacketForGuidsOnly(packet.getId(), null, -1, null,
+                          new JSONArray(result.toStringSet())));
         }
       } else {
         LOGGER.fine("GROUP_LOOKUP Request: No Last Update Info ");
       }
     }
+    // the same select made recently can be answered from the cache
+    final SelectCache cache = SelectCache.forRecordMap(app.getDB());
+    final String cacheKey = cache != null ? SelectCache.getKey(packet) : null;
+    if (cacheKey != null) {
+      SelectResponsePacket cached = cache.get(cacheKey);
+      if (cached != null) {
+        LOGGER.log(Level.FINE, "NS {0} answering {1} from the select cache",
+                new Object[]{app.getNodeID(), packet.getSummary()});
+        return CompletableFuture.completedFuture(cached);
+      }
+    }
     // the code below executes for regular selects and also for GROUP SETUP and GROUP LOOKUP but for lookup
     // only if enough time has elapsed since last lookup (see above)
     // OR in the anamolous situation where the update info could not be found
@@ -216,10 +308,26 @@ public class Select {
     // and send the request out to all the servers. We'll receive a response sent on the flipside.
     Set<InetSocketAddress> serverAddresses = new HashSet<>(PaxosConfig.getActives().values());
     //Set<String> serverIds = app.getGNSNodeConfig().getActiveReplicas();
+    if (isPartitioned()) {
+      // each server only returns the records it is the responder for
+      List<String> responders = new ArrayList<>(PaxosConfig.getActives().keySet());
+      Collections.sort(responders);
+      packet.setResponders(responders);
+    }
+    // servers only send binary records to a collecting server that asks for them
+    packet.setAcceptsRecordBatches(Config.getGlobalBoolean(GNSConfig.GNSC.SELECT_BINARY_RECORDS));
 
+    SelectPage page = SelectPage.of(packet);
+    // writes made while the select is collected keep it from being cached
+    final SelectCache.Entry cacheEntry = cacheKey != null ? cache.start(cacheKey, packet) : null;
     // store the info for later
-    int queryId = addQueryInfo(serverAddresses, packet.getSelectOperation(), packet.getGroupBehavior(),
-            packet.getQuery(), packet.getProjection(), packet.getMinRefreshInterval(), packet.getGuid());
+    final NSSelectInfo info = addQueryInfo(serverAddresses, packet.getSelectOperation(), packet.getGroupBehavior(),
+            packet.getQuery(), packet.getProjection(), packet.getMinRefreshInterval(), packet.getGuid(), page,
+            SelectAggregate.of(packet));
+    if (page != null) {
+      // the servers need the values the records are ordered by
+      packet.setProjection(page.projectionWithSortKey(packet.getProjection()));
+    }
     if (packet.getGroupBehavior().equals(SelectGroupBehavior.GROUP_LOOKUP)) {
       // the query string is supplied with a lookup so we stuff in it there. It was saved from the SETUP operation.
       packet.setQuery(NSGroupAccess.getQueryString(header, packet.getGuid(), app.getRequestHandler()));
@@ -229,8 +337,22 @@ public class Select {
             ReconfigurationConfig.getClientFacingPort(app.getNodeAddress().getPort()));
     packet.setNSReturnAddress(returnAddress);
     //packet.setNameServerID(app.getNodeID());
-    packet.setNsQueryId(queryId); // Note: this also tells handleSelectRequest that it should go to NS now
+    packet.setNsQueryId(info.getId()); // Note: this also tells handleSelectRequest that it should go to NS now
     JSONObject outgoingJSON = packet.toJSONObject();
+    // give up on the servers that haven't responded by the timeout
+    scheduleTimeout(info, SELECT_REQUEST_TIMEOUT, app.getNodeID());
+    info.getResult().whenComplete(new BiConsumer<SelectResponsePacket, Throwable>() {
+      @Override
+      public void accept(SelectResponsePacket response, Throwable throwable) {
+        if (cacheEntry != null) {
+          if (response != null) {
+            cache.put(cacheEntry, response);
+          } else {
+            cache.cancel(cacheEntry);
+          }
+        }
+      }
+    });
     try {
 
       LOGGER.log(Level.FINER, "addresses: {0} node address: {1}",
@@ -248,24 +370,12 @@ public class Select {
 
       // we handle our self by locally getting self-select records
       handleSelectResponse(getMySelectedRecords(packet, app), app);
-      // Wait for responses, otherwise you are violating Replicable.execute(.)'s semantics.
-      synchronized (QUERIES_IN_PROGRESS) {
-        while (QUERIES_IN_PROGRESS.containsKey(queryId)) {
-          try {
-            QUERIES_IN_PROGRESS.wait(SELECT_REQUEST_TIMEOUT);
-          } catch (InterruptedException e) {
-            e.printStackTrace();
-          }
-        }
-      }
-      if (QUERY_RESULT.containsKey(queryId)) {
-        return QUERY_RESULT.remove(queryId);
-      }
-
     } catch (IOException | ClientException e) {
       LOGGER.log(Level.SEVERE, "Exception while sending select request: {0}", e);
+      QUERIES_IN_PROGRESS.remove(info.getId(), info);
+      info.getResult().completeExceptionally(e);
     }
-    return null;
+    return info.getResult();
   }
 
   @SuppressWarnings("unchecked")
@@ -275,18 +385,13 @@ public class Select {
     SelectResponsePacket response;
     try {
       // grab the records
-      JSONArray jsonRecords = getJSONRecordsForSelect(request, app);
-      jsonRecords = aclCheckFilterReturnedRecord(request, jsonRecords, request.getReader(), app);
-      response = SelectResponsePacket.makeSuccessPacketForFullRecords(
-              request.getId(), request.getClientAddress(),
-              request.getCcpQueryId(), request.getNsQueryId(),
-              app.getNodeAddress(), jsonRecords);
+      response = getSelectResponse(request, app);
       LOGGER.log(
               Level.FINE,
               "NS {0} sending back {1} record(s) in response to self-select request {2}",
-              new Object[]{app.getNodeID(), jsonRecords.length(),
+              new Object[]{app.getNodeID(), getRecordCount(response),
                 request.getSummary()});
-    } catch (FailedDBOperationException e) {
+    } catch (FailedDBOperationException | JSONException e) {
       LOGGER.log(Level.SEVERE, "Exception while handling self-select request: {0}",
               e.getMessage());
       //e.printStackTrace();
@@ -296,6 +401,36 @@ public class Select {
     return response;
   }
 
+  /**
+   * Returns the response a server sends back to the collecting NS: the
+   * records it has that match the select or, for aggregate selects, its
+   * part of the result.
+   *
+   * @param request
+   * @param app
+   * @return the response
+   * @throws FailedDBOperationException
+   * @throws JSONException
+   */
+  private static SelectResponsePacket getSelectResponse(SelectRequestPacket request,
+          GNSApplicationInterface<String> app) throws FailedDBOperationException, JSONException {
+    SelectAggregate aggregate = SelectAggregate.of(request);
+    if (aggregate != null) {
+      SelectAggregate.Partial partial = aggregate.newPartial();
+      getJSONRecordsForSelect(request, partial, app);
+      return SelectResponsePacket.makeSuccessPacketForAggregate(request.getId(),
+              request.getClientAddress(), request.getNsQueryId(), app.getNodeAddress(),
+              partial.toJSONObject());
+    }
+    return SelectResponsePacket.makeSuccessPacketForFullRecords(request.getId(),
+            request.getClientAddress(), request.getCcpQueryId(), request.getNsQueryId(),
+            app.getNodeAddress(), getJSONRecordsForSelect(request, null, app));
+  }
+
+  private static int getRecordCount(SelectResponsePacket response) {
+    return response.getRecords() != null ? response.getRecords().length() : 0;
+  }
+
   /**
    * Handle a select request from the collecting NS. This is what other NSs do when they
    * get a SelectRequestPacket from the NS that originally received the packet (the one that is collecting
@@ -315,15 +450,13 @@ public class Select {
               app.getNodeID(), request.getSummary()});
     try {
       // grab the records
-      JSONArray jsonRecords = getJSONRecordsForSelect(request, app);
-      jsonRecords = aclCheckFilterReturnedRecord(request, jsonRecords, request.getReader(), app);
-      @SuppressWarnings("unchecked")
-      SelectResponsePacket response = SelectResponsePacket.makeSuccessPacketForFullRecords(request.getId(),
-              request.getClientAddress(),
-              request.getCcpQueryId(), request.getNsQueryId(), app.getNodeAddress(), jsonRecords);
+      SelectResponsePacket response = getSelectResponse(request, app);
+      if (response.getRecords() != null && request.acceptsRecordBatches()) {
+        response.encodeRecords(Config.getGlobalInt(GNSConfig.GNSC.SELECT_DEFLATE_SIZE));
+      }
       LOGGER.log(Level.FINE,
               "NS {0} sending back {1} record(s) in response to {2}",
-              new Object[]{app.getNodeID(), jsonRecords.length(), request.getSummary()});
+              new Object[]{app.getNodeID(), getRecordCount(response), request.getSummary()});
       // and send them back to the originating NS
       app.sendToAddress(request.getNSReturnAddress(), response.toJSONObject());
     } catch (FailedDBOperationException | JSONException | IOException e) {
@@ -340,100 +473,124 @@ public class Select {
   }
 
   /**
-   * Filters records and fields from returned records based on ACL checks.
+   * Returns the fields read from the database for a select query: the
+   * projection plus the ACLs the records are checked with. Selects without a
+   * projection only return guids so they just need the ACLs and the sort key,
+   * and aggregate selects just need the ACLs and the fields they aggregate.
    *
-   * @param packet
-   * @param records
-   * @param reader
-   * @param app
-   * @return
+   * @param request
+   * @return the projection
    */
-  private static JSONArray aclCheckFilterReturnedRecord(SelectRequestPacket packet, JSONArray records,
-          String reader, GNSApplicationInterface<String> app) {
-    // First we filter out records
-    JSONArray filteredRecords = aclCheckFilterForRecordsArray(packet, records, reader, app);
-    //return filteredRecords;
-    // then we filter fields
-    return aclCheckFilterFields(packet, filteredRecords, reader, app);
+  private static List<String> getDatabaseProjection(SelectRequestPacket request) {
+    SelectAggregate aggregate = SelectAggregate.of(request);
+    if (aggregate != null) {
+      List<String> result = aggregate.getFields();
+      result.add(NSBatchAclCheck.getAclField(MetaDataTypeName.READ_WHITELIST));
+      return result;
+    }
+    List<String> projection = request.getProjection();
+    if (projection != null && !projection.isEmpty()
+            && GNSProtocol.ENTIRE_RECORD.toString().equals(projection.get(0))) {
+      return projection;
+    }
+    List<String> result = projection != null ? new ArrayList<>(projection) : new ArrayList<String>();
+    if (projection == null && request.getSortKey() != null) {
+      result.add(request.getSortKey());
+    }
+    result.add(NSBatchAclCheck.getAclField(MetaDataTypeName.READ_WHITELIST));
+    return result;
   }
 
   /**
-   * This filters entire records if the query uses fields that cannot be accessed in the
-   * returned record by the reader. Otherwise the user would be able to determine that
-   * some GUIDS contain specific values for fields they can't access.
+   * Filters records and fields from returned records based on ACL checks.
+   * Returns the records as they are sent back to the collecting NS.
    *
    * @param packet
    * @param records
-   * @param reader
-   * @param app
-   * @return
+   * @param queryFields
+   * @param aclCheck
+   * @return the filtered records
    */
-  private static JSONArray aclCheckFilterForRecordsArray(SelectRequestPacket packet, JSONArray records,
-          String reader, GNSApplicationInterface<String> app) {
-    JSONArray result = new JSONArray();
-    for (int i = 0; i < records.length(); i++) {
+  private static List<JSONObject> aclCheckFilterReturnedRecords(SelectRequestPacket packet,
+          List<JSONObject> records, List<String> queryFields, NSBatchAclCheck aclCheck) {
+    List<JSONObject> result = new ArrayList<>(records.size());
+    for (JSONObject record : records) {
       try {
-        JSONObject record = records.getJSONObject(i);
-        String guid = record.getString(NameRecord.NAME.getName());
-        List<String> queryFields = getFieldsForQueryType(packet);
-        ResponseCode responseCode = NSAuthentication.signatureAndACLCheck(null, guid, null, queryFields, reader,
-                null, null, MetaDataTypeName.READ_WHITELIST, app, true);
-        LOGGER.log(Level.FINE, "{0} ACL check for select: guid={0} queryFields={1} responsecode={2}",
-                new Object[]{app.getNodeID(), guid, queryFields, responseCode});
-        if (responseCode.isOKResult()) {
-          result.put(record);
+        JSONObject filtered = aclCheckFilterRecord(packet, record, queryFields, aclCheck);
+        if (filtered != null) {
+          result.add(filtered);
         }
-      } catch (JSONException | InvalidKeyException | InvalidKeySpecException | SignatureException | NoSuchAlgorithmException | FailedDBOperationException | UnsupportedEncodingException e) {
+      } catch (JSONException | FailedDBOperationException e) {
         // ignore json errros
-        LOGGER.log(Level.FINE, "{0} Problem getting guid from json: {1}",
-                new Object[]{app.getNodeID(), e.getMessage()});
+        LOGGER.log(Level.FINE, "Problem checking the ACLs of {0}: {1}",
+                new Object[]{record.optString(NameRecord.NAME.getName()), e.getMessage()});
       }
     }
     return result;
   }
 
   /**
-   * This filters individual fields if the cannot be accessed by the reader.
+   * Returns null if the query uses fields that cannot be accessed in the
+   * record by the reader. Otherwise the user would be able to determine that
+   * some GUIDS contain specific values for fields they can't access.
+   *
+   * Otherwise returns the name of the record, the GUID_INFO that marks it as
+   * a guid record and the user fields the reader can access. Only guids are
+   * returned for selects without a projection so the only fields they keep
+   * are the sort key or the fields aggregate selects aggregate.
    *
    * @param packet
-   * @param records
-   * @param reader
-   * @param app
-   * @return
+   * @param record
+   * @param queryFields
+   * @param aclCheck
+   * @return the record to send back or null
+   * @throws JSONException
+   * @throws FailedDBOperationException
    */
-  private static JSONArray aclCheckFilterFields(SelectRequestPacket packet, JSONArray records,
-          String reader, GNSApplicationInterface<String> app) {
-    for (int i = 0; i < records.length(); i++) {
-      try {
-        JSONObject record = records.getJSONObject(i);
-        String guid = record.getString(NameRecord.NAME.getName());
-        // Look at the keys in the values map
-        JSONObject valuesMap = record.getJSONObject(NameRecord.VALUES_MAP.getName());
-        Iterator<?> keys = valuesMap.keys();
-        while (keys.hasNext()) {
-          String field = (String) keys.next();
-          if (!InternalField.isInternalField(field)) {
-            LOGGER.log(Level.FINE, "{0} Checking: {1}", new Object[]{app.getNodeID(), field});
-            ResponseCode responseCode = NSAuthentication.signatureAndACLCheck(null, guid, field, null, reader,
-                    null, null, MetaDataTypeName.READ_WHITELIST, app, true);
-            if (!responseCode.isOKResult()) {
-              LOGGER.log(Level.FINE, "{0} Removing: {1}", new Object[]{app.getNodeID(), field});
-              // removing the offending field
-              keys.remove();
-            }
-          }
+  private static JSONObject aclCheckFilterRecord(SelectRequestPacket packet, JSONObject record,
+          List<String> queryFields, NSBatchAclCheck aclCheck) throws JSONException, FailedDBOperationException {
+    if (!aclCheck.canAccess(record, queryFields)) {
+      return null;
+    }
+    JSONObject valuesMap = record.getJSONObject(NameRecord.VALUES_MAP.getName());
+    JSONObject filteredValuesMap = new JSONObject();
+    if (valuesMap.has(AccountAccess.GUID_INFO)) {
+      filteredValuesMap.put(AccountAccess.GUID_INFO, valuesMap.get(AccountAccess.GUID_INFO));
+    }
+    if (packet.getProjection() != null) {
+      Iterator<?> keys = valuesMap.keys();
+      while (keys.hasNext()) {
+        String field = (String) keys.next();
+        if (!InternalField.isInternalField(field) && aclCheck.canAccess(record, field)) {
+          filteredValuesMap.put(field, valuesMap.get(field));
+        }
+      }
+    } else {
+      for (String key : getKeptFields(packet)) {
+        JSONPath path = JSONPath.of(key);
+        if (path.has(valuesMap) && aclCheck.canAccess(record, path.part(0))) {
+          path.put(filteredValuesMap, path.opt(valuesMap));
         }
-      } catch (JSONException | InvalidKeyException | InvalidKeySpecException | SignatureException | NoSuchAlgorithmException | FailedDBOperationException | UnsupportedEncodingException e) {
-        // ignore json errros
-        LOGGER.log(Level.FINE, "{0} Problem getting guid from json: {1}",
-                new Object[]{app.getNodeID(), e.getMessage()});
       }
     }
-    return records;
+    return new JSONObject()
+            .put(NameRecord.NAME.getName(), record.getString(NameRecord.NAME.getName()))
+            .put(NameRecord.VALUES_MAP.getName(), filteredValuesMap);
+  }
+
+  // Returns the fields kept in the records of a select without a projection.
+  private static List<String> getKeptFields(SelectRequestPacket packet) {
+    SelectAggregate aggregate = SelectAggregate.of(packet);
+    if (aggregate != null) {
+      return aggregate.getFields();
+    } else if (packet.getSortKey() != null) {
+      return Arrays.asList(packet.getSortKey());
+    }
+    return new ArrayList<>();
   }
 
   // Returns the fields that present in a query.
-  private static List<String> getFieldsForQueryType(SelectRequestPacket request) {
+  static List<String> getFieldsForQueryType(SelectRequestPacket request) {
     switch (request.getSelectOperation()) {
       case EQUALS:
       case NEAR:
@@ -441,6 +598,14 @@ public class Select {
         return new ArrayList<>(Arrays.asList(request.getKey()));
       case QUERY:
         return getFieldsFromQuery(request.getQuery());
+      case COUNT:
+      case MIN:
+      case MAX:
+      case SUM:
+        // the reader can't learn anything from fields it can't read
+        List<String> result = getFieldsFromQuery(request.getQuery());
+        result.addAll(SelectAggregate.of(request).getFields());
+        return result;
       default:
         return new ArrayList<>();
     }
@@ -485,7 +650,13 @@ public class Select {
     // if there is no error update our results list
     if (SelectResponsePacket.ResponseCode.NOERROR.equals(packet.getResponseCode())) {
       // stuff all the unique records into the info structure
-      processJSONRecords(packet.getRecords(), info, replica);
+      if (packet.getAggregate() != null) {
+        info.addAggregate(packet.getAggregate());
+      } else if (packet.getRecordBatch() != null) {
+        processRecordBatch(packet.getRecordBatch(), info, replica);
+      } else {
+        processJSONRecords(packet.getRecords(), info, replica);
+      }
     } else {
       // error response
       LOGGER.log(Level.FINE,
@@ -515,11 +686,30 @@ public class Select {
           SelectResponsePacket packet, NSSelectInfo info,
           GNSApplicationInterface<String> replica) throws JSONException,
           ClientException, IOException, InternalRequestException {
-    // must be done before the notify below
     // we're done processing this select query
-    QUERIES_IN_PROGRESS.remove(packet.getNsQueryId());
+    if (!QUERIES_IN_PROGRESS.remove(packet.getNsQueryId(), info)) {
+      // already timed out
+      return;
+    }
 
-    Set<JSONObject> allRecords = info.getResponsesAsSet();
+    if (info.getAggregate() != null) {
+      // aggregates don't maintain groups so that's all there is to do
+      info.getResult().complete(SelectResponsePacket.makeSuccessPacketForAggregate(packet.getId(),
+              null, -1, null, info.getAggregate().combine(info.getAggregates())));
+      return;
+    }
+    Collection<JSONObject> allRecords = info.getResponsesAsSet();
+    SelectPage page = info.getPage();
+    String continuation = null;
+    if (page != null) {
+      List<JSONObject> sorted = page.sort(allRecords);
+      if (page.getLimit() > 0 && sorted.size() > page.getLimit()) {
+        // there's at least one more page
+        sorted = sorted.subList(0, page.getLimit());
+        continuation = page.makeContinuation(sorted.get(sorted.size() - 1));
+      }
+      allRecords = sorted;
+    }
     // Todo - clean up this use of guids further below in the group code
     Set<String> guids = extractGuidsFromRecords(allRecords);
     LOGGER.log(Level.FINE,
@@ -533,22 +723,21 @@ public class Select {
               null, -1, null, new JSONArray(guids));
       // Otherwise we return a list of records.
     } else {
-      List<JSONObject> records = filterAndMassageRecords(allRecords);
+      // drop the sort key if it was only added for ordering
+      String addedField = page != null && page.getSortKey() != null
+              && page.projectionWithSortKey(info.getProjection()) != info.getProjection()
+              ? page.getSortKey() : null;
+      List<JSONObject> records = filterAndMassageRecords(allRecords, addedField);
       LOGGER.log(Level.FINE,
               "NS{0} record:{1}",
               new Object[]{replica.getNodeID(), records});
       response = SelectResponsePacket.makeSuccessPacketForFullRecords(packet.getId(),
               null, -1, -1, null, new JSONArray(records));
     }
+    response.setContinuation(continuation);
 
-    // Put the result where the coordinator can see it.
-    QUERY_RESULT.put(packet.getNsQueryId(), response);
-    // and let the coordinator know the value is there
-    if (GNSApp.DELEGATE_CLIENT_MESSAGING) {
-      synchronized (QUERIES_IN_PROGRESS) {
-        QUERIES_IN_PROGRESS.notify();
-      }
-    }
+    // Let the coordinator of this query, and only it, know the result is there.
+    info.getResult().complete(response);
     // Now we update any group guid stuff
     if (info.getGroupBehavior().equals(SelectGroupBehavior.GROUP_SETUP)) {
       LOGGER.log(Level.FINE,
@@ -564,6 +753,21 @@ public class Select {
       LOGGER.log(Level.FINE, "NS{0} updating group members", replica.getNodeID());
       GroupAccess.addToGroup(header, guid, new ResultValue(guids), null, null, null, null,
               replica.getRequestHandler());
+      if (GroupPredicates.isEnabled()) {
+        // drops the members the servers missed the removal of
+        try {
+          Set<String> stale = NSGroupAccess.lookupMembers(header, guid, true,
+                  replica.getRequestHandler()).toStringSet();
+          stale.removeAll(guids);
+          if (!stale.isEmpty()) {
+            GroupAccess.removeFromGroup(header, null, guid, new ResultValue(stale), null, null, null, null,
+                    replica.getRequestHandler());
+          }
+        } catch (FailedDBOperationException e) {
+          LOGGER.log(Level.WARNING, "Unable to look up the members of group {0}: {1}",
+                  new Object[]{guid, e.getMessage()});
+        }
+      }
       //NSGroupAccess.updateMembers(header, guid, guids, replica.getRequestHandler());
       //NSGroupAccess.updateRecords(guid, processResponsesIntoJSONArray(info.getResponsesAsMap()), replica); 
       NSGroupAccess.updateLastUpdate(header, guid, new Date(), replica.getRequestHandler());
@@ -571,8 +775,10 @@ public class Select {
   }
 
   // Converts a record from the database into something we can return to 
-  // the user. Adds the "_GUID" and removes internal fields.
-  private static List<JSONObject> filterAndMassageRecords(Set<JSONObject> records) {
+  // the user. Adds the "_GUID" and removes internal fields and the
+  // removedField if it isn't null.
+  private static List<JSONObject> filterAndMassageRecords(Collection<JSONObject> records,
+          String removedField) {
     List<JSONObject> result = new ArrayList<>();
     for (JSONObject record : records) {
       try {
@@ -588,6 +794,9 @@ public class Select {
             newRecord.put(key, valuesMap.get(key));
           }
         }
+        if (removedField != null && JSONPath.of(removedField).has(newRecord)) {
+          JSONPath.of(removedField).remove(newRecord);
+        }
         result.add(newRecord);
       } catch (JSONException e) {
       }
@@ -597,8 +806,9 @@ public class Select {
 
   // Pulls the guids out of the record to return to the user for "old-style" 
   // select calls.
-  private static Set<String> extractGuidsFromRecords(Set<JSONObject> records) {
-    Set<String> result = new HashSet<>();
+  private static Set<String> extractGuidsFromRecords(Collection<JSONObject> records) {
+    // keeps the order of the records
+    Set<String> result = new LinkedHashSet<>();
     for (JSONObject json : records) {
       try {
         result.add(json.getString(NameRecord.NAME.getName()));
@@ -608,24 +818,83 @@ public class Select {
     return result;
   }
 
-  private static int addQueryInfo(Set<InetSocketAddress> serverAddresses, SelectOperation selectOperation,
+  /**
+   * Completes the select with a {@link TimeoutException} and drops it if its
+   * servers haven't all responded within the timeout, so the responses that
+   * come in later are ignored.
+   *
+   * @param info
+   * @param timeout - in milliseconds
+   * @param nodeID
+   */
+  static void scheduleTimeout(final NSSelectInfo info, final long timeout, final String nodeID) {
+    final ScheduledFuture<?> scheduled = TIMEOUTS.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (QUERIES_IN_PROGRESS.remove(info.getId(), info)) {
+          LOGGER.log(Level.WARNING, "NS {0} select {1} timed out waiting for {2}",
+                  new Object[]{nodeID, info.getId(), info.serversYetToRespond()});
+          info.getResult().completeExceptionally(new TimeoutException("Select timed out after "
+                  + timeout + "ms"));
+        }
+      }
+    }, timeout, TimeUnit.MILLISECONDS);
+    info.getResult().whenComplete(new BiConsumer<SelectResponsePacket, Throwable>() {
+      @Override
+      public void accept(SelectResponsePacket response, Throwable throwable) {
+        scheduled.cancel(false);
+      }
+    });
+  }
+
+  /**
+   * Returns true if the select is waiting for its servers to respond.
+   *
+   * @param info
+   * @return true if the select is in progress
+   */
+  static boolean isInProgress(NSSelectInfo info) {
+    return QUERIES_IN_PROGRESS.get(info.getId()) == info;
+  }
+
+  static NSSelectInfo addQueryInfo(Set<InetSocketAddress> serverAddresses, SelectOperation selectOperation,
           SelectGroupBehavior groupBehavior, String query, List<String> projection,
-          int minRefreshInterval, String guid) {
-    int id;
+          int minRefreshInterval, String guid, SelectPage page, SelectAggregate aggregate) {
+    NSSelectInfo info;
     do {
-      id = RANDOM_ID.nextInt();
-    } while (QUERIES_IN_PROGRESS.containsKey(id));
-    //Add query info
-    NSSelectInfo info = new NSSelectInfo(id, serverAddresses, selectOperation, groupBehavior,
-            query, projection,
-            minRefreshInterval, guid);
-    QUERIES_IN_PROGRESS.put(id, info);
-    return id;
+      info = new NSSelectInfo(RANDOM_ID.nextInt(), serverAddresses, selectOperation, groupBehavior,
+              query, projection,
+              minRefreshInterval, guid, page, aggregate);
+      //Add query info unless the id is in use
+    } while (QUERIES_IN_PROGRESS.putIfAbsent(info.getId(), info) != null);
+    return info;
   }
 
+  /**
+   * Returns the records that match the select and that the reader can see.
+   * The records are read from the database and ACL checked SELECT_BATCH_SIZE
+   * at a time so only the records being returned are held onto. If the
+   * request asks for a page of the results only the records that can be in
+   * it are held onto (see {@link SelectPage}). For aggregate selects the
+   * records are added to the partial result instead of returned.
+   *
+   * @param request
+   * @param partial - the partial result of an aggregate select or null
+   * @param ar
+   * @return the records
+   * @throws FailedDBOperationException
+   */
   private static JSONArray getJSONRecordsForSelect(SelectRequestPacket request,
+          SelectAggregate.Partial partial,
           GNSApplicationInterface<String> ar) throws FailedDBOperationException {
     JSONArray jsonRecords = new JSONArray();
+    SelectPage selectPage;
+    try {
+      selectPage = SelectPage.of(request);
+    } catch (JSONException e) {
+      // the collecting server already checked the token
+      throw new FailedDBOperationException(null, request.getContinuation(), e.getMessage());
+    }
     // actually only need name and values map... fix this
     AbstractRecordCursor cursor = null;
     switch (request.getSelectOperation()) {
@@ -648,23 +917,130 @@ public class Select {
         }
         break;
       case QUERY:
+      case COUNT:
+      case MIN:
+      case MAX:
+      case SUM:
         LOGGER.log(Level.FINE, "NS{0} query: {1} {2}",
                 new Object[]{ar.getNodeID(), request.getQuery(), request.getProjection()});
-        cursor = NameRecord.selectRecordsQuery(ar.getDB(), request.getQuery(), request.getProjection());
+        cursor = NameRecord.selectRecordsQuery(ar.getDB(), request.getQuery(), getDatabaseProjection(request));
         break;
       default:
         break;
     }
-    // think about returning a cursor that has prefetched a limited (100 which is like mongo limit)
-    // number of records in it and the ability to fetch more
-    while (cursor != null && cursor.hasNext()) {
-      JSONObject record = cursor.nextJSONObject();
-      LOGGER.log(Level.FINE, "NS{0} record returned: {1}", new Object[]{ar.getNodeID(), record});
-      jsonRecords.put(record);
+    if (cursor == null) {
+      return jsonRecords;
+    }
+    int batchSize = Config.getGlobalInt(GNSConfig.GNSC.SELECT_BATCH_SIZE);
+    List<String> responders = request.getResponders();
+    SelectPage.Buffer page = selectPage != null ? selectPage.newBuffer() : null;
+    // group queries are kept to check the records written from now on against
+    GroupPredicates predicates = !SelectGroupBehavior.NONE.equals(request.getGroupBehavior())
+            ? GroupPredicates.forApp(ar) : null;
+    Set<String> groupMembers = predicates != null ? new HashSet<String>() : null;
+    // shared by all the batches so the reader is only looked up once
+    NSBatchAclCheck aclCheck = new NSBatchAclCheck(request.getReader(), MetaDataTypeName.READ_WHITELIST, ar);
+    List<String> queryFields = getFieldsForQueryType(request);
+    try {
+      List<JSONObject> batch;
+      while (!(batch = cursor.nextBatch(batchSize)).isEmpty()) {
+        List<JSONObject> records = new ArrayList<>(batch.size());
+        for (JSONObject record : batch) {
+          if (responders != null && !ar.getNodeID().equals(
+                  getResponder(record.optString(NameRecord.NAME.getName()), responders))) {
+            // another server returns this one
+            continue;
+          }
+          LOGGER.log(Level.FINE, "NS{0} record returned: {1}", new Object[]{ar.getNodeID(), record});
+          records.add(record);
+        }
+        for (JSONObject record : aclCheckFilterReturnedRecords(request, records, queryFields, aclCheck)) {
+          if (groupMembers != null && isGuidRecord(record)) {
+            groupMembers.add(record.optString(NameRecord.NAME.getName()));
+          }
+          if (partial != null) {
+            if (isGuidRecord(record)) {
+              partial.add(record);
+            }
+          } else if (page == null) {
+            jsonRecords.put(record);
+          } else if (isGuidRecord(record)) {
+            // only keeps the ones in the page
+            page.offer(record);
+          }
+        }
+      }
+      if (page != null) {
+        for (JSONObject record : page.getRecords()) {
+          jsonRecords.put(record);
+        }
+      }
+      if (predicates != null) {
+        predicates.register(request, groupMembers);
+      }
+    } finally {
+      cursor.close();
     }
     return jsonRecords;
   }
 
+  private static boolean warnedNotReplicatedToAll = false;
+
+  /**
+   * Returns true if selects should be partitioned over the servers. That's
+   * only safe if every server has a copy of every name, so if REPLICATE_ALL
+   * isn't set the select is broadcast the usual way instead.
+   *
+   * @return true if selects should be partitioned
+   */
+  private static boolean isPartitioned() {
+    if (!Config.getGlobalBoolean(GNSConfig.GNSC.SELECT_PARTITIONED)) {
+      return false;
+    }
+    if (Config.getGlobalBoolean(ReconfigurationConfig.RC.REPLICATE_ALL)) {
+      return true;
+    }
+    if (!warnedNotReplicatedToAll) {
+      warnedNotReplicatedToAll = true;
+      LOGGER.log(Level.WARNING, "SELECT_PARTITIONED is ignored because REPLICATE_ALL is false; "
+              + "the servers that aren't replicas of a name would leave it out of the select");
+    }
+    return false;
+  }
+
+  /**
+   * Returns the server that returns the record of the name in a select that
+   * was sent to the responders. Picks the responder with the highest hash
+   * of it and the name, so the names are spread evenly over the responders
+   * and every server picks the same one.
+   *
+   * @param name
+   * @param responders
+   * @return the responder
+   */
+  static String getResponder(String name, List<String> responders) {
+    String result = null;
+    long highest = Long.MIN_VALUE;
+    for (String responder : responders) {
+      long hash = mix(name.hashCode() * 0x9E3779B97F4A7C15L + responder.hashCode());
+      if (result == null || hash > highest) {
+        highest = hash;
+        result = responder;
+      }
+    }
+    return result;
+  }
+
+  // The finalizer of murmur3's 64 bit hash.
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
   // Takes the JSON records that are returned from an NS and stuffs the into the NSSelectInfo record
   private static void processJSONRecords(JSONArray jsonArray, NSSelectInfo info,
           GNSApplicationInterface<String> ar) throws JSONException {
@@ -686,6 +1062,23 @@ public class Select {
     }
   }
 
+  // Same as processJSONRecords but only decodes the records that are added.
+  private static void processRecordBatch(SelectRecordBatch batch, NSSelectInfo info,
+          GNSApplicationInterface<String> ar) throws JSONException {
+    LOGGER.log(Level.FINE,
+            "NS{0} processing {1} binary records", new Object[]{ar.getNodeID(), batch.size()});
+    for (int i = 0; i < batch.size(); i++) {
+      String name = batch.getName(i);
+      if (!batch.isGuidRecord(i)) { // Filter out any non-guids
+        LOGGER.log(Level.FINE, "NS{0} not a guid record {1}", new Object[]{ar.getNodeID(), name});
+      } else if (!info.hasResponse(name) && info.addResponseIfNotSeenYet(name, batch.getRecord(i))) {
+        LOGGER.log(Level.FINE, "NS{0} added record {1}", new Object[]{ar.getNodeID(), name});
+      } else {
+        LOGGER.log(Level.FINE, "NS{0} already saw record {1}", new Object[]{ar.getNodeID(), name});
+      }
+    }
+  }
+
   private static boolean isGuidRecord(JSONObject json) {
     JSONObject valuesMap = json.optJSONObject(NameRecord.VALUES_MAP.getName());
     if (valuesMap != null) {
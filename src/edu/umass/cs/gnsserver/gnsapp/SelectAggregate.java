@@ -0,0 +1,296 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsserver.gnsapp;
+
+import edu.umass.cs.gnscommon.utils.JSONPath;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectOperation;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectRequestPacket;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An aggregate select: the records that match a query combined into their
+ * count or the smallest, largest or sum of the values of a field, either
+ * over all of them or for each value of a group by field.
+ *
+ * Every server combines the records it matches into a partial result while
+ * it reads them and sends back only that, and the collecting server combines
+ * the partial results. The smallest and largest values don't change however
+ * many servers have a copy of a record but counts and sums do, so unless
+ * the select is partitioned (see SELECT_PARTITIONED) the servers send back
+ * the name and value of each record for those and the collecting server
+ * counts each name once.
+ *
+ * The result is a JSON object with the lower case name of the operation
+ * mapped to the count, min, max or sum or, for a grouped select, to a JSON
+ * object with each value of the group by field mapped to the count, min,
+ * max or sum of its records. Records without the field aren't in the min,
+ * max or sum and records without the group by field aren't in any group.
+ * The min and max use the order of {@link SelectPage} and sums add numbers
+ * and strings that are numbers.
+ *
+ * @author westy
+ */
+public class SelectAggregate {
+
+  private final static String GROUPS = "groups";
+  private final static String RECORDS = "records";
+  // the only group of a select that isn't grouped
+  private final static String ALL = "";
+
+  private final SelectOperation operation;
+  private final String field;
+  private final String groupBy;
+  private final boolean partitioned;
+
+  private SelectAggregate(SelectOperation operation, String field, String groupBy, boolean partitioned) {
+    this.operation = operation;
+    this.field = field;
+    this.groupBy = groupBy;
+    this.partitioned = partitioned;
+  }
+
+  /**
+   * Returns the aggregate the request asks for or null if the request wants
+   * the records.
+   *
+   * @param request
+   * @return the aggregate or null
+   */
+  public static SelectAggregate of(SelectRequestPacket request) {
+    if (!request.getSelectOperation().isAggregate()) {
+      return null;
+    }
+    return new SelectAggregate(request.getSelectOperation(), request.getKey(),
+            request.getGroupBy(), request.getResponders() != null);
+  }
+
+  /**
+   * Returns the fields the records are aggregated by, which the servers
+   * need to read and the reader needs to be able to read.
+   *
+   * @return the fields
+   */
+  public List<String> getFields() {
+    List<String> result = new ArrayList<>();
+    if (field != null && !SelectOperation.COUNT.equals(operation)) {
+      result.add(field);
+    }
+    if (groupBy != null) {
+      result.add(groupBy);
+    }
+    return result;
+  }
+
+  /**
+   * Returns an empty partial result that records can be added to.
+   *
+   * @return a partial result
+   */
+  public Partial newPartial() {
+    return new Partial();
+  }
+
+  /**
+   * Combines the partial results sent back by the servers into the result.
+   *
+   * @param partials
+   * @return the result
+   * @throws JSONException
+   */
+  public JSONObject combine(Collection<JSONObject> partials) throws JSONException {
+    // sorted so grouped results always come back the same way
+    Map<String, Object> groups = new TreeMap<>();
+    JSONObject records = new JSONObject();
+    for (JSONObject partial : partials) {
+      JSONObject partialGroups = partial.optJSONObject(GROUPS);
+      if (partialGroups != null) {
+        Iterator<?> keys = partialGroups.keys();
+        while (keys.hasNext()) {
+          String group = (String) keys.next();
+          groups.put(group, combine(groups.get(group), partialGroups.get(group)));
+        }
+      }
+      JSONObject partialRecords = partial.optJSONObject(RECORDS);
+      if (partialRecords != null) {
+        Iterator<?> names = partialRecords.keys();
+        while (names.hasNext()) {
+          String name = (String) names.next();
+          // every copy of a record is only counted once
+          if (!records.has(name)) {
+            records.put(name, partialRecords.get(name));
+          }
+        }
+      }
+    }
+    Iterator<?> names = records.keys();
+    while (names.hasNext()) {
+      JSONArray groupAndValue = records.getJSONArray((String) names.next());
+      String group = groupAndValue.getString(0);
+      groups.put(group, combine(groups.get(group), groupAndValue.get(1)));
+    }
+    JSONObject result = new JSONObject();
+    String name = operation.name().toLowerCase();
+    if (groupBy == null) {
+      Object value = groups.get(ALL);
+      result.put(name, value != null ? value : getEmptyValue());
+    } else {
+      result.put(name, new JSONObject(groups));
+    }
+    return result;
+  }
+
+  // The result when no records have the field.
+  private Object getEmptyValue() {
+    switch (operation) {
+      case COUNT:
+      case SUM:
+        return 0;
+      default:
+        return JSONObject.NULL;
+    }
+  }
+
+  // Returns the group of the record or null if it isn't in one.
+  private String getGroup(JSONObject valuesMap) {
+    if (groupBy == null) {
+      return ALL;
+    }
+    Object value = JSONPath.of(groupBy).opt(valuesMap);
+    return value == null || JSONObject.NULL.equals(value) ? null : value.toString();
+  }
+
+  // Returns what the record adds to its group or null if it doesn't add anything.
+  private Object getValue(JSONObject valuesMap) {
+    if (SelectOperation.COUNT.equals(operation)) {
+      return 1;
+    }
+    Object value = field != null ? JSONPath.of(field).opt(valuesMap) : null;
+    if (value == null || JSONObject.NULL.equals(value)) {
+      return null;
+    }
+    if (SelectOperation.SUM.equals(operation)) {
+      return toNumber(value);
+    }
+    return value;
+  }
+
+  private static Number toNumber(Object value) {
+    if (value instanceof Number) {
+      return (Number) value;
+    }
+    if (value instanceof String) {
+      try {
+        return Double.parseDouble((String) value);
+      } catch (NumberFormatException e) {
+        // not a number
+      }
+    }
+    return null;
+  }
+
+  // Combines a value into what the group has so far.
+  private Object combine(Object sofar, Object value) {
+    if (sofar == null) {
+      return value;
+    }
+    switch (operation) {
+      case MIN:
+        return SelectPage.compareValues(value, sofar) < 0 ? value : sofar;
+      case MAX:
+        return SelectPage.compareValues(value, sofar) > 0 ? value : sofar;
+      default:
+        return add((Number) sofar, (Number) value);
+    }
+  }
+
+  private static Number add(Number a, Number b) {
+    if (isWhole(a) && isWhole(b)) {
+      return a.longValue() + b.longValue();
+    }
+    return a.doubleValue() + b.doubleValue();
+  }
+
+  private static boolean isWhole(Number number) {
+    return number instanceof Integer || number instanceof Long
+            || number instanceof Short || number instanceof Byte;
+  }
+
+  /**
+   * The part of the result of the records one server matches.
+   */
+  public class Partial {
+
+    private final Map<String, Object> groups = new HashMap<>();
+    // the group and value of each record when they are counted at the collecting server
+    private final Map<String, JSONArray> records = new HashMap<>();
+
+    /**
+     * Adds a record to the partial result.
+     *
+     * @param record
+     */
+    public void add(JSONObject record) {
+      JSONObject valuesMap = record.optJSONObject(NameRecord.VALUES_MAP.getName());
+      if (valuesMap == null) {
+        return;
+      }
+      String group = getGroup(valuesMap);
+      Object value = group != null ? getValue(valuesMap) : null;
+      if (value == null) {
+        return;
+      }
+      if (!partitioned && (SelectOperation.COUNT.equals(operation)
+              || SelectOperation.SUM.equals(operation))) {
+        records.put(record.optString(NameRecord.NAME.getName()), new JSONArray().put(group).put(value));
+      } else {
+        groups.put(group, combine(groups.get(group), value));
+      }
+    }
+
+    /**
+     * Returns the partial result as it is sent to the collecting server.
+     *
+     * @return a JSON object
+     * @throws JSONException
+     */
+    public JSONObject toJSONObject() throws JSONException {
+      JSONObject result = new JSONObject();
+      if (!groups.isEmpty()) {
+        result.put(GROUPS, new JSONObject(groups));
+      }
+      if (!records.isEmpty()) {
+        result.put(RECORDS, new JSONObject(records));
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,387 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsserver.gnsapp;
+
+import edu.umass.cs.gnscommon.GNSProtocol;
+import edu.umass.cs.gnscommon.utils.JSONPath;
+import edu.umass.cs.gnsserver.database.ColumnField;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.FieldVersions;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.InternalField;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectGroupBehavior;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectRequestPacket;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectResponsePacket;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.BasicRecordMap;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.GNSRecordMap;
+import edu.umass.cs.gnsserver.main.GNSConfig;
+import edu.umass.cs.utils.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+
+/**
+ * The results of recent selects collected by a server, used to answer the
+ * same select again without sending it to all the servers.
+ *
+ * Selects are the same if they are made by the same reader and ask for the
+ * same records, fields and page. Queries are compared after the whitespace
+ * that doesn't change them is dropped. Selects that maintain a group are
+ * never cached.
+ *
+ * Every write made through the record map drops the results that use a
+ * field it writes, either in the query, the projection or the sort key.
+ * Writes of whole records, and of internal fields like the ACLs, drop all
+ * the results. Writes made on other servers aren't seen here, so results
+ * are also dropped once they are SELECT_CACHE_MAX_AGE old.
+ *
+ * @author westy
+ */
+public class SelectCache implements GNSRecordMap.WriteListener {
+
+  private static final Map<BasicRecordMap, SelectCache> CACHES
+          = Collections.synchronizedMap(new WeakHashMap<BasicRecordMap, SelectCache>());
+
+  // used by results that use every user field
+  private static final String ALL_FIELDS = GNSProtocol.ENTIRE_RECORD.toString();
+
+  private final long maxAge;
+  private final LinkedHashMap<String, Entry> entries;
+  // the keys of the entries that use each top level field
+  private final Map<String, Set<String>> keysByField = new HashMap<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * A result being collected or collected.
+   */
+  public static class Entry {
+
+    private final String key;
+    private final Set<String> fields;
+    private volatile SelectResponsePacket response = null;
+    private volatile long created;
+
+    private Entry(String key, Set<String> fields) {
+      this.key = key;
+      this.fields = fields;
+    }
+  }
+
+  /**
+   * Use {@link #forRecordMap} to get the cache a server uses.
+   *
+   * @param maxEntries
+   * @param maxAge - in milliseconds
+   */
+  SelectCache(final int maxEntries, long maxAge) {
+    this.maxAge = maxAge;
+    // Entry on its own here would be the inherited Map.Entry
+    this.entries = new LinkedHashMap<String, SelectCache.Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SelectCache.Entry> eldest) {
+        if (size() > maxEntries) {
+          unindex(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the select cache of the record map or null if the cache is
+   * turned off or the record map can't tell it about writes.
+   *
+   * @param recordMap
+   * @return the cache or null
+   */
+  public static SelectCache forRecordMap(BasicRecordMap recordMap) {
+    long maxAge = Config.getGlobalInt(GNSConfig.GNSC.SELECT_CACHE_MAX_AGE);
+    int maxEntries = Config.getGlobalInt(GNSConfig.GNSC.SELECT_CACHE_SIZE);
+    if (maxAge <= 0 || maxEntries <= 0 || !(recordMap instanceof GNSRecordMap)) {
+      return null;
+    }
+    synchronized (CACHES) {
+      SelectCache cache = CACHES.get(recordMap);
+      if (cache == null) {
+        cache = new SelectCache(maxEntries, maxAge);
+        ((GNSRecordMap<?>) recordMap).addWriteListener(cache);
+        CACHES.put(recordMap, cache);
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * Returns the key of the select or null if it can't be cached.
+   *
+   * @param packet
+   * @return the key or null
+   */
+  public static String getKey(SelectRequestPacket packet) {
+    if (!SelectGroupBehavior.NONE.equals(packet.getGroupBehavior())) {
+      return null;
+    }
+    JSONArray key = new JSONArray();
+    key.put(packet.getSelectOperation().name());
+    key.put(packet.getReader() != null ? packet.getReader() : "");
+    key.put(packet.getKey() != null ? packet.getKey() : "");
+    key.put(packet.getValue() != null ? packet.getValue().toString() : "");
+    key.put(packet.getOtherValue() != null ? packet.getOtherValue().toString() : "");
+    key.put(packet.getQuery() != null ? normalizeQuery(packet.getQuery()) : "");
+    if (packet.getProjection() != null) {
+      List<String> projection = new ArrayList<>(packet.getProjection());
+      Collections.sort(projection);
+      key.put(new JSONArray(projection));
+    } else {
+      key.put("");
+    }
+    key.put(packet.getLimit());
+    key.put(packet.getSortKey() != null ? packet.getSortKey() : "");
+    key.put(packet.getContinuation() != null ? packet.getContinuation() : "");
+    key.put(packet.getGroupBy() != null ? packet.getGroupBy() : "");
+    return key.toString();
+  }
+
+  private static boolean isPunctuation(char c) {
+    return ":,(){}[]".indexOf(c) >= 0;
+  }
+
+  /**
+   * Returns the query without whitespace at either end or around
+   * punctuation and with other runs of whitespace replaced by one space.
+   * Quoted strings are left alone.
+   *
+   * @param query
+   * @return the normalized query
+   */
+  static String normalizeQuery(String query) {
+    StringBuilder result = new StringBuilder(query.length());
+    char quote = 0;
+    boolean space = false;
+    for (int i = 0; i < query.length(); i++) {
+      char c = query.charAt(i);
+      if (quote != 0) {
+        result.append(c);
+        if (c == '\\' && i + 1 < query.length()) {
+          result.append(query.charAt(++i));
+        } else if (c == quote) {
+          quote = 0;
+        }
+      } else if (Character.isWhitespace(c)) {
+        space = true;
+      } else {
+        if (space && result.length() > 0 && !isPunctuation(c)
+                && !isPunctuation(result.charAt(result.length() - 1))) {
+          result.append(' ');
+        }
+        space = false;
+        result.append(c);
+        if (c == '"' || c == '\'') {
+          quote = c;
+        }
+      }
+    }
+    return result.toString();
+  }
+
+  // The top level fields the result of the select depends on.
+  private static Set<String> getFields(SelectRequestPacket packet) {
+    Set<String> result = new HashSet<>();
+    List<String> fields = new ArrayList<>(Select.getFieldsForQueryType(packet));
+    if (packet.getProjection() != null) {
+      fields.addAll(packet.getProjection());
+    }
+    if (packet.getSortKey() != null) {
+      fields.add(packet.getSortKey());
+    }
+    for (String field : fields) {
+      result.add(ALL_FIELDS.equals(field) ? ALL_FIELDS : JSONPath.of(field).part(0));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the cached response to the select or null if there isn't one.
+   *
+   * @param key
+   * @return the response or null
+   */
+  public SelectResponsePacket get(String key) {
+    SelectResponsePacket response = null;
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.response != null) {
+        if (System.currentTimeMillis() - entry.created <= maxAge) {
+          response = entry.response;
+        } else {
+          remove(entry);
+        }
+      }
+    }
+    (response != null ? hits : misses).incrementAndGet();
+    return response;
+  }
+
+  /**
+   * Notes that the response to the select is being collected. Writes made
+   * from now on that use its fields keep it from being cached.
+   *
+   * @param key
+   * @param packet
+   * @return the entry to pass to {@link #put}
+   */
+  public Entry start(String key, SelectRequestPacket packet) {
+    Entry entry = new Entry(key, getFields(packet));
+    synchronized (this) {
+      Entry previous = entries.put(key, entry);
+      if (previous != null) {
+        unindex(previous);
+      }
+      for (String field : entry.fields) {
+        Set<String> keys = keysByField.get(field);
+        if (keys == null) {
+          keys = new HashSet<>();
+          keysByField.put(field, keys);
+        }
+        keys.add(key);
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Caches the response collected for the entry unless it was dropped
+   * since {@link #start}.
+   *
+   * @param entry
+   * @param response
+   */
+  public synchronized void put(Entry entry, SelectResponsePacket response) {
+    if (entries.get(entry.key) == entry) {
+      entry.created = System.currentTimeMillis();
+      entry.response = response;
+    }
+  }
+
+  /**
+   * Drops the entry if it hasn't been replaced, for instance because the
+   * select failed.
+   *
+   * @param entry
+   */
+  public synchronized void cancel(Entry entry) {
+    if (entries.get(entry.key) == entry) {
+      remove(entry);
+    }
+  }
+
+  private void remove(Entry entry) {
+    entries.remove(entry.key);
+    unindex(entry);
+  }
+
+  private void unindex(Entry entry) {
+    for (String field : entry.fields) {
+      Set<String> keys = keysByField.get(field);
+      if (keys != null) {
+        keys.remove(entry.key);
+        if (keys.isEmpty()) {
+          keysByField.remove(field);
+        }
+      }
+    }
+  }
+
+  // Drops the entries with the keys, if any.
+  private void removeAll(Set<String> keys) {
+    if (keys != null) {
+      for (String key : new ArrayList<>(keys)) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+          remove(entry);
+          invalidations.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops the results that could have been changed by the write.
+   *
+   * @param name
+   * @param keys
+   */
+  @Override
+  public synchronized void written(String name, List<ColumnField> keys) {
+    if (entries.isEmpty()) {
+      return;
+    }
+    if (keys != null) {
+      boolean internal = false;
+      for (ColumnField key : keys) {
+        String field = key.getName();
+        if (InternalField.isInternalField(field)) {
+          // versions are written along with the fields they are for
+          internal |= !JSONPath.of(field).part(0).equals(FieldVersions.VERSIONS);
+        } else {
+          removeAll(keysByField.get(JSONPath.of(field).part(0)));
+          removeAll(keysByField.get(ALL_FIELDS));
+        }
+      }
+      if (!internal) {
+        return;
+      }
+    }
+    invalidations.addAndGet(entries.size());
+    entries.clear();
+    keysByField.clear();
+  }
+
+  /**
+   * Returns the number of results cached or being collected.
+   *
+   * @return the number of results
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  // The number of fields that results use, for tests.
+  synchronized int indexedFields() {
+    return keysByField.size();
+  }
+
+  @Override
+  public String toString() {
+    return "SelectCache{" + "results=" + size() + ", maxAge=" + maxAge + ", hits=" + hits
+            + ", misses=" + misses + ", invalidations=" + invalidations + '}';
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsserver.gnsapp;
+
+import edu.umass.cs.gnscommon.GNSProtocol;
+import edu.umass.cs.gnscommon.utils.Base64;
+import edu.umass.cs.gnscommon.utils.JSONPath;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectGroupBehavior;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectRequestPacket;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A page of the results of a select: the first limit records, ordered by the
+ * value of the sort key and then by guid, that come after the record the
+ * continuation token was made from.
+ *
+ * Every server keeps just the first limit + 1 of the records it matches
+ * while it reads them and sends back only those, so neither the servers
+ * nor the collecting server hold on to more than a page whatever the size
+ * of the result. The collecting server returns the first limit of all the
+ * records it gets back and, if there are more, a continuation token made
+ * from the last one returned which the client passes back to get the next
+ * page.
+ *
+ * Records without the sort key come after all the ones with it. Numbers
+ * come before strings, and anything else is ordered by its string value.
+ *
+ * @author westy
+ */
+public class SelectPage implements Comparator<JSONObject> {
+
+  private final int limit;
+  private final String sortKey;
+  // the sort value and guid of the last record of the previous page or null
+  private final Object afterValue;
+  private final String afterGuid;
+
+  private SelectPage(int limit, String sortKey, Object afterValue, String afterGuid) {
+    this.limit = limit;
+    this.sortKey = sortKey;
+    this.afterValue = afterValue;
+    this.afterGuid = afterGuid;
+  }
+
+  /**
+   * Returns the page the request asks for or null if the request wants all
+   * the records. Selects that maintain a group always want all the records.
+   *
+   * @param request
+   * @return the page or null
+   * @throws JSONException if the continuation token is bad
+   */
+  public static SelectPage of(SelectRequestPacket request) throws JSONException {
+    if (request.getLimit() <= 0 && request.getContinuation() == null) {
+      return null;
+    }
+    if (!SelectGroupBehavior.NONE.equals(request.getGroupBehavior())) {
+      return null;
+    }
+    Object afterValue = null;
+    String afterGuid = null;
+    if (request.getContinuation() != null) {
+      byte[] bytes;
+      try {
+        bytes = Base64.decode(request.getContinuation());
+      } catch (ArrayIndexOutOfBoundsException e) {
+        // not a base64 character
+        bytes = null;
+      }
+      if (bytes == null) {
+        throw new JSONException("Bad continuation token: " + request.getContinuation());
+      }
+      JSONArray after = new JSONArray(new String(bytes, StandardCharsets.UTF_8));
+      afterValue = JSONObject.NULL.equals(after.get(0)) ? null : after.get(0);
+      afterGuid = after.getString(1);
+    }
+    return new SelectPage(request.getLimit(), request.getSortKey(), afterValue, afterGuid);
+  }
+
+  /**
+   * Returns the maximum number of records in the page or a non-positive
+   * number if there is no limit.
+   *
+   * @return the limit
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Returns the field the records are ordered by or null if they are only
+   * ordered by guid.
+   *
+   * @return the sort key
+   */
+  public String getSortKey() {
+    return sortKey;
+  }
+
+  /**
+   * Returns the projection that includes the sort key, so the servers return
+   * what the records are ordered by, or the projection itself if it already
+   * does.
+   *
+   * @param projection
+   * @return the projection
+   */
+  public List<String> projectionWithSortKey(List<String> projection) {
+    if (sortKey == null || projection == null
+            || (!projection.isEmpty() && GNSProtocol.ENTIRE_RECORD.toString().equals(projection.get(0)))) {
+      return projection;
+    }
+    for (String field : projection) {
+      if (sortKey.equals(field) || sortKey.startsWith(field + ".")
+              || field.startsWith(sortKey + ".")) {
+        // returning both a field and part of it is an error in mongo
+        return projection;
+      }
+    }
+    List<String> result = new ArrayList<>(projection);
+    result.add(sortKey);
+    return result;
+  }
+
+  // The value of the sort key of a record as read from the database or null.
+  private Object getSortValue(JSONObject record) {
+    if (sortKey == null) {
+      return null;
+    }
+    Object value = JSONPath.of(sortKey).opt(record.optJSONObject(NameRecord.VALUES_MAP.getName()));
+    return JSONObject.NULL.equals(value) ? null : value;
+  }
+
+  private static int rank(Object value) {
+    if (value == null) {
+      return 3;
+    } else if (value instanceof Number) {
+      return 0;
+    } else if (value instanceof String) {
+      return 1;
+    }
+    return 2;
+  }
+
+  // Also the order of the min and max of a SelectAggregate.
+  static int compareValues(Object a, Object b) {
+    int rankA = rank(a);
+    int rankB = rank(b);
+    if (rankA != rankB) {
+      return Integer.compare(rankA, rankB);
+    }
+    switch (rankA) {
+      case 0:
+        return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+      case 1:
+        return ((String) a).compareTo((String) b);
+      case 2:
+        return a.toString().compareTo(b.toString());
+      default:
+        return 0;
+    }
+  }
+
+  private int compare(Object valueA, String guidA, Object valueB, String guidB) {
+    int result = compareValues(valueA, valueB);
+    return result != 0 ? result : guidA.compareTo(guidB);
+  }
+
+  /**
+   * Compares two records as read from the database in page order.
+   *
+   * @param a
+   * @param b
+   * @return the comparison
+   */
+  @Override
+  public int compare(JSONObject a, JSONObject b) {
+    return compare(getSortValue(a), a.optString(NameRecord.NAME.getName()),
+            getSortValue(b), b.optString(NameRecord.NAME.getName()));
+  }
+
+  /**
+   * Returns true if the record comes after the record the continuation token
+   * was made from, or if there isn't a token.
+   *
+   * @param record
+   * @return true if the record can be in the page
+   */
+  public boolean isAfterContinuation(JSONObject record) {
+    return afterGuid == null
+            || compare(getSortValue(record), record.optString(NameRecord.NAME.getName()),
+                    afterValue, afterGuid) > 0;
+  }
+
+  /**
+   * Returns the continuation token for the page after the one ending with
+   * the record.
+   *
+   * @param record
+   * @return the token
+   * @throws JSONException
+   */
+  public String makeContinuation(JSONObject record) throws JSONException {
+    Object value = getSortValue(record);
+    JSONArray after = new JSONArray();
+    after.put(value != null ? value : JSONObject.NULL);
+    after.put(record.getString(NameRecord.NAME.getName()));
+    return Base64.encodeToString(after.toString().getBytes(StandardCharsets.UTF_8), false);
+  }
+
+  /**
+   * Returns the records in page order.
+   *
+   * @param records
+   * @return a list of the records
+   */
+  public List<JSONObject> sort(Collection<JSONObject> records) {
+    List<JSONObject> result = new ArrayList<>(records);
+    Collections.sort(result, this);
+    return result;
+  }
+
+  /**
+   * Returns an empty buffer that keeps the first records offered to it.
+   *
+   * @return a buffer
+   */
+  public Buffer newBuffer() {
+    return new Buffer();
+  }
+
+  /**
+   * Keeps the first limit + 1 records, in page order, of the ones offered to
+   * it that come after the continuation token. The extra one tells the
+   * collecting server whether there is another page.
+   */
+  public class Buffer {
+
+    // the last of the records kept is at the head
+    private final PriorityQueue<JSONObject> records
+            = new PriorityQueue<>(16, Collections.reverseOrder(SelectPage.this));
+
+    /**
+     * Offers a record to the buffer.
+     *
+     * @param record
+     */
+    public void offer(JSONObject record) {
+      if (!isAfterContinuation(record)) {
+        return;
+      }
+      records.add(record);
+      if (limit > 0 && records.size() > limit + 1) {
+        records.poll();
+      }
+    }
+
+    /**
+     * Returns the records kept in page order.
+     *
+     * @return the records
+     */
+    public List<JSONObject> getRecords() {
+      return sort(records);
+    }
+  }
+}
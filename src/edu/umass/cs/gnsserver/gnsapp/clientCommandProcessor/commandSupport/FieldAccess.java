@@ -32,6 +32,8 @@ import edu.umass.cs.gnsserver.main.GNSConfig;
 import edu.umass.cs.gnsserver.utils.ResultValue;
 import edu.umass.cs.gnscommon.utils.Base64;
 import edu.umass.cs.gnsserver.gnsapp.Select;
+import edu.umass.cs.gnsserver.gnsapp.SelectAggregate;
+import edu.umass.cs.gnsserver.gnsapp.SelectPage;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.ClientRequestHandlerInterface;
 import edu.umass.cs.gnsserver.gnsapp.clientSupport.AclCheckResult;
 import edu.umass.cs.gnsserver.gnsapp.clientSupport.NSAuthentication;
@@ -60,6 +62,8 @@ import edu.umass.cs.utils.Config;
 import java.net.UnknownHostException;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang3.time.DateUtils;
@@ -103,13 +107,15 @@ public class FieldAccess {
    * @param signature
    * @param message
    * @param timestamp
+   * @param ifVersionDiffers - if not null only return the value if the field has
+   * changed since this version (see {@link FieldVersions})
    * @param handler
    * @return the value of a single field
    */
   public static CommandResponse lookupSingleField(InternalRequestHeader header, CommandPacket commandPacket,
           String guid, String field,
           String reader, String signature, String message, Date timestamp,
-          ClientRequestHandlerInterface handler) {
+          String ifVersionDiffers, ClientRequestHandlerInterface handler) {
     ResponseCode errorCode = signatureAndACLCheckForRead(header, commandPacket, guid, field,
             null, // fields
             reader, signature, message, timestamp, handler.getApp());
@@ -118,6 +124,13 @@ public class FieldAccess {
     }
     ValuesMap valuesMap;
     try {
+      String version = null;
+      if (ifVersionDiffers != null) {
+        version = FieldVersions.lookupVersion(guid, field, handler.getApp().getDB());
+        if (ifVersionDiffers.equals(version)) {
+          return new CommandResponse(ResponseCode.NOT_MODIFIED);
+        }
+      }
       valuesMap = NSFieldAccess.lookupJSONFieldLocally(header, guid, field, handler.getApp());
       // note: reader can also be null here
       if (!header.verifyInternal()) {
@@ -135,6 +148,10 @@ public class FieldAccess {
                   GNSProtocol.BAD_RESPONSE.toString() + " "
                   + GNSProtocol.FIELD_NOT_FOUND.toString() + " " + guid + ":" + field + " ");
         } else {
+          if (version != null) {
+            // so the reader can make its next read conditional
+            valuesMap.put(FieldVersions.VERSION, version);
+          }
           // arun: added support for SINGLE_FIELD_VALUE_ONLY flag
           return new CommandResponse(ResponseCode.NO_ERROR,
                   SINGLE_FIELD_VALUE_ONLY ? valuesMap.getString(field)
@@ -213,12 +230,14 @@ public class FieldAccess {
    * @param signature
    * @param timestamp
    * @param message
+   * @param ifVersionDiffers - if not null only return the value if the field has
+   * changed since this version (see {@link FieldVersions})
    * @param handler
    * @return a command response
    */
   public static CommandResponse lookupJSONArray(InternalRequestHeader header, CommandPacket commandPacket,
           String guid, String field, String reader, String signature, String message, Date timestamp,
-          ClientRequestHandlerInterface handler) {
+          String ifVersionDiffers, ClientRequestHandlerInterface handler) {
 
     ResponseCode errorCode = signatureAndACLCheckForRead(header, commandPacket, guid, field,
             null, // fields
@@ -226,11 +245,27 @@ public class FieldAccess {
     if (errorCode.isExceptionOrError()) {
       return new CommandResponse(errorCode, GNSProtocol.BAD_RESPONSE.toString() + " " + errorCode.getProtocolCode());
     }
+    String version = null;
+    if (ifVersionDiffers != null) {
+      try {
+        version = FieldVersions.lookupVersion(guid, field, handler.getApp().getDB());
+      } catch (FailedDBOperationException e) {
+        return new CommandResponse(ResponseCode.DATABASE_OPERATION_ERROR, GNSProtocol.BAD_RESPONSE.toString()
+                + " " + GNSProtocol.DATABASE_OPERATION_ERROR.toString() + " " + e);
+      }
+      if (ifVersionDiffers.equals(version)) {
+        return new CommandResponse(ResponseCode.NOT_MODIFIED);
+      }
+    }
     String resultString;
     ResultValue value = NSFieldAccess.lookupListFieldLocallySafe(guid, field, handler.getApp().getDB());
     if (!value.isEmpty()) {
       try {
-        resultString = new JSONObject().put(field, value).toString();
+        JSONObject result = new JSONObject().put(field, value);
+        if (version != null) {
+          result.put(FieldVersions.VERSION, version);
+        }
+        resultString = result.toString();
       } catch (JSONException e) {
         return new CommandResponse(ResponseCode.JSON_PARSE_ERROR, GNSProtocol.BAD_RESPONSE.toString() + " " + ResponseCode.JSON_PARSE_ERROR);
       }
@@ -586,6 +621,21 @@ public class FieldAccess {
           String reader, String signature, String message,
           GNSApplicationInterface<String> app)
           throws FailedDBOperationException, JSONException, UnknownHostException, InternalRequestException {
+    SelectResponsePacket responsePacket = executeSelectRequest(header, commandPacket, packet,
+            reader, signature, message, app);
+    if (responsePacket != null) {
+      return getSelectResults(packet, responsePacket);
+    } else {
+      return null;
+    }
+  }
+
+  // Returns the response to the select or null if it failed.
+  private static SelectResponsePacket executeSelectRequest(InternalRequestHeader header, CommandPacket commandPacket,
+          SelectRequestPacket packet,
+          String reader, String signature, String message,
+          GNSApplicationInterface<String> app)
+          throws FailedDBOperationException, JSONException, UnknownHostException, InternalRequestException {
     // First do a signature check 
     if (!signatureCheckForSelect(reader, signature, message, app)) {
       return null;
@@ -595,16 +645,20 @@ public class FieldAccess {
     if (responsePacket != null
             && // Fixme: probably should just have handleSelectRequestFromClient throw a clientException
             SelectResponsePacket.ResponseCode.NOERROR.equals(responsePacket.getResponseCode())) {
-      if (packet.getProjection() == null) {
-        return responsePacket.getGuids();
-      } else {
-        return responsePacket.getRecords();
-      }
+      return responsePacket;
     } else {
       return null;
     }
   }
 
+  private static JSONArray getSelectResults(SelectRequestPacket packet, SelectResponsePacket responsePacket) {
+    if (packet.getProjection() == null) {
+      return responsePacket.getGuids();
+    } else {
+      return responsePacket.getRecords();
+    }
+  }
+
   private static boolean signatureCheckForSelect(String reader, String signature,
           String message, GNSApplicationInterface<String> app) {
     try {
@@ -726,12 +780,19 @@ public class FieldAccess {
 
   /**
    * Sends a select request to the server to retrieve all the guid matching the query.
+   * If a limit or continuation is given only a page of the results is returned
+   * along with the continuation token for the next page (see {@link SelectPage}).
+   * A page whose select fails or times out is answered with an error rather
+   * than an empty page, which would look like the last one.
    *
    * @param header
    * @param commandPacket
    * @param reader
    * @param query
    * @param projection
+   * @param limit - the maximum number of results to return or -1 for all of them
+   * @param sortKey - the field to order the results by or null to order them by guid
+   * @param continuation - the token returned with the previous page or null
    * @param signature
    * @param message
    * @param handler
@@ -740,6 +801,7 @@ public class FieldAccess {
    */
   public static CommandResponse selectQuery(InternalRequestHeader header, CommandPacket commandPacket,
           String reader, String query, List<String> projection,
+          int limit, String sortKey, String continuation,
           String signature, String message,
           ClientRequestHandlerInterface handler) throws InternalRequestException {
     if (Select.queryContainsEvil(query)) {
@@ -748,9 +810,13 @@ public class FieldAccess {
               + GNSProtocol.OPERATION_NOT_SUPPORTED.toString()
               + " Bad query operators in " + query);
     }
+    SelectRequestPacket packet = SelectRequestPacket.MakeQueryRequest(-1, reader, query, projection);
+    if (limit > 0 || continuation != null) {
+      return selectQueryPage(header, commandPacket, packet, limit, sortKey, continuation,
+              signature, message, handler);
+    }
     JSONArray result;
     try {
-      SelectRequestPacket packet = SelectRequestPacket.MakeQueryRequest(-1, reader, query, projection);
       result = executeSelectHelper(header, commandPacket, packet, reader, signature, message, handler.getApp());
       if (result != null) {
         return new CommandResponse(ResponseCode.NO_ERROR, result.toString());
@@ -761,6 +827,154 @@ public class FieldAccess {
     return new CommandResponse(ResponseCode.NO_ERROR, EMPTY_JSON_ARRAY_STRING);
   }
 
+  // Returns a page of the results of the select query along with the
+  // continuation token for the next page if there is one.
+  private static CommandResponse selectQueryPage(InternalRequestHeader header, CommandPacket commandPacket,
+          SelectRequestPacket packet, int limit, String sortKey, String continuation,
+          String signature, String message,
+          ClientRequestHandlerInterface handler) throws InternalRequestException {
+    packet.setPage(limit, sortKey, continuation);
+    try {
+      // catch bad tokens here rather than on every server
+      SelectPage.of(packet);
+    } catch (JSONException e) {
+      return new CommandResponse(ResponseCode.JSON_PARSE_ERROR,
+              GNSProtocol.BAD_RESPONSE.toString() + " "
+              + GNSProtocol.JSON_PARSE_ERROR.toString() + " " + e.getMessage());
+    }
+    if (!signatureCheckForSelect(packet.getReader(), signature, message, handler.getApp())) {
+      return new CommandResponse(ResponseCode.SIGNATURE_ERROR, GNSProtocol.BAD_RESPONSE.toString()
+              + " " + GNSProtocol.BAD_SIGNATURE.toString());
+    }
+    JSONObject result = new JSONObject();
+    try {
+      // an empty page has to mean there are no more results, so failures aren't hidden
+      SelectResponsePacket responsePacket = awaitSelect(header, packet, handler.getApp());
+      JSONArray results = getSelectResults(packet, responsePacket);
+      result.put(GNSProtocol.RESULTS.toString(), results != null ? results : new JSONArray());
+      if (responsePacket.getContinuation() != null) {
+        result.put(GNSProtocol.CONTINUATION.toString(), responsePacket.getContinuation());
+      }
+    } catch (TimeoutException e) {
+      return new CommandResponse(ResponseCode.TIMEOUT, GNSProtocol.BAD_RESPONSE.toString()
+              + " " + GNSProtocol.TIMEOUT.toString() + " " + e.getMessage());
+    } catch (IOException | FailedDBOperationException e) {
+      return new CommandResponse(ResponseCode.DATABASE_OPERATION_ERROR, GNSProtocol.BAD_RESPONSE.toString()
+              + " " + GNSProtocol.DATABASE_OPERATION_ERROR.toString() + " " + e);
+    } catch (JSONException e) {
+      return new CommandResponse(ResponseCode.JSON_PARSE_ERROR, GNSProtocol.BAD_RESPONSE.toString()
+              + " " + GNSProtocol.JSON_PARSE_ERROR.toString() + " " + e);
+    }
+    return new CommandResponse(ResponseCode.NO_ERROR, result.toString());
+  }
+
+  // Returns the response to the select. Throws a TimeoutException if the
+  // servers didn't all respond in time and a FailedDBOperationException if
+  // the select failed.
+  private static SelectResponsePacket awaitSelect(InternalRequestHeader header, SelectRequestPacket packet,
+          GNSApplicationInterface<String> app) throws TimeoutException, FailedDBOperationException,
+          JSONException, UnknownHostException, InternalRequestException {
+    SelectResponsePacket responsePacket;
+    try {
+      responsePacket = Select.handleSelectRequestFromClientAsync(header, packet, app).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FailedDBOperationException(null, packet.getQuery(), "Interrupted while waiting for the select");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        throw (TimeoutException) e.getCause();
+      }
+      throw new FailedDBOperationException(null, packet.getQuery(), String.valueOf(e.getCause()));
+    }
+    if (!SelectResponsePacket.ResponseCode.NOERROR.equals(responsePacket.getResponseCode())) {
+      throw new FailedDBOperationException(null, packet.getQuery(), responsePacket.getErrorMessage());
+    }
+    return responsePacket;
+  }
+
+  /**
+   * Sends a select request to the server to count the records matching the
+   * query or find the min, max or sum of a field in them, optionally for each
+   * value of the group by field. The servers combine the records so only the
+   * result comes back (see {@link SelectAggregate}). A count or sum that isn't
+   * partitioned (see SELECT_PARTITIONED) can't be combined on the servers,
+   * since each record is on several of them, so they send back a name and
+   * value for each matching record instead. A select that fails or times out
+   * is answered with an error rather than an empty result.
+   *
+   * @param header
+   * @param commandPacket
+   * @param reader
+   * @param query
+   * @param aggregate - count, min, max or sum
+   * @param field - the field that is aggregated, not needed for count
+   * @param groupBy - the field the records are grouped by or null
+   * @param signature
+   * @param message
+   * @param handler
+   * @return a command response
+   * @throws InternalRequestException
+   */
+  public static CommandResponse selectAggregate(InternalRequestHeader header, CommandPacket commandPacket,
+          String reader, String query, String aggregate, String field, String groupBy,
+          String signature, String message,
+          ClientRequestHandlerInterface handler) throws InternalRequestException {
+    if (Select.queryContainsEvil(query)) {
+      return new CommandResponse(ResponseCode.OPERATION_NOT_SUPPORTED,
+              GNSProtocol.BAD_RESPONSE.toString() + " "
+              + GNSProtocol.OPERATION_NOT_SUPPORTED.toString()
+              + " Bad query operators in " + query);
+    }
+    SelectOperation operation;
+    try {
+      operation = SelectOperation.valueOf(aggregate.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      operation = null;
+    }
+    if (operation == null || !operation.isAggregate()) {
+      return new CommandResponse(ResponseCode.OPERATION_NOT_SUPPORTED,
+              GNSProtocol.BAD_RESPONSE.toString() + " "
+              + GNSProtocol.OPERATION_NOT_SUPPORTED.toString()
+              + " Bad aggregate " + aggregate);
+    }
+    if (field == null && !SelectOperation.COUNT.equals(operation)) {
+      return new CommandResponse(ResponseCode.FIELD_NOT_FOUND_ERROR,
+              GNSProtocol.BAD_RESPONSE.toString() + " "
+              + GNSProtocol.FIELD_NOT_FOUND.toString()
+              + " " + aggregate + " needs a field");
+    }
+    SelectRequestPacket packet = SelectRequestPacket.MakeAggregateRequest(-1, reader, operation,
+            query, field, groupBy);
+    if (!signatureCheckForSelect(reader, signature, message, handler.getApp())) {
+      return new CommandResponse(ResponseCode.SIGNATURE_ERROR, GNSProtocol.BAD_RESPONSE.toString()
+              + " " + GNSProtocol.BAD_SIGNATURE.toString());
+    }
+    JSONObject result;
+    try {
+      SelectResponsePacket responsePacket = awaitSelect(header, packet, handler.getApp());
+      result = responsePacket.getAggregate();
+      if (result == null) {
+        throw new FailedDBOperationException(null, query, "No aggregate in the select response");
+      }
+    } catch (TimeoutException e) {
+      return new CommandResponse(ResponseCode.TIMEOUT, GNSProtocol.BAD_RESPONSE.toString()
+              + " " + GNSProtocol.TIMEOUT.toString() + " " + e.getMessage());
+    } catch (IOException | FailedDBOperationException e) {
+      return new CommandResponse(ResponseCode.DATABASE_OPERATION_ERROR, GNSProtocol.BAD_RESPONSE.toString()
+              + " " + GNSProtocol.DATABASE_OPERATION_ERROR.toString() + " " + e);
+    } catch (JSONException e) {
+      return new CommandResponse(ResponseCode.JSON_PARSE_ERROR, GNSProtocol.BAD_RESPONSE.toString()
+              + " " + GNSProtocol.JSON_PARSE_ERROR.toString() + " " + e);
+    }
+    // Select sets the responders when each record is only returned by one server
+    if (packet.getResponders() == null && (SelectOperation.COUNT.equals(operation)
+            || SelectOperation.SUM.equals(operation))) {
+      LOGGER.log(Level.FINE, "{0} of {1} was not partitioned so the servers sent back a name and value "
+              + "for each record", new Object[]{operation, query});
+    }
+    return new CommandResponse(ResponseCode.NO_ERROR, result.toString());
+  }
+
   /**
    * Sends a select request to the server to setup a context aware group guid and retrieve all the guids matching the query.
    *
@@ -0,0 +1,123 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.exceptions.server.FieldNotFoundException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
+import edu.umass.cs.gnscommon.utils.JSONPath;
+import edu.umass.cs.gnsserver.database.ColumnFieldType;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.BasicRecordMap;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+import edu.umass.cs.gnsserver.main.GNSConfig;
+import edu.umass.cs.gnsserver.utils.ValuesMap;
+import edu.umass.cs.utils.Config;
+
+/**
+ * Versions of the top level user fields of a guid, used for conditional reads.
+ *
+ * Every update of a field stamps the field with a new version in the same
+ * write (see {@link NameRecord#updateNameRecord}), and removing a field
+ * removes its version. The version of a write is made from the id of the
+ * request that made it, which is the same on every replica, so it can be
+ * compared with a version the reader got from any replica.
+ *
+ * The versions are kept in an internal field keyed by the top level field,
+ * so a write of "location.lat" changes the version of "location" and a read
+ * of "location.lat" compares against that. Fields that haven't been written
+ * since the versions were added don't have one and are always read.
+ *
+ * @author westy
+ */
+public class FieldVersions {
+
+  /**
+   * VERSIONS - the internal field that holds the version of each top level field.
+   */
+  public static final String VERSIONS = InternalField.makeInternalFieldString("versions");
+  /**
+   * VERSION - the key of the version returned along with the value of a
+   * conditional read.
+   */
+  public static final String VERSION = InternalField.makeInternalFieldString("version");
+
+  /**
+   * Returns the version of a write made by the request.
+   *
+   * @param requestID
+   * @return the version
+   */
+  public static String makeVersion(long requestID) {
+    return Long.toHexString(requestID);
+  }
+
+  /**
+   * Returns the key, relative to the values map, of the version of the field
+   * or null if the field isn't versioned.
+   *
+   * @param field
+   * @return the key or null
+   */
+  public static String getVersionKey(String field) {
+    if (field == null || InternalField.isInternalField(field)) {
+      return null;
+    }
+    return VERSIONS + "." + JSONPath.of(field).part(0);
+  }
+
+  /**
+   * Returns the current version of the field or null if the field doesn't
+   * have one. Also returns null if the guid has read active code since that
+   * can change what a read returns without a write.
+   *
+   * @param guid
+   * @param field
+   * @param database
+   * @return the version or null
+   * @throws FailedDBOperationException
+   */
+  public static String lookupVersion(String guid, String field, BasicRecordMap database)
+          throws FailedDBOperationException {
+    String versionKey = getVersionKey(field);
+    if (versionKey == null) {
+      return null;
+    }
+    boolean activeCode = !Config.getGlobalBoolean(GNSConfig.GNSC.DISABLE_ACTIVE_CODE);
+    try {
+      NameRecord nameRecord = activeCode
+              ? NameRecord.getNameRecordMultiUserFields(database, guid, ColumnFieldType.USER_JSON,
+                      versionKey, ActiveCode.ON_READ)
+              : NameRecord.getNameRecordMultiUserFields(database, guid, ColumnFieldType.USER_JSON,
+                      versionKey);
+      ValuesMap valuesMap = nameRecord.getValuesMap();
+      if (activeCode && !valuesMap.isNull(ActiveCode.ON_READ)) {
+        return null;
+      }
+      // the lookup returns the version under its dotted key
+      Object version = valuesMap.opt(versionKey);
+      if (version == null) {
+        version = JSONPath.of(versionKey).opt(valuesMap);
+      }
+      return version instanceof String ? (String) version : null;
+    } catch (RecordNotFoundException | FieldNotFoundException e) {
+      return null;
+    }
+  }
+}
@@ -93,13 +93,15 @@ public class Read extends AbstractCommand {
     } else {
       timestamp = null;
     }
+    // only single field reads can be conditional
+    String ifVersionDiffers = json.optString(GNSProtocol.IF_VERSION_DIFFERS.toString(), null);
 
     if (GNSProtocol.ENTIRE_RECORD.toString().equals(field)) {
       return FieldAccess.lookupMultipleValues(internalHeader, commandPacket, guid, reader,
               signature, message, timestamp, handler);
     } else if (field != null) {
       return FieldAccess.lookupSingleField(internalHeader, commandPacket, guid, field, reader, signature,
-              message, timestamp, handler);
+              message, timestamp, ifVersionDiffers, handler);
     } else { // multi-field lookup
       return FieldAccess.lookupMultipleFields(internalHeader, commandPacket, guid, fields, reader, signature,
               message, timestamp, handler);
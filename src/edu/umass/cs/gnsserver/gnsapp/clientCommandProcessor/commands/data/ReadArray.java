@@ -87,6 +87,8 @@ import edu.umass.cs.gnscommon.packets.CommandPacket;
     } else {
       timestamp = null;
     }
+    // only single field reads can be conditional
+    String ifVersionDiffers = json.optString(GNSProtocol.IF_VERSION_DIFFERS.toString(), null);
 
     if (getCommandType().equals(CommandType.ReadArrayOne)
             || getCommandType().equals(CommandType.ReadArrayOneUnsigned)) {
@@ -102,7 +104,7 @@ import edu.umass.cs.gnscommon.packets.CommandPacket;
               signature, message, timestamp, handler);
     } else {
       return FieldAccess.lookupJSONArray(header, commandPacket, guid, field, reader, 
-              signature, message, timestamp, handler);
+              signature, message, timestamp, ifVersionDiffers, handler);
     }
   }
 }
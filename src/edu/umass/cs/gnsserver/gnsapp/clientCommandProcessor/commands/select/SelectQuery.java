@@ -41,6 +41,8 @@ import org.json.JSONObject;
  * This supports an older style that returns only GUIDs 
  * as well as newer SelectRecords calls that return entire records
  * or partial records based on the value of the FIELDS parameter.
+ * The optional LIMIT, SORT_KEY and CONTINUATION parameters return
+ * the results a page at a time.
  *
  * @author westy
  */
@@ -84,7 +86,12 @@ public class SelectQuery extends AbstractCommand {
     } else {
       fields = JSONUtils.JSONArrayToArrayListString(json.getJSONArray(GNSProtocol.FIELDS.toString()));
     }
+    // an optional page of the results
+    int limit = json.optInt(GNSProtocol.LIMIT.toString(), -1);
+    String sortKey = json.optString(GNSProtocol.SORT_KEY.toString(), null);
+    String continuation = json.optString(GNSProtocol.CONTINUATION.toString(), null);
     return FieldAccess.selectQuery(header, commandPacket, reader, query, fields,
+            limit, sortKey, continuation,
             signature, message, handler);
   }
 
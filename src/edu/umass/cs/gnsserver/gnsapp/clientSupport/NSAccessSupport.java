@@ -31,7 +31,6 @@ import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 
@@ -54,6 +53,7 @@ import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
 import edu.umass.cs.gnscommon.exceptions.server.FieldNotFoundException;
 import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
 import edu.umass.cs.gnscommon.utils.Base64;
+import edu.umass.cs.gnscommon.utils.JSONPath;
 import edu.umass.cs.gnsserver.gnsapp.GNSApplicationInterface;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.MetaDataTypeName;
 import edu.umass.cs.gnsserver.gnsapp.recordmap.BasicRecordMap;
@@ -256,8 +256,9 @@ public class NSAccessSupport {
       ClientSupportConfig.getLogger().log(Level.FINE, "###field NOT FOUND={0}.. GOING UP", new Object[]{field});
     }
     // otherwise go up the hierarchy and check
-    if (field.contains(".")) {
-      return hierarchicalAccessGroupCheck(accessType, guid, field.substring(0, field.lastIndexOf(".")),
+    JSONPath parent = JSONPath.of(field).parent();
+    if (parent != null) {
+      return hierarchicalAccessGroupCheck(accessType, guid, parent.getKey(),
               groups, activeReplica);
     } else if (!GNSProtocol.ENTIRE_RECORD.toString().equals(field)) {
       return hierarchicalAccessGroupCheck(accessType, guid, GNSProtocol.ENTIRE_RECORD.toString(), groups, activeReplica);
@@ -412,46 +413,44 @@ public class NSAccessSupport {
   
   /**
    * Looks up the public key for a guid using the acl of a field.
-   * Handles fields that uses dot notation. Recursively goes up the tree
-   * towards the root (GNSProtocol.ENTIRE_RECORD.toString()) node.
+   * Handles fields that uses dot notation. Uses the acl of the deepest
+   * level of the field that has one, then the acl of the root and then
+   * that of the (GNSProtocol.ENTIRE_RECORD.toString()) node.
    *
    * @param access
    * @param guid
-   * @param fields a list of fields from the root to the field that needs to be checked
+   * @param field the path of the field that needs to be checked
    * @param metaData 
    * @return a set of public keys
    * @throws FailedDBOperationException
    */
-  public static JSONArray lookupPublicKeysFromAcl(MetaDataTypeName access, String guid, List<String> fields,
+  public static JSONArray lookupPublicKeysFromAcl(MetaDataTypeName access, String guid, JSONPath field,
           JSONObject metaData) throws FailedDBOperationException {
-    ClientSupportConfig.getLogger().log(Level.FINE, "###fields={0}", new Object[]{fields});
-    try {
-    	JSONObject fieldACL = metaData.getJSONObject(access.getPrefix())
-				.getJSONObject(access.name());
-    	for(String field:fields){
-    		fieldACL = fieldACL.getJSONObject(field);
-    	}
-    	return fieldACL.getJSONArray(GNSProtocol.MD.toString()); 
-	} catch (JSONException e) {
-		ClientSupportConfig.getLogger().log(Level.FINE, "###field NOT FOUND={0}.. GOING UP", new Object[]{fields});
-	}
-	
-    // otherwise go up the hierarchy and check
-    if (fields.size() > 0) {
-      return lookupPublicKeysFromAcl(access, guid, fields.subList(0, fields.size()-1), metaData);      
-    } else if (fields.size() == 0) {
-    // One last check at the root (GNSProtocol.ENTIRE_RECORD.toString()) field.
-	    try {
-			return metaData.getJSONObject(access.getPrefix())
-					.getJSONObject(access.name()).getJSONObject(GNSProtocol.ENTIRE_RECORD.toString())
-					.getJSONArray(GNSProtocol.MD.toString());
-		} catch (JSONException e) {
-			// No ACL exists for root (GNSProtocol.ENTIRE_RECORD.toString()) field
-			return null;
-		}
-    } else {
+    ClientSupportConfig.getLogger().log(Level.FINE, "###field={0}", new Object[]{field});
+    JSONObject accessTypes = metaData.optJSONObject(access.getPrefix());
+    JSONObject acl = accessTypes != null ? accessTypes.optJSONObject(access.name()) : null;
+    if (acl == null) {
       return null;
     }
+    // walk down the field once remembering the deepest acl on the way
+    // rather than going back up from the field one lookup at a time
+    JSONArray publicKeys = acl.optJSONArray(GNSProtocol.MD.toString());
+    JSONObject level = acl;
+    for (int i = 0; i < field.depth() && level != null; i++) {
+      level = level.optJSONObject(field.part(i));
+      if (level != null && level.optJSONArray(GNSProtocol.MD.toString()) != null) {
+        publicKeys = level.optJSONArray(GNSProtocol.MD.toString());
+      }
+    }
+    if (publicKeys == null) {
+      // One last check at the root (GNSProtocol.ENTIRE_RECORD.toString()) field.
+      JSONObject entireRecord = acl.optJSONObject(GNSProtocol.ENTIRE_RECORD.toString());
+      publicKeys = entireRecord != null ? entireRecord.optJSONArray(GNSProtocol.MD.toString()) : null;
+    }
+    if (publicKeys == null) {
+      ClientSupportConfig.getLogger().log(Level.FINE, "###field NOT FOUND={0}", new Object[]{field});
+    }
+    return publicKeys;
   }
 
   /**
@@ -24,7 +24,6 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
@@ -39,6 +38,7 @@ import edu.umass.cs.gnscommon.GNSProtocol;
 import edu.umass.cs.gnscommon.ResponseCode;
 import edu.umass.cs.gnscommon.SharedGuidUtils;
 import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.utils.JSONPath;
 import edu.umass.cs.gnsserver.gnsapp.GNSApplicationInterface;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.AccountAccess;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.GuidInfo;
@@ -264,13 +264,8 @@ public class NSAuthentication {
   private static String lookupPublicKeyFromMetaData(InternalRequestHeader header, String guid, String field, String accessorGuid,
           MetaDataTypeName access, JSONObject metaData, GNSApplicationInterface<String> gnsApp)
           throws FailedDBOperationException {
-	  List<String> fields = null;
-	if(field.contains("."))  
-		fields = Arrays.asList(field.split("."));
-	else
-		fields = Arrays.asList(field);
     // Field could also be GNSProtocol.ENTIRE_RECORD.toString() here 
-    JSONArray publicKeys = NSAccessSupport.lookupPublicKeysFromAcl(access, guid, fields, metaData);
+    JSONArray publicKeys = NSAccessSupport.lookupPublicKeysFromAcl(access, guid, JSONPath.of(field), metaData);
     String publicKey = SharedGuidUtils.findPublicKeyForGuid(accessorGuid, publicKeys);
     ClientSupportConfig.getLogger().log(Level.FINE,
             "================> {0} lookup for {1} returned: {2} public keys={3}",
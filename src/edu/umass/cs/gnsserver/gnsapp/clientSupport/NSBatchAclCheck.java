@@ -0,0 +1,236 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsserver.gnsapp.clientSupport;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import edu.umass.cs.gnscommon.GNSProtocol;
+import edu.umass.cs.gnscommon.SharedGuidUtils;
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.utils.JSONPath;
+import edu.umass.cs.gnsserver.gnsapp.GNSApplicationInterface;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.AccountAccess;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.MetaDataTypeName;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+
+/**
+ * Checks whether one reader can access the fields of many records, using the
+ * ACLs in the records themselves.
+ *
+ * Makes the same decisions as
+ * {@link NSAuthentication#signatureAndACLCheck} without a signature check,
+ * but that reads the whole record again for every field it checks and hashes
+ * every public key in the ACL to find the reader's. This reads nothing for
+ * records read along with their ACLs, hashes each public key once, and looks
+ * up whether the reader exists and the groups it is in at most once, so it is
+ * meant to be used for all the records of a select.
+ *
+ * The records have the name and values map of a record read from the
+ * database, and the values map must have the ACLs of the access type (see
+ * {@link #getAclField}) if there are any.
+ *
+ * @author westy
+ */
+public class NSBatchAclCheck {
+
+  private final String reader;
+  private final MetaDataTypeName access;
+  private final GNSApplicationInterface<String> gnsApp;
+  // the guids of the public keys hashed so far, "" for bogus ones
+  private final Map<String, String> guids = new HashMap<>();
+  // looked up the first time they're needed
+  private Boolean readerExists = null;
+  private Set<String> readerGroups = null;
+
+  /**
+   * @param reader - the guid doing the access or null for an unsigned read
+   * @param access - the type of access
+   * @param gnsApp
+   */
+  public NSBatchAclCheck(String reader, MetaDataTypeName access, GNSApplicationInterface<String> gnsApp) {
+    this.reader = reader;
+    this.access = access;
+    this.gnsApp = gnsApp;
+  }
+
+  /**
+   * Returns the field, relative to the values map, that holds the ACLs the
+   * records need to be checked with.
+   *
+   * @param access
+   * @return the field
+   */
+  public static String getAclField(MetaDataTypeName access) {
+    return access.getFieldPath();
+  }
+
+  /**
+   * Returns true if the reader can access all the fields of the record.
+   * Like {@link NSAuthentication#signatureAndACLCheck} an unsigned read
+   * can only access them if everyone can access the whole record.
+   *
+   * @param record
+   * @param fields
+   * @return true if the reader can access the fields
+   * @throws FailedDBOperationException
+   */
+  public boolean canAccess(JSONObject record, List<String> fields) throws FailedDBOperationException {
+    if (reader == null) {
+      return everyoneCanAccess(record, null);
+    }
+    for (String field : fields) {
+      if (!canAccess(record, field)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the reader can access the field of the record.
+   *
+   * @param record
+   * @param field - can be GNSProtocol.ENTIRE_RECORD
+   * @return true if the reader can access the field
+   * @throws FailedDBOperationException
+   */
+  public boolean canAccess(JSONObject record, String field) throws FailedDBOperationException {
+    if (reader == null) {
+      return everyoneCanAccess(record, field);
+    }
+    String guid = record.optString(NameRecord.NAME.getName(), null);
+    JSONObject metaData = record.optJSONObject(GNSProtocol.META_DATA_FIELD.toString());
+    if (guid == null || metaData == null) {
+      return false;
+    }
+    if (reader.equals(guid)) {
+      // a guid can always access its own fields
+      return true;
+    }
+    JSONArray publicKeys = NSAccessSupport.lookupPublicKeysFromAcl(access, guid, JSONPath.of(field), metaData);
+    if (containsReader(publicKeys)) {
+      return true;
+    }
+    if (NSAccessSupport.indexOfItemInJSONArray(publicKeys, GNSProtocol.EVERYONE.toString()) >= 0
+            && readerExists()) {
+      return true;
+    }
+    // the reader is in a group that is in the ACL
+    return readerExists() && !readerGroups().isEmpty() && groupCanAccess(metaData, field);
+  }
+
+  // Same as NSAccessSupport.fieldAccessibleByEveryone.
+  private boolean everyoneCanAccess(JSONObject record, String field) {
+    JSONObject acl = getAcl(record.optJSONObject(GNSProtocol.META_DATA_FIELD.toString()));
+    if (acl == null) {
+      return false;
+    }
+    JSONObject fieldAcl = field != null ? acl.optJSONObject(field) : null;
+    JSONArray publicKeys = fieldAcl != null ? fieldAcl.optJSONArray(GNSProtocol.MD.toString()) : null;
+    if (publicKeys == null) {
+      JSONObject entireRecord = acl.optJSONObject(GNSProtocol.ENTIRE_RECORD.toString());
+      publicKeys = entireRecord != null ? entireRecord.optJSONArray(GNSProtocol.MD.toString()) : null;
+    }
+    return NSAccessSupport.indexOfItemInJSONArray(publicKeys, GNSProtocol.EVERYONE.toString()) >= 0;
+  }
+
+  private JSONObject getAcl(JSONObject metaData) {
+    JSONObject accessTypes = metaData != null ? metaData.optJSONObject(access.getPrefix()) : null;
+    return accessTypes != null ? accessTypes.optJSONObject(access.name()) : null;
+  }
+
+  // Same as NSAccessSupport.hierarchicalAccessGroupCheck: uses the ACL of
+  // the deepest level of the field that has one, or that of the whole record.
+  private boolean groupCanAccess(JSONObject metaData, String field) {
+    JSONObject acl = getAcl(metaData);
+    if (acl == null) {
+      return false;
+    }
+    JSONPath path = JSONPath.of(field);
+    while (true) {
+      Object level = path.opt(acl);
+      JSONArray publicKeys = level instanceof JSONObject
+              ? ((JSONObject) level).optJSONArray(GNSProtocol.MD.toString()) : null;
+      if (publicKeys != null) {
+        for (int i = 0; i < publicKeys.length(); i++) {
+          if (readerGroups.contains(getGuid(publicKeys.optString(i)))) {
+            return true;
+          }
+        }
+        return false;
+      }
+      if (path.parent() != null) {
+        path = path.parent();
+      } else if (!GNSProtocol.ENTIRE_RECORD.toString().equals(path.getKey())) {
+        path = JSONPath.of(GNSProtocol.ENTIRE_RECORD.toString());
+      } else {
+        return false;
+      }
+    }
+  }
+
+  private boolean containsReader(JSONArray publicKeys) {
+    if (publicKeys != null) {
+      for (int i = 0; i < publicKeys.length(); i++) {
+        if (reader.equals(getGuid(publicKeys.optString(i)))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private String getGuid(String publicKey) {
+    String guid = guids.get(publicKey);
+    if (guid == null) {
+      try {
+        guid = SharedGuidUtils.createGuidStringFromBase64PublicKey(publicKey);
+      } catch (IllegalArgumentException e) {
+        // ignore any bogus publicKeys
+        guid = "";
+      }
+      guids.put(publicKey, guid);
+    }
+    return guid;
+  }
+
+  private boolean readerExists() {
+    if (readerExists == null) {
+      readerExists = AccountAccess.lookupGuidInfoAnywhere(null, reader, gnsApp.getRequestHandler()) != null;
+      ClientSupportConfig.getLogger().log(Level.FINE, "Reader {0} exists: {1}",
+              new Object[]{reader, readerExists});
+    }
+    return readerExists;
+  }
+
+  private Set<String> readerGroups() throws FailedDBOperationException {
+    if (readerGroups == null) {
+      readerGroups = NSGroupAccess.lookupGroups(null, reader, gnsApp.getRequestHandler());
+    }
+    return readerGroups;
+  }
+}
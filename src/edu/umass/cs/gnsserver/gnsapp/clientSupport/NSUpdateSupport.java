@@ -17,6 +17,7 @@ import edu.umass.cs.gnscommon.packets.CommandPacket;
 import edu.umass.cs.gnsserver.activecode.ActiveCodeHandler;
 import edu.umass.cs.gnsserver.database.ColumnFieldType;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.ActiveCode;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.FieldVersions;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.InternalField;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.MetaDataTypeName;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.UpdateOperation;
@@ -134,7 +135,7 @@ public class NSUpdateSupport {
       // Handle usual case
       NameRecord nameRecord = getNameRecord(guid, field, operation, app.getDB());
       updateNameRecord(header, nameRecord, guid, field, operation, updateValue, oldValue, argument, userJSON,
-              app.getDB(), app.getActiveCodeHandler());
+              FieldVersions.makeVersion(commandPacket.getRequestID()), app.getDB(), app.getActiveCodeHandler());
       return ResponseCode.NO_ERROR;
     } else // Handle special case of a create index
      if (!updateValue.isEmpty() && updateValue.get(0) instanceof String) {
@@ -164,7 +165,7 @@ public class NSUpdateSupport {
 
   private static void updateNameRecord(InternalRequestHeader header, NameRecord nameRecord, String guid, String field,
           UpdateOperation operation, ResultValue updateValue, ResultValue oldValue, int argument,
-          ValuesMap userJSON, BasicRecordMap db, ActiveCodeHandler activeCodeHandler)
+          ValuesMap userJSON, String version, BasicRecordMap db, ActiveCodeHandler activeCodeHandler)
           throws FailedDBOperationException, FieldNotFoundException, InternalRequestException {
     ValuesMap newValue = userJSON;
     if (activeCodeHandler != null) {
@@ -179,7 +180,7 @@ public class NSUpdateSupport {
                 nameRecord.getSummary()});
     }
     // Apply updateEntireValuesMap to record in the database
-    nameRecord.updateNameRecord(field, updateValue, oldValue, argument, newValue, operation);
+    nameRecord.updateNameRecord(field, updateValue, oldValue, argument, newValue, operation, version);
     // This is for MOB-893 - logging updates
     writeUpdateLog(guid, field, updateValue, newValue, operation);
   }
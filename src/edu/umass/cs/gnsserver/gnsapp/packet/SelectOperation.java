@@ -23,6 +23,28 @@ public enum SelectOperation {
   WITHIN, /**
    * General purpose query.
    */
-  QUERY
+  QUERY, /**
+   * Query whose matching records are counted.
+   */
+  COUNT, /**
+   * Query that returns the smallest value of a field of the matching records.
+   */
+  MIN, /**
+   * Query that returns the largest value of a field of the matching records.
+   */
+  MAX, /**
+   * Query that returns the sum of a field of the matching records.
+   */
+  SUM;
 
+  /**
+   * Returns true if the operation combines the matching records into one
+   * value (see edu.umass.cs.gnsserver.gnsapp.SelectAggregate) instead of
+   * returning them.
+   *
+   * @return true for COUNT, MIN, MAX and SUM
+   */
+  public boolean isAggregate() {
+    return this == COUNT || this == MIN || this == MAX || this == SUM;
+  }
 }
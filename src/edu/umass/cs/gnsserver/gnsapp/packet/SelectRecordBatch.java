@@ -0,0 +1,242 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsserver.gnsapp.packet;
+
+import edu.umass.cs.gnscommon.utils.Base64;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.AccountAccess;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+import edu.umass.cs.gnsserver.utils.BinaryJSON;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The records of a select response in a compact binary encoding.
+ *
+ * The servers send the records they match to the collecting server this
+ * way instead of as JSON text when its request says it accepts them (see
+ * SelectRequestPacket#acceptsRecordBatches). Each record is its name, whether it is a
+ * guid record, and its values map encoded with {@link BinaryJSON}. Batches
+ * of at least the deflate size are also deflated. The batch is sent as a
+ * base64 string since select responses are sent as JSON.
+ *
+ * Decoding a batch only reads the names. The values map of a record is only
+ * decoded when the record is asked for, so the collecting server doesn't
+ * decode the copies of a record it gets from each of its replicas, nor the
+ * values of records it only needs the names of.
+ *
+ * @author westy
+ */
+public class SelectRecordBatch {
+
+  private static final char RAW = 'R';
+  private static final char DEFLATED = 'Z';
+
+  private final byte[] bytes;
+  private final String[] names;
+  private final boolean[] guidRecords;
+  // where the values map of each record starts in the bytes
+  private final int[] offsets;
+  private final JSONObject[] records;
+
+  private SelectRecordBatch(byte[] bytes, String[] names, boolean[] guidRecords, int[] offsets) {
+    this.bytes = bytes;
+    this.names = names;
+    this.guidRecords = guidRecords;
+    this.offsets = offsets;
+    this.records = new JSONObject[names.length];
+  }
+
+  /**
+   * Encodes the records read from the database.
+   *
+   * @param records
+   * @param deflateSize - batches this big or bigger are deflated, 0 for never
+   * @return the encoded batch
+   * @throws JSONException
+   */
+  public static String encode(JSONArray records, int deflateSize) throws JSONException {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream output = new DataOutputStream(bytes);
+      output.writeInt(records.length());
+      ByteArrayOutputStream valuesBytes = new ByteArrayOutputStream();
+      DataOutputStream valuesOutput = new DataOutputStream(valuesBytes);
+      for (int i = 0; i < records.length(); i++) {
+        JSONObject record = records.getJSONObject(i);
+        JSONObject valuesMap = record.optJSONObject(NameRecord.VALUES_MAP.getName());
+        BinaryJSON.writeString(output, record.optString(NameRecord.NAME.getName()));
+        output.writeBoolean(valuesMap != null && valuesMap.has(AccountAccess.GUID_INFO));
+        valuesBytes.reset();
+        BinaryJSON.writeValue(valuesOutput, valuesMap);
+        valuesOutput.flush();
+        output.writeInt(valuesBytes.size());
+        valuesBytes.writeTo(output);
+      }
+      output.flush();
+      if (deflateSize <= 0 || bytes.size() < deflateSize) {
+        return RAW + Base64.encodeToString(bytes.toByteArray(), false);
+      }
+      ByteArrayOutputStream deflated = new ByteArrayOutputStream(bytes.size() / 4);
+      try (DeflaterOutputStream deflater = new DeflaterOutputStream(deflated)) {
+        bytes.writeTo(deflater);
+      }
+      return DEFLATED + Base64.encodeToString(deflated.toByteArray(), false);
+    } catch (IOException e) {
+      // can't happen writing to memory
+      throw new JSONException(e);
+    }
+  }
+
+  /**
+   * Decodes the names of the records in an encoded batch.
+   *
+   * @param encoded
+   * @return the batch
+   * @throws JSONException if the batch is bad
+   */
+  public static SelectRecordBatch decode(String encoded) throws JSONException {
+    try {
+      byte[] bytes = Base64.decode(encoded.substring(1));
+      if (bytes == null) {
+        throw new IOException("bad base64");
+      }
+      if (encoded.charAt(0) == DEFLATED) {
+        bytes = inflate(bytes);
+      } else if (encoded.charAt(0) != RAW) {
+        throw new JSONException("Bad record batch type " + encoded.charAt(0));
+      }
+      ByteArrayInputStream input = new ByteArrayInputStream(bytes);
+      DataInputStream data = new DataInputStream(input);
+      int count = data.readInt();
+      if (count < 0 || count > bytes.length) {
+        throw new IOException("Bad record count " + count);
+      }
+      String[] names = new String[count];
+      boolean[] guidRecords = new boolean[count];
+      int[] offsets = new int[count];
+      for (int i = 0; i < count; i++) {
+        names[i] = BinaryJSON.readString(data);
+        guidRecords[i] = data.readBoolean();
+        int length = data.readInt();
+        // what's left in the input is after this record's values map
+        offsets[i] = bytes.length - input.available();
+        if (length < 0 || data.skipBytes(length) != length) {
+          throw new IOException("Bad record length " + length);
+        }
+      }
+      return new SelectRecordBatch(bytes, names, guidRecords, offsets);
+    } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw new JSONException("Bad record batch: " + e);
+    }
+  }
+
+  private static byte[] inflate(byte[] deflated) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream(deflated.length * 4);
+    try (InputStream inflater = new InflaterInputStream(new ByteArrayInputStream(deflated))) {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = inflater.read(buffer)) > 0) {
+        result.write(buffer, 0, read);
+      }
+    }
+    return result.toByteArray();
+  }
+
+  /**
+   * Returns the number of records in the batch.
+   *
+   * @return the number of records
+   */
+  public int size() {
+    return names.length;
+  }
+
+  /**
+   * Returns the name of a record.
+   *
+   * @param index
+   * @return the name
+   */
+  public String getName(int index) {
+    return names[index];
+  }
+
+  /**
+   * Returns true if a record is a guid record.
+   *
+   * @param index
+   * @return true if the record has GUID_INFO
+   */
+  public boolean isGuidRecord(int index) {
+    return guidRecords[index];
+  }
+
+  /**
+   * Returns a record, with its name and values map, decoding it the first
+   * time it is asked for.
+   *
+   * @param index
+   * @return the record
+   * @throws JSONException if the record is bad
+   */
+  public synchronized JSONObject getRecord(int index) throws JSONException {
+    if (records[index] == null) {
+      JSONObject record = new JSONObject();
+      record.put(NameRecord.NAME.getName(), names[index]);
+      try {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes,
+                offsets[index], bytes.length - offsets[index]));
+        Object valuesMap = BinaryJSON.readValue(input);
+        if (valuesMap instanceof JSONObject) {
+          record.put(NameRecord.VALUES_MAP.getName(), valuesMap);
+        }
+      } catch (IOException e) {
+        throw new JSONException("Bad record " + names[index] + ": " + e.getMessage());
+      }
+      records[index] = record;
+    }
+    return records[index];
+  }
+
+  /**
+   * Returns all the records decoded.
+   *
+   * @return the records
+   * @throws JSONException if a record is bad
+   */
+  public JSONArray toJSONArray() throws JSONException {
+    JSONArray result = new JSONArray();
+    for (int i = 0; i < size(); i++) {
+      result.put(getRecord(i));
+    }
+    return result;
+  }
+}
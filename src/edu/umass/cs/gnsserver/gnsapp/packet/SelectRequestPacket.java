@@ -52,6 +52,12 @@ public class SelectRequestPacket extends BasicPacketWithNSReturnAddress
   private final static String GROUP_BEHAVIOR = "group";
   private final static String GUID = "guid";
   private final static String REFRESH = "refresh";
+  private final static String RESPONDERS = "responders";
+  private final static String LIMIT = "limit";
+  private final static String SORT_KEY = "sortKey";
+  private final static String CONTINUATION = "continuation";
+  private final static String GROUP_BY = "groupBy";
+  private final static String RECORD_BATCHES = "recordBatches";
 
   //
   private long requestId;
@@ -68,6 +74,17 @@ public class SelectRequestPacket extends BasicPacketWithNSReturnAddress
   // for group guid
   private String guid; // the group GUID we are maintaning or null for simple select
   private int minRefreshInterval; // minimum time between allowed refreshes of the guid
+  // the servers the select was sent to, if each record should only be returned by one
+  // of them, or null if every server returns all the records it has
+  private List<String> responders = null;
+  // the page of the results to return (see SelectPage)
+  private int limit = -1; // -1 means return all the records
+  private String sortKey = null; // null means order by guid
+  private String continuation = null; // null means the first page
+  // the field the records of an aggregate select are grouped by or null
+  private String groupBy = null;
+  // true if the collecting server accepts the records as a SelectRecordBatch
+  private boolean acceptsRecordBatches = false;
 
   /**
    * Constructs a new SelectRequestPacket
@@ -142,6 +159,28 @@ public class SelectRequestPacket extends BasicPacketWithNSReturnAddress
             null, -1);
   }
 
+  /**
+   * Creates a request to combine the records on all name servers that match the
+   * given query with one of the aggregate operations (see SelectOperation#isAggregate).
+   *
+   * @param id
+   * @param reader
+   * @param operation
+   * @param query
+   * @param field - the field that is aggregated or null for COUNT
+   * @param groupBy - the field the records are grouped by or null
+   * @return a SelectRequestPacket
+   */
+  public static SelectRequestPacket MakeAggregateRequest(long id, String reader,
+          SelectOperation operation, String query, String field, String groupBy) {
+    SelectRequestPacket packet = new SelectRequestPacket(id, operation,
+            SelectGroupBehavior.NONE, reader, query, null,
+            null, -1);
+    packet.key = field;
+    packet.groupBy = groupBy;
+    return packet;
+  }
+
   /**
    * Just like a MakeQueryRequest except we're creating a new group guid to maintain results.
    * Creates a request to search all name servers for GUIDs that match the given query.
@@ -207,6 +246,14 @@ public class SelectRequestPacket extends BasicPacketWithNSReturnAddress
     this.groupBehavior = SelectGroupBehavior.valueOf(json.getString(GROUP_BEHAVIOR));
     this.guid = json.optString(GUID, null);
     this.minRefreshInterval = json.optInt(REFRESH, -1);
+    if (json.has(RESPONDERS)) {
+      this.responders = JSONUtils.JSONArrayToArrayListString(json.getJSONArray(RESPONDERS));
+    }
+    this.limit = json.optInt(LIMIT, -1);
+    this.sortKey = json.optString(SORT_KEY, null);
+    this.continuation = json.optString(CONTINUATION, null);
+    this.groupBy = json.optString(GROUP_BY, null);
+    this.acceptsRecordBatches = json.optBoolean(RECORD_BATCHES, false);
   }
 
   /**
@@ -256,6 +303,24 @@ public class SelectRequestPacket extends BasicPacketWithNSReturnAddress
     if (minRefreshInterval != -1) {
       json.put(REFRESH, minRefreshInterval);
     }
+    if (responders != null) {
+      json.put(RESPONDERS, responders);
+    }
+    if (limit != -1) {
+      json.put(LIMIT, limit);
+    }
+    if (sortKey != null) {
+      json.put(SORT_KEY, sortKey);
+    }
+    if (continuation != null) {
+      json.put(CONTINUATION, continuation);
+    }
+    if (groupBy != null) {
+      json.put(GROUP_BY, groupBy);
+    }
+    if (acceptsRecordBatches) {
+      json.put(RECORD_BATCHES, true);
+    }
   }
 
   /**
@@ -400,6 +465,95 @@ public class SelectRequestPacket extends BasicPacketWithNSReturnAddress
     this.projection = projection;
   }
 
+  /**
+   * Returns the ids of the servers the select was sent to if each record
+   * should only be returned by one of them, or null if every server returns
+   * all the records it has.
+   *
+   * @return the responders or null
+   */
+  public List<String> getResponders() {
+    return responders;
+  }
+
+  /**
+   * Sets the ids of the servers the select is sent to so that each record
+   * is only returned by one of them.
+   *
+   * @param responders
+   */
+  public void setResponders(List<String> responders) {
+    this.responders = responders;
+  }
+
+  /**
+   * Sets the page of the results to return.
+   *
+   * @param limit - the maximum number of records to return or -1 for all of them
+   * @param sortKey - the field to order the records by or null to order them by guid
+   * @param continuation - the token returned with the previous page or null for the first page
+   */
+  public void setPage(int limit, String sortKey, String continuation) {
+    this.limit = limit;
+    this.sortKey = sortKey;
+    this.continuation = continuation;
+  }
+
+  /**
+   * Return the maximum number of records to return or -1 for all of them.
+   *
+   * @return the limit
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Return the field to order the records by or null to order them by guid.
+   *
+   * @return the sort key
+   */
+  public String getSortKey() {
+    return sortKey;
+  }
+
+  /**
+   * Return the continuation token of the page to return or null for the first page.
+   *
+   * @return the continuation token
+   */
+  public String getContinuation() {
+    return continuation;
+  }
+
+  /**
+   * Return the field the records of an aggregate select are grouped by or null if they aren't.
+   *
+   * @return the group by field
+   */
+  public String getGroupBy() {
+    return groupBy;
+  }
+
+  /**
+   * Return true if the collecting server accepts the records as a
+   * SelectRecordBatch. Servers that don't know this still send JSON.
+   *
+   * @return true if record batches are accepted
+   */
+  public boolean acceptsRecordBatches() {
+    return acceptsRecordBatches;
+  }
+
+  /**
+   * Sets whether the collecting server accepts the records as a SelectRecordBatch.
+   *
+   * @param acceptsRecordBatches
+   */
+  public void setAcceptsRecordBatches(boolean acceptsRecordBatches) {
+    this.acceptsRecordBatches = acceptsRecordBatches;
+  }
+
   /**
    *
    * @return the service name
@@ -44,6 +44,9 @@ public class SelectResponsePacket extends BasicPacketWithReturnAddressAndNsAddre
   private final static String NSQUERYID = "nsQueryId";
   private final static String RESPONSECODE = "code";
   private final static String ERRORSTRING = "error";
+  private final static String CONTINUATION = "continuation";
+  private final static String RECORD_BATCH = "recordBatch";
+  private final static String AGGREGATE = "aggregate";
   
   /**
    * The possible response codes for select packets.
@@ -66,6 +69,14 @@ public class SelectResponsePacket extends BasicPacketWithReturnAddressAndNsAddre
   private JSONArray guids;
   private ResponseCode responseCode;
   private String errorMessage;
+  // the token for the next page of the results or null if there isn't one
+  private String continuation = null;
+  // the records in the binary encoding, as received
+  private SelectRecordBatch recordBatch = null;
+  // sends the records in the binary encoding if not negative
+  private int encodeDeflateSize = -1;
+  // the result of an aggregate select or a server's part of it
+  private JSONObject aggregate = null;
 
   /*
    * Constructs a new SelectResponsePacket
@@ -122,6 +133,26 @@ public class SelectResponsePacket extends BasicPacketWithReturnAddressAndNsAddre
             null, guids, ResponseCode.NOERROR, null);
   }
 
+  /**
+   * Used by a NameServer to a send the result of an aggregate select, or its part of the result,
+   * back to the collecting NameServer
+   *
+   * @param id
+   * @param lnsAddress
+   * @param nsQueryId
+   * @param nsAddress
+   * @param aggregate
+   * @return a SelectResponsePacket
+   */
+  public static SelectResponsePacket makeSuccessPacketForAggregate(long id,
+          InetSocketAddress lnsAddress,
+          int nsQueryId, InetSocketAddress nsAddress, JSONObject aggregate) {
+    SelectResponsePacket packet = new SelectResponsePacket(id, lnsAddress, nsQueryId, nsAddress,
+            null, null, ResponseCode.NOERROR, null);
+    packet.aggregate = aggregate;
+    return packet;
+  }
+
   /**
    * Used by a NameServer to a failure response to a NameServer or Local NameServer
    *
@@ -157,8 +188,13 @@ public class SelectResponsePacket extends BasicPacketWithReturnAddressAndNsAddre
     this.responseCode = ResponseCode.valueOf(json.getString(RESPONSECODE));
     // either of these could be null
     this.records = json.optJSONArray(RECORDS);
+    if (json.has(RECORD_BATCH)) {
+      this.recordBatch = SelectRecordBatch.decode(json.getString(RECORD_BATCH));
+    }
     this.guids = json.optJSONArray(GUIDS);
+    this.aggregate = json.optJSONObject(AGGREGATE);
     this.errorMessage = json.optString(ERRORSTRING, null);
+    this.continuation = json.optString(CONTINUATION, null);
 
   }
 
@@ -178,15 +214,23 @@ public class SelectResponsePacket extends BasicPacketWithReturnAddressAndNsAddre
     json.put(NSQUERYID, nsQueryId);
     //json.put(NAMESERVER, nameServer.toString());
     json.put(RESPONSECODE, responseCode.name());
-    if (records != null) {
-      json.put(RECORDS, records);
+    if (records != null && encodeDeflateSize >= 0) {
+      json.put(RECORD_BATCH, SelectRecordBatch.encode(records, encodeDeflateSize));
+    } else if (getRecords() != null) {
+      json.put(RECORDS, getRecords());
     }
     if (guids != null) {
       json.put(GUIDS, guids);
     }
+    if (aggregate != null) {
+      json.put(AGGREGATE, aggregate);
+    }
     if (errorMessage != null) {
       json.put(ERRORSTRING, errorMessage);
     }
+    if (continuation != null) {
+      json.put(CONTINUATION, continuation);
+    }
     return json;
   }
 
@@ -205,9 +249,36 @@ public class SelectResponsePacket extends BasicPacketWithReturnAddressAndNsAddre
    * @return the records
    */
   public JSONArray getRecords() {
+    if (records == null && recordBatch != null) {
+      try {
+        records = recordBatch.toJSONArray();
+      } catch (JSONException e) {
+        throw new IllegalStateException("Bad record batch: " + e.getMessage());
+      }
+    }
     return records;
   }
 
+  /**
+   * Return the records as they were received in the binary encoding,
+   * or null if they weren't.
+   *
+   * @return the record batch
+   */
+  public SelectRecordBatch getRecordBatch() {
+    return recordBatch;
+  }
+
+  /**
+   * Sends the records in the binary encoding of {@link SelectRecordBatch}
+   * instead of as JSON.
+   *
+   * @param deflateSize - the size at which the records are also deflated, 0 for never
+   */
+  public void encodeRecords(int deflateSize) {
+    this.encodeDeflateSize = deflateSize;
+  }
+
   /**
    * Return the guids.
    *
@@ -217,6 +288,15 @@ public class SelectResponsePacket extends BasicPacketWithReturnAddressAndNsAddre
     return guids;
   }
 
+  /**
+   * Return the result of an aggregate select or null if it isn't one.
+   *
+   * @return the aggregate
+   */
+  public JSONObject getAggregate() {
+    return aggregate;
+  }
+
   /**
    * Return the NS query requestId.
    *
@@ -244,6 +324,24 @@ public class SelectResponsePacket extends BasicPacketWithReturnAddressAndNsAddre
     return errorMessage;
   }
 
+  /**
+   * Return the token for the next page of the results or null if there isn't one.
+   *
+   * @return the continuation token
+   */
+  public String getContinuation() {
+    return continuation;
+  }
+
+  /**
+   * Sets the token for the next page of the results.
+   *
+   * @param continuation
+   */
+  public void setContinuation(String continuation) {
+    this.continuation = continuation;
+  }
+
   /**
    *
    * @return the service name
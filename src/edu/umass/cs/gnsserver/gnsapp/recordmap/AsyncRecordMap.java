@@ -0,0 +1,250 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsserver.gnsapp.recordmap;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnsserver.database.AbstractRecordCursor;
+import edu.umass.cs.gnsserver.database.AsyncNoSQLRecords;
+import edu.umass.cs.gnsserver.database.ColumnField;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The operations of a {@link GNSRecordMap} returning CompletableFutures.
+ * Get one with {@link GNSRecordMap#async()}.
+ *
+ * The futures complete exceptionally with the exceptions the blocking
+ * methods throw. Operations on the same record are only ordered if the
+ * caller waits for the earlier future before starting the later one.
+ *
+ * @author westy
+ */
+public class AsyncRecordMap {
+
+  private final GNSRecordMap<?> recordMap;
+  private final String collectionName;
+  private final AsyncNoSQLRecords records;
+
+  /**
+   * Creates an AsyncRecordMap instance.
+   *
+   * @param recordMap - the blocking record map
+   * @param collectionName
+   * @param records
+   */
+  AsyncRecordMap(GNSRecordMap<?> recordMap, String collectionName, AsyncNoSQLRecords records) {
+    this.recordMap = recordMap;
+    this.collectionName = collectionName;
+    this.records = records;
+  }
+
+  private static <T> CompletableFuture<T> failed(Exception e) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(e);
+    return future;
+  }
+
+  // Tells the record map about the write once it is done. The returned
+  // future completes after that.
+  private CompletableFuture<Void> written(CompletableFuture<Void> write, final String name,
+          final List<ColumnField> keys) {
+    return write.thenRun(new Runnable() {
+      @Override
+      public void run() {
+        recordMap.written(name, keys);
+      }
+    });
+  }
+
+  /**
+   * See {@link RecordMapInterface#lookupEntireRecord}.
+   *
+   * @param name
+   * @return a future for the record
+   */
+  public CompletableFuture<JSONObject> lookupEntireRecord(String name) {
+    try {
+      recordMap.beforeAsync(name);
+    } catch (FailedDBOperationException e) {
+      return failed(e);
+    }
+    return records.lookupEntireRecord(collectionName, name);
+  }
+
+  /**
+   * See {@link RecordMapInterface#lookupUserFields}.
+   *
+   * @param name
+   * @param nameField
+   * @param valuesMapField
+   * @param valuesMapKeys
+   * @return a future for the fields
+   */
+  public CompletableFuture<HashMap<ColumnField, Object>> lookupUserFields(String name, ColumnField nameField,
+          ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys) {
+    try {
+      recordMap.beforeAsync(name);
+    } catch (FailedDBOperationException e) {
+      return failed(e);
+    }
+    return records.lookupSomeFields(collectionName, name, nameField, valuesMapField, valuesMapKeys);
+  }
+
+  /**
+   * See {@link RecordMapInterface#containsName}.
+   *
+   * @param name
+   * @return a future that is true if the record exists
+   */
+  public CompletableFuture<Boolean> containsName(String name) {
+    try {
+      recordMap.beforeAsync(name);
+    } catch (FailedDBOperationException e) {
+      return failed(e);
+    }
+    return records.contains(collectionName, name);
+  }
+
+  /**
+   * See {@link RecordMapInterface#updateIndividualFields}.
+   *
+   * @param name
+   * @param valuesMapKeys
+   * @param valuesMapValues
+   * @return a future that completes when the fields are updated
+   */
+  public CompletableFuture<Void> updateIndividualFields(String name, ArrayList<ColumnField> valuesMapKeys,
+          ArrayList<Object> valuesMapValues) {
+    try {
+      recordMap.beforeAsync(name);
+    } catch (FailedDBOperationException e) {
+      return failed(e);
+    }
+    return written(records.updateIndividualFields(collectionName, name, NameRecord.VALUES_MAP,
+            valuesMapKeys, valuesMapValues), name, valuesMapKeys);
+  }
+
+  /**
+   * See {@link RecordMapInterface#removeMapKeys}.
+   *
+   * @param name
+   * @param mapField
+   * @param mapKeys
+   * @return a future that completes when the keys are removed
+   */
+  public CompletableFuture<Void> removeMapKeys(String name, ColumnField mapField, ArrayList<ColumnField> mapKeys) {
+    try {
+      recordMap.beforeAsync(name);
+    } catch (FailedDBOperationException e) {
+      return failed(e);
+    }
+    return written(records.removeMapKeys(collectionName, name, mapField, mapKeys), name,
+            NameRecord.VALUES_MAP.getName().equals(mapField.getName()) ? mapKeys : null);
+  }
+
+  /**
+   * See {@link RecordMapInterface#selectRecords}.
+   *
+   * @param valuesMapField
+   * @param key
+   * @param value
+   * @return a future for the cursor
+   */
+  public CompletableFuture<AbstractRecordCursor> selectRecords(ColumnField valuesMapField, String key, Object value) {
+    try {
+      recordMap.beforeAsyncScan();
+    } catch (FailedDBOperationException e) {
+      return failed(e);
+    }
+    return records.selectRecords(collectionName, valuesMapField, key, value);
+  }
+
+  /**
+   * See {@link RecordMapInterface#selectRecordsWithin}.
+   *
+   * @param valuesMapField
+   * @param key
+   * @param value
+   * @return a future for the cursor
+   */
+  public CompletableFuture<AbstractRecordCursor> selectRecordsWithin(ColumnField valuesMapField,
+          String key, String value) {
+    try {
+      recordMap.beforeAsyncScan();
+    } catch (FailedDBOperationException e) {
+      return failed(e);
+    }
+    return records.selectRecordsWithin(collectionName, valuesMapField, key, value);
+  }
+
+  /**
+   * See {@link RecordMapInterface#selectRecordsNear}.
+   *
+   * @param valuesMapField
+   * @param key
+   * @param value
+   * @param maxDistance
+   * @return a future for the cursor
+   */
+  public CompletableFuture<AbstractRecordCursor> selectRecordsNear(ColumnField valuesMapField,
+          String key, String value, Double maxDistance) {
+    try {
+      recordMap.beforeAsyncScan();
+    } catch (FailedDBOperationException e) {
+      return failed(e);
+    }
+    return records.selectRecordsNear(collectionName, valuesMapField, key, value, maxDistance);
+  }
+
+  /**
+   * See {@link RecordMapInterface#selectRecordsQuery}.
+   *
+   * @param valuesMapField
+   * @param query
+   * @param projection
+   * @return a future for the cursor
+   */
+  public CompletableFuture<AbstractRecordCursor> selectRecordsQuery(ColumnField valuesMapField,
+          String query, List<String> projection) {
+    try {
+      recordMap.beforeAsyncScan();
+    } catch (FailedDBOperationException e) {
+      return failed(e);
+    }
+    return records.selectRecordsQuery(collectionName, valuesMapField, query, projection);
+  }
+
+  /**
+   * Stops any threads used for the operations.
+   */
+  public void close() {
+    records.close();
+  }
+
+  @Override
+  public String toString() {
+    return "AsyncRecordMap{" + "collectionName=" + collectionName + ", records=" + records + '}';
+  }
+}
@@ -0,0 +1,419 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsserver.gnsapp.recordmap;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordExistsException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
+import edu.umass.cs.gnsserver.database.AbstractRecordCursor;
+import edu.umass.cs.gnsserver.database.ColumnField;
+import edu.umass.cs.gnsserver.database.FieldUpdate;
+import edu.umass.cs.gnsserver.database.NoSQLRecords;
+import edu.umass.cs.gnsserver.main.GNSConfig;
+import edu.umass.cs.gnsserver.utils.ValuesMap;
+import edu.umass.cs.utils.Config;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * A GNSRecordMap that holds on to individual field updates and writes them
+ * out together with one bulkUpdateIndividualFields call. It also holds on to
+ * whole values maps, which is what restores from checkpoints write, and
+ * writes them out together with one bulkUpsertValuesMaps call.
+ *
+ * The updates of the commands gigapaxos executes back to back are written
+ * out once maxUpdates of them are waiting or maxDelay milliseconds after the
+ * first one, whichever comes first. The values maps of the names gigapaxos
+ * restores when it moves many names to a replica are written out once
+ * maxValuesMaps of them are waiting or after maxDelay. Anything that reads or otherwise writes
+ * a record with waiting updates writes them out first, so readers always
+ * see their own writes. Selects and full scans write out everything.
+ *
+ * Updates that haven't been written out yet are lost if the server crashes,
+ * but so is the rest of the execution since the last checkpoint, which
+ * gigapaxos rolls forward again from its log. Checkpoints read the record
+ * so they always include the waiting updates. If writing the updates out
+ * fails they are kept and retried; they are field sets so applying some
+ * of them twice is harmless. After maxAttempts writes in a row fail the
+ * waiting updates are logged and dropped so one bad batch can't be retried
+ * forever.
+ *
+ * Only the caller that writes the updates out, by calling {@link #flush}
+ * or by a write that has to go after them, hears about a failure. Callers
+ * whose update was held hear nothing since it is still held and retried,
+ * and reads log the failure and read what the database has. Once writing
+ * out has failed only the timer and flush retry it until it succeeds.
+ *
+ * @author westy
+ * @param <NodeIDType>
+ */
+public class BatchedRecordMap<NodeIDType> extends GNSRecordMap<NodeIDType> {
+
+  private final int maxUpdates;
+  private final long maxDelay;
+  private final List<FieldUpdate> pending = new ArrayList<>();
+  private final Set<String> pendingNames = new HashSet<>();
+  private final int maxValuesMaps;
+  // a null values map removes the record
+  private final Map<String, ValuesMap> pendingValuesMaps = new LinkedHashMap<>();
+  private final ScheduledExecutorService flusher;
+  private ScheduledFuture<?> scheduledFlush = null;
+  private final int maxAttempts;
+  // the writes out that have failed in a row
+  private int failedAttempts = 0;
+
+  /**
+   * Creates a BatchedRecordMap instance.
+   *
+   * @param noSqlRecords
+   * @param collectionName
+   * @param maxUpdates - the most updates to hold on to
+   * @param maxDelay - the longest to hold on to an update in milliseconds
+   */
+  public BatchedRecordMap(NoSQLRecords noSqlRecords, String collectionName, int maxUpdates, long maxDelay) {
+    this(noSqlRecords, collectionName, maxUpdates, maxUpdates, maxDelay);
+  }
+
+  /**
+   * Creates a BatchedRecordMap instance.
+   *
+   * @param noSqlRecords
+   * @param collectionName
+   * @param maxUpdates - the most updates to hold on to
+   * @param maxValuesMaps - the most whole values maps to hold on to
+   * @param maxDelay - the longest to hold on to an update in milliseconds
+   */
+  public BatchedRecordMap(NoSQLRecords noSqlRecords, String collectionName, int maxUpdates,
+          int maxValuesMaps, long maxDelay) {
+    this(noSqlRecords, collectionName, maxUpdates, maxValuesMaps, maxDelay,
+            Config.getGlobalInt(GNSConfig.GNSC.BATCH_DB_UPDATES_MAX_ATTEMPTS));
+  }
+
+  /**
+   * Creates a BatchedRecordMap instance.
+   *
+   * @param noSqlRecords
+   * @param collectionName
+   * @param maxUpdates - the most updates to hold on to
+   * @param maxValuesMaps - the most whole values maps to hold on to
+   * @param maxDelay - the longest to hold on to an update in milliseconds
+   * @param maxAttempts - the most times in a row to try writing out the
+   * same updates before dropping them
+   */
+  public BatchedRecordMap(NoSQLRecords noSqlRecords, String collectionName, int maxUpdates,
+          int maxValuesMaps, long maxDelay, int maxAttempts) {
+    super(noSqlRecords, collectionName);
+    this.maxUpdates = Math.max(1, maxUpdates);
+    this.maxValuesMaps = Math.max(1, maxValuesMaps);
+    this.maxDelay = maxDelay;
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "BatchedRecordMap-" + collectionName);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  @Override
+  public void updateIndividualFields(String name, ArrayList<ColumnField> valuesMapKeys, ArrayList<Object> valuesMapValues)
+          throws FailedDBOperationException {
+    synchronized (this) {
+      // flush writes values maps before updates so this goes after any
+      // values map of the record that is waiting
+      pending.add(new FieldUpdate(name, valuesMapKeys, valuesMapValues));
+      pendingNames.add(name);
+      // readers, checkpoints included, flush the update before they read
+      written(name, valuesMapKeys);
+      if (pending.size() < maxUpdates) {
+        scheduleFlush();
+        return;
+      }
+    }
+    // the update is held and retried if this fails
+    flushQuietly("update");
+  }
+
+  @Override
+  public synchronized void bulkUpdateIndividualFields(List<FieldUpdate> updates)
+          throws FailedDBOperationException {
+    flush();
+    super.bulkUpdateIndividualFields(updates);
+  }
+
+  @Override
+  public void bulkUpsertValuesMaps(Map<String, ValuesMap> valuesMaps)
+          throws FailedDBOperationException {
+    synchronized (this) {
+      for (String name : valuesMaps.keySet()) {
+        if (pendingNames.contains(name)) {
+          // the values map has to go after the updates
+          flush();
+          break;
+        }
+      }
+      pendingValuesMaps.putAll(valuesMaps);
+      for (String name : valuesMaps.keySet()) {
+        written(name, null);
+      }
+      if (pendingValuesMaps.size() < maxValuesMaps) {
+        scheduleFlush();
+        return;
+      }
+    }
+    flushQuietly("restore");
+  }
+
+  /**
+   * Writes out all the waiting updates.
+   *
+   * @throws FailedDBOperationException
+   */
+  public synchronized void flush() throws FailedDBOperationException {
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+    try {
+      // values maps go first since an update can be held after a values map
+      // but a values map is never held after updates of the same record
+      if (!pendingValuesMaps.isEmpty()) {
+        // the checkpoints were told when they were handed to us
+        upsertValuesMaps(pendingValuesMaps);
+        GNSConfig.getLogger().log(Level.FINE, "{0} wrote {1} values maps",
+                new Object[]{this, pendingValuesMaps.size()});
+        pendingValuesMaps.clear();
+      }
+      if (!pending.isEmpty()) {
+        super.bulkUpdateIndividualFields(pending);
+        GNSConfig.getLogger().log(Level.FINE, "{0} wrote {1} updates of {2} records",
+                new Object[]{this, pending.size(), pendingNames.size()});
+        pending.clear();
+        pendingNames.clear();
+      }
+      failedAttempts = 0;
+    } catch (FailedDBOperationException e) {
+      if (++failedAttempts < maxAttempts) {
+        // keep them for the next try
+        scheduleFlush();
+      } else {
+        drop(e);
+      }
+      throw e;
+    }
+  }
+
+  // Gives up on the waiting updates after too many failed attempts.
+  private synchronized void drop(FailedDBOperationException e) {
+    GNSConfig.getLogger().log(Level.SEVERE, "{0} dropping {1} updates of {2} and {3} values maps of {4} "
+            + "after {5} failed attempts: {6}",
+            new Object[]{this, pending.size(), pendingNames, pendingValuesMaps.size(),
+              pendingValuesMaps.keySet(), failedAttempts, e.getMessage()});
+    // the records may not be what was last written so don't let readers keep older copies
+    for (String name : pendingNames) {
+      written(name, null);
+    }
+    for (String name : pendingValuesMaps.keySet()) {
+      written(name, null);
+    }
+    pending.clear();
+    pendingNames.clear();
+    pendingValuesMaps.clear();
+    failedAttempts = 0;
+  }
+
+  // Writes out the waiting updates for a caller that doesn't own them. A
+  // failure is logged, and the updates are kept for the next try, instead
+  // of being thrown at that caller. While writing out is failing the timer
+  // does the retrying so these callers don't use up the attempts.
+  private synchronized void flushQuietly(String reason) {
+    if (failedAttempts > 0) {
+      GNSConfig.getLogger().log(Level.FINE, "{0} not retrying waiting updates before {1}",
+              new Object[]{this, reason});
+      return;
+    }
+    try {
+      flush();
+    } catch (FailedDBOperationException e) {
+      GNSConfig.getLogger().log(Level.WARNING, "{0} unable to write waiting updates before {1}: {2}",
+              new Object[]{this, reason, e.getMessage()});
+    }
+  }
+
+  // Writes out the waiting updates if any of them are for the record.
+  private synchronized void flush(String name) throws FailedDBOperationException {
+    if (hasPending(name)) {
+      flush();
+    }
+  }
+
+  // Like flush(name) for reads, which read what the database has if the
+  // updates can't be written out.
+  private synchronized void flushQuietly(String name, String reason) {
+    if (hasPending(name)) {
+      flushQuietly(reason);
+    }
+  }
+
+  private synchronized boolean hasPending(String name) {
+    return pendingNames.contains(name) || pendingValuesMaps.containsKey(name);
+  }
+
+  private synchronized void scheduleFlush() {
+    if (scheduledFlush == null && !flusher.isShutdown()) {
+      scheduledFlush = flusher.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (BatchedRecordMap.this) {
+            scheduledFlush = null;
+            try {
+              flush();
+            } catch (FailedDBOperationException e) {
+              GNSConfig.getLogger().log(Level.WARNING, "{0} unable to write {1} updates on attempt {2}: {3}",
+                      new Object[]{BatchedRecordMap.this, pending.size() + pendingValuesMaps.size(),
+                        failedAttempts, e.getMessage()});
+            }
+          }
+        }
+      }, maxDelay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Writes out the waiting updates and stops the timer.
+   *
+   * @throws FailedDBOperationException
+   */
+  public synchronized void shutdown() throws FailedDBOperationException {
+    flusher.shutdown();
+    flush();
+  }
+
+  @Override
+  void beforeAsync(String name) throws FailedDBOperationException {
+    flush(name);
+  }
+
+  @Override
+  void beforeAsyncScan() throws FailedDBOperationException {
+    flushQuietly("scan");
+  }
+
+  @Override
+  public JSONObject lookupEntireRecord(String name) throws RecordNotFoundException, FailedDBOperationException {
+    flushQuietly(name, "lookup");
+    return super.lookupEntireRecord(name);
+  }
+
+  @Override
+  public HashMap<ColumnField, Object> lookupUserFields(String name, ColumnField nameField,
+          ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys)
+          throws RecordNotFoundException, FailedDBOperationException {
+    flushQuietly(name, "lookup");
+    return super.lookupUserFields(name, nameField, valuesMapField, valuesMapKeys);
+  }
+
+  @Override
+  public void addRecord(JSONObject json) throws FailedDBOperationException, RecordExistsException {
+    flush(json.optString(NameRecord.NAME.getName()));
+    super.addRecord(json);
+  }
+
+  @Override
+  public void removeRecord(String name) throws FailedDBOperationException {
+    flush(name);
+    super.removeRecord(name);
+  }
+
+  @Override
+  public boolean containsName(String name) throws FailedDBOperationException {
+    flushQuietly(name, "lookup");
+    return super.containsName(name);
+  }
+
+  @Override
+  public void updateEntireValuesMap(String name, ValuesMap valuesMap)
+          throws FailedDBOperationException {
+    flush(name);
+    super.updateEntireValuesMap(name, valuesMap);
+  }
+
+  @Override
+  public void removeMapKeys(String name, ColumnField mapField, ArrayList<ColumnField> mapKeys)
+          throws FailedDBOperationException {
+    flush(name);
+    super.removeMapKeys(name, mapField, mapKeys);
+  }
+
+  @Override
+  public AbstractRecordCursor getAllRowsIterator() throws FailedDBOperationException {
+    flushQuietly("scan");
+    return super.getAllRowsIterator();
+  }
+
+  @Override
+  public AbstractRecordCursor selectRecords(ColumnField valuesMapField, String key, Object value)
+          throws FailedDBOperationException {
+    flushQuietly("select");
+    return super.selectRecords(valuesMapField, key, value);
+  }
+
+  @Override
+  public AbstractRecordCursor selectRecordsWithin(ColumnField valuesMapField, String key, String value)
+          throws FailedDBOperationException {
+    flushQuietly("select");
+    return super.selectRecordsWithin(valuesMapField, key, value);
+  }
+
+  @Override
+  public AbstractRecordCursor selectRecordsNear(ColumnField valuesMapField, String key, String value,
+          Double maxDistance) throws FailedDBOperationException {
+    flushQuietly("select");
+    return super.selectRecordsNear(valuesMapField, key, value, maxDistance);
+  }
+
+  @Override
+  public AbstractRecordCursor selectRecordsQuery(ColumnField valuesMapField,
+          String query, List<String> projection) throws FailedDBOperationException {
+    flushQuietly("select");
+    return super.selectRecordsQuery(valuesMapField, query, projection);
+  }
+
+  @Override
+  public String toString() {
+    return "BatchedRecordMap{" + super.toString() + '}';
+  }
+}
@@ -20,25 +20,37 @@
 package edu.umass.cs.gnsserver.gnsapp.recordmap;
 
 import edu.umass.cs.gnsserver.database.AbstractRecordCursor;
+import edu.umass.cs.gnsserver.database.AsyncRecords;
 import edu.umass.cs.gnsserver.database.ColumnField;
+import edu.umass.cs.gnsserver.database.DiskMapRecords;
+import edu.umass.cs.gnsserver.database.FieldUpdate;
 import edu.umass.cs.gnsserver.database.NoSQLRecords;
 import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
 import edu.umass.cs.gnscommon.exceptions.server.RecordExistsException;
 import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
 import edu.umass.cs.gnsserver.main.GNSConfig;
 import edu.umass.cs.gnsserver.utils.ValuesMap;
+import edu.umass.cs.utils.Config;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 
 /**
  * Supports abstract access to a collection of NoSQLRecords records specified by the
  * <code>collectionName</code> string.
  *
+ * Unless RECORD_CACHE_SIZE is 0 recently read records are kept in a
+ * {@link RecordCache}. Records read through the cache are
+ * {@link edu.umass.cs.gnscommon.utils.ImmutableJSONObject}s, like the ones
+ * DiskMapRecords returns, so callers that want to change them copy them.
+ *
  * @author westy
  * @param <NodeIDType>
  */
@@ -46,6 +58,25 @@ public class GNSRecordMap<NodeIDType> extends BasicRecordMap {
 
   private final String collectionName;
   private final NoSQLRecords noSqlRecords;
+  private AsyncRecordMap asyncRecordMap = null;
+  private volatile RecordCheckpoints checkpoints = null;
+  private final RecordCache recordCache;
+  private final List<WriteListener> writeListeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Told about the writes made through a record map as they are made.
+   */
+  public interface WriteListener {
+
+    /**
+     * Called after fields of the record are written, or with null keys
+     * after all of it is written, added or removed.
+     *
+     * @param name
+     * @param keys - the fields of the values map written or null
+     */
+    void written(String name, List<ColumnField> keys);
+  }
 
   /**
    * Creates an MongoRecordMap instance.
@@ -56,6 +87,8 @@ public class GNSRecordMap<NodeIDType> extends BasicRecordMap {
   public GNSRecordMap(NoSQLRecords noSqlRecords, String collectionName) {
     this.collectionName = collectionName;
     this.noSqlRecords = noSqlRecords;
+    int cacheSize = Config.getGlobalInt(GNSConfig.GNSC.RECORD_CACHE_SIZE);
+    this.recordCache = cacheSize > 0 ? new RecordCache(cacheSize) : null;
   }
 
   @Override
@@ -65,13 +98,34 @@ public class GNSRecordMap<NodeIDType> extends BasicRecordMap {
 
   @Override
   public JSONObject lookupEntireRecord(String name) throws RecordNotFoundException, FailedDBOperationException {
-    return noSqlRecords.lookupEntireRecord(collectionName, name);
+    if (recordCache == null) {
+      return noSqlRecords.lookupEntireRecord(collectionName, name);
+    }
+    JSONObject record = recordCache.get(name);
+    return record != null ? record : loadRecord(name);
+  }
+
+  // Reads the whole record and caches it.
+  private JSONObject loadRecord(String name) throws RecordNotFoundException, FailedDBOperationException {
+    long version = recordCache.version(name);
+    return recordCache.put(name, noSqlRecords.lookupEntireRecord(collectionName, name), version);
   }
 
   @Override
   public HashMap<ColumnField, Object> lookupUserFields(String name, ColumnField nameField,
           ColumnField valuesMapField, ArrayList<ColumnField> valuesMapKeys)
           throws RecordNotFoundException, FailedDBOperationException {
+    if (recordCache != null) {
+      JSONObject record = recordCache.get(name);
+      // only read the whole record the second time the fields of
+      // a record that isn't cached are read
+      if (record == null && recordCache.missedBefore(name)) {
+        record = loadRecord(name);
+      }
+      if (record != null) {
+        return DiskMapRecords.extractSomeFields(name, record, nameField, valuesMapField, valuesMapKeys);
+      }
+    }
     return noSqlRecords.lookupSomeFields(collectionName, name, nameField, valuesMapField, valuesMapKeys);
   }
 
@@ -81,6 +135,7 @@ public class GNSRecordMap<NodeIDType> extends BasicRecordMap {
     try {
       String name = json.getString(NameRecord.NAME.getName());
       records.insert(collectionName, name, json);
+      written(name, null);
       GNSConfig.getLogger().log(Level.FINER, "{0}:: Added {1} JSON: {2}",
               new Object[]{records.toString(), name, json});
     } catch (JSONException e) {
@@ -92,10 +147,14 @@ public class GNSRecordMap<NodeIDType> extends BasicRecordMap {
   @Override
   public void removeRecord(String name) throws FailedDBOperationException {
     noSqlRecords.removeEntireRecord(collectionName, name);
+    written(name, null);
   }
 
   @Override
   public boolean containsName(String name) throws FailedDBOperationException {
+    if (recordCache != null && recordCache.contains(name)) {
+      return true;
+    }
     return noSqlRecords.contains(collectionName, name);
   }
 
@@ -103,6 +162,7 @@ public class GNSRecordMap<NodeIDType> extends BasicRecordMap {
   public void updateEntireValuesMap(String name, ValuesMap valuesMap)
           throws FailedDBOperationException {
     noSqlRecords.updateEntireRecord(collectionName, name, valuesMap);
+    written(name, null);
   }
 
   @Override
@@ -110,12 +170,52 @@ public class GNSRecordMap<NodeIDType> extends BasicRecordMap {
           throws FailedDBOperationException {
     noSqlRecords.updateIndividualFields(collectionName, name,
             NameRecord.VALUES_MAP, valuesMapKeys, valuesMapValues);
+    written(name, valuesMapKeys);
+  }
+
+  @Override
+  public void bulkUpdateIndividualFields(List<FieldUpdate> updates)
+          throws FailedDBOperationException {
+    noSqlRecords.bulkUpdateIndividualFields(collectionName, NameRecord.VALUES_MAP, updates);
+    for (FieldUpdate update : updates) {
+      written(update.getName(), update.getValuesMapKeys());
+    }
+  }
+
+  @Override
+  public void bulkUpsertValuesMaps(Map<String, ValuesMap> valuesMaps)
+          throws FailedDBOperationException {
+    upsertValuesMaps(valuesMaps);
+    for (String name : valuesMaps.keySet()) {
+      written(name, null);
+    }
+  }
+
+  // Writes the values maps without telling the checkpoints.
+  void upsertValuesMaps(Map<String, ValuesMap> valuesMaps) throws FailedDBOperationException {
+    Map<String, JSONObject> records = new LinkedHashMap<>();
+    for (Map.Entry<String, ValuesMap> entry : valuesMaps.entrySet()) {
+      JSONObject record = null;
+      if (entry.getValue() != null) {
+        record = new JSONObject();
+        try {
+          record.put(NameRecord.NAME.getName(), entry.getKey());
+          record.put(NameRecord.VALUES_MAP.getName(), entry.getValue());
+        } catch (JSONException e) {
+          throw new FailedDBOperationException(collectionName, entry.getKey(),
+                  "Unable to build record: " + e.getMessage());
+        }
+      }
+      records.put(entry.getKey(), record);
+    }
+    noSqlRecords.bulkUpsert(collectionName, records);
   }
 
   @Override
   public void removeMapKeys(String name, ColumnField mapField, ArrayList<ColumnField> mapKeys)
           throws FailedDBOperationException {
     noSqlRecords.removeMapKeys(collectionName, name, mapField, mapKeys);
+    written(name, NameRecord.VALUES_MAP.getName().equals(mapField.getName()) ? mapKeys : null);
   }
 
   @Override
@@ -144,9 +244,84 @@ public class GNSRecordMap<NodeIDType> extends BasicRecordMap {
     return noSqlRecords.selectRecordsQuery(collectionName, valuesMapField, query, projection);
   }
 
+  /**
+   * Returns the operations of this record map that return futures instead
+   * of blocking. The threads they need, if any, are started the first time.
+   *
+   * @return the async record map
+   */
+  public synchronized AsyncRecordMap async() {
+    if (asyncRecordMap == null) {
+      asyncRecordMap = new AsyncRecordMap(this, collectionName, AsyncRecords.forRecords(noSqlRecords));
+    }
+    return asyncRecordMap;
+  }
+
+  /**
+   * Returns the checkpoints of the records, which are made in the
+   * CHECKPOINT_FORMAT.
+   *
+   * @return the record checkpoints
+   */
+  public synchronized RecordCheckpoints checkpoints() {
+    if (checkpoints == null) {
+      checkpoints = new RecordCheckpoints(this,
+              RecordCheckpoints.Format.valueOf(Config.getGlobalString(GNSConfig.GNSC.CHECKPOINT_FORMAT)),
+              Config.getGlobalInt(GNSConfig.GNSC.CHECKPOINT_CACHE_BUDGET) * 1024L * 1024L);
+    }
+    return checkpoints;
+  }
+
+  /**
+   * Returns the cache of recently read records or null if there isn't one.
+   *
+   * @return the record cache
+   */
+  public RecordCache getRecordCache() {
+    return recordCache;
+  }
+
+  /**
+   * Adds a listener that is told about every write made from now on.
+   *
+   * @param listener
+   */
+  public void addWriteListener(WriteListener listener) {
+    writeListeners.add(listener);
+  }
+
+  // Drops the record from the cache and tells the checkpoints and the write
+  // listeners which fields of the record were written, or with null keys
+  // that all of it was.
+  void written(String name, List<ColumnField> keys) {
+    if (recordCache != null) {
+      recordCache.invalidate(name);
+    }
+    RecordCheckpoints recordCheckpoints = checkpoints;
+    if (recordCheckpoints != null) {
+      if (keys != null) {
+        recordCheckpoints.changed(name, keys);
+      } else {
+        recordCheckpoints.invalidate(name);
+      }
+    }
+    for (WriteListener listener : writeListeners) {
+      listener.written(name, keys);
+    }
+  }
+
+  // Called before the async record map reads or writes the record.
+  void beforeAsync(String name) throws FailedDBOperationException {
+  }
+
+  // Called before the async record map selects or scans records.
+  void beforeAsyncScan() throws FailedDBOperationException {
+  }
+
   @Override
   public String toString() {
-    return "MongoRecordMap{" + "collectionName=" + collectionName + ", records=" + noSqlRecords + '}';
+    return "MongoRecordMap{" + "collectionName=" + collectionName + ", records=" + noSqlRecords
+            + (recordCache != null ? ", cache=" + recordCache : "") + '}';
   }
 
 }
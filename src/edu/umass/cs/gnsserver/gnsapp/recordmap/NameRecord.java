@@ -20,6 +20,7 @@
 package edu.umass.cs.gnsserver.gnsapp.recordmap;
 
 import edu.umass.cs.gigapaxos.interfaces.Summarizable;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.FieldVersions;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.UpdateOperation;
 import edu.umass.cs.gnsserver.database.AbstractRecordCursor;
 import edu.umass.cs.gnsserver.database.ColumnField;
@@ -37,7 +38,9 @@ import org.json.JSONObject;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 
 /**
@@ -243,12 +246,14 @@ public class NameRecord implements Comparable<NameRecord>, Summarizable {
    * @param argument
    * @param operation
    * @param userJSON
+   * @param version - the version to stamp the updated fields with (see {@link FieldVersions})
    * @return True if the updateEntireValuesMap does anything, false otherwise.
    * @throws edu.umass.cs.gnscommon.exceptions.server.FieldNotFoundException
    * @throws edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException
    */
   public boolean updateNameRecord(String recordKey, ResultValue newValues, ResultValue oldValues, int argument,
-          ValuesMap userJSON, UpdateOperation operation) throws FieldNotFoundException, FailedDBOperationException {
+          ValuesMap userJSON, UpdateOperation operation, String version)
+          throws FieldNotFoundException, FailedDBOperationException {
 
     // Handle special case for SINGLE_FIELD_REMOVE_FIELD operation
     // whose purpose is to remove the field with name = key from values map.
@@ -256,6 +261,12 @@ public class NameRecord implements Comparable<NameRecord>, Summarizable {
       
       ArrayList<ColumnField> keys = new ArrayList<>();
       keys.add(new ColumnField(recordKey, ColumnFieldType.LIST_STRING));
+      // the field is gone so it has no version; goes last since the
+      // record may not have any versions yet
+      String versionKey = FieldVersions.getVersionKey(recordKey);
+      if (versionKey != null) {
+        keys.add(new ColumnField(versionKey, ColumnFieldType.USER_JSON));
+      }
        GNSConfig.getLogger().log(Level.FINE,
                     "<============>REMOVE {0} from {1}<============>", new Object[]{recordKey, getName()});
       recordMap.removeMapKeys(getName(), VALUES_MAP, keys);
@@ -306,6 +317,20 @@ public class NameRecord implements Comparable<NameRecord>, Summarizable {
         updatedFields.add(new ColumnField(recordKey, ColumnFieldType.LIST_STRING));
         updatedValues.add(valuesMap.getAsArray(recordKey));
       }
+      // stamp the updated fields with a new version in the same write
+      if (userJSON == null || !userJSON.has(FieldVersions.VERSIONS)) {
+        Set<String> versionKeys = new LinkedHashSet<>();
+        for (ColumnField field : updatedFields) {
+          String versionKey = FieldVersions.getVersionKey(field.getName());
+          if (versionKey != null) {
+            versionKeys.add(versionKey);
+          }
+        }
+        for (String versionKey : versionKeys) {
+          updatedFields.add(new ColumnField(versionKey, ColumnFieldType.USER_JSON));
+          updatedValues.add(version);
+        }
+      }
 
       recordMap.updateIndividualFields(getName(), updatedFields, updatedValues);
     }
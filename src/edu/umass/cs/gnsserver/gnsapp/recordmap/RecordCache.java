@@ -0,0 +1,260 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsserver.gnsapp.recordmap;
+
+import edu.umass.cs.gnscommon.utils.ImmutableJSONObject;
+import edu.umass.cs.gnsserver.main.GNSConfig;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * A bounded cache of recently read records for a {@link GNSRecordMap}.
+ *
+ * A single request often reads the same record several times, for the ACL
+ * and signature checks and then for the fields themselves, and hot guids
+ * are read by many requests. The cache keeps the whole records of those
+ * as {@link ImmutableJSONObject}s so readers can share them.
+ *
+ * The record map drops a record from the cache whenever it writes or removes
+ * it. A read that raced with the write doesn't put the record it read back
+ * in the cache. The cache is split into segments, each a small least
+ * recently used map with its own lock, so readers of different records
+ * rarely wait for each other.
+ *
+ * @author westy
+ */
+public class RecordCache {
+
+  private static final int SEGMENTS = 16;
+
+  private final Segment[] segments;
+  private final int maxRecords;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * Creates a cache that holds up to about maxRecords records.
+   *
+   * @param maxRecords
+   */
+  public RecordCache(int maxRecords) {
+    this.maxRecords = maxRecords;
+    this.segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(Math.max(1, maxRecords / SEGMENTS));
+    }
+  }
+
+  // An access ordered map of records that drops the least recently used one
+  // when it is full, and a set of the names recently missed.
+  private static class Segment {
+
+    private final LinkedHashMap<String, ImmutableJSONObject> records;
+    private final LinkedHashMap<String, Boolean> missed;
+    // changes whenever a record is dropped so stale reads aren't kept
+    private long generation = 0;
+
+    Segment(final int capacity) {
+      this.records = new LinkedHashMap<String, ImmutableJSONObject>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ImmutableJSONObject> eldest) {
+          return size() > capacity;
+        }
+      };
+      this.missed = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > capacity;
+        }
+      };
+    }
+  }
+
+  private Segment segment(String name) {
+    int hash = name.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  /**
+   * Returns the cached record or null if it isn't cached.
+   *
+   * @param name
+   * @return the record or null
+   */
+  public ImmutableJSONObject get(String name) {
+    Segment segment = segment(name);
+    ImmutableJSONObject record;
+    synchronized (segment) {
+      record = segment.records.get(name);
+    }
+    (record != null ? hits : misses).incrementAndGet();
+    return record;
+  }
+
+  /**
+   * Returns true if the record is cached. Doesn't count as a read.
+   *
+   * @param name
+   * @return true if the record is cached
+   */
+  public boolean contains(String name) {
+    Segment segment = segment(name);
+    synchronized (segment) {
+      return segment.records.containsKey(name);
+    }
+  }
+
+  /**
+   * Notes a read that wasn't worth caching the whole record for and returns
+   * true if the record was missed recently, in which case it probably is.
+   *
+   * @param name
+   * @return true if the record was missed recently
+   */
+  boolean missedBefore(String name) {
+    Segment segment = segment(name);
+    synchronized (segment) {
+      return segment.missed.put(name, Boolean.TRUE) != null;
+    }
+  }
+
+  /**
+   * Returns the version to pass to {@link #put} for a record about to be
+   * read from the database.
+   *
+   * @param name
+   * @return the version
+   */
+  long version(String name) {
+    Segment segment = segment(name);
+    synchronized (segment) {
+      return segment.generation;
+    }
+  }
+
+  /**
+   * Caches the record read from the database unless it was written since
+   * the version was taken, and returns it in its immutable form.
+   *
+   * @param name
+   * @param record
+   * @param version - from {@link #version} before the record was read
+   * @return the record to return to the reader
+   */
+  JSONObject put(String name, JSONObject record, long version) {
+    ImmutableJSONObject immutable;
+    try {
+      immutable = ImmutableJSONObject.of(record);
+    } catch (JSONException e) {
+      GNSConfig.getLogger().log(Level.FINE, "Not caching {0}: {1}", new Object[]{name, e.getMessage()});
+      return record;
+    }
+    Segment segment = segment(name);
+    synchronized (segment) {
+      if (segment.generation == version) {
+        segment.records.put(name, immutable);
+        segment.missed.remove(name);
+      }
+    }
+    return immutable;
+  }
+
+  /**
+   * Drops the record from the cache.
+   *
+   * @param name
+   */
+  public void invalidate(String name) {
+    Segment segment = segment(name);
+    synchronized (segment) {
+      segment.generation++;
+      if (segment.records.remove(name) != null) {
+        invalidations.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of cached records.
+   *
+   * @return the number of records
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.records.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Returns the fraction of reads that found the record in the cache.
+   *
+   * @return the hit ratio
+   */
+  public double getHitRatio() {
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  /**
+   * Returns the number of reads that found the record in the cache.
+   *
+   * @return the number of hits
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of reads that didn't find the record in the cache.
+   *
+   * @return the number of misses
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the number of cached records dropped because they were written.
+   *
+   * @return the number of invalidations
+   */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  @Override
+  public String toString() {
+    return "RecordCache{" + "records=" + size() + ", maxRecords=" + maxRecords
+            + ", hitRatio=" + String.format("%.3f", getHitRatio()) + ", hits=" + hits
+            + ", misses=" + misses + ", invalidations=" + invalidations + '}';
+  }
+}
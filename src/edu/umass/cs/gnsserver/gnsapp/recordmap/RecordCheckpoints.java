@@ -0,0 +1,399 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsserver.gnsapp.recordmap;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.utils.Base64;
+import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
+import edu.umass.cs.gnsserver.database.ColumnField;
+import edu.umass.cs.gnsserver.database.ColumnFieldType;
+import edu.umass.cs.gnsserver.main.GNSConfig;
+import edu.umass.cs.gnsserver.utils.BinaryJSON;
+import edu.umass.cs.gnsserver.utils.ValuesMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Makes the checkpoints of the values maps of names and restores them.
+ *
+ * Checkpoints are the strings gigapaxos stores and sends to other replicas.
+ * In the JSON format they are the values map as JSON text. In the BINARY
+ * and INCREMENTAL formats they are a header line followed by one line per
+ * top level field holding the field in a compact binary encoding, deflated
+ * if it is large, in base64. Restores accept any of the formats.
+ *
+ * In the INCREMENTAL format the lines of recent checkpoints are cached, and
+ * the record map tells us which fields each write changes. A checkpoint only
+ * reads and encodes the fields changed since the last one and returns the
+ * previous string if nothing changed. A restore over a record whose last
+ * checkpoint is cached only writes the fields whose lines differ. Other
+ * restores add or replace the whole record in one write without first
+ * checking whether it exists, so a {@link BatchedRecordMap} can write the
+ * restores of many names together. The checkpoints themselves are always
+ * complete so any replica can restore them.
+ *
+ * @author westy
+ */
+public class RecordCheckpoints {
+
+  /**
+   * The formats of checkpoints.
+   */
+  public enum Format {
+    /**
+     * The values map as JSON text.
+     */
+    JSON,
+    /**
+     * Compact binary fields.
+     */
+    BINARY,
+    /**
+     * Compact binary fields, only reencoding the fields that changed.
+     */
+    INCREMENTAL
+  }
+
+  private static final String HEADER = "GNSB1";
+  private static final char RAW = 'R';
+  private static final char DEFLATED = 'Z';
+  // fields smaller than this aren't worth deflating
+  private static final int DEFLATE_SIZE = 512;
+
+  private final BasicRecordMap recordMap;
+  private final Format format;
+  private final long budget;
+  // everything below is guarded by this
+  private final LinkedHashMap<String, Checkpoint> cache = new LinkedHashMap<>(16, 0.75f, true);
+  // the fields written since the last checkpoint of cached names and of
+  // names being checkpointed
+  private final HashMap<String, Set<String>> changed = new HashMap<>();
+  private long bytes = 0;
+
+  /**
+   * Creates the checkpoints of the record map.
+   *
+   * @param recordMap
+   * @param format
+   * @param budget - the most bytes of checkpoints to cache
+   */
+  public RecordCheckpoints(BasicRecordMap recordMap, Format format, long budget) {
+    this.recordMap = recordMap;
+    this.format = format;
+    this.budget = budget;
+  }
+
+  // The lines of a checkpoint by field and the checkpoint they make up.
+  private static class Checkpoint {
+
+    private final LinkedHashMap<String, String> lines;
+    private final String state;
+    private final long size;
+
+    Checkpoint(LinkedHashMap<String, String> lines) {
+      this.lines = lines;
+      StringBuilder builder = new StringBuilder(HEADER);
+      long total = 0;
+      for (String line : lines.values()) {
+        builder.append('\n').append(line);
+        total += line.length();
+      }
+      this.state = builder.toString();
+      this.size = 2 * (total + state.length());
+    }
+  }
+
+  /**
+   * Notes that some fields of the values map of the record were written.
+   *
+   * @param name
+   * @param keys - the keys written, which may be dotted paths
+   */
+  synchronized void changed(String name, List<ColumnField> keys) {
+    Set<String> fields = changed.get(name);
+    if (fields == null) {
+      if (!cache.containsKey(name)) {
+        return;
+      }
+      changed.put(name, fields = new HashSet<>());
+    }
+    for (ColumnField key : keys) {
+      String field = key.getName();
+      int dot = field.indexOf('.');
+      fields.add(dot < 0 ? field : field.substring(0, dot));
+    }
+  }
+
+  /**
+   * Notes that the whole record was written or removed.
+   *
+   * @param name
+   */
+  synchronized void invalidate(String name) {
+    Checkpoint old = cache.remove(name);
+    if (old != null) {
+      bytes -= old.size;
+    }
+    changed.remove(name);
+  }
+
+  /**
+   * Returns the checkpoint of the values map of the record.
+   *
+   * @param name
+   * @return the checkpoint
+   * @throws RecordNotFoundException
+   * @throws FailedDBOperationException
+   * @throws JSONException
+   */
+  public String checkpoint(String name) throws RecordNotFoundException,
+          FailedDBOperationException, JSONException {
+    if (format != Format.INCREMENTAL) {
+      JSONObject valuesMap = recordMap.lookupEntireRecord(name).getJSONObject(NameRecord.VALUES_MAP.getName());
+      return format == Format.JSON ? valuesMap.toString() : new Checkpoint(encode(valuesMap)).state;
+    }
+    Checkpoint previous;
+    Set<String> fields;
+    synchronized (this) {
+      previous = cache.get(name);
+      fields = changed.get(name);
+      if (previous != null && fields == null) {
+        return previous.state;
+      }
+      // collects the writes made while we read the record
+      changed.put(name, new HashSet<String>());
+    }
+    LinkedHashMap<String, String> lines;
+    if (previous == null) {
+      lines = encode(recordMap.lookupEntireRecord(name).getJSONObject(NameRecord.VALUES_MAP.getName()));
+    } else {
+      ArrayList<ColumnField> keys = new ArrayList<>();
+      for (String field : fields) {
+        keys.add(new ColumnField(field, ColumnFieldType.USER_JSON));
+      }
+      JSONObject values = (JSONObject) recordMap.lookupUserFields(name, NameRecord.NAME,
+              NameRecord.VALUES_MAP, keys).get(NameRecord.VALUES_MAP);
+      lines = new LinkedHashMap<>(previous.lines);
+      for (String field : fields) {
+        if (values != null && values.has(field)) {
+          lines.put(field, encodeField(field, values.get(field)));
+        } else {
+          lines.remove(field);
+        }
+      }
+    }
+    Checkpoint checkpoint = new Checkpoint(lines);
+    synchronized (this) {
+      Set<String> during = changed.remove(name);
+      // a write of the whole record since we started may not be in it
+      if (during != null) {
+        cache(name, checkpoint);
+        if (!during.isEmpty()) {
+          changed.put(name, during);
+        }
+      }
+    }
+    GNSConfig.getLogger().log(Level.FINE, "{0} checkpointed {1} reencoding {2}",
+            new Object[]{this, name, previous == null ? "everything" : fields});
+    return checkpoint.state;
+  }
+
+  private void cache(String name, Checkpoint checkpoint) {
+    Checkpoint old = cache.put(name, checkpoint);
+    bytes += checkpoint.size - (old != null ? old.size : 0);
+    Iterator<Map.Entry<String, Checkpoint>> iterator = cache.entrySet().iterator();
+    while (bytes > budget && iterator.hasNext()) {
+      Map.Entry<String, Checkpoint> eldest = iterator.next();
+      iterator.remove();
+      bytes -= eldest.getValue().size;
+      changed.remove(eldest.getKey());
+    }
+  }
+
+  /**
+   * Replaces the values map of the record with the checkpoint, or removes
+   * the record if the checkpoint is null.
+   *
+   * @param name
+   * @param state
+   * @throws FailedDBOperationException
+   * @throws JSONException
+   */
+  public void restore(String name, String state) throws FailedDBOperationException, JSONException {
+    if (state == null) {
+      // If the record does not exist this is just a noop.
+      restoreEntireValuesMap(name, null);
+      return;
+    }
+    if (!state.startsWith(HEADER)) {
+      restoreEntireValuesMap(name, new ValuesMap(new JSONObject(state)));
+      return;
+    }
+    LinkedHashMap<String, String> lines = new LinkedHashMap<>();
+    JSONObject values = decode(state, lines);
+    Checkpoint previous;
+    Set<String> fields;
+    synchronized (this) {
+      previous = cache.get(name);
+      fields = changed.remove(name);
+    }
+    // removing the record drops its cached checkpoint so it still exists
+    if (previous == null) {
+      restoreEntireValuesMap(name, new ValuesMap(values));
+    } else {
+      ArrayList<ColumnField> updatedFields = new ArrayList<>();
+      ArrayList<Object> updatedValues = new ArrayList<>();
+      for (Map.Entry<String, String> entry : lines.entrySet()) {
+        String field = entry.getKey();
+        if (!entry.getValue().equals(previous.lines.get(field)) || (fields != null && fields.contains(field))) {
+          updatedFields.add(new ColumnField(field, ColumnFieldType.USER_JSON));
+          updatedValues.add(values.get(field));
+        }
+      }
+      Set<String> removed = new HashSet<>(previous.lines.keySet());
+      if (fields != null) {
+        removed.addAll(fields);
+      }
+      removed.removeAll(lines.keySet());
+      ArrayList<ColumnField> removedFields = new ArrayList<>();
+      for (String field : removed) {
+        removedFields.add(new ColumnField(field, ColumnFieldType.USER_JSON));
+      }
+      if (!updatedFields.isEmpty()) {
+        recordMap.updateIndividualFields(name, updatedFields, updatedValues);
+      }
+      if (!removedFields.isEmpty()) {
+        recordMap.removeMapKeys(name, NameRecord.VALUES_MAP, removedFields);
+      }
+      GNSConfig.getLogger().log(Level.FINE, "{0} restored {1} writing {2} and removing {3}",
+              new Object[]{this, name, updatedFields, removedFields});
+    }
+    if (format == Format.INCREMENTAL) {
+      synchronized (this) {
+        // the writes above noted themselves as changes
+        changed.remove(name);
+        cache(name, new Checkpoint(lines));
+      }
+    }
+  }
+
+  // Adds or replaces the record without checking whether it exists first.
+  // A null values map removes it.
+  private void restoreEntireValuesMap(String name, ValuesMap valuesMap) throws FailedDBOperationException {
+    recordMap.bulkUpsertValuesMaps(Collections.singletonMap(name, valuesMap));
+  }
+
+  /**
+   * Returns the values map in a checkpoint in any of the formats.
+   *
+   * @param state
+   * @return the values map
+   * @throws JSONException
+   */
+  public static JSONObject decode(String state) throws JSONException {
+    return state.startsWith(HEADER) ? decode(state, new LinkedHashMap<String, String>()) : new JSONObject(state);
+  }
+
+  private static LinkedHashMap<String, String> encode(JSONObject valuesMap) throws JSONException {
+    LinkedHashMap<String, String> lines = new LinkedHashMap<>();
+    Iterator<?> keys = valuesMap.keys();
+    while (keys.hasNext()) {
+      String field = (String) keys.next();
+      lines.put(field, encodeField(field, valuesMap.get(field)));
+    }
+    return lines;
+  }
+
+  private static String encodeField(String field, Object value) throws JSONException {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream output = new DataOutputStream(bytes);
+      BinaryJSON.writeString(output, field);
+      BinaryJSON.writeValue(output, value);
+      output.flush();
+      if (bytes.size() < DEFLATE_SIZE) {
+        return RAW + Base64.encodeToString(bytes.toByteArray(), false);
+      }
+      ByteArrayOutputStream deflated = new ByteArrayOutputStream(bytes.size() / 2);
+      try (DeflaterOutputStream deflater = new DeflaterOutputStream(deflated)) {
+        bytes.writeTo(deflater);
+      }
+      return DEFLATED + Base64.encodeToString(deflated.toByteArray(), false);
+    } catch (IOException e) {
+      // can't happen writing to memory
+      throw new JSONException(e);
+    }
+  }
+
+  private static JSONObject decode(String state, LinkedHashMap<String, String> lines) throws JSONException {
+    JSONObject values = new JSONObject();
+    int start = HEADER.length() + 1;
+    while (start < state.length()) {
+      int end = state.indexOf('\n', start);
+      if (end < 0) {
+        end = state.length();
+      }
+      String line = state.substring(start, end);
+      start = end + 1;
+      try {
+        byte[] decoded = Base64.decode(line.substring(1));
+        if (decoded == null) {
+          throw new IOException("bad base64");
+        }
+        InputStream bytes = new ByteArrayInputStream(decoded);
+        if (line.charAt(0) == DEFLATED) {
+          bytes = new InflaterInputStream(bytes);
+        }
+        DataInputStream input = new DataInputStream(bytes);
+        String field = BinaryJSON.readString(input);
+        values.put(field, BinaryJSON.readValue(input));
+        lines.put(field, line);
+      } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException e) {
+        throw new JSONException("Bad checkpoint line: " + e.getMessage());
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "RecordCheckpoints{" + format + ", names=" + cache.size() + ", bytes=" + bytes + '}';
+  }
+}
@@ -22,6 +22,7 @@ package edu.umass.cs.gnsserver.gnsapp.recordmap;
 //import edu.umass.cs.gnsserver.nsdesign.recordmap.ReplicaControllerRecord;
 import edu.umass.cs.gnsserver.database.AbstractRecordCursor;
 import edu.umass.cs.gnsserver.database.ColumnField;
+import edu.umass.cs.gnsserver.database.FieldUpdate;
 import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
 import edu.umass.cs.gnscommon.exceptions.server.RecordExistsException;
 import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
@@ -30,6 +31,7 @@ import org.json.JSONObject;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -128,6 +130,25 @@ public interface RecordMapInterface {
   public abstract void updateIndividualFields(String name, ArrayList<ColumnField> valuesMapKeys, ArrayList<Object> valuesMapValues)
           throws FailedDBOperationException;
 
+  /**
+   * Update particular fields in several records at once.
+   *
+   * @param updates - the updates in the order they should be applied
+   * @throws FailedDBOperationException
+   */
+  public abstract void bulkUpdateIndividualFields(List<FieldUpdate> updates)
+          throws FailedDBOperationException;
+
+  /**
+   * Set the entire values maps of several records at once, adding the
+   * records that don't exist. A null values map removes the record.
+   *
+   * @param valuesMaps - the values maps by the name of the record
+   * @throws FailedDBOperationException
+   */
+  public abstract void bulkUpsertValuesMaps(Map<String, ValuesMap> valuesMaps)
+          throws FailedDBOperationException;
+
   /**
    * Remove keys from a field.
    *
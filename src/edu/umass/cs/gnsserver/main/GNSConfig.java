@@ -64,6 +64,23 @@ public class GNSConfig {
      * DiskMap is also enabled.
      */
     IN_MEMORY_DB(false),
+    /**
+     * The megabytes of records DiskMapRecords keeps in memory per collection
+     * before committing the least used ones to mongo. 0 means a quarter of
+     * the maximum heap. Not used with IN_MEMORY_DB.
+     */
+    DISKMAP_MEMORY_BUDGET(0),
+    /**
+     * The format of the checkpoints of names: JSON, BINARY or INCREMENTAL.
+     * Any format can be restored, but servers from before BINARY only
+     * restore JSON, so only set BINARY or INCREMENTAL once every server
+     * restores them.
+     */
+    CHECKPOINT_FORMAT("JSON"),
+    /**
+     * The megabytes of recent checkpoints kept for INCREMENTAL checkpoints.
+     */
+    CHECKPOINT_CACHE_BUDGET(64),
     /**
      * If enabled, the GNS will cache and return the same value for reads.
      *
@@ -105,14 +122,134 @@ public class GNSConfig {
     /* FIXME: arun: need to determine this timeout systematically, not an ad
 		 * hoc constant. */
     SELECT_REQUEST_TIMEOUT(5000),
+    /**
+     * How many records a select reads from the database and ACL checks
+     * at a time.
+     */
+    SELECT_BATCH_SIZE(100),
+    /**
+     * If true each record matched by a select is only returned by one
+     * server instead of by every server that has a copy of it. Only used
+     * if every active replica has a copy of every name (REPLICATE_ALL).
+     * A server that sends back an error loses all the records it returns.
+     */
+    SELECT_PARTITIONED(false),
+    /**
+     * How long, in milliseconds, the server that collects a select keeps
+     * its result to answer the same select with. 0 turns the cache off.
+     * Writes made on this server drop the results they could change right
+     * away, but writes of names this server isn't a replica of are only
+     * seen once the result is this old, so only make this long if every
+     * active replica has a copy of every name (REPLICATE_ALL).
+     */
+    SELECT_CACHE_MAX_AGE(0),
+    /**
+     * The most select results kept by each server for SELECT_CACHE_MAX_AGE.
+     */
+    SELECT_CACHE_SIZE(1000),
+    /**
+     * If true every server checks the records written on it against the
+     * queries of the context aware groups and adds them to or removes them
+     * from the groups, so looking up the members of a group doesn't run its
+     * query.
+     */
+    GROUP_INCREMENTAL(false),
+    /**
+     * How long, in milliseconds, a GROUP_LOOKUP returns the members of a
+     * group maintained by GROUP_INCREMENTAL before the whole query is run
+     * again to pick up servers that restarted.
+     */
+    GROUP_RESYNC_INTERVAL(600000),
+    /**
+     * If true a collecting server asks the servers to send the records of
+     * its selects in a binary encoding instead of as JSON. Servers only use
+     * it when it is asked for, so this can be turned on one server at a
+     * time once they all understand it.
+     */
+    SELECT_BINARY_RECORDS(false),
+    /**
+     * The size in bytes at which the binary select records are also
+     * deflated, 0 for never.
+     */
+    SELECT_DEFLATE_SIZE(1024),
     /**
      *
      */
     MONGO_PORT(27017),
+    /**
+     * How durable field updates are when MongoRecords returns from them:
+     * WRITE_BEHIND, ACKNOWLEDGED or JOURNALED. WRITE_BEHIND relies on the
+     * paxos log to replay the updates that hadn't been committed when a
+     * server crashes.
+     */
+    MONGO_DURABILITY("ACKNOWLEDGED"),
+    /**
+     * How often in milliseconds MongoRecords commits the updates that are behind.
+     */
+    MONGO_WRITE_BEHIND_INTERVAL(10),
+    /**
+     * The most updates MongoRecords lets get behind before an update waits
+     * for them to be committed.
+     */
+    MONGO_WRITE_BEHIND_MAX_UPDATES(10000),
+    /**
+     * The number of threads used for async database operations on
+     * databases that aren't in memory.
+     */
+    ASYNC_DB_THREADS(16),
+    /**
+     * The most async database operations that can wait for a thread
+     * before callers run them themselves.
+     */
+    ASYNC_DB_QUEUE_SIZE(1024),
     /**
      * The class used to represent NoSQL records.
      */
     NOSQL_RECORDS_CLASS("edu.umass.cs.gnsserver.database.MongoRecords"),
+    /**
+     * The directory used by the embedded LogStructuredRecords database.
+     * Each node uses a subdirectory named after the node.
+     */
+    LOG_STRUCTURED_DB_DIR("gnsdb"),
+    /**
+     * The size in bytes of each segment file of the LogStructuredRecords database.
+     */
+    LOG_STRUCTURED_SEGMENT_SIZE(64 * 1024 * 1024),
+    /**
+     * If enabled LogStructuredRecords forces every write to disk before returning.
+     * Otherwise writes become durable when the operating system flushes the
+     * memory mapped segments.
+     */
+    LOG_STRUCTURED_SYNC_WRITES(false),
+    /**
+     * If enabled field updates from executed commands, and the records
+     * restored from checkpoints, are held briefly and written to the
+     * database together in one bulk update.
+     */
+    BATCH_DB_UPDATES(false),
+    /**
+     * The most field updates held before they are written out.
+     */
+    BATCH_DB_UPDATES_MAX_SIZE(256),
+    /**
+     * The most restored records held before they are written out.
+     */
+    BATCH_DB_RESTORES_MAX_SIZE(1024),
+    /**
+     * The longest in milliseconds a field update or restored record is held
+     * before it is written out.
+     */
+    BATCH_DB_UPDATES_MAX_DELAY(5),
+    /**
+     * The most times in a row held field updates and restored records are
+     * tried before they are logged and dropped.
+     */
+    BATCH_DB_UPDATES_MAX_ATTEMPTS(10),
+    /**
+     * The most recently read records kept in memory by each record map.
+     * 0 turns the cache off.
+     */
+    RECORD_CACHE_SIZE(10000),
     //
     // ACCOUNT GUIDS
     //
@@ -279,11 +416,15 @@ public class GNSConfig {
      */
     public static Class<?> getNoSqlRecordsClass() {
       if (noSqlRecordsclass == null) {
+        String configured = Config.getGlobalString(GNSC.NOSQL_RECORDS_CLASS);
         // arun: in-memory DB => DiskMap
+        // An explicitly configured database other than mongo wins over DiskMap.
         noSqlRecordsclass = getClassSuppressExceptions(Config
-                .getGlobalBoolean(GNSC.ENABLE_DISKMAP)
-                || Config.getGlobalBoolean(GNSConfig.GNSC.IN_MEMORY_DB) ? "edu.umass.cs.gnsserver.database.DiskMapRecords"
-                : Config.getGlobalString(GNSC.NOSQL_RECORDS_CLASS));
+                .getGlobalBoolean(GNSConfig.GNSC.IN_MEMORY_DB)
+                || (Config.getGlobalBoolean(GNSC.ENABLE_DISKMAP)
+                && NOSQL_RECORDS_CLASS.getDefaultValue().equals(configured))
+                ? "edu.umass.cs.gnsserver.database.DiskMapRecords"
+                : configured);
       }
       return noSqlRecordsclass;
     }
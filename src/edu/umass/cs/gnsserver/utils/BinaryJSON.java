@@ -0,0 +1,193 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsserver.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A compact binary encoding of JSON values. Each value is a type byte
+ * followed by the value: numbers in binary, strings as their length and
+ * UTF-8 bytes, and objects and arrays as their length and elements. Values
+ * come back as the same types they were written as, so a long doesn't come
+ * back as an int like it would from JSON text.
+ *
+ * Used by checkpoints and by select responses.
+ *
+ * @author westy
+ */
+public class BinaryJSON {
+
+  private static final byte NULL = 0;
+  private static final byte FALSE = 1;
+  private static final byte TRUE = 2;
+  private static final byte INT = 3;
+  private static final byte LONG = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte STRING = 6;
+  private static final byte OBJECT = 7;
+  private static final byte ARRAY = 8;
+  private static final byte NUMBER = 9; // any other number as a string
+
+  /**
+   * Writes the string as its length followed by its UTF-8 bytes.
+   *
+   * @param output
+   * @param string
+   * @throws IOException
+   */
+  public static void writeString(DataOutputStream output, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  /**
+   * Reads a string written by {@link #writeString}.
+   *
+   * @param input
+   * @return the string
+   * @throws IOException
+   */
+  public static String readString(DataInputStream input) throws IOException {
+    byte[] bytes = new byte[input.readInt()];
+    input.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes a JSON value: a JSONObject, JSONArray, string, number, boolean
+   * or null. Maps and collections are written as objects and arrays.
+   *
+   * @param output
+   * @param value
+   * @throws IOException
+   * @throws JSONException
+   */
+  public static void writeValue(DataOutputStream output, Object value) throws IOException, JSONException {
+    if (value == null || value == JSONObject.NULL) {
+      output.writeByte(NULL);
+    } else if (value instanceof Boolean) {
+      output.writeByte((Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      output.writeByte(INT);
+      output.writeInt(((Number) value).intValue());
+    } else if (value instanceof Long) {
+      output.writeByte(LONG);
+      output.writeLong((Long) value);
+    } else if (value instanceof Double || value instanceof Float) {
+      output.writeByte(DOUBLE);
+      output.writeDouble(((Number) value).doubleValue());
+    } else if (value instanceof Number) {
+      output.writeByte(NUMBER);
+      writeString(output, value.toString());
+    } else if (value instanceof JSONObject) {
+      JSONObject object = (JSONObject) value;
+      output.writeByte(OBJECT);
+      output.writeInt(object.length());
+      Iterator<?> keys = object.keys();
+      while (keys.hasNext()) {
+        String key = (String) keys.next();
+        writeString(output, key);
+        writeValue(output, object.get(key));
+      }
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      output.writeByte(ARRAY);
+      output.writeInt(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        writeValue(output, array.get(i));
+      }
+    } else if (value instanceof Map || value instanceof Collection) {
+      // values read from some of the stores
+      writeValue(output, JSONObject.wrap(value));
+    } else {
+      output.writeByte(STRING);
+      writeString(output, value.toString());
+    }
+  }
+
+  /**
+   * Reads a value written by {@link #writeValue}.
+   *
+   * @param input
+   * @return the value
+   * @throws IOException if the input is bad
+   * @throws JSONException
+   */
+  public static Object readValue(DataInputStream input) throws IOException, JSONException {
+    byte type = input.readByte();
+    switch (type) {
+      case NULL:
+        return JSONObject.NULL;
+      case FALSE:
+        return Boolean.FALSE;
+      case TRUE:
+        return Boolean.TRUE;
+      case INT:
+        return input.readInt();
+      case LONG:
+        return input.readLong();
+      case DOUBLE:
+        return input.readDouble();
+      case NUMBER: {
+        String number = readString(input);
+        try {
+          return number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0
+                  ? new BigInteger(number) : new BigDecimal(number);
+        } catch (NumberFormatException e) {
+          return JSONObject.stringToValue(number);
+        }
+      }
+      case STRING:
+        return readString(input);
+      case OBJECT: {
+        int length = input.readInt();
+        JSONObject object = new JSONObject();
+        for (int i = 0; i < length; i++) {
+          String key = readString(input);
+          object.put(key, readValue(input));
+        }
+        return object;
+      }
+      case ARRAY: {
+        int length = input.readInt();
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < length; i++) {
+          array.put(readValue(input));
+        }
+        return array;
+      }
+      default:
+        throw new IOException("Unknown type " + type);
+    }
+  }
+}
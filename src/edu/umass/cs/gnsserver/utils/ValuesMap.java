@@ -20,7 +20,7 @@
 package edu.umass.cs.gnsserver.utils;
 
 import edu.umass.cs.gigapaxos.interfaces.Summarizable;
-import edu.umass.cs.gnscommon.utils.JSONDotNotation;
+import edu.umass.cs.gnscommon.utils.JSONPath;
 import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.InternalField;
 import edu.umass.cs.gnsserver.main.GNSConfig;
 
@@ -138,7 +138,7 @@ public class ValuesMap extends JSONObject implements Summarizable {
     // {"flapjack.sally":{"left":"eight","right":"seven"}}
     // or this
     // {"flapjack":{sally":{"left":"eight","right":"seven"}}}
-    return super.has(key) || JSONDotNotation.containsFieldDotNotation(key, this);
+    return super.has(key) || JSONPath.of(key).has(this);
   }
 
   /**
@@ -156,8 +156,8 @@ public class ValuesMap extends JSONObject implements Summarizable {
         return new ResultValue(JSONUtils.JSONArrayToArrayList(super.getJSONArray(key)));
       }
       // handles this case: // {"flapjack":{sally":{"left":"eight","right":"seven"}}}
-      if (JSONDotNotation.containsFieldDotNotation(key, this)) {
-        Object object = JSONDotNotation.getWithDotNotation(key, this);
+      Object object = JSONPath.of(key).opt(this);
+      if (object != null) {
         if (object instanceof JSONArray) {
           return new ResultValue(JSONUtils.JSONArrayToArrayList((JSONArray) object));
         }
@@ -183,7 +183,7 @@ public class ValuesMap extends JSONObject implements Summarizable {
    */
   public void putAsArray(String key, ResultValue value) {
     try {
-      JSONDotNotation.putWithDotNotation(this, key, new JSONArray(value));
+      JSONPath.of(key).put(this, new JSONArray(value));
       //super.put(key, value);
       //GNS.getLogger().severe("@@@@@AFTER PUT (key =" + key + " value=" + value + "): " + newContent.toString());
     } catch (JSONException e) {
@@ -209,7 +209,7 @@ public class ValuesMap extends JSONObject implements Summarizable {
       String key = (String) keyIter.next();
       try {
         //destination.put(key, super.get(key));
-        JSONDotNotation.putWithDotNotation(destination, key, super.get(key));
+        JSONPath.of(key).put(destination, super.get(key));
         somethingChanged = true;
       } catch (JSONException e) {
         GNSConfig.getLogger().log(Level.SEVERE,
@@ -0,0 +1,152 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsclient.client.singletests;
+
+import edu.umass.cs.gnsclient.client.GNSClientCommands;
+import edu.umass.cs.gnsclient.client.GNSCommand;
+import edu.umass.cs.gnsclient.client.util.GuidEntry;
+import edu.umass.cs.gnsclient.client.util.GuidUtils;
+import edu.umass.cs.gnscommon.GNSProtocol;
+import edu.umass.cs.gnscommon.exceptions.client.ClientException;
+import edu.umass.cs.gnscommon.utils.RandomString;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.FieldVersions;
+import edu.umass.cs.gnsserver.utils.DefaultGNSTest;
+import edu.umass.cs.utils.Utils;
+import java.io.IOException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import org.junit.Assert;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Test reads that only return a field if it changed since a version.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ConditionalReadTest extends DefaultGNSTest {
+
+  private static GNSClientCommands clientCommands = null;
+  private static GuidEntry masterGuid;
+  private static GuidEntry westyEntry;
+  private static String version;
+
+  /**
+   *
+   */
+  public ConditionalReadTest() {
+    if (clientCommands == null) {
+      try {
+        clientCommands = new GNSClientCommands();
+        clientCommands.setForceCoordinatedReads(true);
+      } catch (IOException e) {
+        Utils.failWithStackTrace("Exception creating client: " + e);
+      }
+      try {
+        masterGuid = GuidUtils.getGUIDKeys(globalAccountName);
+      } catch (Exception e) {
+        Utils.failWithStackTrace("Exception when we were not expecting it: " + e);
+      }
+    }
+  }
+
+  private static String readIfVersionDiffers(String field, String ifVersionDiffers)
+          throws ClientException, IOException {
+    return clientCommands.execute(GNSCommand.fieldReadIfVersionDiffers(westyEntry.getGuid(), field,
+            ifVersionDiffers, westyEntry)).getResultString();
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_10_CreateFields() {
+    try {
+      westyEntry = clientCommands.guidCreate(masterGuid, "westy" + RandomString.randomString(12));
+      clientCommands.update(westyEntry, new JSONObject().put("flapjack",
+              new JSONObject().put("sally", "red").put("sammy", "green")));
+    } catch (ClientException | IOException | JSONException e) {
+      Utils.failWithStackTrace("Exception when we were not expecting it: " + e);
+    }
+  }
+
+  /**
+   * The first read returns the value and its version.
+   */
+  @Test
+  public void test_20_FirstRead() {
+    try {
+      JSONObject result = new JSONObject(readIfVersionDiffers("flapjack", ""));
+      Assert.assertEquals("red", result.getJSONObject("flapjack").getString("sally"));
+      version = result.getString(FieldVersions.VERSION);
+      Assert.assertNotNull(version);
+    } catch (ClientException | IOException | JSONException e) {
+      Utils.failWithStackTrace("Exception while reading \"flapjack\": " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_30_NotModified() {
+    try {
+      Assert.assertEquals(GNSProtocol.NOT_MODIFIED.toString(), readIfVersionDiffers("flapjack", version));
+      // a dotted field has the version of its top level field
+      Assert.assertEquals(GNSProtocol.NOT_MODIFIED.toString(), readIfVersionDiffers("flapjack.sally", version));
+    } catch (ClientException | IOException e) {
+      Utils.failWithStackTrace("Exception while reading \"flapjack\": " + e);
+    }
+  }
+
+  /**
+   * After an update the value and its new version are returned.
+   */
+  @Test
+  public void test_40_Modified() {
+    try {
+      clientCommands.fieldUpdate(westyEntry, "flapjack.sally", "blue");
+      JSONObject result = new JSONObject(readIfVersionDiffers("flapjack.sally", version));
+      Assert.assertEquals("blue", result.getString("flapjack.sally"));
+      String newVersion = result.getString(FieldVersions.VERSION);
+      Assert.assertNotEquals(version, newVersion);
+      Assert.assertEquals(GNSProtocol.NOT_MODIFIED.toString(), readIfVersionDiffers("flapjack", newVersion));
+    } catch (ClientException | IOException | JSONException e) {
+      Utils.failWithStackTrace("Exception while reading \"flapjack.sally\": " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_50_Cleanup() {
+    try {
+      clientCommands.guidRemove(masterGuid, westyEntry.getGuid());
+    } catch (ClientException | IOException e) {
+      Utils.failWithStackTrace("Exception while removing test account guid: " + e);
+    }
+  }
+
+}
@@ -0,0 +1,239 @@
+/*
+ *
+ *  Copyright (c) 2015 University of Massachusetts
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you
+ *  may not use this file except in compliance with the License. You
+ *  may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Initial developer(s): Westy
+ *
+ */
+package edu.umass.cs.gnsclient.client.singletests;
+
+import edu.umass.cs.gnsclient.client.GNSClientCommands;
+import edu.umass.cs.gnsclient.client.util.GuidEntry;
+import edu.umass.cs.gnsclient.client.util.GuidUtils;
+import edu.umass.cs.gnsclient.client.util.JSONUtils;
+import edu.umass.cs.gnscommon.AclAccessType;
+import edu.umass.cs.gnscommon.GNSProtocol;
+import edu.umass.cs.gnscommon.exceptions.client.ClientException;
+import edu.umass.cs.gnscommon.utils.RandomString;
+import edu.umass.cs.gnsserver.utils.DefaultGNSTest;
+import edu.umass.cs.utils.Utils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import org.junit.Assert;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Test that a select returns a record to exactly the readers that can read
+ * the fields its query uses. Selects check the ACLs of all the records at
+ * once with NSBatchAclCheck, reads check them with NSAuthentication, and the
+ * two have to make the same decisions.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SelectAclTest extends DefaultGNSTest {
+
+  private static final int WAIT_SETTLE = 200;
+  private static final String FIELD = "selectAclField";
+
+  private static GNSClientCommands clientCommands = null;
+  private static GuidEntry masterGuid;
+  private static GuidEntry targetEntry;
+  private static GuidEntry samEntry;
+  private static GuidEntry strangerEntry;
+  private static GuidEntry memberEntry;
+  private static GuidEntry groupEntry;
+  private static String query;
+
+  /**
+   *
+   */
+  public SelectAclTest() {
+    if (clientCommands == null) {
+      try {
+        clientCommands = new GNSClientCommands();
+        clientCommands.setForceCoordinatedReads(true);
+      } catch (IOException e) {
+        Utils.failWithStackTrace("Exception creating client: " + e);
+      }
+      try {
+        masterGuid = GuidUtils.getGUIDKeys(globalAccountName);
+      } catch (Exception e) {
+        Utils.failWithStackTrace("Exception when we were not expecting it: " + e);
+      }
+    }
+  }
+
+  // The decision NSAuthentication makes. A read of several fields is checked
+  // like a select, and unsigned it needs everyone to be able to read the record.
+  private static boolean canRead(GuidEntry reader) throws IOException {
+    try {
+      clientCommands.fieldRead(targetEntry.getGuid(), new ArrayList<>(Arrays.asList(FIELD)), reader);
+      return true;
+    } catch (ClientException e) {
+      return false;
+    }
+  }
+
+  // The decision NSBatchAclCheck makes.
+  private static boolean selectFinds(GuidEntry reader) throws ClientException, IOException, JSONException {
+    JSONArray result = reader != null ? clientCommands.selectQuery(reader, query)
+            : clientCommands.selectQuery(query);
+    return JSONUtils.JSONArrayToHashSet(result).contains(targetEntry.getGuid());
+  }
+
+  private static void checkDecision(GuidEntry reader, boolean expected) {
+    try {
+      String who = reader != null ? reader.getEntityName() : "unsigned reader";
+      Assert.assertEquals("read by " + who, expected, canRead(reader));
+      Assert.assertEquals("select by " + who, expected, selectFinds(reader));
+    } catch (ClientException | IOException | JSONException e) {
+      Utils.failWithStackTrace("Exception while checking access: " + e);
+    }
+  }
+
+  private static void waitSettle() {
+    try {
+      Thread.sleep(WAIT_SETTLE);
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_10_CreateGuids() {
+    try {
+      targetEntry = clientCommands.guidCreate(masterGuid, "target" + RandomString.randomString(12));
+      samEntry = clientCommands.guidCreate(masterGuid, "sam" + RandomString.randomString(12));
+      strangerEntry = clientCommands.guidCreate(masterGuid, "stranger" + RandomString.randomString(12));
+      memberEntry = clientCommands.guidCreate(masterGuid, "member" + RandomString.randomString(12));
+      groupEntry = clientCommands.guidCreate(masterGuid, "group" + RandomString.randomString(12));
+      clientCommands.groupAddGuid(groupEntry.getGuid(), memberEntry.getGuid(), groupEntry);
+      // only the target can read its record
+      clientCommands.aclRemove(AclAccessType.READ_WHITELIST, targetEntry,
+              GNSProtocol.ENTIRE_RECORD.toString(), GNSProtocol.ALL_GUIDS.toString());
+      String value = RandomString.randomString(12);
+      clientCommands.fieldUpdate(targetEntry, FIELD, value);
+      query = "~" + FIELD + " : \"" + value + "\"";
+      waitSettle();
+    } catch (ClientException | IOException e) {
+      Utils.failWithStackTrace("Exception when we were not expecting it: " + e);
+    }
+  }
+
+  /**
+   * A guid can always read its own fields.
+   */
+  @Test
+  public void test_20_OwnGuid() {
+    checkDecision(targetEntry, true);
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_21_NotInAcl() {
+    checkDecision(samEntry, false);
+    checkDecision(memberEntry, false);
+    checkDecision(null, false);
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_22_ExplicitKey() {
+    try {
+      clientCommands.aclAdd(AclAccessType.READ_WHITELIST, targetEntry, FIELD, samEntry.getGuid());
+      waitSettle();
+    } catch (ClientException | IOException e) {
+      Utils.failWithStackTrace("Exception adding to the ACL: " + e);
+    }
+    checkDecision(samEntry, true);
+    checkDecision(strangerEntry, false);
+  }
+
+  /**
+   * A member of a group in the ACL can read the field.
+   */
+  @Test
+  public void test_23_GroupMembership() {
+    try {
+      clientCommands.aclAdd(AclAccessType.READ_WHITELIST, targetEntry, FIELD, groupEntry.getGuid());
+      waitSettle();
+    } catch (ClientException | IOException e) {
+      Utils.failWithStackTrace("Exception adding to the ACL: " + e);
+    }
+    checkDecision(memberEntry, true);
+    checkDecision(strangerEntry, false);
+  }
+
+  /**
+   * Any guid can read a field everyone can read, but unsigned reads of
+   * several fields need everyone to be able to read the whole record.
+   */
+  @Test
+  public void test_24_EveryoneField() {
+    try {
+      clientCommands.aclAdd(AclAccessType.READ_WHITELIST, targetEntry, FIELD, GNSProtocol.ALL_GUIDS.toString());
+      waitSettle();
+    } catch (ClientException | IOException e) {
+      Utils.failWithStackTrace("Exception adding to the ACL: " + e);
+    }
+    checkDecision(strangerEntry, true);
+    checkDecision(null, false);
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_25_EveryoneRecord() {
+    try {
+      clientCommands.aclAdd(AclAccessType.READ_WHITELIST, targetEntry,
+              GNSProtocol.ENTIRE_RECORD.toString(), GNSProtocol.ALL_GUIDS.toString());
+      waitSettle();
+    } catch (ClientException | IOException e) {
+      Utils.failWithStackTrace("Exception adding to the ACL: " + e);
+    }
+    checkDecision(null, true);
+    checkDecision(strangerEntry, true);
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_99_Cleanup() {
+    try {
+      for (GuidEntry entry : Arrays.asList(targetEntry, samEntry, strangerEntry, memberEntry, groupEntry)) {
+        clientCommands.guidRemove(masterGuid, entry.getGuid());
+      }
+    } catch (ClientException | IOException e) {
+      Utils.failWithStackTrace("Exception while removing test guids: " + e);
+    }
+  }
+}
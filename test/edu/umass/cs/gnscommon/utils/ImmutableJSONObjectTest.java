@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnscommon.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests that shared record snapshots can't be changed and that the
+ * dotted field writers copy them instead.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ImmutableJSONObjectTest {
+
+  // {name: frank, friends: [Joe, Sam], flapjack: {sammy: green, sally: {right: seven}}}
+  private static ImmutableJSONObject makeRecord() throws JSONException {
+    JSONObject sally = new JSONObject();
+    sally.put("right", "seven");
+    JSONObject flapjack = new JSONObject();
+    flapjack.put("sammy", "green");
+    flapjack.put("sally", sally);
+    JSONObject json = new JSONObject();
+    json.put("name", "frank");
+    json.put("friends", new JSONArray(Arrays.asList("Joe", "Sam")));
+    json.put("flapjack", flapjack);
+    return ImmutableJSONObject.of(json);
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_01_PutThrows() {
+    try {
+      ImmutableJSONObject record = makeRecord();
+      try {
+        record.put("name", "sam");
+        fail("Should have thrown UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+      // the typed puts go through put(String, Object)
+      try {
+        record.put("count", 1);
+        fail("Should have thrown UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+      try {
+        record.put("flag", true);
+        fail("Should have thrown UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+      assertEquals("frank", record.getString("name"));
+      assertFalse(record.has("count"));
+    } catch (JSONException e) {
+      fail("Problem with immutable record " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_02_RemoveAndKeySetThrow() {
+    try {
+      ImmutableJSONObject record = makeRecord();
+      try {
+        record.remove("name");
+        fail("Should have thrown UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+      try {
+        record.keySet().remove("name");
+        fail("Should have thrown UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+      assertTrue(record.has("name"));
+    } catch (JSONException e) {
+      fail("Problem with immutable record " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_03_NestedValuesThrow() {
+    try {
+      ImmutableJSONObject record = makeRecord();
+      try {
+        record.getJSONObject("flapjack").getJSONObject("sally").put("right", "crank");
+        fail("Should have thrown UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+      try {
+        record.getJSONArray("friends").put("Billy");
+        fail("Should have thrown UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+      try {
+        record.getJSONArray("friends").remove(0);
+        fail("Should have thrown UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+      assertEquals("seven", record.getJSONObject("flapjack").getJSONObject("sally").getString("right"));
+      assertEquals(2, record.getJSONArray("friends").length());
+    } catch (JSONException e) {
+      fail("Problem with immutable record " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_04_OfFreezesMapsAndCollections() {
+    try {
+      Map<String, Object> map = new HashMap<>();
+      map.put("sammy", "green");
+      JSONObject json = new JSONObject();
+      json.put("map", map);
+      json.put("list", Arrays.asList("Joe", "Sam"));
+      ImmutableJSONObject record = ImmutableJSONObject.of(json);
+      assertTrue(record.get("map") instanceof ImmutableJSONObject);
+      assertTrue(record.get("list") instanceof ImmutableJSONArray);
+      // already immutable records aren't copied
+      assertSame(record, ImmutableJSONObject.of(record));
+    } catch (JSONException e) {
+      fail("Problem with immutable record " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_05_PutWithDotNotationCopies() {
+    try {
+      ImmutableJSONObject record = makeRecord();
+      JSONObject copy = ImmutableJSONObject.toMutable(record);
+      assertNotSame(record, copy);
+      assertTrue(JSONDotNotation.putWithDotNotation(copy, "flapjack.sally.right", "crank"));
+      assertEquals("crank", JSONDotNotation.getWithDotNotation("flapjack.sally.right", copy));
+      // the shared snapshot still has the old value
+      assertEquals("seven", JSONDotNotation.getWithDotNotation("flapjack.sally.right", record));
+      // and the unchanged subtrees are shared
+      assertSame(record.get("friends"), copy.get("friends"));
+      // a copy that is already mutable is used as is
+      assertSame(copy, ImmutableJSONObject.toMutable(copy));
+    } catch (JSONException e) {
+      fail("Problem with immutable record " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_06_RemoveWithDotNotationCopies() {
+    try {
+      ImmutableJSONObject record = makeRecord();
+      JSONObject copy = ImmutableJSONObject.toMutable(record);
+      assertEquals("green", JSONDotNotation.removeWithDotNotation("flapjack.sammy", copy));
+      assertFalse(JSONDotNotation.containsFieldDotNotation("flapjack.sammy", copy));
+      assertTrue(JSONDotNotation.containsFieldDotNotation("flapjack.sammy", record));
+      assertSame(record.getJSONObject("flapjack").get("sally"), copy.getJSONObject("flapjack").get("sally"));
+    } catch (JSONException e) {
+      fail("Problem with immutable record " + e);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnscommon.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests resolving, writing and removing dotted field names.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class JSONPathTest {
+
+  // {name: frank, friends: [Joe, Sam], flapjack: {sammy: green, sally: {right: seven}}}
+  private static JSONObject makeRecord() throws JSONException {
+    JSONObject sally = new JSONObject();
+    sally.put("right", "seven");
+    JSONObject flapjack = new JSONObject();
+    flapjack.put("sammy", "green");
+    flapjack.put("sally", sally);
+    JSONObject json = new JSONObject();
+    json.put("name", "frank");
+    json.put("friends", new JSONArray().put("Joe").put("Sam"));
+    json.put("flapjack", flapjack);
+    return json;
+  }
+
+  /**
+   * The key is split on dots only, not on every character the way
+   * split(".") does.
+   */
+  @Test
+  public void test_01_Parts() {
+    JSONPath path = JSONPath.of("flapjack.sally.right");
+    assertEquals(3, path.depth());
+    assertEquals("flapjack", path.part(0));
+    assertEquals("sally", path.part(1));
+    assertEquals("right", path.part(2));
+    assertEquals("flapjack.sally.right", path.getKey());
+    assertEquals(1, JSONPath.of("name").depth());
+    // paths are cached
+    assertSame(path, JSONPath.of("flapjack.sally.right"));
+    assertEquals("flapjack.sally", path.parent().getKey());
+    assertSame(path.parent(), JSONPath.of("flapjack.sally"));
+    assertEquals("flapjack", path.parent().parent().getKey());
+    assertNull(path.parent().parent().parent());
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_02_GetAndOpt() {
+    try {
+      JSONObject record = makeRecord();
+      assertEquals("seven", JSONPath.of("flapjack.sally.right").get(record));
+      assertEquals("frank", JSONPath.of("name").get(record));
+      assertEquals(2, ((JSONArray) JSONPath.of("friends").get(record)).length());
+      assertTrue(JSONPath.of("flapjack.sally").get(record) instanceof JSONObject);
+      assertEquals("seven", JSONPath.of("flapjack.sally.right").opt(record));
+      assertTrue(JSONPath.of("flapjack.sammy").has(record));
+
+      assertNull(JSONPath.of("flapjack.sally.left").opt(record));
+      assertNull(JSONPath.of("flapjack.missing.right").opt(record));
+      // through something that isn't an object
+      assertNull(JSONPath.of("name.first").opt(record));
+      assertFalse(JSONPath.of("flapjack.sally.left").has(record));
+      try {
+        JSONPath.of("flapjack.missing.right").get(record);
+        fail("Should have thrown JSONException");
+      } catch (JSONException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("flapjack.JSONObject[\"missing\"] not found"));
+      }
+    } catch (JSONException e) {
+      fail("Problem getting dotted fields " + e);
+    }
+  }
+
+  /**
+   * Nested Maps, like the documents mongo returns, resolve like JSON.
+   */
+  @Test
+  public void test_03_Maps() {
+    try {
+      Map<String, Object> sally = new HashMap<>();
+      sally.put("right", "seven");
+      Map<String, Object> flapjack = new HashMap<>();
+      flapjack.put("sally", sally);
+      flapjack.put("json", new JSONObject().put("sammy", "green"));
+      Map<String, Object> record = new HashMap<>();
+      record.put("flapjack", flapjack);
+      assertEquals("seven", JSONPath.of("flapjack.sally.right").get(record));
+      assertEquals("green", JSONPath.of("flapjack.json.sammy").opt(record));
+      assertSame(sally, JSONPath.of("flapjack.sally").opt(record));
+      assertNull(JSONPath.of("flapjack.sally.left").opt(record));
+      try {
+        JSONPath.of("flapjack.sally.left").get(record);
+        fail("Should have thrown JSONException");
+      } catch (JSONException e) {
+        // expected
+      }
+    } catch (JSONException e) {
+      fail("Problem getting dotted fields of maps " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_04_Put() {
+    try {
+      JSONObject record = makeRecord();
+      assertTrue(JSONPath.of("flapjack.sally.right").put(record, "crank"));
+      assertEquals("crank", record.getJSONObject("flapjack").getJSONObject("sally").getString("right"));
+      // missing levels are added
+      assertTrue(JSONPath.of("flapjack.billy.bob").put(record, 1));
+      assertEquals(1, record.getJSONObject("flapjack").getJSONObject("billy").getInt("bob"));
+      assertTrue(JSONPath.of("top").put(record, true));
+      assertEquals(true, record.getBoolean("top"));
+      // a level that isn't an object
+      assertFalse(JSONPath.of("name.first").put(record, "frank"));
+      assertEquals("frank", record.getString("name"));
+      assertFalse(JSONPath.of("friends.first").put(record, "Joe"));
+    } catch (JSONException e) {
+      fail("Problem putting dotted fields " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_05_Remove() {
+    try {
+      JSONObject record = makeRecord();
+      assertEquals("seven", JSONPath.of("flapjack.sally.right").remove(record));
+      assertEquals(0, record.getJSONObject("flapjack").getJSONObject("sally").length());
+      assertNull(JSONPath.of("flapjack.sally.right").remove(record));
+      assertEquals("frank", JSONPath.of("name").remove(record));
+      assertFalse(record.has("name"));
+      try {
+        JSONPath.of("flapjack.missing.right").remove(record);
+        fail("Should have thrown JSONException");
+      } catch (JSONException e) {
+        // expected
+      }
+      try {
+        JSONPath.of("friends.first").remove(record);
+        fail("Should have thrown JSONException");
+      } catch (JSONException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("is not a JSONObject"));
+      }
+    } catch (JSONException e) {
+      fail("Problem removing dotted fields " + e);
+    }
+  }
+
+  /**
+   * Writes through immutable levels copy them and leave the original alone.
+   */
+  @Test
+  public void test_06_CopyOnWrite() {
+    try {
+      ImmutableJSONObject record = ImmutableJSONObject.of(makeRecord());
+      JSONObject copy = ImmutableJSONObject.toMutable(record);
+      assertTrue(JSONPath.of("flapjack.sally.right").put(copy, "crank"));
+      assertEquals("crank", JSONPath.of("flapjack.sally.right").get(copy));
+      assertEquals("seven", JSONPath.of("flapjack.sally.right").get(record));
+      assertEquals("green", JSONPath.of("flapjack.sammy").remove(copy));
+      assertEquals("green", JSONPath.of("flapjack.sammy").get(record));
+    } catch (JSONException e) {
+      fail("Problem writing through immutable records " + e);
+    }
+  }
+}
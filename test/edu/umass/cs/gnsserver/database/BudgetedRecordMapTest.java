@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests keeping records within the budget, which records stay in memory
+ * and reading back records that were evicted.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class BudgetedRecordMapTest {
+
+  private static final long BUDGET = 64 * 1024;
+
+  /**
+   * A map whose store is a hash map. It counts the restores of each record
+   * and can be made to fail commits.
+   */
+  private static class StoredMap extends BudgetedRecordMap {
+
+    private final ConcurrentHashMap<String, PackedRecord> store = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> restored = new ConcurrentHashMap<>();
+    private volatile boolean failing = false;
+
+    StoredMap(long budget) {
+      super("test", budget, true);
+    }
+
+    @Override
+    public Set<String> commit(Map<String, PackedRecord> toCommit) throws IOException {
+      if (failing) {
+        throw new IOException("failing");
+      }
+      for (Map.Entry<String, PackedRecord> entry : toCommit.entrySet()) {
+        if (entry.getValue() == null) {
+          store.remove(entry.getKey());
+        } else {
+          store.put(entry.getKey(), entry.getValue());
+        }
+      }
+      return toCommit.keySet();
+    }
+
+    @Override
+    public PackedRecord restore(String key) throws IOException {
+      restored.putIfAbsent(key, new AtomicInteger());
+      restored.get(key).incrementAndGet();
+      return store.get(key);
+    }
+
+    int restores(String key) {
+      AtomicInteger count = restored.get(key);
+      return count != null ? count.get() : 0;
+    }
+  }
+
+  // a record of about size bytes
+  private static PackedRecord makeRecord(String key, int value, int size) throws JSONException {
+    char[] chars = new char[size];
+    Arrays.fill(chars, 'x');
+    JSONObject record = new JSONObject();
+    record.put("name", key);
+    record.put("value", value);
+    record.put("padding", new String(chars));
+    return PackedRecord.pack(record);
+  }
+
+  private static int value(PackedRecord record) throws JSONException {
+    return record.toJSONObject().getInt("value");
+  }
+
+  /**
+   * The map never holds much more than its budget, counting the evicted
+   * writes waiting to be committed.
+   */
+  @Test
+  public void test_01_BudgetRespected() {
+    try {
+      StoredMap map = new StoredMap(BUDGET);
+      long most = 0;
+      for (int i = 0; i < 2000; i++) {
+        map.put("guid" + i, makeRecord("guid" + i, i, 200));
+        most = Math.max(most, map.getBytes());
+      }
+      // one record can go over while it waits to be admitted
+      assertTrue("Over budget: " + most, most <= BUDGET + 400);
+      assertTrue(map.getEvictions() > 0);
+      assertTrue(map.getCommits() > 0);
+      assertTrue(map.size() < 2000);
+    } catch (JSONException e) {
+      fail("Problem with the budget " + e);
+    }
+  }
+
+  /**
+   * Reading lots of records once doesn't push out the records that are
+   * read all the time.
+   */
+  @Test
+  public void test_02_HotKeysSurviveColdScan() {
+    try {
+      StoredMap map = new StoredMap(BUDGET);
+      for (int i = 0; i < 1000; i++) {
+        map.store.put("cold" + i, makeRecord("cold" + i, i, 200));
+      }
+      for (int i = 0; i < 10; i++) {
+        map.put("hot" + i, makeRecord("hot" + i, i, 200));
+      }
+      for (int round = 0; round < 10; round++) {
+        for (int i = 0; i < 10; i++) {
+          assertEquals(i, value(map.get("hot" + i)));
+        }
+      }
+      // far more cold records than fit
+      for (int i = 0; i < 1000; i++) {
+        assertEquals(i, value(map.get("cold" + i)));
+      }
+      assertTrue(map.getEvictions() > 0);
+      for (int i = 0; i < 10; i++) {
+        assertEquals(i, value(map.get("hot" + i)));
+        assertEquals("Hot record was evicted: hot" + i, 0, map.restores("hot" + i));
+      }
+    } catch (JSONException e) {
+      fail("Problem with a cold scan " + e);
+    }
+  }
+
+  /**
+   * A record bigger than half of the map isn't let in once the map is full.
+   * It is committed and read back instead of pushing out everything else.
+   */
+  @Test
+  public void test_03_OversizedRecordRejected() {
+    try {
+      StoredMap map = new StoredMap(BUDGET);
+      // enough to fill the map
+      for (int i = 0; i < BUDGET / 300; i++) {
+        map.put("guid" + i, makeRecord("guid" + i, i, 300));
+      }
+      long evictions = map.getEvictions();
+      map.put("huge", makeRecord("huge", -1, (int) (BUDGET * 2 / 3)));
+      // pushes the huge record out of the window
+      map.put("small", makeRecord("small", -2, 10));
+      assertTrue(map.getBytes() <= BUDGET + 400);
+      assertTrue(map.store.containsKey("huge"));
+      // only the huge record and at most the record it pushed out of the
+      // window were evicted, not the dozens it would have taken to fit
+      assertTrue(map.getEvictions() - evictions <= 2);
+      assertEquals(-1, value(map.get("huge")));
+      assertEquals(1, map.restores("huge"));
+    } catch (JSONException e) {
+      fail("Problem with an oversized record " + e);
+    }
+  }
+
+  /**
+   * Evicted writes and removes are read back whether or not they have been
+   * committed yet.
+   */
+  @Test
+  public void test_04_EvictedWritesReadBack() {
+    try {
+      StoredMap map = new StoredMap(BUDGET);
+      for (int i = 0; i < 1000; i++) {
+        map.put("guid" + i, makeRecord("guid" + i, i, 200));
+      }
+      map.remove("guid0");
+      for (int i = 0; i < 1000; i++) {
+        map.put("guid" + i + "b", makeRecord("guid" + i + "b", i, 200));
+      }
+      assertNull(map.get("guid0"));
+      assertFalse(map.containsKey("guid0"));
+      for (int i = 1; i < 1000; i++) {
+        assertEquals(i, value(map.get("guid" + i)));
+      }
+
+      // evicted writes that can't be committed stay readable
+      map = new StoredMap(BUDGET);
+      map.failing = true;
+      for (int i = 0; i < 1000; i++) {
+        map.put("guid" + i, makeRecord("guid" + i, i, 200));
+      }
+      assertTrue(map.getEvictions() > 0);
+      assertEquals(0, map.getCommits());
+      assertEquals(0, map.store.size());
+      for (int i = 0; i < 1000; i++) {
+        assertEquals(i, value(map.get("guid" + i)));
+      }
+      assertEquals(1000, map.size());
+      // and are committed once the store is back
+      map.failing = false;
+      map.put("last", makeRecord("last", 0, 200));
+      assertTrue(map.getCommits() > 0);
+      assertTrue(map.size() < 1000);
+      for (int i = 0; i < 1000; i++) {
+        assertEquals(i, value(map.get("guid" + i)));
+      }
+    } catch (JSONException e) {
+      fail("Problem reading evicted writes " + e);
+    }
+  }
+
+  /**
+   * A map that isn't persistent keeps everything and never restores.
+   */
+  @Test
+  public void test_05_NotPersistent() {
+    try {
+      BudgetedRecordMap map = new BudgetedRecordMap("test", 1024, false) {
+        @Override
+        public Set<String> commit(Map<String, PackedRecord> toCommit) throws IOException {
+          throw new IOException("shouldn't commit");
+        }
+
+        @Override
+        public PackedRecord restore(String key) throws IOException {
+          throw new IOException("shouldn't restore");
+        }
+      };
+      for (int i = 0; i < 100; i++) {
+        map.put("guid" + i, makeRecord("guid" + i, i, 200));
+      }
+      map.remove("guid0");
+      assertEquals(99, map.size());
+      assertNull(map.get("guid0"));
+      assertEquals(99, value(map.get("guid99")));
+      assertEquals(0, map.getEvictions());
+    } catch (JSONException e) {
+      fail("Problem with a map that isn't persistent " + e);
+    }
+  }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import edu.umass.cs.gnscommon.GNSProtocol;
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordExistsException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.AccountAccess;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+import edu.umass.cs.gnsserver.utils.ValuesMap;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests the embedded log structured database.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class LogStructuredRecordsTest {
+
+  private static final String collection = "testCollection";
+  private static final String field = "testField";
+  // small segments so the tests roll and compact segments
+  private static final int SEGMENT_SIZE = 4096;
+  private static File directory;
+  private static LogStructuredRecords instance;
+
+  /**
+   * The LogStructuredRecordsTest.
+   *
+   * @throws IOException
+   */
+  public LogStructuredRecordsTest() throws IOException {
+    if (instance == null) {
+      directory = Files.createTempDirectory("gnslog").toFile();
+      instance = new LogStructuredRecords(directory, SEGMENT_SIZE, false);
+    }
+  }
+
+  private static JSONObject makeRecord(String guid, int value) throws JSONException {
+    JSONObject valuesMap = new JSONObject();
+    valuesMap.put(field, value);
+    valuesMap.put(AccountAccess.GUID_INFO, new JSONObject());
+    JSONObject record = new JSONObject();
+    record.put(NameRecord.NAME.getName(), guid);
+    record.put(NameRecord.VALUES_MAP.getName(), valuesMap);
+    return record;
+  }
+
+  private static int count(AbstractRecordCursor cursor) throws FailedDBOperationException {
+    int count = 0;
+    while (cursor.hasNext()) {
+      cursor.nextJSONObject();
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_01_Insert() {
+    try {
+      for (int i = 0; i < 100; i++) {
+        instance.insert(collection, "guid" + i, makeRecord("guid" + i, i));
+      }
+    } catch (FailedDBOperationException | RecordExistsException | JSONException e) {
+      fail("Problem during insert " + e);
+    }
+    try {
+      instance.insert(collection, "guid0", makeRecord("guid0", 0));
+      fail("Should have thrown RecordExistsException");
+    } catch (RecordExistsException e) {
+      // expected
+    } catch (FailedDBOperationException | JSONException e) {
+      fail("Problem during insert " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_02_UpdateAndLookup() {
+    try {
+      // enough updates to fill several segments
+      for (int round = 0; round < 20; round++) {
+        for (int i = 0; i < 100; i++) {
+          instance.updateIndividualFields(collection, "guid" + i, NameRecord.VALUES_MAP,
+                  new ArrayList<>(Arrays.asList(new ColumnField(field, ColumnFieldType.USER_JSON))),
+                  new ArrayList<Object>(Arrays.asList(i + round)));
+        }
+      }
+      JSONObject record = instance.lookupEntireRecord(collection, "guid7");
+      assertEquals(26, record.getJSONObject(NameRecord.VALUES_MAP.getName()).getInt(field));
+    } catch (FailedDBOperationException | RecordNotFoundException | JSONException e) {
+      fail("Problem during update " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_03_Select() {
+    try {
+      assertEquals(10, count(instance.selectRecordsQuery(collection, NameRecord.VALUES_MAP,
+              "~" + field + " : ($gte: 109)", null)));
+      assertEquals(1, count(instance.selectRecords(collection, NameRecord.VALUES_MAP, field, 19)));
+    } catch (FailedDBOperationException e) {
+      fail("Problem during select " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_04_IndexedSelect() {
+    instance.createIndex(collection, field, "sorted");
+    try {
+      assertEquals(10, count(instance.selectRecordsQuery(collection, NameRecord.VALUES_MAP,
+              "~" + field + " : ($gte: 109)", null)));
+      assertEquals(3, count(instance.selectRecordsQuery(collection, NameRecord.VALUES_MAP,
+              "~" + field + " : ($gt: 20, $lt: 24)", null)));
+      assertEquals(1, count(instance.selectRecords(collection, NameRecord.VALUES_MAP, field, 19)));
+      // the index has to follow updates
+      instance.updateIndividualFields(collection, "guid1", NameRecord.VALUES_MAP,
+              new ArrayList<>(Arrays.asList(new ColumnField(field, ColumnFieldType.USER_JSON))),
+              new ArrayList<Object>(Arrays.asList(1000)));
+      assertEquals(1, count(instance.selectRecords(collection, NameRecord.VALUES_MAP, field, 1000)));
+      assertEquals(0, count(instance.selectRecords(collection, NameRecord.VALUES_MAP, field, 20)));
+    } catch (FailedDBOperationException e) {
+      fail("Problem during select " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_05_Remove() {
+    try {
+      instance.removeEntireRecord(collection, "guid0");
+      assertFalse(instance.contains(collection, "guid0"));
+      assertEquals(99, count(instance.getAllRowsIterator(collection)));
+    } catch (FailedDBOperationException e) {
+      fail("Problem during remove " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_06_Reopen() {
+    instance.close();
+    instance = new LogStructuredRecords(directory, SEGMENT_SIZE, false);
+    try {
+      assertFalse(instance.contains(collection, "guid0"));
+      assertEquals(99, count(instance.getAllRowsIterator(collection)));
+      JSONObject record = instance.lookupEntireRecord(collection, "guid7");
+      assertEquals(26, record.getJSONObject(NameRecord.VALUES_MAP.getName()).getInt(field));
+      assertEquals(1, count(instance.selectRecords(collection, NameRecord.VALUES_MAP, field, 1000)));
+    } catch (FailedDBOperationException | RecordNotFoundException | JSONException e) {
+      fail("Problem after reopen " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_07_GeoSelect() {
+    String location = GNSProtocol.LOCATION_FIELD_NAME.toString();
+    try {
+      // guid1 through guid10 along the equator 0.1 degrees apart
+      for (int i = 1; i <= 10; i++) {
+        instance.updateIndividualFields(collection, "guid" + i, NameRecord.VALUES_MAP,
+                new ArrayList<>(Arrays.asList(new ColumnField(location, ColumnFieldType.USER_JSON))),
+                new ArrayList<Object>(Arrays.asList(new JSONArray(Arrays.asList(i * 0.1, 0.0)))));
+      }
+      assertEquals(4, count(instance.selectRecordsWithin(collection, NameRecord.VALUES_MAP, location,
+              "[[0.15, -1], [0.55, 1]]")));
+      // 0.35 degrees
+      AbstractRecordCursor cursor = instance.selectRecordsNear(collection, NameRecord.VALUES_MAP, location,
+              "[0, 0]", 0.35 * 111.12 * 1000);
+      assertTrue(cursor.hasNext());
+      assertEquals("guid1", cursor.nextJSONObject().getString(NameRecord.NAME.getName()));
+      assertEquals(2, count(cursor));
+    } catch (FailedDBOperationException | JSONException e) {
+      fail("Problem during geo select " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_08_LookupSomeFields() {
+    try {
+      HashMap<ColumnField, Object> fields = instance.lookupSomeFields(collection, "guid7",
+              NameRecord.NAME, NameRecord.VALUES_MAP,
+              new ArrayList<>(Arrays.asList(new ColumnField(field, ColumnFieldType.USER_JSON))));
+      assertEquals("guid7", fields.get(NameRecord.NAME));
+      ValuesMap valuesMap = (ValuesMap) fields.get(NameRecord.VALUES_MAP);
+      assertEquals(26, valuesMap.getInt(field));
+      // only the field we asked for
+      assertFalse(valuesMap.has(AccountAccess.GUID_INFO));
+    } catch (FailedDBOperationException | RecordNotFoundException | JSONException e) {
+      fail("Problem during lookupSomeFields " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_09_BulkUpdate() {
+    ArrayList<ColumnField> keys = new ArrayList<>(Arrays.asList(new ColumnField(field, ColumnFieldType.USER_JSON)));
+    try {
+      instance.bulkUpdateIndividualFields(collection, NameRecord.VALUES_MAP, Arrays.asList(
+              new FieldUpdate("guid8", keys, new ArrayList<Object>(Arrays.asList(100))),
+              new FieldUpdate("guid9", keys, new ArrayList<Object>(Arrays.asList(200))),
+              // missing records are skipped
+              new FieldUpdate("nosuchguid", keys, new ArrayList<Object>(Arrays.asList(300))),
+              // the later update wins
+              new FieldUpdate("guid8", keys, new ArrayList<Object>(Arrays.asList(101)))));
+      assertEquals(101, instance.lookupEntireRecord(collection, "guid8")
+              .getJSONObject(NameRecord.VALUES_MAP.getName()).getInt(field));
+      assertEquals(200, instance.lookupEntireRecord(collection, "guid9")
+              .getJSONObject(NameRecord.VALUES_MAP.getName()).getInt(field));
+      assertFalse(instance.contains(collection, "nosuchguid"));
+    } catch (FailedDBOperationException | RecordNotFoundException | JSONException e) {
+      fail("Problem during bulk update " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_10_Async() {
+    AsyncNoSQLRecords pooled = AsyncRecords.pooled(instance, 2, 4);
+    try {
+      for (AsyncNoSQLRecords async : Arrays.asList(new AsyncRecords.Inline(instance), pooled)) {
+        List<CompletableFuture<JSONObject>> futures = new ArrayList<>();
+        for (int i = 10; i < 20; i++) {
+          futures.add(async.lookupEntireRecord(collection, "guid" + i));
+        }
+        for (int i = 10; i < 20; i++) {
+          assertEquals("guid" + i, futures.get(i - 10).get().getString(NameRecord.NAME.getName()));
+        }
+        try {
+          async.lookupEntireRecord(collection, "nosuchguid").get();
+          fail("Should have thrown RecordNotFoundException");
+        } catch (ExecutionException e) {
+          assertTrue(e.getCause() instanceof RecordNotFoundException);
+        }
+      }
+    } catch (InterruptedException | ExecutionException | JSONException e) {
+      fail("Problem during async lookup " + e);
+    } finally {
+      pooled.close();
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_11_NextBatch() {
+    try {
+      int count = 0;
+      AbstractRecordCursor cursor = instance.getAllRowsIterator(collection);
+      while (cursor.hasNext()) {
+        cursor.nextJSONObject();
+        count++;
+      }
+      int batched = 0;
+      cursor = instance.getAllRowsIterator(collection);
+      List<JSONObject> batch;
+      while (!(batch = cursor.nextBatch(3)).isEmpty()) {
+        assertTrue(batch.size() <= 3);
+        batched += batch.size();
+      }
+      cursor.close();
+      assertTrue(count > 0);
+      assertEquals(count, batched);
+    } catch (FailedDBOperationException e) {
+      fail("Problem during nextBatch " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_12_BulkUpsert() {
+    try {
+      Map<String, JSONObject> records = new LinkedHashMap<>();
+      records.put("guid10", makeRecord("guid10", 500));
+      records.put("upsertguid", makeRecord("upsertguid", 600));
+      records.put("guid11", null);
+      // removing a missing record does nothing
+      records.put("nosuchguid", null);
+      instance.bulkUpsert(collection, records);
+      assertEquals(500, instance.lookupEntireRecord(collection, "guid10")
+              .getJSONObject(NameRecord.VALUES_MAP.getName()).getInt(field));
+      assertEquals(600, instance.lookupEntireRecord(collection, "upsertguid")
+              .getJSONObject(NameRecord.VALUES_MAP.getName()).getInt(field));
+      assertFalse(instance.contains(collection, "guid11"));
+      assertFalse(instance.contains(collection, "nosuchguid"));
+      assertEquals(1, count(instance.selectRecords(collection, NameRecord.VALUES_MAP, field, 600)));
+    } catch (FailedDBOperationException | RecordNotFoundException | JSONException e) {
+      fail("Problem during bulk upsert " + e);
+    }
+  }
+
+  /**
+   * A segment can end with fewer unused bytes than an entry header since
+   * entries aren't aligned, and a full segment like that has to recover.
+   */
+  @Test
+  public void test_13_RecoverShortTail() {
+    for (int unused = 1; unused <= 3; unused++) {
+      try {
+        File shortDirectory = Files.createTempDirectory("gnslogtail").toFile();
+        LogStructuredCollection log = new LogStructuredCollection(shortDirectory, SEGMENT_SIZE, false);
+        log.put("guid0", makeRecord("guid0", 0));
+        log.close();
+        // cut the segment down to its entry plus the unused bytes
+        File segment = new File(shortDirectory, "segment-0.log");
+        byte[] bytes = Files.readAllBytes(segment.toPath());
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) {
+          end--;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+          file.setLength(end + unused);
+        }
+        log = new LogStructuredCollection(shortDirectory, SEGMENT_SIZE, false);
+        assertEquals(0, log.get("guid0").getJSONObject(NameRecord.VALUES_MAP.getName()).getInt(field));
+        // the next entry doesn't fit so it goes in a new segment
+        log.put("guid1", makeRecord("guid1", 1));
+        log.close();
+        log = new LogStructuredCollection(shortDirectory, SEGMENT_SIZE, false);
+        assertEquals(2, log.size());
+        assertEquals(1, log.get("guid1").getJSONObject(NameRecord.VALUES_MAP.getName()).getInt(field));
+        log.close();
+      } catch (IOException | JSONException e) {
+        fail("Problem recovering a segment with " + unused + " unused bytes " + e);
+      }
+    }
+  }
+
+  /**
+   * Removing records over and over doesn't make the log grow, even with an
+   * old segment that never gets compacted, and the removed records stay
+   * removed when the log is replayed.
+   */
+  @Test
+  public void test_15_DeleteHeavy() {
+    try {
+      File deleteDirectory = Files.createTempDirectory("gnslogdelete").toFile();
+      LogStructuredCollection log = new LogStructuredCollection(deleteDirectory, SEGMENT_SIZE, false);
+      // records that keep the first segment live
+      for (int i = 0; i < 30; i++) {
+        log.put("keep" + i, makeRecord("keep" + i, i));
+      }
+      log.put("old", makeRecord("old", 0));
+      int maxSegments = 0;
+      long maxBytes = 0;
+      for (int i = 0; i < 5000; i++) {
+        String name = "temp" + (i % 50);
+        log.put(name, makeRecord(name, i));
+        log.remove(name);
+        if (i == 100) {
+          log.remove("old");
+        }
+        maxSegments = Math.max(maxSegments, log.segmentCount());
+        maxBytes = Math.max(maxBytes, log.logBytes());
+      }
+      assertTrue("too many segments " + maxSegments, maxSegments <= 6);
+      assertTrue("too many bytes " + maxBytes, maxBytes <= 6 * SEGMENT_SIZE);
+      log.close();
+      log = new LogStructuredCollection(deleteDirectory, SEGMENT_SIZE, false);
+      assertEquals(30, log.size());
+      assertNull(log.get("old"));
+      assertNull(log.get("temp0"));
+      assertEquals(29, log.get("keep29").getJSONObject(NameRecord.VALUES_MAP.getName()).getInt(field));
+      log.close();
+    } catch (IOException | JSONException e) {
+      fail("Problem removing records " + e);
+    }
+  }
+
+  /**
+   * An index created on a collection in use takes writes while it is
+   * populated but selects don't use it until it is ready.
+   */
+  @Test
+  public void test_14_IndexNotUsedUntilReady() {
+    try {
+      RecordIndexes recordIndexes = new RecordIndexes();
+      RecordIndex recordIndex = recordIndexes.buildIndex(field, "hash");
+      assertNotNull(recordIndex);
+      assertNull(recordIndexes.getIndex(field));
+      // a write while the index is populated
+      recordIndexes.update("guid1", makeRecord("guid1", 1));
+      assertNull(recordIndexes.candidatesForEquals(NameRecord.VALUES_MAP, field, 1));
+      // a second index on the field doesn't replace or publish the first
+      assertNull(recordIndexes.buildIndex(field, "hash"));
+      assertNull(recordIndexes.getIndex(field));
+      recordIndex.add("guid0", makeRecord("guid0", 0).getJSONObject(NameRecord.VALUES_MAP.getName()));
+      recordIndexes.ready(recordIndex);
+      assertSame(recordIndex, recordIndexes.getIndex(field));
+      assertTrue(recordIndexes.candidatesForEquals(NameRecord.VALUES_MAP, field, 0).contains("guid0"));
+      assertTrue(recordIndexes.candidatesForEquals(NameRecord.VALUES_MAP, field, 1).contains("guid1"));
+      // building an index on a field with a ready one leaves it usable
+      assertNull(recordIndexes.buildIndex(GNSProtocol.IPADDRESS_FIELD_NAME.toString(), "sorted"));
+      assertNotNull(recordIndexes.getIndex(GNSProtocol.IPADDRESS_FIELD_NAME.toString()));
+    } catch (JSONException e) {
+      fail("Problem building an index " + e);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests merging the uncommitted DiskMap writes with the persisted side of
+ * a select. The persisted side stands in for mongo, which still has the
+ * versions of the records from before the writes.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class MergedRecordCursorTest {
+
+  private static final String field = "testField";
+
+  private static JSONObject makeRecord(String guid, int value) throws JSONException {
+    JSONObject valuesMap = new JSONObject();
+    valuesMap.put(field, value);
+    JSONObject record = new JSONObject();
+    record.put(NameRecord.NAME.getName(), guid);
+    record.put(NameRecord.VALUES_MAP.getName(), valuesMap);
+    return record;
+  }
+
+  // What mongo returns for the select.
+  private static AbstractRecordCursor persisted(final List<JSONObject> records) {
+    return new AbstractRecordCursor() {
+      private final Iterator<JSONObject> iterator = records.iterator();
+
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public JSONObject nextJSONObject() {
+        return iterator.next();
+      }
+    };
+  }
+
+  // The value of each record the cursor returns, failing on duplicates.
+  private static Map<String, Integer> values(AbstractRecordCursor cursor)
+          throws FailedDBOperationException, JSONException {
+    Map<String, Integer> result = new HashMap<>();
+    while (cursor.hasNext()) {
+      JSONObject record = cursor.nextJSONObject();
+      String name = record.getString(NameRecord.NAME.getName());
+      assertFalse("Returned twice: " + name, result.containsKey(name));
+      result.put(name, record.getJSONObject(NameRecord.VALUES_MAP.getName()).getInt(field));
+    }
+    return result;
+  }
+
+  /**
+   * A record updated since the last commit comes back once with its new
+   * value and a removed one doesn't come back at all.
+   */
+  @Test
+  public void test_01_UncommittedWritesMaskPersisted() {
+    try {
+      // guid1 was updated, guid2 removed and guid4 inserted since the last commit
+      List<JSONObject> inMemory = new ArrayList<>(Arrays.asList(makeRecord("guid1", 10),
+              makeRecord("guid4", 4)));
+      Set<String> uncommitted = new HashSet<>(Arrays.asList("guid1", "guid2", "guid4"));
+      List<JSONObject> mongo = new ArrayList<>(Arrays.asList(makeRecord("guid1", 1),
+              makeRecord("guid2", 2), makeRecord("guid3", 3)));
+      Map<String, Integer> result = values(new MergedRecordCursor(inMemory, uncommitted, persisted(mongo)));
+      assertEquals(3, result.size());
+      assertEquals(Integer.valueOf(10), result.get("guid1"));
+      assertFalse(result.containsKey("guid2"));
+      assertEquals(Integer.valueOf(3), result.get("guid3"));
+      assertEquals(Integer.valueOf(4), result.get("guid4"));
+    } catch (FailedDBOperationException | JSONException e) {
+      fail("Problem merging records " + e);
+    }
+  }
+
+  /**
+   * A record updated so it no longer matches doesn't come back from mongo,
+   * which still has the version that matched.
+   */
+  @Test
+  public void test_02_UpdatedOutOfSelect() {
+    try {
+      Set<String> uncommitted = new HashSet<>(Arrays.asList("guid1"));
+      List<JSONObject> mongo = new ArrayList<>(Arrays.asList(makeRecord("guid1", 1),
+              makeRecord("guid3", 3)));
+      Map<String, Integer> result = values(new MergedRecordCursor(new ArrayList<JSONObject>(),
+              uncommitted, persisted(mongo)));
+      assertEquals(1, result.size());
+      assertEquals(Integer.valueOf(3), result.get("guid3"));
+    } catch (FailedDBOperationException | JSONException e) {
+      fail("Problem merging records " + e);
+    }
+  }
+
+  /**
+   * An in-memory database has no persisted side.
+   */
+  @Test
+  public void test_03_NoPersisted() {
+    try {
+      List<JSONObject> inMemory = new ArrayList<>(Arrays.asList(makeRecord("guid1", 1)));
+      Map<String, Integer> result = values(new MergedRecordCursor(inMemory,
+              new HashSet<>(Arrays.asList("guid1")), null));
+      assertEquals(1, result.size());
+      assertEquals(Integer.valueOf(1), result.get("guid1"));
+    } catch (FailedDBOperationException | JSONException e) {
+      fail("Problem merging records " + e);
+    }
+  }
+}
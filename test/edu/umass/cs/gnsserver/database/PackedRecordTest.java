@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.database;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests packing records and reading them back whole and projected.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PackedRecordTest {
+
+  private static JSONObject roundTrip(JSONObject record) throws JSONException {
+    return PackedRecord.pack(record).toJSONObject();
+  }
+
+  /**
+   * Ints around the varint byte boundaries and the ends of the range,
+   * positive and negative so zigzag is covered.
+   */
+  @Test
+  public void test_01_Ints() {
+    int[] values = {0, 1, -1, 63, -64, 64, -65, 127, 128, 8191, -8192, 8192,
+      Integer.MAX_VALUE, Integer.MIN_VALUE};
+    try {
+      JSONObject record = new JSONObject();
+      for (int i = 0; i < values.length; i++) {
+        record.put("int" + i, values[i]);
+      }
+      JSONObject result = roundTrip(record);
+      for (int i = 0; i < values.length; i++) {
+        Object value = result.get("int" + i);
+        assertTrue("Not an Integer: " + value, value instanceof Integer);
+        assertEquals(values[i], value);
+      }
+    } catch (JSONException e) {
+      fail("Problem packing ints " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_02_Longs() {
+    long[] values = {0L, -1L, 1L << 35, -(1L << 35), (1L << 56) - 1, 1L << 62,
+      Long.MAX_VALUE, Long.MIN_VALUE};
+    try {
+      JSONObject record = new JSONObject();
+      for (int i = 0; i < values.length; i++) {
+        record.put("long" + i, values[i]);
+      }
+      JSONObject result = roundTrip(record);
+      for (int i = 0; i < values.length; i++) {
+        Object value = result.get("long" + i);
+        assertTrue("Not a Long: " + value, value instanceof Long);
+        assertEquals(values[i], value);
+      }
+    } catch (JSONException e) {
+      fail("Problem packing longs " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_03_DoublesAndOtherNumbers() {
+    double[] values = {0.0, -0.0, 0.1, -2.5, Double.MIN_VALUE, Double.MAX_VALUE,
+      -Double.MAX_VALUE};
+    try {
+      JSONObject record = new JSONObject();
+      for (int i = 0; i < values.length; i++) {
+        record.put("double" + i, values[i]);
+      }
+      record.put("float", 1.5f);
+      BigInteger big = BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.TEN);
+      record.put("big", big);
+      BigDecimal decimal = new BigDecimal("12345678901234567890.123456789");
+      record.put("decimal", decimal);
+      JSONObject result = roundTrip(record);
+      for (int i = 0; i < values.length; i++) {
+        // compare the bits so -0.0 has to stay -0.0
+        assertEquals(Double.doubleToRawLongBits(values[i]),
+                Double.doubleToRawLongBits(result.getDouble("double" + i)));
+      }
+      assertEquals(1.5, result.getDouble("float"), 0);
+      assertEquals(big, result.get("big"));
+      assertEquals(decimal, result.get("decimal"));
+    } catch (JSONException e) {
+      fail("Problem packing numbers " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_04_StringsBooleansAndNull() {
+    try {
+      JSONObject record = new JSONObject();
+      record.put("empty", "");
+      record.put("ascii", "rocket scientist");
+      record.put("unicode", "caf\u00e9 \u65e5\u672c \ud83d\ude80");
+      record.put("true", true);
+      record.put("false", false);
+      record.put("null", JSONObject.NULL);
+      char[] chars = new char[1000];
+      Arrays.fill(chars, 'x');
+      record.put("long string", new String(chars));
+      JSONObject result = roundTrip(record);
+      assertEquals("", result.getString("empty"));
+      assertEquals("rocket scientist", result.getString("ascii"));
+      assertEquals("caf\u00e9 \u65e5\u672c \ud83d\ude80", result.getString("unicode"));
+      assertEquals(Boolean.TRUE, result.get("true"));
+      assertEquals(Boolean.FALSE, result.get("false"));
+      assertTrue(result.isNull("null"));
+      assertTrue(result.has("null"));
+      assertEquals(1000, result.getString("long string").length());
+    } catch (JSONException e) {
+      fail("Problem packing strings " + e);
+    }
+  }
+
+  /**
+   * Nested objects and arrays, including ones big enough that their length
+   * takes more than one byte, and Maps and Collections, which are packed
+   * like objects and arrays.
+   */
+  @Test
+  public void test_05_Nested() {
+    try {
+      JSONObject inner = new JSONObject();
+      inner.put("right", "seven");
+      inner.put("list", new JSONArray(Arrays.asList(1, "two", 3.5, false)));
+      JSONArray big = new JSONArray();
+      for (int i = 0; i < 500; i++) {
+        big.put(new JSONObject().put("i", i));
+      }
+      JSONObject outer = new JSONObject();
+      outer.put("inner", inner);
+      outer.put("big", big);
+      outer.put("empty object", new JSONObject());
+      outer.put("empty array", new JSONArray());
+      outer.put("nested arrays", new JSONArray().put(new JSONArray().put(new JSONArray().put(1))));
+      Map<String, Object> map = new HashMap<>();
+      map.put("sammy", "green");
+      outer.put("map", map);
+      outer.put("collection", Arrays.asList("Joe", "Sam"));
+      JSONObject result = roundTrip(outer);
+      assertEquals("seven", result.getJSONObject("inner").getString("right"));
+      JSONArray list = result.getJSONObject("inner").getJSONArray("list");
+      assertEquals(1, list.get(0));
+      assertEquals("two", list.get(1));
+      assertEquals(3.5, list.getDouble(2), 0);
+      assertEquals(false, list.get(3));
+      assertEquals(500, result.getJSONArray("big").length());
+      assertEquals(499, result.getJSONArray("big").getJSONObject(499).getInt("i"));
+      assertEquals(0, result.getJSONObject("empty object").length());
+      assertEquals(0, result.getJSONArray("empty array").length());
+      assertEquals(1, result.getJSONArray("nested arrays").getJSONArray(0).getJSONArray(0).getInt(0));
+      assertEquals("green", result.getJSONObject("map").getString("sammy"));
+      assertEquals("Sam", result.getJSONArray("collection").getString(1));
+    } catch (JSONException e) {
+      fail("Problem packing nested values " + e);
+    }
+  }
+
+  /**
+   * A projected get returns the fields along the paths and skips the
+   * sibling subtrees, whatever they hold.
+   */
+  @Test
+  public void test_06_Projection() {
+    try {
+      JSONArray siblingArray = new JSONArray();
+      for (int i = 0; i < 300; i++) {
+        siblingArray.put(new JSONObject().put("deep", new JSONArray().put(i).put("x")));
+      }
+      JSONObject sally = new JSONObject();
+      sally.put("right", "seven");
+      sally.put("left", "eight");
+      JSONObject flapjack = new JSONObject();
+      flapjack.put("before", siblingArray);
+      flapjack.put("sally", sally);
+      flapjack.put("after", new JSONObject().put("a", new JSONObject().put("b", 1.5)));
+      flapjack.put("number", Long.MIN_VALUE);
+      JSONObject record = new JSONObject();
+      record.put("name", "frank");
+      record.put("flapjack", flapjack);
+      record.put("other", siblingArray);
+      PackedRecord packed = PackedRecord.pack(record);
+
+      JSONObject result = packed.get(new JSONProjection(Arrays.asList("flapjack.sally.right")));
+      assertEquals(1, result.length());
+      assertEquals(1, result.getJSONObject("flapjack").length());
+      assertEquals(1, result.getJSONObject("flapjack").getJSONObject("sally").length());
+      assertEquals("seven", result.getJSONObject("flapjack").getJSONObject("sally").getString("right"));
+
+      result = packed.get(new JSONProjection(Arrays.asList("name", "flapjack.number",
+              "flapjack.after")));
+      assertEquals("frank", result.getString("name"));
+      assertEquals(Long.MIN_VALUE, result.getJSONObject("flapjack").getLong("number"));
+      assertEquals(1.5, result.getJSONObject("flapjack").getJSONObject("after")
+              .getJSONObject("a").getDouble("b"), 0);
+      assertFalse(result.has("other"));
+      assertFalse(result.getJSONObject("flapjack").has("before"));
+
+      // a path that goes through something that isn't an object
+      result = packed.get(new JSONProjection(Arrays.asList("name.first", "missing")));
+      assertEquals(0, result.length());
+    } catch (JSONException e) {
+      fail("Problem projecting a packed record " + e);
+    }
+  }
+
+  /**
+   * Once the dictionary is full new field names are written out in each
+   * record and still read back, whole and projected.
+   */
+  @Test
+  public void test_07_InlineNamesAfterCap() {
+    try {
+      // more names than the dictionary holds, whatever the other tests added
+      JSONObject filler = new JSONObject();
+      for (int i = 0; i < (1 << 16) + 1; i++) {
+        filler.put("filler" + i, i);
+      }
+      JSONObject result = roundTrip(filler);
+      assertEquals(filler.length(), result.length());
+      assertEquals(1 << 16, result.getInt("filler" + (1 << 16)));
+
+      String name = "a field named after the dictionary filled up";
+      JSONObject record = new JSONObject();
+      record.put(name, new JSONObject().put("inline too", "value").put("filler0", 0));
+      record.put("filler1", 1);
+      PackedRecord packed = PackedRecord.pack(record);
+      // the name is in the record itself
+      assertTrue(packed.size() > name.length());
+      result = packed.toJSONObject();
+      assertEquals("value", result.getJSONObject(name).getString("inline too"));
+      assertEquals(1, result.getInt("filler1"));
+      result = packed.get(new JSONProjection(Arrays.asList(name + ".inline too")));
+      assertEquals("value", result.getJSONObject(name).getString("inline too"));
+      assertFalse(result.has("filler1"));
+    } catch (JSONException e) {
+      fail("Problem packing inline names " + e);
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.gnsapp;
+
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectOperation;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectRequestPacket;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests combining the partial results of aggregate selects from servers
+ * that have copies of the same records.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SelectAggregateTest {
+
+  private static SelectAggregate makeAggregate(SelectOperation operation, String field, String groupBy,
+          boolean partitioned) {
+    SelectRequestPacket request = SelectRequestPacket.MakeAggregateRequest(-1, null, operation,
+            "~age : {$exists : true}", field, groupBy);
+    if (partitioned) {
+      request.setResponders(Arrays.asList("server0", "server1", "server2"));
+    }
+    return SelectAggregate.of(request);
+  }
+
+  // A record as read from the database.
+  private static JSONObject makeRecord(String guid, Object age, String color) throws JSONException {
+    JSONObject values = new JSONObject();
+    if (age != null) {
+      values.put("age", age);
+    }
+    if (color != null) {
+      values.put("color", color);
+    }
+    return new JSONObject().put(NameRecord.NAME.getName(), guid).put(NameRecord.VALUES_MAP.getName(), values);
+  }
+
+  // g0 to g5 with ages 0, 10, ... 50, except g3 which has none, in red and blue.
+  private static List<JSONObject> makeRecords() throws JSONException {
+    List<JSONObject> records = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      records.add(makeRecord("g" + i, i != 3 ? i * 10 : null, i % 2 == 0 ? "red" : "blue"));
+    }
+    return records;
+  }
+
+  // Each server matches the records it has and sends back its partial
+  // result, which the collecting server parses and combines.
+  private static JSONObject combine(SelectAggregate aggregate, List<List<JSONObject>> servers)
+          throws JSONException {
+    List<JSONObject> partials = new ArrayList<>();
+    for (List<JSONObject> records : servers) {
+      SelectAggregate.Partial partial = aggregate.newPartial();
+      for (JSONObject record : records) {
+        partial.add(record);
+      }
+      partials.add(new JSONObject(partial.toJSONObject().toString()));
+    }
+    return aggregate.combine(partials);
+  }
+
+  // Three replicas of every record, each of the servers having all of them.
+  private static List<List<JSONObject>> replicated() throws JSONException {
+    return Arrays.asList(makeRecords(), makeRecords(), makeRecords());
+  }
+
+  // Each server only returning the records it is the responder for.
+  private static List<List<JSONObject>> partitioned() throws JSONException {
+    List<JSONObject> records = makeRecords();
+    return Arrays.asList(records.subList(0, 2), records.subList(2, 3), records.subList(3, 6));
+  }
+
+  /**
+   * Records on several servers are only counted once.
+   */
+  @Test
+  public void test_01_CountReplicated() {
+    try {
+      assertEquals(6, combine(makeAggregate(SelectOperation.COUNT, null, null, false), replicated())
+              .getLong("count"));
+      // servers with some of the replicas
+      List<JSONObject> records = makeRecords();
+      assertEquals(6, combine(makeAggregate(SelectOperation.COUNT, null, null, false),
+              Arrays.asList(records.subList(0, 4), records.subList(2, 6), records.subList(1, 3)))
+              .getLong("count"));
+    } catch (JSONException e) {
+      fail("Problem combining counts " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_02_SumReplicated() {
+    try {
+      assertEquals(120, combine(makeAggregate(SelectOperation.SUM, "age", null, false), replicated())
+              .getLong("sum"));
+    } catch (JSONException e) {
+      fail("Problem combining sums " + e);
+    }
+  }
+
+  /**
+   * When the select is partitioned each server combines its records itself
+   * and the collecting server adds up what they send back.
+   */
+  @Test
+  public void test_03_Partitioned() {
+    try {
+      SelectAggregate count = makeAggregate(SelectOperation.COUNT, null, null, true);
+      SelectAggregate.Partial partial = count.newPartial();
+      for (JSONObject record : makeRecords()) {
+        partial.add(record);
+      }
+      // no names are sent back
+      assertEquals("{\"groups\":{\"\":6}}", partial.toJSONObject().toString());
+      assertEquals(6, combine(count, partitioned()).getLong("count"));
+      assertEquals(120, combine(makeAggregate(SelectOperation.SUM, "age", null, true), partitioned())
+              .getLong("sum"));
+      assertEquals(0, combine(makeAggregate(SelectOperation.MIN, "age", null, true), partitioned())
+              .getLong("min"));
+      assertEquals(50, combine(makeAggregate(SelectOperation.MAX, "age", null, true), partitioned())
+              .getLong("max"));
+    } catch (JSONException e) {
+      fail("Problem combining partitioned results " + e);
+    }
+  }
+
+  /**
+   * The smallest and largest values don't change with the number of copies.
+   */
+  @Test
+  public void test_04_MinMaxReplicated() {
+    try {
+      assertEquals(0, combine(makeAggregate(SelectOperation.MIN, "age", null, false), replicated())
+              .getLong("min"));
+      assertEquals(50, combine(makeAggregate(SelectOperation.MAX, "age", null, false), replicated())
+              .getLong("max"));
+    } catch (JSONException e) {
+      fail("Problem combining min and max " + e);
+    }
+  }
+
+  /**
+   * Grouped results are the same whether or not the select is partitioned.
+   */
+  @Test
+  public void test_05_Grouped() {
+    try {
+      for (boolean partitioned : new boolean[]{false, true}) {
+        List<List<JSONObject>> servers = partitioned ? partitioned() : replicated();
+        JSONObject counts = combine(makeAggregate(SelectOperation.COUNT, null, "color", partitioned), servers)
+                .getJSONObject("count");
+        assertEquals(3, counts.getLong("red"));
+        assertEquals(3, counts.getLong("blue"));
+        JSONObject sums = combine(makeAggregate(SelectOperation.SUM, "age", "color", partitioned), servers)
+                .getJSONObject("sum");
+        assertEquals(60, sums.getLong("red"));
+        // g3 doesn't have an age
+        assertEquals(60, sums.getLong("blue"));
+        JSONObject maxes = combine(makeAggregate(SelectOperation.MAX, "age", "color", partitioned), servers)
+                .getJSONObject("max");
+        assertEquals(40, maxes.getLong("red"));
+        assertEquals(50, maxes.getLong("blue"));
+      }
+    } catch (JSONException e) {
+      fail("Problem combining grouped results " + e);
+    }
+  }
+
+  /**
+   * Records without the field or the group by field are left out, and
+   * sums add strings that are numbers.
+   */
+  @Test
+  public void test_06_MissingAndStrings() {
+    try {
+      List<JSONObject> records = Arrays.asList(makeRecord("g0", "2.5", null), makeRecord("g1", 3, "red"),
+              makeRecord("g2", "old", "red"), makeRecord("g3", null, null));
+      List<List<JSONObject>> servers = Arrays.asList(records, records);
+      assertEquals(5.5, combine(makeAggregate(SelectOperation.SUM, "age", null, false), servers)
+              .getDouble("sum"), 0.0);
+      assertEquals(4, combine(makeAggregate(SelectOperation.COUNT, null, null, false), servers)
+              .getLong("count"));
+      JSONObject counts = combine(makeAggregate(SelectOperation.COUNT, null, "color", false), servers)
+              .getJSONObject("count");
+      assertEquals(1, counts.length());
+      assertEquals(2, counts.getLong("red"));
+    } catch (JSONException e) {
+      fail("Problem combining records without fields " + e);
+    }
+  }
+
+  /**
+   * What a select that matches nothing returns.
+   */
+  @Test
+  public void test_07_NoRecords() {
+    try {
+      List<List<JSONObject>> servers = new ArrayList<>();
+      servers.add(new ArrayList<JSONObject>());
+      servers.add(new ArrayList<JSONObject>());
+      assertEquals(0, combine(makeAggregate(SelectOperation.COUNT, null, null, false), servers)
+              .getLong("count"));
+      assertEquals(0, combine(makeAggregate(SelectOperation.SUM, "age", null, true), servers)
+              .getLong("sum"));
+      assertTrue(combine(makeAggregate(SelectOperation.MIN, "age", null, false), servers).isNull("min"));
+      assertEquals(0, combine(makeAggregate(SelectOperation.COUNT, null, "color", false), servers)
+              .getJSONObject("count").length());
+    } catch (JSONException e) {
+      fail("Problem combining empty results " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_08_NotAggregate() {
+    assertNull(SelectAggregate.of(SelectRequestPacket.MakeQueryRequest(-1, null, "~age : 1", null)));
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.gnsapp;
+
+import edu.umass.cs.gnscommon.GNSProtocol;
+import edu.umass.cs.gnsserver.database.ColumnField;
+import edu.umass.cs.gnsserver.database.ColumnFieldType;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.FieldVersions;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.InternalField;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectRequestPacket;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectResponsePacket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests answering selects from the results of recent ones and dropping the
+ * results that writes could change.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SelectCacheTest {
+
+  private static final SelectResponsePacket response = SelectResponsePacket.makeFailPacket(0, null, 0, null, "");
+
+  private static SelectRequestPacket select(String query, String... projection) {
+    return SelectRequestPacket.MakeQueryRequest(-1, "reader", query,
+            projection.length > 0 ? Arrays.asList(projection) : null);
+  }
+
+  // What Select does for a select it collects.
+  private static String cache(SelectCache cache, SelectRequestPacket packet) {
+    String key = SelectCache.getKey(packet);
+    cache.put(cache.start(key, packet), response);
+    return key;
+  }
+
+  private static List<ColumnField> fields(String... names) {
+    List<ColumnField> result = new ArrayList<>();
+    for (String name : names) {
+      result.add(new ColumnField(name, ColumnFieldType.USER_JSON));
+    }
+    return result;
+  }
+
+  /**
+   * Whitespace that doesn't change a query is dropped. Quoted strings are
+   * left alone.
+   */
+  @Test
+  public void test_01_NormalizeQuery() {
+    assertEquals("~age:{$gt:10}", SelectCache.normalizeQuery("  ~age : { $gt : 10 }  "));
+    assertEquals("~age:{$gt:10}", SelectCache.normalizeQuery("~age:{$gt:10}"));
+    assertEquals("$or:[{~a:1},{~b:2}]", SelectCache.normalizeQuery("$or : [ { ~a : 1 } ,\n\t{ ~b : 2 } ]"));
+    // other runs of whitespace become one space
+    assertEquals("~name:\"a\" and ~b:1", SelectCache.normalizeQuery("~name:\"a\"   and\t~b:1"));
+    // quoted strings
+    assertEquals("~name:\"frank  { : } smith\"", SelectCache.normalizeQuery("~name : \"frank  { : } smith\""));
+    assertEquals("~name:'frank  smith'", SelectCache.normalizeQuery("~name : 'frank  smith'"));
+    assertEquals("~name:\"it's  here\"", SelectCache.normalizeQuery("~name : \"it's  here\""));
+    // escaped quotes don't end the string
+    assertEquals("~name:\"a \\\"  b\\\"  c\"", SelectCache.normalizeQuery("~name : \"a \\\"  b\\\"  c\""));
+    assertEquals("~name:\"a\\\\\",~b:1", SelectCache.normalizeQuery("~name : \"a\\\\\" , ~b : 1"));
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_02_Key() {
+    assertEquals(SelectCache.getKey(select("~age : { $gt : 10 }")), SelectCache.getKey(select("~age:{$gt:10}")));
+    assertNotEquals(SelectCache.getKey(select("~name : \"a b\"")), SelectCache.getKey(select("~name : \"ab\"")));
+    // the order of the projection doesn't matter
+    assertEquals(SelectCache.getKey(select("~age:1", "name", "age")),
+            SelectCache.getKey(select("~age:1", "age", "name")));
+    assertNotEquals(SelectCache.getKey(select("~age:1", "name")), SelectCache.getKey(select("~age:1")));
+    // different readers can see different records
+    assertNotEquals(SelectCache.getKey(select("~age:1")),
+            SelectCache.getKey(SelectRequestPacket.MakeQueryRequest(-1, "other", "~age:1", null)));
+    SelectRequestPacket page = select("~age:1");
+    page.setPage(10, "age", null);
+    assertNotEquals(SelectCache.getKey(select("~age:1")), SelectCache.getKey(page));
+    // groups are maintained by running the select
+    assertNull(SelectCache.getKey(SelectRequestPacket.MakeGroupSetupRequest(-1, "reader", "~age:1", null,
+            "group", 0)));
+  }
+
+  /**
+   * A write drops the results that use the top level field it writes, in
+   * the query, the projection or the sort key.
+   */
+  @Test
+  public void test_03_InvalidateByField() {
+    SelectCache cache = new SelectCache(100, 60000);
+    String age = cache(cache, select("~age:{$gt:10}"));
+    String location = cache(cache, select("~name:\"frank\"", "location"));
+    SelectRequestPacket sorted = select("~name:\"frank\"");
+    sorted.setPage(10, "height", null);
+    String height = cache(cache, sorted);
+    assertSame(response, cache.get(age));
+    assertEquals(3, cache.size());
+
+    cache.written("guid", fields("color"));
+    assertEquals(3, cache.size());
+    cache.written("guid", fields("age"));
+    assertNull(cache.get(age));
+    assertSame(response, cache.get(location));
+
+    // a write of part of a field
+    cache.written("guid", fields("location.lat"));
+    assertNull(cache.get(location));
+    assertSame(response, cache.get(height));
+    cache.written("guid", fields("color", "height"));
+    assertNull(cache.get(height));
+    assertEquals(0, cache.size());
+
+    // the versions are written with the fields they are for
+    age = cache(cache, select("~age:{$gt:10}"));
+    cache.written("guid", fields(FieldVersions.VERSIONS + ".color"));
+    assertSame(response, cache.get(age));
+  }
+
+  /**
+   * Writes of whole records or internal fields, like the ACLs, drop
+   * everything, and so does a write of any field a select of the entire
+   * record uses.
+   */
+  @Test
+  public void test_04_InvalidateEverything() {
+    SelectCache cache = new SelectCache(100, 60000);
+    cache(cache, select("~age:1"));
+    cache(cache, select("~name:1"));
+    cache.written("guid", null);
+    assertEquals(0, cache.size());
+
+    cache(cache, select("~age:1"));
+    cache(cache, select("~name:1"));
+    cache.written("guid", fields(InternalField.makeInternalFieldString("acl")));
+    assertEquals(0, cache.size());
+
+    String entire = cache(cache, select("~age:1", GNSProtocol.ENTIRE_RECORD.toString()));
+    String name = cache(cache, select("~name:1"));
+    cache.written("guid", fields("color"));
+    assertNull(cache.get(entire));
+    assertSame(response, cache.get(name));
+  }
+
+  /**
+   * A result collected while a write it uses was made isn't cached.
+   */
+  @Test
+  public void test_05_WriteWhileCollecting() {
+    SelectCache cache = new SelectCache(100, 60000);
+    SelectRequestPacket packet = select("~age:{$gt:10}");
+    String key = SelectCache.getKey(packet);
+    SelectCache.Entry entry = cache.start(key, packet);
+    cache.written("guid", fields("age"));
+    cache.put(entry, response);
+    assertNull(cache.get(key));
+
+    // a write of another field doesn't matter
+    entry = cache.start(key, packet);
+    cache.written("guid", fields("name"));
+    cache.put(entry, response);
+    assertSame(response, cache.get(key));
+
+    // nor does a later select of the same thing replacing it
+    SelectCache.Entry first = cache.start(key, packet);
+    SelectCache.Entry second = cache.start(key, packet);
+    cache.put(first, response);
+    assertNull(cache.get(key));
+    cache.cancel(first);
+    cache.put(second, response);
+    assertSame(response, cache.get(key));
+
+    // a failed select is dropped
+    cache.cancel(cache.start(key, packet));
+    assertNull(cache.get(key));
+    assertEquals(0, cache.size());
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_06_AgeAndSize() {
+    try {
+      SelectCache cache = new SelectCache(100, 50);
+      String key = cache(cache, select("~age:1"));
+      assertSame(response, cache.get(key));
+      Thread.sleep(100);
+      assertNull(cache.get(key));
+      assertEquals(0, cache.size());
+
+      // the least recently used result is dropped
+      cache = new SelectCache(2, 60000);
+      String first = cache(cache, select("~a:1"));
+      String second = cache(cache, select("~b:1"));
+      cache.get(first);
+      String third = cache(cache, select("~c:1"));
+      assertSame(response, cache.get(first));
+      assertNull(cache.get(second));
+      assertSame(response, cache.get(third));
+      // and no longer dropped by writes
+      cache.written("guid", fields("b"));
+      assertEquals(2, cache.size());
+    } catch (InterruptedException e) {
+      fail("Problem waiting for results to age " + e);
+    }
+  }
+
+  /**
+   * Results dropped because the cache is full or by writes don't leave
+   * their fields behind.
+   */
+  @Test
+  public void test_07_EvictionUnindexes() {
+    SelectCache cache = new SelectCache(2, 60000);
+    String first = cache(cache, select("~a:1", "x"));
+    cache(cache, select("~b:1"));
+    assertEquals(3, cache.indexedFields());
+    cache.get(first);
+    cache(cache, select("~c:1"));
+    assertEquals(2, cache.size());
+    assertEquals(3, cache.indexedFields());
+    for (int i = 0; i < 100; i++) {
+      cache(cache, select("~f" + i + ":1"));
+    }
+    assertEquals(2, cache.size());
+    assertEquals(2, cache.indexedFields());
+    cache.written("guid", fields("f98", "f99"));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.indexedFields());
+  }
+}
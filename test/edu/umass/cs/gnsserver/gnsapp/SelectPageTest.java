@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.gnsapp;
+
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectRequestPacket;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests ordering the results of a select and returning them a page at a
+ * time.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SelectPageTest {
+
+  private static SelectPage makePage(int limit, String sortKey, String continuation) throws JSONException {
+    SelectRequestPacket request = SelectRequestPacket.MakeQueryRequest(-1, null, "~age : {$exists : true}", null);
+    request.setPage(limit, sortKey, continuation);
+    return SelectPage.of(request);
+  }
+
+  // A record as read from the database.
+  private static JSONObject makeRecord(String guid, Object age) throws JSONException {
+    JSONObject values = new JSONObject();
+    if (age != null) {
+      values.put("age", age);
+    }
+    return new JSONObject().put(NameRecord.NAME.getName(), guid).put(NameRecord.VALUES_MAP.getName(), values);
+  }
+
+  private static List<String> guids(List<JSONObject> records) throws JSONException {
+    List<String> result = new ArrayList<>();
+    for (JSONObject record : records) {
+      result.add(record.getString(NameRecord.NAME.getName()));
+    }
+    return result;
+  }
+
+  private static List<JSONObject> makeRecords() throws JSONException {
+    return Arrays.asList(makeRecord("g5", "ten"), makeRecord("g4", null), makeRecord("g3", 20),
+            makeRecord("g2", 3.5), makeRecord("g1", 20), makeRecord("g0", "nine"));
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_01_NoPage() {
+    try {
+      assertNull(makePage(-1, "age", null));
+      assertNull(makePage(0, null, null));
+      assertNotNull(makePage(-1, null, makePage(1, null, null).makeContinuation(makeRecord("g0", null))));
+    } catch (JSONException e) {
+      fail("Problem making pages " + e);
+    }
+  }
+
+  /**
+   * Numbers come before strings and records without the sort key come last,
+   * with ties ordered by guid.
+   */
+  @Test
+  public void test_02_Order() {
+    try {
+      assertEquals(Arrays.asList("g2", "g1", "g3", "g0", "g5", "g4"),
+              guids(makePage(10, "age", null).sort(makeRecords())));
+      // without a sort key just by guid
+      assertEquals(Arrays.asList("g0", "g1", "g2", "g3", "g4", "g5"),
+              guids(makePage(10, null, null).sort(makeRecords())));
+      assertTrue(SelectPage.compareValues(2, 10.5) < 0);
+      assertTrue(SelectPage.compareValues(10, "2") < 0);
+      assertTrue(SelectPage.compareValues("abc", "abd") < 0);
+      assertTrue(SelectPage.compareValues("abc", null) < 0);
+      assertEquals(0, SelectPage.compareValues(null, null));
+    } catch (JSONException e) {
+      fail("Problem ordering records " + e);
+    }
+  }
+
+  /**
+   * Each page starts right after the record the continuation token was made
+   * from, and together the pages return every record once.
+   */
+  @Test
+  public void test_03_Continuation() {
+    try {
+      List<String> all = new ArrayList<>();
+      String continuation = null;
+      do {
+        SelectPage page = makePage(2, "age", continuation);
+        SelectPage.Buffer buffer = page.newBuffer();
+        for (JSONObject record : makeRecords()) {
+          buffer.offer(record);
+        }
+        List<JSONObject> records = buffer.getRecords();
+        continuation = null;
+        if (records.size() > page.getLimit()) {
+          records = records.subList(0, page.getLimit());
+          continuation = page.makeContinuation(records.get(records.size() - 1));
+        }
+        all.addAll(guids(records));
+      } while (continuation != null);
+      assertEquals(Arrays.asList("g2", "g1", "g3", "g0", "g5", "g4"), all);
+
+      // the token is made from the sort value and guid of the last record
+      SelectPage page = makePage(2, "age", makePage(2, "age", null).makeContinuation(makeRecord("g1", 20)));
+      assertFalse(page.isAfterContinuation(makeRecord("g1", 20)));
+      assertFalse(page.isAfterContinuation(makeRecord("g0", 20)));
+      assertFalse(page.isAfterContinuation(makeRecord("g9", 3.5)));
+      assertTrue(page.isAfterContinuation(makeRecord("g3", 20)));
+      assertTrue(page.isAfterContinuation(makeRecord("g0", "nine")));
+      assertTrue(page.isAfterContinuation(makeRecord("g0", null)));
+    } catch (JSONException e) {
+      fail("Problem paging records " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_04_BadContinuation() {
+    try {
+      makePage(2, "age", "not a token!");
+      fail("Should have thrown JSONException");
+    } catch (JSONException e) {
+      // expected
+    }
+    try {
+      makePage(2, "age", "bm90IGpzb24=");
+      fail("Should have thrown JSONException");
+    } catch (JSONException e) {
+      // expected
+    }
+  }
+
+  /**
+   * The buffer keeps one more than the limit so the collecting server knows
+   * there is another page.
+   */
+  @Test
+  public void test_05_BufferKeepsLimitPlusOne() {
+    try {
+      SelectPage page = makePage(3, "age", null);
+      SelectPage.Buffer buffer = page.newBuffer();
+      for (int i = 99; i >= 0; i--) {
+        buffer.offer(makeRecord("g" + i, i));
+      }
+      assertEquals(Arrays.asList("g0", "g1", "g2", "g3"), guids(buffer.getRecords()));
+
+      // fewer records than the limit
+      buffer = page.newBuffer();
+      buffer.offer(makeRecord("g1", 1));
+      buffer.offer(makeRecord("g0", 0));
+      assertEquals(Arrays.asList("g0", "g1"), guids(buffer.getRecords()));
+
+      // no limit, just a continuation
+      page = makePage(-1, "age", page.makeContinuation(makeRecord("g96", 96)));
+      buffer = page.newBuffer();
+      for (int i = 0; i < 100; i++) {
+        buffer.offer(makeRecord("g" + i, i));
+      }
+      assertEquals(Arrays.asList("g97", "g98", "g99"), guids(buffer.getRecords()));
+    } catch (JSONException e) {
+      fail("Problem buffering records " + e);
+    }
+  }
+
+  /**
+   * The sort key is added to the projection so the servers return it.
+   */
+  @Test
+  public void test_06_ProjectionWithSortKey() {
+    try {
+      SelectPage page = makePage(2, "location.lat", null);
+      assertEquals(Arrays.asList("name", "location.lat"), page.projectionWithSortKey(Arrays.asList("name")));
+      assertEquals(Arrays.asList("location"), page.projectionWithSortKey(Arrays.asList("location")));
+      assertNull(page.projectionWithSortKey(null));
+      assertEquals(Arrays.asList("name"), makePage(2, null, null).projectionWithSortKey(Arrays.asList("name")));
+    } catch (JSONException e) {
+      fail("Problem adding the sort key " + e);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.gnsapp;
+
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectGroupBehavior;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectOperation;
+import edu.umass.cs.gnsserver.gnsapp.packet.SelectResponsePacket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests giving up on selects whose servers don't all respond.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SelectTest {
+
+  private static NSSelectInfo addQueryInfo() {
+    Set<InetSocketAddress> servers = new HashSet<>(Arrays.asList(
+            new InetSocketAddress("127.0.0.1", 24403), new InetSocketAddress("127.0.0.1", 24404)));
+    return Select.addQueryInfo(servers, SelectOperation.QUERY, SelectGroupBehavior.NONE,
+            "~name : \"frank\"", null, 0, null, null, null);
+  }
+
+  /**
+   * A select whose servers never respond completes with a TimeoutException
+   * and stops waiting for them.
+   */
+  @Test
+  public void test_01_ServersNeverRespond() {
+    NSSelectInfo info = addQueryInfo();
+    assertTrue(Select.isInProgress(info));
+    Select.scheduleTimeout(info, 100, "server0");
+    try {
+      info.getResult().get(10, TimeUnit.SECONDS);
+      fail("Should have timed out");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(), e.getCause() instanceof TimeoutException);
+    } catch (InterruptedException | TimeoutException e) {
+      fail("Problem waiting for the select to time out " + e);
+    }
+    assertFalse(Select.isInProgress(info));
+  }
+
+  /**
+   * Some of the servers responding isn't enough.
+   */
+  @Test
+  public void test_02_SomeServersRespond() {
+    NSSelectInfo info = addQueryInfo();
+    info.removeServerAddress(new InetSocketAddress("127.0.0.1", 24403));
+    Select.scheduleTimeout(info, 100, "server0");
+    try {
+      info.getResult().get(10, TimeUnit.SECONDS);
+      fail("Should have timed out");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(), e.getCause() instanceof TimeoutException);
+      assertEquals(1, info.serversYetToRespond().size());
+    } catch (InterruptedException | TimeoutException e) {
+      fail("Problem waiting for the select to time out " + e);
+    }
+  }
+
+  /**
+   * A select that completes before the timeout isn't timed out later.
+   */
+  @Test
+  public void test_03_CompletedInTime() {
+    NSSelectInfo info = addQueryInfo();
+    Select.scheduleTimeout(info, 100, "server0");
+    SelectResponsePacket response = SelectResponsePacket.makeFailPacket(0, null, info.getId(), null, "done");
+    info.getResult().complete(response);
+    try {
+      Thread.sleep(300);
+      assertSame(response, info.getResult().get());
+      assertFalse(info.getResult().isCompletedExceptionally());
+      // the select was never dropped by the timeout
+      assertTrue(Select.isInProgress(info));
+    } catch (InterruptedException | ExecutionException e) {
+      fail("Problem completing the select " + e);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.exceptions.server.FieldNotFoundException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordExistsException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
+import edu.umass.cs.gnsserver.database.LogStructuredRecords;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.BasicRecordMap;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.GNSRecordMap;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+import edu.umass.cs.gnsserver.utils.ResultValue;
+import edu.umass.cs.gnsserver.utils.ValuesMap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests stamping fields with versions as they are updated, which is what
+ * a conditional read compares its version with.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class FieldVersionsTest {
+
+  private static final String collection = "testCollection";
+  private static final String guid = "guid";
+
+  private static BasicRecordMap makeDatabase() throws IOException, FailedDBOperationException,
+          RecordExistsException, JSONException {
+    BasicRecordMap database = new GNSRecordMap<>(new LogStructuredRecords(
+            Files.createTempDirectory("gnsversions").toFile(), 4096, false), collection);
+    JSONObject record = new JSONObject();
+    record.put(NameRecord.NAME.getName(), guid);
+    record.put(NameRecord.VALUES_MAP.getName(), new JSONObject().put("unversioned", "old"));
+    database.addRecord(record);
+    return database;
+  }
+
+  // What NSUpdateSupport does for an update of a single field.
+  private static void replace(BasicRecordMap database, String field, String value, String version)
+          throws FailedDBOperationException, FieldNotFoundException, JSONException {
+    new NameRecord(database, guid).updateNameRecord(field, new ResultValue(Arrays.asList(value)), null, 0,
+            null, UpdateOperation.SINGLE_FIELD_REPLACE_ALL, version);
+  }
+
+  // What NSUpdateSupport does for an update of a JSON object.
+  private static void update(BasicRecordMap database, JSONObject json, String version)
+          throws FailedDBOperationException, FieldNotFoundException, JSONException {
+    new NameRecord(database, guid).updateNameRecord(null, null, null, 0, new ValuesMap(json),
+            UpdateOperation.USER_JSON_REPLACE, version);
+  }
+
+  private static void remove(BasicRecordMap database, String field, String version)
+          throws FailedDBOperationException, FieldNotFoundException {
+    new NameRecord(database, guid).updateNameRecord(field, null, null, 0, null,
+            UpdateOperation.SINGLE_FIELD_REMOVE_FIELD, version);
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_01_VersionKeys() {
+    assertEquals(FieldVersions.VERSIONS + ".location", FieldVersions.getVersionKey("location"));
+    // a dotted field has the version of its top level field
+    assertEquals(FieldVersions.VERSIONS + ".location", FieldVersions.getVersionKey("location.lat"));
+    assertNull(FieldVersions.getVersionKey(FieldVersions.VERSIONS));
+    assertNull(FieldVersions.getVersionKey(ActiveCode.ON_READ));
+    assertNull(FieldVersions.getVersionKey(null));
+    // the same request makes the same version on every replica
+    assertEquals(FieldVersions.makeVersion(12345), FieldVersions.makeVersion(12345));
+    assertNotEquals(FieldVersions.makeVersion(12345), FieldVersions.makeVersion(12346));
+  }
+
+  /**
+   * An update stamps the fields it writes with its version, and the read
+   * of a field whose version matches is the one answered with NOT_MODIFIED.
+   */
+  @Test
+  public void test_02_UpdateStampsVersion() {
+    try {
+      BasicRecordMap database = makeDatabase();
+      assertNull(FieldVersions.lookupVersion(guid, "unversioned", database));
+      assertNull(FieldVersions.lookupVersion(guid, "location", database));
+
+      String first = FieldVersions.makeVersion(1);
+      replace(database, "location", "amherst", first);
+      assertEquals(first, FieldVersions.lookupVersion(guid, "location", database));
+      assertEquals(first, FieldVersions.lookupVersion(guid, "location.lat", database));
+      assertNull(FieldVersions.lookupVersion(guid, "unversioned", database));
+
+      String second = FieldVersions.makeVersion(2);
+      update(database, new JSONObject().put("location", new JSONObject().put("lat", 42))
+              .put("name", "frank"), second);
+      assertEquals(second, FieldVersions.lookupVersion(guid, "location", database));
+      assertEquals(second, FieldVersions.lookupVersion(guid, "name", database));
+      // the value and its version were written together
+      assertEquals(42, NameRecord.getNameRecord(database, guid).getValuesMap()
+              .getJSONObject("location").getInt("lat"));
+
+      // a write of a dotted field changes the version of its top level field
+      String third = FieldVersions.makeVersion(3);
+      update(database, new JSONObject().put("location.lat", 43), third);
+      assertEquals(third, FieldVersions.lookupVersion(guid, "location.lat", database));
+      assertEquals(second, FieldVersions.lookupVersion(guid, "name", database));
+    } catch (IOException | FailedDBOperationException | FieldNotFoundException | RecordExistsException
+            | RecordNotFoundException | JSONException e) {
+      fail("Problem stamping versions " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_03_RemoveFieldRemovesVersion() {
+    try {
+      BasicRecordMap database = makeDatabase();
+      update(database, new JSONObject().put("location", "amherst").put("name", "frank"),
+              FieldVersions.makeVersion(1));
+      remove(database, "location", FieldVersions.makeVersion(2));
+      assertNull(FieldVersions.lookupVersion(guid, "location", database));
+      assertEquals(FieldVersions.makeVersion(1), FieldVersions.lookupVersion(guid, "name", database));
+      assertFalse(NameRecord.getNameRecord(database, guid).getValuesMap().has("location"));
+
+      // a record without any versions
+      database = makeDatabase();
+      remove(database, "unversioned", FieldVersions.makeVersion(3));
+      assertFalse(NameRecord.getNameRecord(database, guid).getValuesMap().has("unversioned"));
+      assertNull(FieldVersions.lookupVersion(guid, "unversioned", database));
+    } catch (IOException | FailedDBOperationException | FieldNotFoundException | RecordExistsException
+            | RecordNotFoundException | JSONException e) {
+      fail("Problem removing versions " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_04_MissingRecord() {
+    try {
+      BasicRecordMap database = makeDatabase();
+      assertNull(FieldVersions.lookupVersion("missing", "location", database));
+    } catch (IOException | FailedDBOperationException | RecordExistsException | JSONException e) {
+      fail("Problem looking up the version of a missing record " + e);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.gnsapp.clientSupport;
+
+import edu.umass.cs.gnscommon.GNSProtocol;
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.utils.JSONPath;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.MetaDataTypeName;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests finding the public keys in the ACL of a field, which is what
+ * NSAuthentication checks a signed read or write of the field against.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class NSAccessSupportTest {
+
+  private static final MetaDataTypeName access = MetaDataTypeName.READ_WHITELIST;
+  private static final String MD = GNSProtocol.MD.toString();
+
+  // The ACL of a field at a level of the ACL tree.
+  private static JSONObject acl(String... publicKeys) throws JSONException {
+    JSONArray array = new JSONArray();
+    for (String publicKey : publicKeys) {
+      array.put(publicKey);
+    }
+    return new JSONObject().put(MD, array);
+  }
+
+  // Keys for the entire record, flapjack and flapjack.sally.
+  private static JSONObject makeMetaData() throws JSONException {
+    JSONObject tree = new JSONObject();
+    tree.put(GNSProtocol.ENTIRE_RECORD.toString(), acl("allKey"));
+    JSONObject flapjack = acl("flapjackKey");
+    flapjack.put("sally", acl("sallyKey"));
+    tree.put("flapjack", flapjack);
+    return new JSONObject().put(access.getPrefix(), new JSONObject().put(access.name(), tree));
+  }
+
+  private static String keys(String field, JSONObject metaData) throws FailedDBOperationException {
+    JSONArray publicKeys = NSAccessSupport.lookupPublicKeysFromAcl(access, "guid", JSONPath.of(field), metaData);
+    return publicKeys != null ? publicKeys.toString() : null;
+  }
+
+  /**
+   * A dotted field is checked against its own ACL. NSAuthentication used to
+   * split the field with split("."), which matches every character and
+   * left no parts, so only the ACL of the entire record was checked.
+   */
+  @Test
+  public void test_01_DottedFieldOwnAcl() {
+    try {
+      JSONObject metaData = makeMetaData();
+      assertEquals("[\"sallyKey\"]", keys("flapjack.sally", metaData));
+      assertEquals("[\"flapjackKey\"]", keys("flapjack", metaData));
+      // the entire record's key isn't good enough for a field with its own ACL
+      assertFalse(keys("flapjack.sally", metaData).contains("allKey"));
+    } catch (FailedDBOperationException | JSONException e) {
+      fail("Problem looking up a dotted field's ACL " + e);
+    }
+  }
+
+  /**
+   * A field without an ACL of its own is checked against the closest ACL
+   * above it.
+   */
+  @Test
+  public void test_02_ClosestAclAbove() {
+    try {
+      JSONObject metaData = makeMetaData();
+      assertEquals("[\"sallyKey\"]", keys("flapjack.sally.right", metaData));
+      assertEquals("[\"flapjackKey\"]", keys("flapjack.sammy", metaData));
+      assertEquals("[\"flapjackKey\"]", keys("flapjack.sammy.deeper", metaData));
+      assertEquals("[\"allKey\"]", keys("name", metaData));
+      assertEquals("[\"allKey\"]", keys("name.first", metaData));
+      assertEquals("[\"allKey\"]", keys(GNSProtocol.ENTIRE_RECORD.toString(), metaData));
+    } catch (FailedDBOperationException | JSONException e) {
+      fail("Problem looking up an ACL above a field " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_03_NoAcl() {
+    try {
+      assertNull(keys("flapjack.sally", new JSONObject()));
+      JSONObject metaData = new JSONObject().put(access.getPrefix(),
+              new JSONObject().put(access.name(), new JSONObject().put("flapjack", acl("flapjackKey"))));
+      assertNull(keys("name", metaData));
+      assertEquals("[\"flapjackKey\"]", keys("flapjack.sally", metaData));
+      // another access type's ACL doesn't count
+      assertNull(NSAccessSupport.lookupPublicKeysFromAcl(MetaDataTypeName.WRITE_WHITELIST, "guid",
+              JSONPath.of("flapjack"), metaData));
+    } catch (FailedDBOperationException | JSONException e) {
+      fail("Problem looking up a missing ACL " + e);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.gnsapp.packet;
+
+import edu.umass.cs.gnscommon.utils.Base64;
+import edu.umass.cs.gnsserver.gnsapp.clientCommandProcessor.commandSupport.AccountAccess;
+import edu.umass.cs.gnsserver.gnsapp.recordmap.NameRecord;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests encoding the records of a select response as a batch and decoding
+ * them again.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SelectRecordBatchTest {
+
+  // A record as read from the database.
+  private static JSONObject makeRecord(String name, JSONObject valuesMap) throws JSONException {
+    JSONObject record = new JSONObject().put(NameRecord.NAME.getName(), name);
+    if (valuesMap != null) {
+      record.put(NameRecord.VALUES_MAP.getName(), valuesMap);
+    }
+    return record;
+  }
+
+  private static JSONArray makeRecords(int count) throws JSONException {
+    JSONArray records = new JSONArray();
+    for (int i = 0; i < count; i++) {
+      JSONObject values = new JSONObject().put("age", i).put("name", "frank" + i)
+              .put("location", new JSONObject().put("lat", 42.39).put("tags", new JSONArray().put("a").put(i)));
+      if (i % 2 == 0) {
+        values.put(AccountAccess.GUID_INFO, new JSONObject().put("name", "guid" + i));
+      }
+      records.put(makeRecord("g" + i, values));
+    }
+    return records;
+  }
+
+  private static void assertSameRecords(JSONArray expected, SelectRecordBatch batch) throws JSONException {
+    assertEquals(expected.length(), batch.size());
+    for (int i = 0; i < expected.length(); i++) {
+      JSONObject record = expected.getJSONObject(i);
+      assertEquals(record.getString(NameRecord.NAME.getName()), batch.getName(i));
+      assertEquals(record.toString(), batch.getRecord(i).toString());
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_01_Raw() {
+    try {
+      JSONArray records = makeRecords(3);
+      String encoded = SelectRecordBatch.encode(records, 0);
+      assertEquals('R', encoded.charAt(0));
+      SelectRecordBatch batch = SelectRecordBatch.decode(encoded);
+      assertSameRecords(records, batch);
+      assertTrue(batch.isGuidRecord(0));
+      assertFalse(batch.isGuidRecord(1));
+      assertTrue(batch.isGuidRecord(2));
+      assertEquals(records.toString(), batch.toJSONArray().toString());
+    } catch (JSONException e) {
+      fail("Problem encoding records " + e);
+    }
+  }
+
+  /**
+   * Batches of at least the deflate size are deflated.
+   */
+  @Test
+  public void test_02_Deflated() {
+    try {
+      JSONArray records = makeRecords(100);
+      String encoded = SelectRecordBatch.encode(records, 1024);
+      assertEquals('Z', encoded.charAt(0));
+      assertTrue(encoded.length() < SelectRecordBatch.encode(records, 0).length());
+      assertSameRecords(records, SelectRecordBatch.decode(encoded));
+      // a small batch isn't
+      assertEquals('R', SelectRecordBatch.encode(makeRecords(1), 1024).charAt(0));
+    } catch (JSONException e) {
+      fail("Problem deflating records " + e);
+    }
+  }
+
+  /**
+   * Records are decoded the first time they are asked for and only once.
+   */
+  @Test
+  public void test_03_Lazy() {
+    try {
+      SelectRecordBatch batch = SelectRecordBatch.decode(SelectRecordBatch.encode(makeRecords(3), 0));
+      JSONObject record = batch.getRecord(1);
+      assertSame(record, batch.getRecord(1));
+      assertEquals(1, record.getJSONObject(NameRecord.VALUES_MAP.getName()).getInt("age"));
+    } catch (JSONException e) {
+      fail("Problem decoding records " + e);
+    }
+  }
+
+  /**
+   * Empty batches, and records without a values map.
+   */
+  @Test
+  public void test_04_Empty() {
+    try {
+      SelectRecordBatch batch = SelectRecordBatch.decode(SelectRecordBatch.encode(new JSONArray(), 0));
+      assertEquals(0, batch.size());
+      assertEquals(0, batch.toJSONArray().length());
+
+      JSONArray records = new JSONArray().put(makeRecord("g0", null)).put(makeRecord("g1", new JSONObject()));
+      batch = SelectRecordBatch.decode(SelectRecordBatch.encode(records, 0));
+      assertSameRecords(records, batch);
+      assertFalse(batch.isGuidRecord(0));
+      assertFalse(batch.isGuidRecord(1));
+    } catch (JSONException e) {
+      fail("Problem encoding empty records " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_05_BadBatch() {
+    String encoded = null;
+    try {
+      encoded = SelectRecordBatch.encode(makeRecords(3), 0);
+    } catch (JSONException e) {
+      fail("Problem encoding records " + e);
+    }
+    // a bad type, bad base64, a truncated batch and a bad record count
+    String[] bad = {"X" + encoded.substring(1), "Rabc", "R\u0100", encoded.substring(0, encoded.length() / 2),
+      "Z" + encoded.substring(1), "R" + Base64.encodeToString(new byte[]{0x7f, 0, 0, 0}, false)};
+    for (String batch : bad) {
+      try {
+        SelectRecordBatch.decode(batch);
+        fail("Should have thrown JSONException for " + batch);
+      } catch (JSONException e) {
+        // expected
+      }
+    }
+  }
+}
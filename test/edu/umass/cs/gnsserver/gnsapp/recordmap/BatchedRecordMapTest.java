@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.gnsapp.recordmap;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordExistsException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
+import edu.umass.cs.gnsserver.database.AbstractRecordCursor;
+import edu.umass.cs.gnsserver.database.ColumnField;
+import edu.umass.cs.gnsserver.database.ColumnFieldType;
+import edu.umass.cs.gnsserver.database.FieldUpdate;
+import edu.umass.cs.gnsserver.database.LogStructuredRecords;
+import edu.umass.cs.gnsserver.utils.ValuesMap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests holding field updates and values maps and writing them out together.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class BatchedRecordMapTest {
+
+  private static final String collection = "testCollection";
+  private static final String field = "testField";
+  // long enough that only the test decides when things are written out
+  private static final long NEVER = 60000;
+
+  /**
+   * The database behind the map, which counts the bulk writes and can be
+   * made to fail them.
+   */
+  private static class Records extends LogStructuredRecords {
+
+    private final AtomicInteger bulkWrites = new AtomicInteger();
+    private volatile boolean failing = false;
+
+    Records() throws IOException {
+      super(Files.createTempDirectory("gnsbatched").toFile(), 4096, false);
+    }
+
+    @Override
+    public void bulkUpdateIndividualFields(String collection, ColumnField valuesMapField,
+            List<FieldUpdate> updates) throws FailedDBOperationException {
+      if (failing) {
+        throw new FailedDBOperationException(collection, "bulkUpdate", "failing");
+      }
+      bulkWrites.incrementAndGet();
+      super.bulkUpdateIndividualFields(collection, valuesMapField, updates);
+    }
+
+    @Override
+    public void bulkUpsert(String collection, Map<String, JSONObject> records)
+            throws FailedDBOperationException {
+      if (failing) {
+        throw new FailedDBOperationException(collection, "bulkUpsert", "failing");
+      }
+      bulkWrites.incrementAndGet();
+      super.bulkUpsert(collection, records);
+    }
+
+    // What the database has, without going through the map.
+    int value(String name) throws FailedDBOperationException, RecordNotFoundException, JSONException {
+      return lookupEntireRecord(collection, name).getJSONObject(NameRecord.VALUES_MAP.getName())
+              .optInt(field, -1);
+    }
+  }
+
+  private static void addRecord(BatchedRecordMap<String> map, String name)
+          throws FailedDBOperationException, RecordExistsException, JSONException {
+    JSONObject record = new JSONObject();
+    record.put(NameRecord.NAME.getName(), name);
+    record.put(NameRecord.VALUES_MAP.getName(), new JSONObject());
+    map.addRecord(record);
+  }
+
+  private static void update(BatchedRecordMap<String> map, String name, int value)
+          throws FailedDBOperationException {
+    map.updateIndividualFields(name,
+            new ArrayList<>(Arrays.asList(new ColumnField(field, ColumnFieldType.USER_JSON))),
+            new ArrayList<Object>(Arrays.asList(value)));
+  }
+
+  private static ValuesMap valuesMap(int value) throws JSONException {
+    ValuesMap valuesMap = new ValuesMap();
+    valuesMap.put(field, value);
+    return valuesMap;
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_01_FlushBySize() {
+    try {
+      Records records = new Records();
+      BatchedRecordMap<String> map = new BatchedRecordMap<>(records, collection, 3, 3, NEVER, 3);
+      for (int i = 0; i < 3; i++) {
+        addRecord(map, "guid" + i);
+      }
+      update(map, "guid0", 1);
+      update(map, "guid1", 1);
+      assertEquals(0, records.bulkWrites.get());
+      assertEquals(-1, records.value("guid0"));
+      update(map, "guid2", 1);
+      assertEquals(1, records.bulkWrites.get());
+      for (int i = 0; i < 3; i++) {
+        assertEquals(1, records.value("guid" + i));
+      }
+      map.shutdown();
+    } catch (IOException | FailedDBOperationException | RecordExistsException | RecordNotFoundException | JSONException e) {
+      fail("Problem flushing by size " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_02_FlushByDelay() {
+    try {
+      Records records = new Records();
+      BatchedRecordMap<String> map = new BatchedRecordMap<>(records, collection, 100, 100, 20, 3);
+      addRecord(map, "guid0");
+      update(map, "guid0", 1);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (records.bulkWrites.get() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, records.bulkWrites.get());
+      assertEquals(1, records.value("guid0"));
+      map.shutdown();
+    } catch (IOException | FailedDBOperationException | RecordExistsException | RecordNotFoundException
+            | JSONException | InterruptedException e) {
+      fail("Problem flushing by delay " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_03_FlushBeforeRead() {
+    try {
+      Records records = new Records();
+      BatchedRecordMap<String> map = new BatchedRecordMap<>(records, collection, 100, 100, NEVER, 3);
+      addRecord(map, "guid0");
+      update(map, "guid0", 1);
+      assertEquals(0, records.bulkWrites.get());
+      // reading another record doesn't write anything out
+      assertFalse(map.containsName("guid1"));
+      assertEquals(0, records.bulkWrites.get());
+      assertEquals(1, map.lookupEntireRecord("guid0").getJSONObject(NameRecord.VALUES_MAP.getName())
+              .getInt(field));
+      assertEquals(1, records.bulkWrites.get());
+      // selects write out everything
+      addRecord(map, "guid1");
+      update(map, "guid1", 2);
+      assertEquals(1, count(map.selectRecords(NameRecord.VALUES_MAP, field, 2)));
+      assertEquals(2, records.bulkWrites.get());
+      map.shutdown();
+    } catch (IOException | FailedDBOperationException | RecordExistsException | RecordNotFoundException
+            | JSONException e) {
+      fail("Problem flushing before a read " + e);
+    }
+  }
+
+  private static int count(AbstractRecordCursor cursor)
+          throws FailedDBOperationException {
+    int count = 0;
+    while (cursor.hasNext()) {
+      cursor.nextJSONObject();
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * An update held after a values map of the same record goes after it and
+   * a values map after updates replaces them.
+   */
+  @Test
+  public void test_04_Ordering() {
+    try {
+      Records records = new Records();
+      BatchedRecordMap<String> map = new BatchedRecordMap<>(records, collection, 100, 100, NEVER, 3);
+      Map<String, ValuesMap> valuesMaps = new HashMap<>();
+      valuesMaps.put("guid0", valuesMap(1));
+      map.bulkUpsertValuesMaps(valuesMaps);
+      update(map, "guid0", 2);
+      map.flush();
+      assertEquals(2, records.value("guid0"));
+
+      update(map, "guid0", 3);
+      valuesMaps.put("guid0", valuesMap(4));
+      map.bulkUpsertValuesMaps(valuesMaps);
+      map.flush();
+      assertEquals(4, records.value("guid0"));
+
+      // updates of a record are written out in order
+      update(map, "guid0", 5);
+      update(map, "guid0", 6);
+      map.flush();
+      assertEquals(6, records.value("guid0"));
+      map.shutdown();
+    } catch (IOException | FailedDBOperationException | RecordNotFoundException | JSONException e) {
+      fail("Problem ordering writes " + e);
+    }
+  }
+
+  /**
+   * A failed write out is only thrown from flush. The updates are kept and
+   * retried, readers read what the database has, and after maxAttempts
+   * failures in a row the updates are dropped.
+   */
+  @Test
+  public void test_05_Failure() {
+    try {
+      Records records = new Records();
+      BatchedRecordMap<String> map = new BatchedRecordMap<>(records, collection, 2, 2, NEVER, 3);
+      addRecord(map, "guid0");
+      addRecord(map, "guid1");
+      records.failing = true;
+      update(map, "guid0", 1);
+      // reaching the batch size doesn't throw at the caller whose update is held
+      update(map, "guid1", 1);
+      // nor does reading a record with waiting updates
+      assertFalse(map.lookupEntireRecord("guid0").getJSONObject(NameRecord.VALUES_MAP.getName()).has(field));
+      assertTrue(map.containsName("guid1"));
+      try {
+        map.flush();
+        fail("Should have thrown FailedDBOperationException");
+      } catch (FailedDBOperationException e) {
+        // expected
+      }
+      // the updates were kept
+      records.failing = false;
+      map.flush();
+      assertEquals(1, records.value("guid0"));
+      assertEquals(1, records.value("guid1"));
+
+      // three failures in a row drop the updates
+      records.failing = true;
+      update(map, "guid0", 2);
+      for (int i = 0; i < 3; i++) {
+        try {
+          map.flush();
+          fail("Should have thrown FailedDBOperationException");
+        } catch (FailedDBOperationException e) {
+          // expected
+        }
+      }
+      records.failing = false;
+      int writes = records.bulkWrites.get();
+      map.flush();
+      assertEquals(writes, records.bulkWrites.get());
+      assertEquals(1, records.value("guid0"));
+      // and the map works again afterwards
+      update(map, "guid0", 3);
+      map.flush();
+      assertEquals(3, records.value("guid0"));
+      map.shutdown();
+    } catch (IOException | FailedDBOperationException | RecordExistsException | RecordNotFoundException
+            | JSONException e) {
+      fail("Problem with failed writes " + e);
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.gnsapp.recordmap;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordExistsException;
+import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
+import edu.umass.cs.gnscommon.utils.ImmutableJSONObject;
+import edu.umass.cs.gnsserver.database.ColumnField;
+import edu.umass.cs.gnsserver.database.ColumnFieldType;
+import edu.umass.cs.gnsserver.database.LogStructuredRecords;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests caching records, dropping them when they are written and the
+ * record map's use of the cache.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class RecordCacheTest {
+
+  private static final String collection = "testCollection";
+  private static final String field = "testField";
+
+  private static JSONObject makeRecord(String name, int value) throws JSONException {
+    JSONObject record = new JSONObject();
+    record.put(NameRecord.NAME.getName(), name);
+    record.put(NameRecord.VALUES_MAP.getName(), new JSONObject().put(field, value));
+    return record;
+  }
+
+  private static void put(RecordCache cache, String name, int value) throws JSONException {
+    cache.put(name, makeRecord(name, value), cache.version(name));
+  }
+
+  // Names that land in the same segment, using the cache's own hash.
+  private static String[] sameSegment(int count) {
+    String[] names = new String[count];
+    int found = 0;
+    Integer target = null;
+    for (int i = 0; found < count; i++) {
+      String name = "guid" + i;
+      int hash = name.hashCode();
+      int segment = (hash ^ (hash >>> 16)) & 15;
+      if (target == null) {
+        target = segment;
+      }
+      if (segment == target) {
+        names[found++] = name;
+      }
+    }
+    return names;
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_01_GetAndPut() {
+    try {
+      RecordCache cache = new RecordCache(100);
+      assertNull(cache.get("guid0"));
+      JSONObject returned = cache.put("guid0", makeRecord("guid0", 1), cache.version("guid0"));
+      // readers share the cached record so it can't be changed
+      assertTrue(returned instanceof ImmutableJSONObject);
+      assertSame(returned, cache.get("guid0"));
+      assertTrue(cache.contains("guid0"));
+      assertEquals(1, cache.size());
+      assertEquals(1, cache.getHits());
+      assertEquals(1, cache.getMisses());
+      assertEquals(0.5, cache.getHitRatio(), 0);
+    } catch (JSONException e) {
+      fail("Problem caching a record " + e);
+    }
+  }
+
+  /**
+   * A record read before a write isn't cached after it.
+   */
+  @Test
+  public void test_02_Generation() {
+    try {
+      RecordCache cache = new RecordCache(100);
+      put(cache, "guid0", 1);
+      long version = cache.version("guid0");
+      // the reader read the record, then it was written
+      JSONObject stale = makeRecord("guid0", 1);
+      cache.invalidate("guid0");
+      assertFalse(cache.contains("guid0"));
+      assertEquals(1, cache.getInvalidations());
+      JSONObject returned = cache.put("guid0", stale, version);
+      // the reader still gets what it read
+      assertEquals(1, returned.getJSONObject(NameRecord.VALUES_MAP.getName()).getInt(field));
+      assertFalse(cache.contains("guid0"));
+      // a read started after the write is cached
+      put(cache, "guid0", 2);
+      assertEquals(2, cache.get("guid0").getJSONObject(NameRecord.VALUES_MAP.getName()).getInt(field));
+
+      // invalidating a record that isn't cached still stops racing reads
+      version = cache.version("guid1");
+      cache.invalidate("guid1");
+      assertEquals(1, cache.getInvalidations());
+      cache.put("guid1", makeRecord("guid1", 1), version);
+      assertFalse(cache.contains("guid1"));
+    } catch (JSONException e) {
+      fail("Problem with the generation " + e);
+    }
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_03_MissedBefore() {
+    try {
+      RecordCache cache = new RecordCache(100);
+      assertFalse(cache.missedBefore("guid0"));
+      assertTrue(cache.missedBefore("guid0"));
+      assertTrue(cache.missedBefore("guid0"));
+      // caching the record forgets the misses
+      put(cache, "guid0", 1);
+      cache.invalidate("guid0");
+      assertFalse(cache.missedBefore("guid0"));
+
+      // the misses are bounded like the records, least recently missed first
+      cache = new RecordCache(32);
+      String[] names = sameSegment(3);
+      cache.missedBefore(names[0]);
+      cache.missedBefore(names[1]);
+      cache.missedBefore(names[2]);
+      assertFalse(cache.missedBefore(names[0]));
+    } catch (JSONException e) {
+      fail("Problem with misses " + e);
+    }
+  }
+
+  /**
+   * Each segment keeps its share of the records and drops the least
+   * recently used one.
+   */
+  @Test
+  public void test_04_LeastRecentlyUsed() {
+    try {
+      RecordCache cache = new RecordCache(32);
+      for (int i = 0; i < 1000; i++) {
+        put(cache, "guid" + i, i);
+      }
+      assertTrue(cache.size() <= 32);
+      assertTrue(cache.size() > 16);
+
+      // two records per segment
+      cache = new RecordCache(32);
+      String[] names = sameSegment(3);
+      put(cache, names[0], 0);
+      put(cache, names[1], 1);
+      assertNotNull(cache.get(names[0]));
+      put(cache, names[2], 2);
+      assertTrue(cache.contains(names[0]));
+      assertFalse(cache.contains(names[1]));
+      assertTrue(cache.contains(names[2]));
+    } catch (JSONException e) {
+      fail("Problem with the least recently used " + e);
+    }
+  }
+
+  /**
+   * The record map reads the whole record into the cache the second time
+   * fields of the record are read, and drops it when the record is written.
+   */
+  @Test
+  public void test_05_RecordMap() {
+    try {
+      final AtomicInteger wholeReads = new AtomicInteger();
+      LogStructuredRecords records = new LogStructuredRecords(
+              Files.createTempDirectory("gnsrecordcache").toFile(), 4096, false) {
+        @Override
+        public JSONObject lookupEntireRecord(String collectionName, String guid)
+                throws RecordNotFoundException, FailedDBOperationException {
+          wholeReads.incrementAndGet();
+          return super.lookupEntireRecord(collectionName, guid);
+        }
+      };
+      GNSRecordMap<String> map = new GNSRecordMap<>(records, collection);
+      RecordCache cache = map.getRecordCache();
+      assertNotNull(cache);
+      map.addRecord(makeRecord("guid0", 1));
+      ArrayList<ColumnField> keys = new ArrayList<>(Arrays.asList(new ColumnField(field, ColumnFieldType.USER_JSON)));
+
+      assertEquals(1, ((JSONObject) map.lookupUserFields("guid0", NameRecord.NAME, NameRecord.VALUES_MAP,
+              keys).get(NameRecord.VALUES_MAP)).getInt(field));
+      assertEquals(0, wholeReads.get());
+      assertFalse(cache.contains("guid0"));
+      map.lookupUserFields("guid0", NameRecord.NAME, NameRecord.VALUES_MAP, keys);
+      assertEquals(1, wholeReads.get());
+      assertTrue(cache.contains("guid0"));
+      map.lookupUserFields("guid0", NameRecord.NAME, NameRecord.VALUES_MAP, keys);
+      map.lookupEntireRecord("guid0");
+      assertEquals(1, wholeReads.get());
+
+      map.updateIndividualFields("guid0", keys, new ArrayList<Object>(Arrays.asList(2)));
+      assertFalse(cache.contains("guid0"));
+      assertEquals(2, map.lookupEntireRecord("guid0").getJSONObject(NameRecord.VALUES_MAP.getName())
+              .getInt(field));
+      assertTrue(cache.contains("guid0"));
+
+      map.removeRecord("guid0");
+      assertFalse(cache.contains("guid0"));
+      assertFalse(map.containsName("guid0"));
+    } catch (IOException | FailedDBOperationException | RecordExistsException | RecordNotFoundException
+            | JSONException e) {
+      fail("Problem caching records in the record map " + e);
+    }
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2016
+ * University of Massachusetts
+ * All Rights Reserved
+ *
+ * Initial developer(s): Westy.
+ */
+package edu.umass.cs.gnsserver.gnsapp.recordmap;
+
+import edu.umass.cs.gnscommon.exceptions.server.FailedDBOperationException;
+import edu.umass.cs.gnscommon.utils.Base64;
+import edu.umass.cs.gnscommon.exceptions.server.RecordNotFoundException;
+import edu.umass.cs.gnsserver.database.ColumnField;
+import edu.umass.cs.gnsserver.database.ColumnFieldType;
+import edu.umass.cs.gnsserver.database.LogStructuredRecords;
+import edu.umass.cs.gnsserver.utils.BinaryJSON;
+import edu.umass.cs.gnsserver.utils.ValuesMap;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Tests making checkpoints in each format and restoring them.
+ *
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class RecordCheckpointsTest {
+
+  private static final String collection = "testCollection";
+  private static final BigInteger BIG = BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.TEN);
+
+  /**
+   * A record map with its checkpoints in one format, told about writes the
+   * way the record map tells its own checkpoints. Also notes the fields
+   * each write touched.
+   */
+  private static class Checkpointed implements GNSRecordMap.WriteListener {
+
+    private final GNSRecordMap<String> map;
+    private final RecordCheckpoints checkpoints;
+    private final Set<String> written = new HashSet<>();
+    private boolean wroteAll = false;
+
+    Checkpointed(RecordCheckpoints.Format format) throws IOException {
+      this.map = new GNSRecordMap<>(new LogStructuredRecords(
+              Files.createTempDirectory("gnscheckpoints").toFile(), 4096, false), collection);
+      this.checkpoints = new RecordCheckpoints(map, format, 1024 * 1024);
+      map.addWriteListener(this);
+    }
+
+    @Override
+    public synchronized void written(String name, List<ColumnField> keys) {
+      if (keys != null) {
+        checkpoints.changed(name, keys);
+        for (ColumnField key : keys) {
+          written.add(key.getName());
+        }
+      } else {
+        checkpoints.invalidate(name);
+        wroteAll = true;
+      }
+    }
+
+    synchronized void clearWritten() {
+      written.clear();
+      wroteAll = false;
+    }
+
+    void put(String name, JSONObject valuesMap) throws FailedDBOperationException {
+      map.bulkUpsertValuesMaps(Collections.singletonMap(name, new ValuesMap(valuesMap)));
+    }
+
+    JSONObject valuesMap(String name) throws FailedDBOperationException, RecordNotFoundException,
+            JSONException {
+      return map.lookupEntireRecord(name).getJSONObject(NameRecord.VALUES_MAP.getName());
+    }
+  }
+
+  private static String padding(int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char) ('a' + i % 7);
+    }
+    return new String(chars);
+  }
+
+  // A values map with every type BinaryJSON writes.
+  private static JSONObject makeValuesMap() throws JSONException {
+    JSONObject valuesMap = new JSONObject();
+    valuesMap.put("null", JSONObject.NULL);
+    valuesMap.put("false", false);
+    valuesMap.put("true", true);
+    valuesMap.put("int", -42);
+    valuesMap.put("long", Long.MIN_VALUE);
+    valuesMap.put("double", 2.5);
+    valuesMap.put("big", BIG);
+    valuesMap.put("string", "caf\u00e9 \u65e5\u672c");
+    JSONObject sally = new JSONObject();
+    sally.put("right", "seven");
+    sally.put("list", new JSONArray(Arrays.asList(1, "two", 3.5, false)));
+    valuesMap.put("object", new JSONObject().put("sally", sally).put("empty", new JSONObject()));
+    valuesMap.put("array", new JSONArray().put(new JSONArray().put(1L << 40)).put(new JSONArray()));
+    return valuesMap;
+  }
+
+  private static void assertValuesMap(JSONObject valuesMap) throws JSONException {
+    assertEquals(10, valuesMap.length());
+    assertTrue(valuesMap.isNull("null"));
+    assertEquals(Boolean.FALSE, valuesMap.get("false"));
+    assertEquals(Boolean.TRUE, valuesMap.get("true"));
+    assertEquals(-42, valuesMap.getInt("int"));
+    assertEquals(Long.MIN_VALUE, valuesMap.getLong("long"));
+    assertEquals(2.5, valuesMap.getDouble("double"), 0);
+    assertEquals(BIG.toString(), valuesMap.get("big").toString());
+    assertEquals("caf\u00e9 \u65e5\u672c", valuesMap.getString("string"));
+    JSONObject sally = valuesMap.getJSONObject("object").getJSONObject("sally");
+    assertEquals("seven", sally.getString("right"));
+    assertEquals("two", sally.getJSONArray("list").getString(1));
+    assertEquals(3.5, sally.getJSONArray("list").getDouble(2), 0);
+    assertEquals(false, sally.getJSONArray("list").getBoolean(3));
+    assertEquals(0, valuesMap.getJSONObject("object").getJSONObject("empty").length());
+    assertEquals(1L << 40, valuesMap.getJSONArray("array").getJSONArray(0).getLong(0));
+    assertEquals(0, valuesMap.getJSONArray("array").getJSONArray(1).length());
+  }
+
+  private static void update(Checkpointed checkpointed, String name, String field, Object value)
+          throws FailedDBOperationException {
+    checkpointed.map.updateIndividualFields(name,
+            new ArrayList<>(Arrays.asList(new ColumnField(field, ColumnFieldType.USER_JSON))),
+            new ArrayList<>(Arrays.asList(value)));
+  }
+
+  private static void remove(Checkpointed checkpointed, String name, String field)
+          throws FailedDBOperationException {
+    checkpointed.map.removeMapKeys(name, NameRecord.VALUES_MAP,
+            new ArrayList<>(Arrays.asList(new ColumnField(field, ColumnFieldType.USER_JSON))));
+  }
+
+  /**
+   *
+   */
+  @Test
+  public void test_01_JSON() {
+    try {
+      Checkpointed from = new Checkpointed(RecordCheckpoints.Format.JSON);
+      from.put("guid", makeValuesMap());
+      String state = from.checkpoints.checkpoint("guid");
+      // what servers from before the binary formats restore
+      assertValuesMap(new JSONObject(state));
+      assertValuesMap(RecordCheckpoints.decode(state));
+
+      Checkpointed to = new Checkpointed(RecordCheckpoints.Format.JSON);
+      to.checkpoints.restore("guid", state);
+      assertValuesMap(to.valuesMap("guid"));
+      to.checkpoints.restore("guid", null);
+      assertFalse(to.map.containsName("guid"));
+    } catch (IOException | FailedDBOperationException | RecordNotFoundException | JSONException e) {
+      fail("Problem with JSON checkpoints " + e);
+    }
+  }
+
+  /**
+   * Every type comes back as the same type, through the checkpoint and
+   * through restoring it.
+   */
+  @Test
+  public void test_02_Binary() {
+    try {
+      Checkpointed from = new Checkpointed(RecordCheckpoints.Format.BINARY);
+      from.put("guid", makeValuesMap());
+      String state = from.checkpoints.checkpoint("guid");
+      assertTrue(state.startsWith("GNSB1\n"));
+      // a line per field after the header
+      assertEquals(11, state.split("\n").length);
+      JSONObject decoded = RecordCheckpoints.decode(state);
+      assertValuesMap(decoded);
+      assertTrue(decoded.get("int") instanceof Integer);
+      assertTrue(decoded.get("long") instanceof Long);
+      assertTrue(decoded.get("double") instanceof Double);
+      // the store keeps JSON text so it can't return numbers too big for a
+      // long, but a line holding one from another store decodes to one
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream output = new DataOutputStream(bytes);
+      BinaryJSON.writeString(output, "big");
+      BinaryJSON.writeValue(output, BIG);
+      output.flush();
+      decoded = RecordCheckpoints.decode("GNSB1\nR" + Base64.encodeToString(bytes.toByteArray(), false));
+      assertEquals(BIG, decoded.get("big"));
+
+      for (RecordCheckpoints.Format format : RecordCheckpoints.Format.values()) {
+        Checkpointed to = new Checkpointed(format);
+        to.checkpoints.restore("guid", state);
+        assertValuesMap(to.valuesMap("guid"));
+      }
+    } catch (IOException | FailedDBOperationException | RecordNotFoundException | JSONException e) {
+      fail("Problem with binary checkpoints " + e);
+    }
+  }
+
+  /**
+   * Big fields are deflated and read back, and bad lines are reported.
+   */
+  @Test
+  public void test_03_DeflatedLines() {
+    try {
+      Checkpointed from = new Checkpointed(RecordCheckpoints.Format.BINARY);
+      JSONObject valuesMap = new JSONObject();
+      valuesMap.put("small", "small");
+      valuesMap.put("large", padding(10000));
+      from.put("guid", valuesMap);
+      String state = from.checkpoints.checkpoint("guid");
+      int deflated = 0;
+      for (String line : state.substring(state.indexOf('\n') + 1).split("\n")) {
+        if (line.charAt(0) == 'Z') {
+          deflated++;
+          assertTrue(line.length() < 10000);
+        } else {
+          assertEquals('R', line.charAt(0));
+        }
+      }
+      assertEquals(1, deflated);
+      JSONObject decoded = RecordCheckpoints.decode(state);
+      assertEquals("small", decoded.getString("small"));
+      assertEquals(padding(10000), decoded.getString("large"));
+
+      try {
+        RecordCheckpoints.decode("GNSB1\nZnot a deflated line");
+        fail("Should have thrown JSONException");
+      } catch (JSONException e) {
+        // expected
+      }
+    } catch (IOException | FailedDBOperationException | RecordNotFoundException | JSONException e) {
+      fail("Problem with deflated checkpoints " + e);
+    }
+  }
+
+  /**
+   * Incremental checkpoints follow field writes and removals, including
+   * dotted writes, and are reused while nothing changes.
+   */
+  @Test
+  public void test_04_IncrementalAfterWrites() {
+    try {
+      Checkpointed checkpointed = new Checkpointed(RecordCheckpoints.Format.INCREMENTAL);
+      checkpointed.put("guid", makeValuesMap());
+      String state = checkpointed.checkpoints.checkpoint("guid");
+      assertValuesMap(RecordCheckpoints.decode(state));
+      assertSame(state, checkpointed.checkpoints.checkpoint("guid"));
+
+      update(checkpointed, "guid", "int", 7);
+      update(checkpointed, "guid", "added", "new");
+      update(checkpointed, "guid", "object.sally.right", "crank");
+      state = checkpointed.checkpoints.checkpoint("guid");
+      JSONObject decoded = RecordCheckpoints.decode(state);
+      assertEquals(7, decoded.getInt("int"));
+      assertEquals("new", decoded.getString("added"));
+      assertEquals("crank", decoded.getJSONObject("object").getJSONObject("sally").getString("right"));
+      assertEquals(Long.MIN_VALUE, decoded.getLong("long"));
+      assertSame(state, checkpointed.checkpoints.checkpoint("guid"));
+
+      remove(checkpointed, "guid", "added");
+      remove(checkpointed, "guid", "object.sally.list");
+      decoded = RecordCheckpoints.decode(checkpointed.checkpoints.checkpoint("guid"));
+      assertFalse(decoded.has("added"));
+      assertFalse(decoded.getJSONObject("object").getJSONObject("sally").has("list"));
+      assertEquals(10, decoded.length());
+
+      // writing the whole record drops the cached checkpoint
+      JSONObject replaced = new JSONObject().put("only", 1);
+      checkpointed.put("guid", replaced);
+      decoded = RecordCheckpoints.decode(checkpointed.checkpoints.checkpoint("guid"));
+      assertEquals(1, decoded.length());
+      assertEquals(1, decoded.getInt("only"));
+    } catch (IOException | FailedDBOperationException | RecordNotFoundException | JSONException e) {
+      fail("Problem with incremental checkpoints " + e);
+    }
+  }
+
+  /**
+   * Restoring over a record whose last checkpoint is cached only writes the
+   * fields that differ and removes the ones that are gone.
+   */
+  @Test
+  public void test_05_RestoreOverCached() {
+    try {
+      Checkpointed checkpointed = new Checkpointed(RecordCheckpoints.Format.INCREMENTAL);
+      checkpointed.put("guid", makeValuesMap());
+      checkpointed.checkpoints.checkpoint("guid");
+
+      // the checkpoint from another replica
+      JSONObject other = makeValuesMap();
+      other.put("int", 8);
+      other.put("added", "new");
+      other.remove("string");
+      Checkpointed replica = new Checkpointed(RecordCheckpoints.Format.BINARY);
+      replica.put("guid", other);
+      String state = replica.checkpoints.checkpoint("guid");
+
+      checkpointed.clearWritten();
+      checkpointed.checkpoints.restore("guid", state);
+      assertFalse(checkpointed.wroteAll);
+      assertEquals(new HashSet<>(Arrays.asList("int", "added", "string")), checkpointed.written);
+      JSONObject valuesMap = checkpointed.valuesMap("guid");
+      assertEquals(8, valuesMap.getInt("int"));
+      assertEquals("new", valuesMap.getString("added"));
+      assertFalse(valuesMap.has("string"));
+      assertEquals(Long.MIN_VALUE, valuesMap.getLong("long"));
+      // the restored state is the new cached checkpoint
+      assertEquals(state, checkpointed.checkpoints.checkpoint("guid"));
+
+      // a write since the last checkpoint is undone by the restore even
+      // though the checkpoint's line didn't change
+      update(checkpointed, "guid", "long", 5L);
+      checkpointed.clearWritten();
+      checkpointed.checkpoints.restore("guid", state);
+      assertEquals(Long.MIN_VALUE, checkpointed.valuesMap("guid").getLong("long"));
+      assertEquals(new HashSet<>(Arrays.asList("long")), checkpointed.written);
+
+      // without a cached checkpoint the whole record is written
+      checkpointed.clearWritten();
+      checkpointed.checkpoints.restore("new guid", state);
+      assertTrue(checkpointed.wroteAll);
+      assertEquals(8, checkpointed.valuesMap("new guid").getInt("int"));
+    } catch (IOException | FailedDBOperationException | RecordNotFoundException | JSONException e) {
+      fail("Problem restoring over a cached checkpoint " + e);
+    }
+  }
+}